@@ -3,28 +3,51 @@ package com.hapiware.agent;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.lang.instrument.Instrumentation;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
 import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
-import java.net.URLClassLoader;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.Attributes;
 import java.util.jar.Manifest;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.xml.XMLConstants;
-import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Source;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 import javax.xml.validation.Schema;
 import javax.xml.validation.SchemaFactory;
@@ -32,7 +55,6 @@ import javax.xml.validation.Validator;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 
 import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
@@ -41,6 +63,7 @@ import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.w3c.dom.Text;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
 
@@ -73,6 +96,11 @@ import org.xml.sax.SAXException;
  * 		}
  * </pre>
  * 
+ * {@code Agent} can also be attached to a running JVM (see {@code com.sun.tools.attach.VirtualMachine})
+ * with the same agent arguments. The configuration is then processed the same way and the classes
+ * already loaded which match the <a href="#agent-filter-element">{@code /agent/filter}</a> are
+ * retransformed once the agent delegate is started.
+ * 
  * 
  * 
  * <h3>Configuration file</h3>
@@ -237,8 +265,177 @@ import org.xml.sax.SAXException;
  * This {@code static void premain(java.util.regex.Pattern[], java.util.regex.Pattern[], Object, Instrumentation)}
  * method <b>can do all the same things</b> as defined for {@code static void premain(String, Instrumentation)}
  * method in the {@code java.lang.instrument} package description.  
+ * <p>
+ * When the agent is attached to a running JVM, the agent delegate class can optionally have the
+ * following method which will then be called instead of the {@code premain} one:
+ * <pre>
+ * 		public static void agentmain(
+ * 			java.util.regex.Pattern[] includePatterns,
+ * 			java.util.regex.Pattern[] excludePatterns,
+ * 			Object config,
+ * 			Instrumentation instrumentation
+ * 		)
+ * </pre>
+ * Both {@code premain} and {@code agentmain} methods can take an additional
+ * {@code java.util.concurrent.ExecutorService executor} argument, in which case that variant is
+ * called. The executor is a worker pool owned by the agent and shared by all the delegates, sized
+ * from the container CPU quota (or from the {@code jeyzer.agent.executor.threads} option). On Java 21+,
+ * it runs the tasks on virtual threads if the {@code jeyzer.agent.executor.virtual} option is set to
+ * {@code true}. Delegates should use it for their background tasks instead of creating their own
+ * threads. It cannot be shut down by the delegates and is shut down at JVM exit.
+ * <p>
+ * Finally, the {@code premain}, {@code agentmain} and {@code reconfigure} methods can take a single
+ * {@link AgentContext} argument, which is then preferred over the other variants:
+ * <pre>
+ * 		public static void premain(AgentContext context)
+ * </pre>
+ * The context gives access to the compiled {@link ClassFilter}, the configuration object, the
+ * {@code Instrumentation}, the agent worker pool and the agent {@link MetricsRegistry}. The delegate
+ * methods are resolved once per delegate class and called through method handles. Delegates which
+ * register a transformer only to learn the loaded classes should subscribe a
+ * {@link ClassLoadListener} to the context instead : the class loads matching the delegate filter
+ * are then delivered in batches on a background thread (see {@link ClassLoadNotifier}).
+ * <p>
+ * When the configuration reload is enabled ({@code jeyzer.agent.config.reload} option) or when
+ * instrumentation levels are used, the agent delegate class can optionally have the following
+ * method which is called with the new filter patterns and configuration object each time the
+ * configuration file changes or the instrumentation level is switched:
+ * <pre>
+ * 		public static void reconfigure(
+ * 			java.util.regex.Pattern[] includePatterns,
+ * 			java.util.regex.Pattern[] excludePatterns,
+ * 			Object config
+ * 		)
+ * </pre>
+ * The classes whose filter decision changed are then retransformed. The method is called while the
+ * delegate transformers may be running and must therefore publish the new configuration safely.
+ * 
+ * 
+ * 
+ * <h5>Multiple delegates</h5>
+ * Several {@code /agent/delegate} elements can be defined. In that case, the delegate class name
+ * is set with the {@code class} attribute and each delegate can have its own {@code classpath},
+ * {@code filter} and {@code configuration} child elements. The {@code /agent} ones are used for
+ * the delegates which do not define them. Each delegate gets its own class loader, the class data of
+ * the jars shared by several delegates being read only once. The delegates are started
+ * concurrently. Here is an example:
+ * <pre>
+ * {@code
+ * 	<?xml version="1.0" encoding="UTF-8" ?>
+ *	<agent>
+ *		<delegate class="com.hapiware.test.MyAgentDelegate"/>
+ *		<delegate class="com.hapiware.test.MyOtherAgentDelegate">
+ *			<classpath>
+ *				<entry>/users/me/agent/target/my-other-delegate-1.0.0.jar</entry>
+ *			</classpath>
+ *			<configuration>Other</configuration>
+ *		</delegate>
+ *		<classpath>
+ * 			<entry>/users/me/agent/target/my-delegate-1.0.0.jar</entry>
+ *		</classpath>
+ *		<configuration>...</configuration>
+ *	</agent>}
+ * </pre>
+ * 
+ * <h5>Compiled configuration</h5>
+ * The configuration file can be compiled ahead of time, typically at image build time, with the
+ * {@link AgentConfigCompiler}:
+ * <pre>
+ * 	java -cp jeyzer-agent.jar com.hapiware.agent.AgentConfigCompiler agent.xml agent.agentc
+ * </pre>
+ * The configuration is validated and its variables resolved at compile time, except the ones
+ * referencing agent parameters, system properties or environment variables which get resolved
+ * when the agent starts. The compiled {@code .agentc} file is then given to the agent instead
+ * of the XML file and is read without any XML processing. It also embeds the agent version.
+ * 
+ * <h5>Configuration fragments</h5>
+ * Variables and filter patterns shared by several configuration files can be put in a fragment
+ * file (with the {@code <fragment>} root element), imported with {@code <import file="..."/>}
+ * either as first {@code /agent} child elements (the fragment variables are imported) or in
+ * a {@code filter} element (the fragment include and exclude patterns are imported). Each
+ * fragment is parsed once per JVM and its parsed form is cached on disk, keyed by its content
+ * hash, in the {@code jeyzer.agent.fragment.cache} directory (a per user directory of the temporary
+ * directory by default, {@code false} to disable). The cache is disabled if the directory is not
+ * owned by the current user or is writable by the others. See {@link ConfigurationFragment}.
+ * 
+ * <h5>Boot trace</h5>
+ * If the {@code jeyzer.agent.boot.trace} option is set to a directory, the agent writes a
+ * structured boot trace (phase timings, variable resolution sources, rejected class path entries,
+ * warnings and errors) into a memory mapped file of that directory. The file remains readable
+ * after a crash and is rendered by the {@link BootTraceReader}. See {@link BootTrace}.
+ * 
+ * <h5>JMX</h5>
+ * If the {@code jeyzer.agent.jmx} option is set to {@code true}, the agent registers the
+ * {@code org.jeyzer.agent:type=Agent} MBean (see {@link AgentMXBean}) : boot phase durations,
+ * delegate configuration summaries, class filter and transformer counters, delegate class loader
+ * statistics, plus operations to reset the counters and toggle the boot debug logging. It is
+ * disabled by default : the platform MBean server must not be created before the application
+ * configures its logging manager.
+ * 
+ * <h5>Overhead budget</h5>
+ * The optional {@code budget} element of the {@code /agent} or {@code /agent/delegate} element
+ * bounds the time spent in the delegate transformers : {@code total} within a {@code window}
+ * (60 seconds by default), and {@code class} for a single class. Once exceeded, the offending
+ * package is no longer instrumented by that delegate and a warning is logged. The degraded
+ * packages are restored by a configuration reload or through the {@link AgentMXBean}. See
+ * {@link OverheadBudget} and {@link OverheadBudgetGuard}.
+ * <pre>
+ * {@code
+ * 	<budget total="2s" class="200ms" window="60s"/>}
+ * </pre>
+ * 
+ * <h5>Sampling</h5>
+ * The optional {@code sampling} element of the {@code /agent} or {@code /agent/delegate} element
+ * restricts the classes handed over to an observation only delegate : a {@code fraction} of the
+ * class names, selected by hash and therefore the same on each run, and a maximum {@code rate} in
+ * classes per second. The other classes are passed through without calling the delegate
+ * transformers. See {@link TransformSampler}.
+ * <pre>
+ * {@code
+ * 	<sampling fraction="10%" rate="50"/>}
+ * </pre>
+ * 
+ * <h5>Metrics endpoint</h5>
+ * If the {@code jeyzer.agent.metrics.port} option is set, the agent serves its boot phase
+ * durations, counters, delegate class loader statistics and transform latencies in the Prometheus
+ * text format on {@code http://127.0.0.1:<port>/metrics} ({@code jeyzer.agent.metrics.host}
+ * changes the bind address). The response is streamed from the live counters. See
+ * {@link MetricsEndpoint}.
+ * 
+ * <h5>Metrics segment</h5>
+ * If the {@code jeyzer.agent.metrics.segment} option is set to a directory, the agent publishes
+ * its counters and boot phase durations into a memory mapped file of that directory, named after
+ * the process id and refreshed every {@code jeyzer.agent.metrics.segment.period} milliseconds. The
+ * segments of all the local JVMs are read by the {@link MetricsSegmentReader} without contacting
+ * the JVMs. See {@link MetricsSegment}.
+ * 
+ * <h5>Overhead report</h5>
+ * If the {@code jeyzer.agent.report} option is set to {@code true}, a single line summary of the
+ * agent overhead for the process lifetime (boot phases, transform time, examined and transformed
+ * classes, top packages by transform time, class loader footprint) is written in the boot log at
+ * JVM exit. The {@code jeyzer.agent.report.file} option appends it to a file instead, one line
+ * per run. See {@link AgentReport}.
  * 
+ * <h5>Transform latencies</h5>
+ * If the {@code jeyzer.agent.latency} option is set to {@code true}, the time spent in the
+ * delegate transformers for each loaded class is recorded into a lock free histogram per package
+ * (up to {@code jeyzer.agent.latency.packages} packages, 256 by default). The p50, p99 and max
+ * latencies are returned by {@link #getTransformLatencies()} and printed at JVM exit. See
+ * {@link TransformLatencies}.
  * 
+ * <h5>Configuration profiles</h5>
+ * Any part of the configuration can be wrapped in a {@code <profile name="...">} section, kept only
+ * if the {@code jeyzer.agent.profile} option (agent parameter or system property) is one of the
+ * comma separated section names. The unselected sections are skipped while parsing and therefore
+ * never validated nor resolved. A compiled configuration holds one entry per declared profile.
+ * See {@link ConfigurationProfile}.
+ * 
+ * <h5>Instrumentation levels</h5>
+ * Parts of the configuration can also be wrapped in {@code <level name="...">} sections, for
+ * example an {@code off}, {@code light} and {@code full} filter set. The initial level is given by
+ * the {@code jeyzer.agent.level} option and is switched at runtime through the
+ * {@link AgentMXBean} : the delegates are reconfigured and the classes whose filter decision
+ * changed are retransformed in batches. See {@link InstrumentationLevels}.
  * 
  * <h4><a id="agent-classpath-element">{@code /agent/classpath} element</a></h4>
  * The {@code /agent/classpath} element is <b>mandatory</b> and is used to define the classpath
@@ -414,6 +611,11 @@ import org.xml.sax.SAXException;
  * {@code MyAgentDelegate.premain(java.util.regex.Pattern[], java.util.regex.Pattern[], Object, Instrumentation)}
  * method as an {@link Object} argument.
  * 
+ * If at least one item has a {@code type} attribute ({@code int}, {@code long}, {@code boolean},
+ * {@code duration} or {@code size}), the map is a {@link TypedConfiguration} which parses the
+ * typed values on first access. For example, {@code <item key="period" type="duration">30s</item>}
+ * is read with {@code getDuration("period", defaultMillis)}.
+ * 
  * <h5>User defined configuration object</h5>
  * If the {@code /agent/configuration/} element has the {@code custom} child element defined,
  * then {@code public static Object unmarshall(org.w3c.dom.Element configElement)} method must
@@ -458,6 +660,13 @@ import org.xml.sax.SAXException;
  * can be properly handled (and type casted) in the
  * {@code static void premain(java.util.regex.Pattern[], java.util.regex.Pattern[], Object, Instrumentation)}
  * method.
+ * <p>
+ * Delegates with large custom configurations can define
+ * {@code public static Object unmarshall(ConfigurationView view)} instead, which is then preferred.
+ * The {@link ConfigurationView} does not reference any DOM : it streams the {@code custom} element
+ * or reads it by path, its path index being built on first access. If the
+ * {@code jeyzer.agent.config.release} option is set to {@code true}, the agent also drops its own
+ * references to the configuration (and so to the configuration DOM) once the delegates are started.
  * 
  * 
  * @see java.lang.instrument
@@ -475,6 +684,9 @@ public class Agent
 	
 	private static final String PREMAIN_SIGNATURE =
 		"static void premain(java.util.regex.Pattern[], java.util.regex.Pattern[], Object, Instrumentation)";
+	
+	private static final String AGENTMAIN_SIGNATURE =
+		"static void agentmain(java.util.regex.Pattern[], java.util.regex.Pattern[], Object, Instrumentation)";
 
 	private static final String SUN_XML_SCHEMA_FACTORY =
 			"com.sun.org.apache.xerces.internal.jaxp.validation.XMLSchemaFactory";
@@ -485,11 +697,83 @@ public class Agent
 	private static final String VARIABLE_PREFIX = "${";
 	private static final String VARIABLE_SUFFIX = "}";
 	
+	static final String OPTION_BOOT_ASYNC = "jeyzer.agent.boot.async";
+	static final String OPTION_BOOT_ASYNC_WAIT = "jeyzer.agent.boot.async.wait";
+	static final String OPTION_BOOT_LAZY = "jeyzer.agent.boot.lazy";
+	static final String OPTION_RETRANSFORM_BATCH_SIZE = "jeyzer.agent.retransform.batch.size";
+	static final String OPTION_RETRANSFORM_BATCH_PAUSE = "jeyzer.agent.retransform.batch.pause";
+	static final String OPTION_DELEGATES_TIMEOUT = "jeyzer.agent.delegates.timeout";
+	static final String OPTION_CONFIG_RELEASE = "jeyzer.agent.config.release";
+	static final String OPTION_FRAGMENT_CACHE = "jeyzer.agent.fragment.cache";
+	static final String OPTION_PROFILE = "jeyzer.agent.profile";
+	static final String OPTION_LEVEL = "jeyzer.agent.level";
+	static final String OPTION_BOOT_TRACE = "jeyzer.agent.boot.trace";
+	static final String OPTION_BOOT_TRACE_SIZE = "jeyzer.agent.boot.trace.size";
+	static final String OPTION_JMX = "jeyzer.agent.jmx";
+	static final String OPTION_LATENCY = "jeyzer.agent.latency";
+	static final String OPTION_LATENCY_PACKAGES = "jeyzer.agent.latency.packages";
+	static final String OPTION_METRICS_PORT = "jeyzer.agent.metrics.port";
+	static final String OPTION_METRICS_HOST = "jeyzer.agent.metrics.host";
+	static final String OPTION_METRICS_SEGMENT = "jeyzer.agent.metrics.segment";
+	static final String OPTION_METRICS_SEGMENT_PERIOD = "jeyzer.agent.metrics.segment.period";
+	static final String OPTION_REPORT = "jeyzer.agent.report";
+	static final String OPTION_REPORT_FILE = "jeyzer.agent.report.file";
+	static final String OPTION_CONFIG_RELOAD = "jeyzer.agent.config.reload";
+	static final String OPTION_CONFIG_RELOAD_DEBOUNCE = "jeyzer.agent.config.reload.debounce";
+	static final String OPTION_EXECUTOR_THREADS = "jeyzer.agent.executor.threads";
+	static final String OPTION_EXECUTOR_VIRTUAL = "jeyzer.agent.executor.virtual";
+	
+	private static final long DEFAULT_DELEGATES_TIMEOUT = 60000;
+	private static final long DEFAULT_CONFIG_RELOAD_DEBOUNCE = 1000;
+	
+	private static final String RECONFIGURE_SIGNATURE =
+		"static void reconfigure(java.util.regex.Pattern[], java.util.regex.Pattern[], Object)";
+	
+	private static final ThreadLocal<Boolean> BOOT_THREAD = new ThreadLocal<Boolean>();
+	
+	private static final List<AgentFootprint> footprints = new CopyOnWriteArrayList<>();
+	private static final List<CountDownLatch> readinessLatches = new CopyOnWriteArrayList<>();
+	private static final AtomicBoolean footprintTransformerRegistered = new AtomicBoolean(false);
+	
+	// Worker pool shared by the delegates, created on first use
+	private static ExecutorService executor;
+	
+	private static final MetricsRegistry metrics = new MetricsRegistry();
+	
+	// Compiled filter patterns of the current configuration, by configuration file. Reused by the next read
+	private static final Map<String, Map<String, Pattern>> compiledPatterns = new ConcurrentHashMap<String, Map<String, Pattern>>();
+	
+	// Agent version embedded in the compiled configuration file, if any
+	private static volatile String compiledAgentVersion;
+	
+	// Boot phase durations in nanoseconds, keyed by agent instance and phase name, and the phase order.
+	// Both are read without lock by the metrics consumers
+	private static final Map<String, Long> bootPhases = new ConcurrentHashMap<String, Long>();
+	private static final List<String> bootPhaseOrder = new CopyOnWriteArrayList<String>();
+	private static final List<DelegateAgent> bootedDelegates = new CopyOnWriteArrayList<>();
+	
+	// Serializes the configuration file reloads and the instrumentation level switches
+	private static final Object reloadLock = new Object();
+	
 	/**
 	 * This method is called before the main method call right after the JVM initialisation. 
 	 * <p>
 	 * <b>Notice</b> that this method follows the <i>fail fast</i> idiom and thus
 	 * throws a runtime exception if there is something wrong in the configuration file.
+	 * <p>
+	 * If the {@code jeyzer.agent.boot.async} option is set to {@code true} (as agent parameter or
+	 * system property), this method only registers a lightweight transformer and the boot is done on
+	 * a background thread. Classes loaded before the agent readiness are then either held up to the
+	 * {@code jeyzer.agent.boot.async.wait} bound (in milliseconds) or retransformed once the agent is
+	 * ready. Configuration errors are reported in the boot logs in that case.
+	 * <p>
+	 * If the {@code jeyzer.agent.boot.lazy} option is set to {@code true}, this method only reads the
+	 * configuration and registers a transformer evaluating the class filters. The delegates are booted
+	 * when the first class matching one of the delegate filters gets loaded, and that class is handed
+	 * over to the delegate transformers. Delegate errors are reported in the boot logs in that case.
+	 * <p>
+	 * If the {@code jeyzer.agent.config.reload} option is set to {@code true}, the configuration
+	 * file is watched once the agent has booted. See {@link #reloadConfiguration(Map, Instrumentation, List)}.
 	 * 
 	 * @param agentArgs
 	 * 		Same string which was given to {@code -javaagent} as <i>options</i> (see the class
@@ -506,256 +790,1201 @@ public class Agent
 	public static void premain(String agentArgs, Instrumentation instrumentation)
 	{
 		Map<String, String> agentParams = parseAgentParameters(agentArgs);
-		ConfigElements configElements = readConfigurationFile(agentParams);
-		ClassLoader originalClassLoader = null;
-		try {
-			originalClassLoader = Thread.currentThread().getContextClassLoader();
-			ClassLoader cl =
-				new URLClassLoader(
-					configElements.getClasspaths(),
-					originalClassLoader
-				);
-			Thread.currentThread().setContextClassLoader(cl);
-			
-			
-			Class<?> delegateAgentClass =
-				(Class<?>)cl.loadClass(configElements.getDelegateAgentName());
-			Object delegateConfiguration = unmarshall(delegateAgentClass, configElements);
-
-			publishAgentVersion();
-			BootLogger.debug("Agent loaded successfully. Calling now the application delegated premain method.");
-			
-			// Invokes the premain method of the delegate agent.
-			delegateAgentClass.getMethod(
-				"premain",
-				new Class[] {Pattern[].class, Pattern[].class, Object.class, Instrumentation.class}
-			).invoke(
-				null,
-				configElements.getIncludePatterns(),
-				configElements.getExcludePatterns(),
-				delegateConfiguration,
-				instrumentation
-			);
-			
-			BootLogger.debug("Agent premain ending.");
-		}
-		catch(ClassNotFoundException e) {
-			throw
-				new ConfigurationError(
-					"A delegate agent \""
-						+ configElements.getDelegateAgentName() + "\" was not found.",
-					e
-				);
-		}
-		catch(NoSuchMethodException e) {
-			throw
-				new ConfigurationError(
-					PREMAIN_SIGNATURE + " method was not defined in \""
-						+ configElements.getDelegateAgentName() + "\".",
-					e
-				);
-		}
-		catch(IllegalArgumentException e) {
-			throw
-				new ConfigurationError(
-					"Argument mismatch with " + PREMAIN_SIGNATURE + " "
-						+ "in \"" + configElements.getDelegateAgentName() + "\".",
-					e
-				);
-		}
-		catch(InvocationTargetException e) {
-			throw
-				new ConfigurationError(
-					PREMAIN_SIGNATURE + " in \"" + configElements.getDelegateAgentName()
-						+ "\" threw an exception.",
-					e
-				);
-		}
-		catch(IllegalAccessException e) {
-			assert false : e;
+		BootTrace.open(agentParams);
+		TransformLatencies.enable(agentParams);
+		if(isOptionEnabled(agentParams, OPTION_JMX))
+			AgentMonitor.register();
+		MetricsEndpoint.start(agentParams);
+		MetricsSegment.open(agentParams);
+		AgentReport.enable(agentParams);
+		if(isOptionEnabled(agentParams, OPTION_BOOT_LAZY)) {
+			if(isOptionEnabled(agentParams, OPTION_BOOT_ASYNC))
+				BootLogger.warning("Lazy and asynchronous boots cannot be combined. Booting lazily.");
+			bootLazily(agentParams, instrumentation);
+			return;
 		}
-		finally {
-			if(originalClassLoader != null)
-				Thread.currentThread().setContextClassLoader(originalClassLoader);
+		if(isOptionEnabled(agentParams, OPTION_BOOT_ASYNC)) {
+			if(instrumentation.isRetransformClassesSupported()) {
+				bootAsynchronously(agentParams, instrumentation);
+				return;
+			}
+			BootLogger.warning("Asynchronous boot requires the class retransformation support. Booting synchronously.");
 		}
+		List<DelegateAgent> delegates =
+			boot(
+				agentParams,
+				new TransformerDispatcher(instrumentation, isOptionEnabled(agentParams, OPTION_CONFIG_RELOAD), false),
+				false
+			);
+		watchConfiguration(agentParams, instrumentation, delegates);
 	}
-
 	
-	private static Map<String, String> parseAgentParameters(String agentArgs) {
-		Map<String,String> params = new HashMap<>();	
-		StringTokenizer tokenizer = new StringTokenizer(agentArgs, ";", false);
-		
-		boolean first = true;
-		while (tokenizer.hasMoreTokens()) {
-			 String agentArg = tokenizer.nextToken();
-			 if (first) {
-				 params.put(AGENT_CONFIGURATION_PATH, agentArg);
-				 first = false;
-			 }
-			 else {
-				 int endPos = agentArg.indexOf('=');
-				 if (endPos<=0 || endPos == agentArg.length()-1) {
-					 BootLogger.error("Invalid agent parameter : "  + agentArg + " It must be a key=value pair");
-					 continue;
-				 }
-				 String key = agentArg.substring(0, endPos);
-				 String value = agentArg.substring(endPos+1);
-				 params.put(key, value);				 
-			 }
-	    }
+	
+	/**
+	 * This method is called when the agent is attached to a running JVM.
+	 * <p>
+	 * The configuration is processed the same way as for {@link #premain(String, Instrumentation)}.
+	 * The agent delegate {@code agentmain} method is called if defined, otherwise its {@code premain}
+	 * method. The already loaded classes matching the filter are then retransformed, in batches of
+	 * {@code jeyzer.agent.retransform.batch.size} classes separated by a
+	 * {@code jeyzer.agent.retransform.batch.pause} pause in milliseconds.
+	 * 
+	 * @param agentArgs
+	 * 		Same string which was given to {@code -javaagent} as <i>options</i> (see the class
+	 * 		description).
+	 * 
+	 * @param instrumentation
+	 * 		See {@code java.lang.instrument.Instrumentation}
+	 * 
+	 * @throws ConfigurationError
+	 * 		If there is something wrong with the configuration file.
+	 *
+	 * @see java.lang.instrument
+	 */
+	public static void agentmain(String agentArgs, Instrumentation instrumentation)
+	{
+		Map<String, String> agentParams = parseAgentParameters(agentArgs);
+		BootTrace.open(agentParams);
+		TransformLatencies.enable(agentParams);
+		if(isOptionEnabled(agentParams, OPTION_JMX))
+			AgentMonitor.register();
+		MetricsEndpoint.start(agentParams);
+		MetricsSegment.open(agentParams);
+		AgentReport.enable(agentParams);
+		List<DelegateAgent> delegates =
+			boot(agentParams, new TransformerDispatcher(instrumentation, true, false), true);
 		
-		return params;
+		if(!instrumentation.isRetransformClassesSupported()) {
+			BootLogger.warning("Class retransformation is not supported. Already loaded classes will not be instrumented.");
+			return;
+		}
+		Retransformer retransformer = createRetransformer(agentParams, instrumentation);
+		int count = retransformer.retransform(retransformer.getModifiableClasses(getClassFilters(delegates)));
+		BootLogger.debug("{} already loaded classes have been retransformed.", count);
+		watchConfiguration(agentParams, instrumentation, delegates);
 	}
-
+	
+	
 	/**
-	 * Reads the configuration file and creates the include and exclude regular expression
-	 * pattern compilations for class matching.
+	 * Tells if the agent has booted.
 	 * 
-	 * @param configReader
-	 * 		A configuration reader.
-	 *  
 	 * @return
-	 * 		Configuration elements ({@link ConfigElements}) parsed from the configuration file.
+	 * 		{@code false} if an asynchronous boot is still in progress, {@code true} otherwise.
+	 */
+	public static boolean isReady()
+	{
+		for(CountDownLatch readiness : readinessLatches)
+			if(readiness.getCount() > 0)
+				return false;
+		return true;
+	}
+	
+	
+	/**
+	 * Waits for the agent boot completion.
 	 * 
-	 * @throws ConfigurationError
-	 * 		If configuration file cannot be read or parsed properly.
+	 * @param timeout
+	 * 		The maximum time to wait.
+	 * 
+	 * @param unit
+	 * 		The time unit of the {@code timeout} argument.
+	 * 
+	 * @return
+	 * 		{@code true} if the agent is ready, {@code false} if the waiting time elapsed before.
+	 * 
+	 * @throws InterruptedException
+	 * 		If the current thread is interrupted while waiting.
 	 */
-	static ConfigElements readConfigurationFile(Map<String, String> agentParams)
+	public static boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException
 	{
-		String agentConfigPath = agentParams.get(AGENT_CONFIGURATION_PATH);
-		if(agentConfigPath == null)
-			throw
-				new ConfigurationError(
-					"The agent configuration file is not defined."
-				);
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for(CountDownLatch readiness : readinessLatches)
+			if(!readiness.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS))
+				return false;
+		return true;
+	}
+	
+	
+	/**
+	 * Runs the whole agent boot : configuration reading, delegate class loading and delegate
+	 * premain (or agentmain) call.
+	 * <p>
+	 * When several delegates are configured, they are started concurrently. The boot then waits
+	 * for all of them up to the {@code jeyzer.agent.delegates.timeout} option (in milliseconds).
+	 * 
+	 * @param attached
+	 * 		True if the agent is attached to a running JVM.
+	 * 
+	 * @return
+	 * 		The booted delegates, in the configuration order.
+	 */
+	private static List<DelegateAgent> boot(Map<String, String> agentParams, TransformerDispatcher dispatcher, boolean attached)
+	{
+		long start = System.nanoTime();
+		List<ConfigElements> delegates;
+		try {
+			delegates = readConfiguration(agentParams);
+		}
+		catch(RuntimeException e) {
+			BootTrace.error("Agent configuration reading failed.", e);
+			throw e;
+		}
+		endPhase(dispatcher.getAgentIndex(), "configuration", start);
+		return boot(agentParams, delegates, dispatcher, attached);
+	}
+	
+	
+	private static List<DelegateAgent> boot(
+			Map<String, String> agentParams,
+			List<ConfigElements> delegates,
+			TransformerDispatcher dispatcher,
+			boolean attached
+		)
+	{
+		long start = System.nanoTime();
+		Instrumentation instrumentation = dispatcher.getInstrumentation();
+		registerFootprintTransformer(instrumentation);
 		
-		File configFile = new File(agentConfigPath);
-		if(configFile.exists()) {
-			try {
-				DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-				return readDOMDocument(builder.parse(configFile), configFile.getCanonicalPath(), agentParams);
-			}
-			catch(ParserConfigurationException e) {
-				throw
-					new ConfigurationError(
-						"XML document builder cannot be created.",
-						e
-					);
-			}
-			catch(SAXException e) {
-				throw
-					new ConfigurationError(
-						"Parsing the agent configuration file \""
-							+ configFile + "\" didn't succeed.\n"
-							+ "\t->Make sure that the configuration file has been saved using "
-							+ "the correct encoding (i.e the same what is claimed in "
-							+ "XML declaration).",
-						e
-					);
-			}
-			catch(IOException e) {
-				throw
-					new ConfigurationError(
-						"IO error with the agent configuration file \""
-							+ configFile + "\".",
-						e
-					);
-			}
+		ClassLoader parent = Thread.currentThread().getContextClassLoader();
+		if(parent == null)
+			// No context class loader on the attach listener thread
+			parent = Agent.class.getClassLoader();
+		List<AgentClassLoader> classLoaders = createClassLoaders(delegates, parent);
+		
+		// Transformers get dispatched in the configuration order
+		List<AgentInstrumentation> agentInstrumentations = new ArrayList<AgentInstrumentation>();
+		for(ConfigElements configElements : delegates) {
+			AgentInstrumentation agentInstrumentation = dispatcher.addDelegate(configElements.getDelegateAgentName());
+			agentInstrumentation.getBudgetGuard().setBudget(configElements.getOverheadBudget());
+			agentInstrumentation.setSampler(configElements.getSampler());
+			agentInstrumentation.setClassFilter(configElements.getClassFilter());
+			agentInstrumentations.add(agentInstrumentation);
 		}
-		else
-			throw
-				new ConfigurationError(
-					"The agent configuration file \"" + configFile + "\" does not exist."
+		
+		publishAgentVersion();
+		
+		List<Class<?>> delegateAgentClasses;
+		if(delegates.size() == 1)
+			delegateAgentClasses =
+				Collections.<Class<?>>singletonList(
+					startDelegate(agentParams, delegates.get(0), classLoaders.get(0), agentInstrumentations.get(0), instrumentation, attached)
 				);
+		else
+			delegateAgentClasses = startDelegatesConcurrently(
+				agentParams,
+				delegates,
+				classLoaders,
+				agentInstrumentations,
+				instrumentation,
+				attached
+			);
+		
+		BootLogger.debug("Agent premain ending.");
+		endPhase(dispatcher.getAgentIndex(), "boot", start);
+		
+		List<DelegateAgent> delegateAgents = new ArrayList<DelegateAgent>(delegates.size());
+		for(int i = 0; i < delegates.size(); i++)
+			delegateAgents.add(
+				new DelegateAgent(
+					delegateAgentClasses.get(i),
+					classLoaders.get(i),
+					agentInstrumentations.get(i),
+					retainConfigElements(agentParams, delegates.get(i))
+				)
+			);
+		bootedDelegates.addAll(delegateAgents);
+		return delegateAgents;
+	}
+	
+	
+	private static void endPhase(int agentIndex, String name, long start)
+	{
+		long duration = System.nanoTime() - start;
+		// Several -javaagent entries boot in the same JVM
+		String key = getPhaseKey(agentIndex, name);
+		if(bootPhases.put(key, duration) == null)
+			bootPhaseOrder.add(key);
+		BootTrace.phase(name, duration);
 	}
 	
 	
 	/**
-	 * This method does the actual work for {@link #readConfigurationFile(String)} method.
-	 * This separation is mainly done for making unit testing easier. 
-	 * @param agentParams 
+	 * @return
+	 * 		The boot phase key of the given agent instance phase, for example "agent0.boot".
 	 */
-	static ConfigElements readDOMDocument(Document configDocument, String configFileName, Map<String, String> agentParams)
+	static String getPhaseKey(int agentIndex, String name)
 	{
-		ConfigElements retVal = null;
-		try {
-			// Validate configuration document.
+		return "agent" + agentIndex + "." + name;
+	}
+	
+	
+	/**
+	 * @return
+	 * 		The boot phase durations in nanoseconds, in the phase order, keyed by agent instance
+	 * 		and phase name (see {@link #getPhaseKey(int, String)}).
+	 */
+	static Map<String, Long> getBootPhases()
+	{
+		Map<String, Long> phases = new LinkedHashMap<String, Long>();
+		for(String key : bootPhaseOrder)
+			phases.put(key, bootPhases.get(key));
+		return phases;
+	}
+	
+	
+	/**
+	 * @return
+	 * 		The live boot phase keys, in the phase order. Iterating does not block the boot.
+	 */
+	static List<String> getBootPhaseKeys()
+	{
+		return bootPhaseOrder;
+	}
+	
+	
+	/**
+	 * @return
+	 * 		The boot phase duration in nanoseconds of the given phase key (see {@link #getBootPhaseKeys()}).
+	 */
+	static long getBootPhase(String key)
+	{
+		return bootPhases.get(key);
+	}
+	
+	
+	/**
+	 * @return
+	 * 		The booted delegates of all the agent instances, in the boot order.
+	 */
+	static List<DelegateAgent> getBootedDelegates()
+	{
+		return Collections.unmodifiableList(bootedDelegates);
+	}
+	
+	
+	/**
+	 * Returns the configuration elements kept for the delegate once started. If the
+	 * {@code jeyzer.agent.config.release} option is set to {@code true}, the delegate configuration
+	 * (and therefore the configuration DOM) is released.
+	 */
+	private static ConfigElements retainConfigElements(Map<String, String> agentParams, ConfigElements configElements)
+	{
+		return isOptionEnabled(agentParams, OPTION_CONFIG_RELEASE) ? configElements.withoutConfiguration() : configElements;
+	}
+	
+	
+	/**
+	 * Creates the delegate class loaders, one per delegate. The class data of the jars shared by
+	 * several delegates is read only once (see {@link SharedClassData}), but each delegate class
+	 * loader defines its own classes : the delegate dependencies and static states stay apart.
+	 */
+	private static List<AgentClassLoader> createClassLoaders(List<ConfigElements> delegates, ClassLoader parent)
+	{
+		List<AgentClassLoader> classLoaders = new ArrayList<AgentClassLoader>(delegates.size());
+		if(delegates.size() == 1) {
+			classLoaders.add(
+				AgentRegistry.get().getClassLoader(delegates.get(0).getClasspaths(), parent, delegates.get(0).getDelegateAgentName())
+			);
+			return classLoaders;
+		}
+		
+		Map<String, Integer> usages = new HashMap<String, Integer>();
+		for(ConfigElements configElements : delegates) {
+			Set<String> keys = new HashSet<String>();
+			for(URL url : configElements.getClasspaths())
+				keys.add(getClasspathKey(url));
+			for(String key : keys)
+				usages.put(key, usages.containsKey(key) ? usages.get(key) + 1 : 1);
+		}
+		
+		Set<String> sharedJars = new LinkedHashSet<String>();
+		for(ConfigElements configElements : delegates) {
+			// Only the jars are worth sharing : the directory entries are read file by file
+			Map<String, AgentClassLoader.SharedEntry> sharedEntries = new HashMap<String, AgentClassLoader.SharedEntry>();
+			for(URL url : configElements.getClasspaths()) {
+				String key = getClasspathKey(url);
+				if(usages.get(key) > 1 && new File(key).isFile()) {
+					sharedEntries.put(url.toExternalForm(), new AgentClassLoader.SharedEntry(key, usages.get(key)));
+					sharedJars.add(key);
+				}
+			}
+			classLoaders.add(
+				AgentRegistry.get().getClassLoader(
+					configElements.getClasspaths(),
+					parent,
+					configElements.getDelegateAgentName(),
+					sharedEntries
+				)
+			);
+		}
+		if(!sharedJars.isEmpty())
+			BootLogger.debug("{} jars are shared by the agent delegates, their class data is read once : {}", sharedJars.size(), sharedJars);
+		return classLoaders;
+	}
+	
+	
+	private static String getClasspathKey(URL url)
+	{
+		try {
+			return new File(url.toURI()).getCanonicalPath();
+		}
+		catch(URISyntaxException | IOException | IllegalArgumentException e) {
+			return url.toExternalForm();
+		}
+	}
+	
+	
+	private static List<Class<?>> startDelegatesConcurrently(
+			final Map<String, String> agentParams,
+			final List<ConfigElements> delegates,
+			final List<AgentClassLoader> classLoaders,
+			final List<AgentInstrumentation> agentInstrumentations,
+			final Instrumentation instrumentation,
+			final boolean attached
+		)
+	{
+		ExecutorService executor =
+			Executors.newFixedThreadPool(
+				Math.min(delegates.size(), Runtime.getRuntime().availableProcessors()),
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+					
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "Jeyzer agent delegate boot " + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				}
+			);
+		
+		List<Future<Class<?>>> futures = new ArrayList<Future<Class<?>>>(delegates.size());
+		for(int i = 0; i < delegates.size(); i++) {
+			final int index = i;
+			futures.add(
+				executor.submit(
+					new Callable<Class<?>>() {
+						@Override
+						public Class<?> call() {
+							BOOT_THREAD.set(Boolean.TRUE);
+							return startDelegate(
+								agentParams,
+								delegates.get(index),
+								classLoaders.get(index),
+								agentInstrumentations.get(index),
+								instrumentation,
+								attached
+							);
+						}
+					}
+				)
+			);
+		}
+		executor.shutdown();
+		
+		long timeout = getLongOption(agentParams, OPTION_DELEGATES_TIMEOUT, DEFAULT_DELEGATES_TIMEOUT);
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		List<Class<?>> delegateAgentClasses = new ArrayList<Class<?>>(futures.size());
+		for(int i = 0; i < futures.size(); i++) {
+			String delegateAgentName = delegates.get(i).getDelegateAgentName();
+			try {
+				delegateAgentClasses.add(futures.get(i).get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS));
+			}
+			catch(ExecutionException e) {
+				if(e.getCause() instanceof ConfigurationError)
+					throw (ConfigurationError)e.getCause();
+				throw
+					new ConfigurationError(
+						"The start of the delegate agent \"" + delegateAgentName + "\" failed.",
+						e.getCause()
+					);
+			}
+			catch(TimeoutException e) {
+				throw
+					new ConfigurationError(
+						"The delegate agent \"" + delegateAgentName + "\" did not start within "
+							+ timeout + " ms.",
+						e
+					);
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw
+					new ConfigurationError(
+						"Interrupted while waiting for the start of the delegate agent \""
+							+ delegateAgentName + "\".",
+						e
+					);
+			}
+		}
+		return delegateAgentClasses;
+	}
+	
+	
+	/**
+	 * Loads the delegate class, creates its configuration object and calls its premain (or agentmain)
+	 * method.
+	 * 
+	 * @return
+	 * 		The delegate agent class.
+	 */
+	private static Class<?> startDelegate(
+			Map<String, String> agentParams,
+			ConfigElements configElements,
+			AgentClassLoader cl,
+			AgentInstrumentation agentInstrumentation,
+			Instrumentation instrumentation,
+			boolean attached
+		)
+	{
+		long start = System.nanoTime();
+		ClassLoader originalClassLoader = null;
+		try {
+			originalClassLoader = Thread.currentThread().getContextClassLoader();
+			Thread.currentThread().setContextClassLoader(cl);
+			
+			Class<?> delegateAgentClass =
+				(Class<?>)cl.loadClass(configElements.getDelegateAgentName());
+			Object delegateConfiguration = unmarshall(delegateAgentClass, configElements);
+
+			BootLogger.debug("Agent {} loaded successfully. Calling now the application delegated premain method.", configElements.getDelegateAgentName());
+			
+			// Invokes the premain (or agentmain) method of the delegate agent.
+			MethodHandle entryPoint = getDelegateEntryPoint(delegateAgentClass, attached);
+			try {
+				invokeDelegateEntryPoint(
+					entryPoint,
+					agentParams,
+					configElements,
+					delegateConfiguration,
+					agentInstrumentation
+				);
+			}
+			catch(Throwable e) {
+				BootTrace.error("The premain (or agentmain) method in " + configElements.getDelegateAgentName() + " threw an exception.", e);
+				throw
+					new ConfigurationError(
+						"The premain (or agentmain) method in \"" + configElements.getDelegateAgentName()
+							+ "\" threw an exception.",
+						e
+					);
+			}
+			endPhase(agentInstrumentation.getAgentIndex(), "delegate " + configElements.getDelegateAgentName(), start);
+			
+			AgentFootprint footprint =
+				new AgentFootprint(
+					configElements.getDelegateAgentName(),
+					cl,
+					estimateConfigurationSize(instrumentation, configElements, delegateConfiguration)
+				);
+			footprints.add(footprint);
+			BootLogger.debug("Agent footprint : {}", footprint);
+			return delegateAgentClass;
+		}
+		catch(ClassNotFoundException e) {
+			BootTrace.error("A delegate agent " + configElements.getDelegateAgentName() + " was not found.", e);
+			throw
+				new ConfigurationError(
+					"A delegate agent \""
+						+ configElements.getDelegateAgentName() + "\" was not found.",
+					e
+				);
+		}
+		catch(NoSuchMethodException e) {
+			throw
+				new ConfigurationError(
+					PREMAIN_SIGNATURE + " method was not defined in \""
+						+ configElements.getDelegateAgentName() + "\".",
+					e
+				);
+		}
+		finally {
+			Thread.currentThread().setContextClassLoader(originalClassLoader);
+		}
+	}
+	
+	
+	/**
+	 * Boots the agent on a background thread. A transformer is registered first to catch the classes
+	 * loaded in the meantime.
+	 */
+	private static void bootAsynchronously(final Map<String, String> agentParams, final Instrumentation instrumentation)
+	{
+		final TransformerDispatcher dispatcher = new TransformerDispatcher(instrumentation, true, true);
+		final AsyncBootTransformer bootTransformer =
+			new AsyncBootTransformer(
+				dispatcher,
+				getLongOption(agentParams, OPTION_BOOT_ASYNC_WAIT, 0)
+			);
+		readinessLatches.add(bootTransformer.getReadiness());
+		instrumentation.addTransformer(bootTransformer, true);
+		
+		Thread bootThread = new Thread(
+			new Runnable() {
+				@Override
+				public void run() {
+					BOOT_THREAD.set(Boolean.TRUE);
+					List<DelegateAgent> delegates = null;
+					try {
+						delegates = boot(agentParams, dispatcher, false);
+					}
+					catch(Throwable e) {
+						BootLogger.error("Asynchronous agent boot failed.", e);
+					}
+					finally {
+						Set<String> pendingClasses = bootTransformer.ready();
+						if(delegates != null)
+							retransformPendingClasses(agentParams, instrumentation, getClassFilters(delegates), pendingClasses);
+					}
+					if(delegates != null)
+						watchConfiguration(agentParams, instrumentation, delegates);
+				}
+			},
+			"Jeyzer agent boot"
+		);
+		bootThread.setDaemon(true);
+		bootThread.start();
+	}
+	
+	
+	/**
+	 * Reads the configuration and defers the delegate boot to the first matching class load.
+	 */
+	private static void bootLazily(final Map<String, String> agentParams, final Instrumentation instrumentation)
+	{
+		final List<ConfigElements> delegates = readConfiguration(agentParams);
+		List<ClassFilter> filters = new ArrayList<ClassFilter>(delegates.size());
+		for(ConfigElements configElements : delegates)
+			filters.add(configElements.getClassFilter());
+		
+		final TransformerDispatcher dispatcher =
+			new TransformerDispatcher(instrumentation, isOptionEnabled(agentParams, OPTION_CONFIG_RELOAD), true);
+		LazyBootTransformer bootTransformer =
+			new LazyBootTransformer(
+				dispatcher,
+				filters,
+				new Runnable() {
+					@Override
+					public void run() {
+						BOOT_THREAD.set(Boolean.TRUE);
+						try {
+							List<DelegateAgent> delegateAgents = boot(agentParams, delegates, dispatcher, false);
+							watchConfiguration(agentParams, instrumentation, delegateAgents);
+						}
+						finally {
+							BOOT_THREAD.remove();
+						}
+					}
+				}
+			);
+		instrumentation.addTransformer(bootTransformer, instrumentation.isRetransformClassesSupported());
+		BootLogger.debug("Agent boot deferred until the first matching class load.");
+	}
+	
+	
+	/**
+	 * @return
+	 * 		{@code true} if the current thread is booting the agent delegates.
+	 */
+	static boolean isBootThread()
+	{
+		return BOOT_THREAD.get() != null;
+	}
+	
+	
+	private static List<ClassFilter> getClassFilters(List<DelegateAgent> delegates)
+	{
+		List<ClassFilter> filters = new ArrayList<ClassFilter>(delegates.size());
+		for(DelegateAgent delegate : delegates)
+			filters.add(delegate.getConfigElements().getClassFilter());
+		return filters;
+	}
+	
+	
+	/**
+	 * Registers the booted agent instance for the instrumentation level switches, then starts
+	 * watching the configuration file if the {@code jeyzer.agent.config.reload} option is enabled.
+	 */
+	private static void watchConfiguration(
+			final Map<String, String> agentParams,
+			final Instrumentation instrumentation,
+			final List<DelegateAgent> delegates
+		)
+	{
+		InstrumentationLevels.register(agentParams, instrumentation, delegates);
+		if(!isOptionEnabled(agentParams, OPTION_CONFIG_RELOAD))
+			return;
+		if(!instrumentation.isRetransformClassesSupported()) {
+			BootLogger.warning("Agent configuration reload requires the class retransformation support. Configuration reload is disabled.");
+			return;
+		}
+		
+		try {
+			ConfigurationWatcher.start(
+				new File(agentParams.get(AGENT_CONFIGURATION_PATH)),
+				getLongOption(agentParams, OPTION_CONFIG_RELOAD_DEBOUNCE, DEFAULT_CONFIG_RELOAD_DEBOUNCE),
+				new Runnable() {
+					@Override
+					public void run() {
+						BootLogger.debug("Agent configuration file change detected.");
+						reloadConfiguration(agentParams, instrumentation, delegates);
+					}
+				}
+			);
+		}
+		catch(IOException e) {
+			BootLogger.error("Failed to watch the agent configuration file. Configuration reload is disabled.", e);
+		}
+	}
+	
+	
+	/**
+	 * Reloads the configuration file and applies it to the running delegates.
+	 * <p>
+	 * Each delegate is handed over its new filter patterns and configuration object through its optional
+	 * {@code static void reconfigure(java.util.regex.Pattern[], java.util.regex.Pattern[], Object)}
+	 * method, called on the watcher thread. Delegates without such method keep their current
+	 * configuration. Only the patterns which changed are recompiled.
+	 * <p>
+	 * The loaded classes whose filter decision changed are then retransformed, in batches of
+	 * {@code jeyzer.agent.retransform.batch.size} classes separated by a
+	 * {@code jeyzer.agent.retransform.batch.pause} pause in milliseconds.
+	 * <p>
+	 * Adding, removing or replacing delegates requires a JVM restart. An invalid configuration is
+	 * reported in the boot logs and the current one is kept.
+	 * <p>
+	 * Reloads are serialized : a configuration file change and an instrumentation level switch
+	 * never reconfigure the delegates concurrently.
+	 */
+	static void reloadConfiguration(Map<String, String> agentParams, Instrumentation instrumentation, List<DelegateAgent> delegates)
+	{
+		synchronized(reloadLock) {
+			BootLogger.debug("Reloading the agent configuration.");
+			List<ConfigElements> reloadedDelegates;
+			try {
+				reloadedDelegates = readConfiguration(agentParams);
+			}
+			catch(ConfigurationError e) {
+				BootLogger.error("Agent configuration reload failed. Keeping the current configuration.", e);
+				return;
+			}
+			if(reloadedDelegates.size() != delegates.size())
+				BootLogger.warning("Adding or removing agent delegates requires a JVM restart. Only the running delegates are reconfigured.");
+		
+			List<ClassFilter> previousFilters = new ArrayList<ClassFilter>();
+			List<ClassFilter> currentFilters = new ArrayList<ClassFilter>();
+			for(int i = 0; i < Math.min(delegates.size(), reloadedDelegates.size()); i++) {
+				DelegateAgent delegate = delegates.get(i);
+				ConfigElements configElements = reloadedDelegates.get(i);
+				if(!delegate.getDelegateAgentName().equals(configElements.getDelegateAgentName())) {
+					BootLogger.warning(
+						"Replacing the delegate agent \"" + delegate.getDelegateAgentName() + "\" by \""
+							+ configElements.getDelegateAgentName() + "\" requires a JVM restart."
+					);
+					continue;
+				}
+			
+				// Restores the degraded packages
+				delegate.applyDispatchSettings(configElements);
+			
+				ClassFilter previousFilter = delegate.getConfigElements().getClassFilter();
+				if(!reconfigureDelegate(agentParams, instrumentation, delegate, configElements))
+					continue;
+				if(!previousFilter.hasSamePatterns(configElements.getClassFilter())) {
+					previousFilters.add(previousFilter);
+					currentFilters.add(configElements.getClassFilter());
+				}
+			}
+		
+			if(previousFilters.isEmpty()) {
+				BootLogger.debug("Agent class filters are unchanged.");
+				return;
+			}
+			Retransformer retransformer = createRetransformer(agentParams, instrumentation);
+			int count = retransformer.retransform(retransformer.getReclassifiedClasses(previousFilters, currentFilters));
+			BootLogger.debug("{} classes have been retransformed after the agent class filter change.", count);
+		}
+	}
+	
+	
+	/**
+	 * Calls the delegate reconfigure method.
+	 * 
+	 * @return
+	 * 		{@code true} if the delegate has been reconfigured.
+	 */
+	private static boolean reconfigureDelegate(
+			Map<String, String> agentParams,
+			Instrumentation instrumentation,
+			DelegateAgent delegate,
+			ConfigElements configElements
+		)
+	{
+		MethodHandle reconfigure = DelegateMethods.get(delegate.getDelegateAgentClass()).getReconfigure();
+		if(reconfigure == null) {
+			BootLogger.warning(
+				RECONFIGURE_SIGNATURE + " method is not defined in \"" + delegate.getDelegateAgentName()
+					+ "\". Its configuration changes are ignored until the JVM restart."
+			);
+			return false;
+		}
+		
+		ClassLoader originalClassLoader = Thread.currentThread().getContextClassLoader();
+		try {
+			Thread.currentThread().setContextClassLoader(delegate.getClassLoader());
+			
+			Object delegateConfiguration = unmarshall(delegate.getDelegateAgentClass(), configElements);
+			if(reconfigure.type().equals(DelegateMethods.CONTEXT_TYPE))
+				reconfigure.invokeExact(
+					createContext(agentParams, configElements, delegateConfiguration, delegate.getAgentInstrumentation())
+				);
+			else
+				reconfigure.invokeExact(
+					configElements.getIncludePatterns(),
+					configElements.getExcludePatterns(),
+					delegateConfiguration
+				);
+			delegate.setConfigElements(retainConfigElements(agentParams, configElements));
+			BootLogger.debug("Agent {} reconfigured. Filter : {}", delegate.getDelegateAgentName(), configElements.getClassFilter());
+			return true;
+		}
+		catch(ConfigurationError e) {
+			BootLogger.error("The configuration of the delegate agent \"" + delegate.getDelegateAgentName() + "\" cannot be reloaded.", e);
+		}
+		catch(Throwable e) {
+			BootLogger.error(RECONFIGURE_SIGNATURE + " in \"" + delegate.getDelegateAgentName() + "\" threw an exception.", e);
+		}
+		finally {
+			Thread.currentThread().setContextClassLoader(originalClassLoader);
+		}
+		return false;
+	}
+	
+	
+	/**
+	 * Returns the delegate premain (or agentmain) method.
+	 * 
+	 * @see DelegateMethods
+	 */
+	private static MethodHandle getDelegateEntryPoint(Class<?> delegateAgentClass, boolean attached) throws NoSuchMethodException
+	{
+		DelegateMethods methods = DelegateMethods.get(delegateAgentClass);
+		if(attached) {
+			if(methods.getAgentmain() != null)
+				return methods.getAgentmain();
+			BootLogger.debug("{} method not defined in the agent delegate. Calling its premain method instead.", AGENTMAIN_SIGNATURE);
+		}
+		if(methods.getPremain() == null)
+			throw new NoSuchMethodException(PREMAIN_SIGNATURE);
+		return methods.getPremain();
+	}
+	
+	
+	private static void invokeDelegateEntryPoint(
+			MethodHandle entryPoint,
+			Map<String, String> agentParams,
+			ConfigElements configElements,
+			Object delegateConfiguration,
+			AgentInstrumentation agentInstrumentation
+		)
+		throws
+			Throwable
+	{
+		Instrumentation instrumentation = agentInstrumentation.getProxy();
+		if(entryPoint.type().equals(DelegateMethods.CONTEXT_TYPE))
+			entryPoint.invokeExact(createContext(agentParams, configElements, delegateConfiguration, agentInstrumentation));
+		else if(entryPoint.type().equals(DelegateMethods.EXECUTOR_TYPE))
+			entryPoint.invokeExact(
+				configElements.getIncludePatterns(),
+				configElements.getExcludePatterns(),
+				delegateConfiguration,
+				instrumentation,
+				getExecutor(agentParams)
+			);
+		else
+			entryPoint.invokeExact(
+				configElements.getIncludePatterns(),
+				configElements.getExcludePatterns(),
+				delegateConfiguration,
+				instrumentation
+			);
+	}
+	
+	
+	private static AgentContext createContext(
+			Map<String, String> agentParams,
+			ConfigElements configElements,
+			Object delegateConfiguration,
+			AgentInstrumentation agentInstrumentation
+		)
+	{
+		return
+			new AgentContext(
+				configElements.getDelegateAgentName(),
+				configElements.getClassFilter(),
+				delegateConfiguration,
+				InstrumentationLevels.getLevel(agentParams),
+				agentInstrumentation.getProxy(),
+				getExecutor(agentParams),
+				metrics,
+				agentInstrumentation.getNotifier()
+			);
+	}
+	
+	
+	/**
+	 * Returns the metrics registry shared by the agent delegates.
+	 * 
+	 * @return
+	 * 		The JVM wide agent metrics registry.
+	 */
+	public static MetricsRegistry getMetrics()
+	{
+		return metrics;
+	}
+	
+	
+	/**
+	 * Returns the transform latencies of the loaded classes, by package. The latencies are
+	 * recorded if the {@code jeyzer.agent.latency} option is set to {@code true} and cover the
+	 * delegate transformers of all the agent instances.
+	 * 
+	 * @return
+	 * 		The latency snapshots by package name, sorted by name. Empty if the recording is
+	 * 		disabled.
+	 */
+	public static Map<String, LatencySnapshot> getTransformLatencies()
+	{
+		TransformLatencies latencies = TransformLatencies.get();
+		if(latencies == null)
+			return Collections.emptyMap();
+		return latencies.snapshot();
+	}
+	
+	
+	/**
+	 * Returns the worker pool shared by the agent delegates, created on first use.
+	 * <p>
+	 * The pool size is set by the {@code jeyzer.agent.executor.threads} option, otherwise computed
+	 * from the container CPU quota. If the {@code jeyzer.agent.executor.virtual} option is set to
+	 * {@code true} and virtual threads are available (Java 21+), a virtual thread per task executor
+	 * is used instead. The pool is shut down at JVM exit.
+	 */
+	private static synchronized ExecutorService getExecutor(Map<String, String> agentParams)
+	{
+		if(executor == null)
+			executor =
+				AgentExecutors.create(
+					(int)getLongOption(agentParams, OPTION_EXECUTOR_THREADS, 0),
+					isOptionEnabled(agentParams, OPTION_EXECUTOR_VIRTUAL)
+				);
+		return executor;
+	}
+	
+	
+	private static Retransformer createRetransformer(Map<String, String> agentParams, Instrumentation instrumentation)
+	{
+		return
+			new Retransformer(
+				instrumentation,
+				(int)getLongOption(agentParams, OPTION_RETRANSFORM_BATCH_SIZE, Retransformer.DEFAULT_BATCH_SIZE),
+				getLongOption(agentParams, OPTION_RETRANSFORM_BATCH_PAUSE, 0)
+			);
+	}
+	
+	
+	private static void retransformPendingClasses(Map<String, String> agentParams, Instrumentation instrumentation, List<ClassFilter> filters, Set<String> pendingClasses)
+	{
+		if(pendingClasses.isEmpty())
+			return;
+		Retransformer retransformer = createRetransformer(agentParams, instrumentation);
+		List<Class<?>> classes = new ArrayList<Class<?>>();
+		for(Class<?> clazz : retransformer.getModifiableClasses(filters))
+			if(pendingClasses.contains(Retransformer.getInternalName(clazz)))
+				classes.add(clazz);
+		int count = retransformer.retransform(classes);
+		BootLogger.debug("{} classes loaded during the asynchronous boot have been retransformed.", count);
+	}
+	
+	
+	static String getOption(Map<String, String> agentParams, String key)
+	{
+		// Agent parameters take precedence over the system properties
+		String value = agentParams.get(key);
+		return value != null ? value : System.getProperty(key);
+	}
+	
+	
+	static boolean isOptionEnabled(Map<String, String> agentParams, String key)
+	{
+		return Boolean.parseBoolean(getOption(agentParams, key));
+	}
+	
+	
+	static long getLongOption(Map<String, String> agentParams, String key, long defaultValue)
+	{
+		String value = getOption(agentParams, key);
+		if(value == null)
+			return defaultValue;
+		try {
+			return Long.parseLong(value.trim());
+		}
+		catch(NumberFormatException e) {
+			BootLogger.warning("Invalid agent option " + key + " : " + value + ". Using the default value : " + defaultValue);
+			return defaultValue;
+		}
+	}
+	
+	
+	/**
+	 * Returns the footprint of the agent delegates booted so far in this JVM.
+	 * 
+	 * @return
+	 * 		The footprints, one per agent delegate, in the boot order.
+	 */
+	public static List<AgentFootprint> getFootprints()
+	{
+		return Collections.unmodifiableList(footprints);
+	}
+	
+	private static void registerFootprintTransformer(Instrumentation instrumentation) {
+		// Shared by all the agent instances of the JVM
+		if (footprintTransformerRegistered.compareAndSet(false, true))
+			instrumentation.addTransformer(AgentClassLoader.FOOTPRINT_TRANSFORMER);
+	}
+	
+	private static long estimateConfigurationSize(Instrumentation instrumentation, ConfigElements configElements, Object delegateConfiguration) {
+		try {
+			return AgentFootprint.estimateRetainedSize(instrumentation, configElements, delegateConfiguration);
+		} catch (RuntimeException ex) {
+			BootLogger.warning("Failed to estimate the agent configuration retained size : " + ex.getMessage());
+			return -1;
+		}
+	}
+	
+	private static Map<String, String> parseAgentParameters(String agentArgs) {
+		Map<String,String> params = new HashMap<>();	
+		if (agentArgs == null)
+			return params;
+		StringTokenizer tokenizer = new StringTokenizer(agentArgs, ";", false);
+		
+		boolean first = true;
+		while (tokenizer.hasMoreTokens()) {
+			 String agentArg = tokenizer.nextToken();
+			 if (first) {
+				 params.put(AGENT_CONFIGURATION_PATH, agentArg);
+				 first = false;
+			 }
+			 else {
+				 int endPos = agentArg.indexOf('=');
+				 if (endPos<=0 || endPos == agentArg.length()-1) {
+					 BootLogger.error("Invalid agent parameter : "  + agentArg + " It must be a key=value pair");
+					 continue;
+				 }
+				 String key = agentArg.substring(0, endPos);
+				 String value = agentArg.substring(endPos+1);
+				 params.put(key, value);				 
+			 }
+	    }
+		
+		return params;
+	}
+
+	/**
+	 * Reads the configuration file and returns the configuration elements of its first delegate.
+	 * 
+	 * @see #readConfiguration(Map)
+	 */
+	static ConfigElements readConfigurationFile(Map<String, String> agentParams)
+	{
+		return readConfiguration(agentParams).get(0);
+	}
+	
+	
+	/**
+	 * Reads the configuration file and creates the include and exclude regular expression
+	 * pattern compilations for class matching.
+	 * 
+	 * @param agentParams
+	 * 		The agent parameters, including the configuration file path.
+	 *  
+	 * @return
+	 * 		Configuration elements ({@link ConfigElements}) parsed from the configuration file,
+	 * 		one per delegate in the configuration order.
+	 * 
+	 * @throws ConfigurationError
+	 * 		If configuration file cannot be read or parsed properly.
+	 */
+	static List<ConfigElements> readConfiguration(Map<String, String> agentParams)
+	{
+		List<ConfigElements> delegates = parseConfiguration(agentParams);
+		retainPatterns(agentParams.get(AGENT_CONFIGURATION_PATH), delegates);
+		return delegates;
+	}
+	
+	
+	private static List<ConfigElements> parseConfiguration(Map<String, String> agentParams)
+	{
+		String agentConfigPath = agentParams.get(AGENT_CONFIGURATION_PATH);
+		if(agentConfigPath == null)
+			throw
+				new ConfigurationError(
+					"The agent configuration file is not defined."
+				);
+		
+		File configFile = new File(agentConfigPath);
+		if(configFile.exists() && CompiledConfiguration.isCompiledConfiguration(agentConfigPath))
+			return readCompiledConfiguration(configFile, agentParams);
+		if(configFile.exists()) {
+			try {
+				// Unselected profile sections are skipped while parsing
+				Document configDocument =
+					ConfigurationProfile.parse(
+						configFile,
+						ConfigurationProfile.getProfile(agentParams),
+						InstrumentationLevels.getLevel(agentParams)
+					);
+				return readDelegates(configDocument, configFile.getCanonicalPath(), agentParams);
+			}
+			catch(ParserConfigurationException e) {
+				throw
+					new ConfigurationError(
+						"XML document builder cannot be created.",
+						e
+					);
+			}
+			catch(SAXException e) {
+				throw
+					new ConfigurationError(
+						"Parsing the agent configuration file \""
+							+ configFile + "\" didn't succeed.\n"
+							+ "\t->Make sure that the configuration file has been saved using "
+							+ "the correct encoding (i.e the same what is claimed in "
+							+ "XML declaration).",
+						e
+					);
+			}
+			catch(IOException e) {
+				throw
+					new ConfigurationError(
+						"IO error with the agent configuration file \""
+							+ configFile + "\".",
+						e
+					);
+			}
+		}
+		else
+			throw
+				new ConfigurationError(
+					"The agent configuration file \"" + configFile + "\" does not exist."
+				);
+	}
+	
+	
+	/**
+	 * Reads the compiled configuration file (see {@link AgentConfigCompiler}). No XML processing
+	 * is involved : the late bound variables are resolved and the filter patterns compiled.
+	 */
+	private static List<ConfigElements> readCompiledConfiguration(File configFile, Map<String, String> agentParams)
+	{
+		try {
+			CompiledConfiguration configuration = CompiledConfiguration.read(configFile.toPath());
+			compiledAgentVersion = configuration.getAgentVersion();
+			return
+				configuration.select(
+					ConfigurationProfile.getProfile(agentParams),
+					InstrumentationLevels.getLevel(agentParams)
+				).toConfigElements(agentParams);
+		}
+		catch(IOException e) {
+			throw
+				new ConfigurationError(
+					"IO error with the compiled agent configuration file \""
+						+ configFile + "\".",
+					e
+				);
+		}
+	}
+	
+	
+	/**
+	 * Reads the configuration document and returns the configuration elements of its first delegate.
+	 * 
+	 * @see #readDelegates(Document, String, Map)
+	 */
+	static ConfigElements readDOMDocument(Document configDocument, String configFileName, Map<String, String> agentParams)
+	{
+		return readDelegates(configDocument, configFileName, agentParams).get(0);
+	}
+	
+	
+	/**
+	 * This method does the actual work for {@link #readConfiguration(Map)} method.
+	 * This separation is mainly done for making unit testing easier. 
+	 * @param agentParams 
+	 */
+	static List<ConfigElements> readDelegates(Document configDocument, String configFileName, Map<String, String> agentParams)
+	{
+		List<DelegateDefinition> definitions =
+			readDelegateDefinitions(configDocument, configFileName, agentParams, null);
+		List<ConfigElements> retVal = new ArrayList<ConfigElements>(definitions.size());
+		for(DelegateDefinition definition : definitions)
+			retVal.add(createConfigElements(definition, configFileName));
+		return retVal;
+	}
+	
+	
+	/**
+	 * Validates the configuration document, resolves its variables and reads its delegates.
+	 * 
+	 * @param lateBoundVariables
+	 * 		Null, unless compiling the configuration : the agent variables referencing agent parameters,
+	 * 		system properties or environment variables are then not resolved but collected in this map,
+	 * 		their references being kept in the document.
+	 */
+	static List<DelegateDefinition> readDelegateDefinitions(
+			Document configDocument,
+			String configFileName,
+			Map<String, String> agentParams,
+			Map<String, VariableValue> lateBoundVariables
+		)
+	{
+		List<DelegateDefinition> retVal = new ArrayList<DelegateDefinition>();
+		try {
+			// Keep the sections of the active profile and level only
+			ConfigurationProfile.selectProfiles(
+				configDocument,
+				ConfigurationProfile.getProfile(agentParams),
+				InstrumentationLevels.getLevel(agentParams)
+			);
+			
+			// Replace the import elements with the imported fragments
+			ConfigurationFragment.importFragments(
+				configDocument,
+				configFileName,
+				ConfigurationFragment.getCacheDirectory(agentParams)
+			);
+			
+			// Validate configuration document.
 			validateDOMDocument(configDocument);
 
 			Map<String, VariableValue> variables = new HashMap<String, VariableValue>();
 			
-			loadAgentVariables(configDocument, variables, agentParams);
+			loadAgentVariables(configDocument, variables, agentParams, lateBoundVariables);
 			
-			populateAllAttributes(configDocument, variables, agentParams);
+			populateAllAttributes(configDocument, variables, agentParams, lateBoundVariables);
 			
-			populateAllData(configDocument, variables, agentParams);
+			populateAllData(configDocument, variables, agentParams, lateBoundVariables);
 			
-			instantiateUnresolvedVariables(variables);
+			if(lateBoundVariables == null)
+				instantiateUnresolvedVariables(variables);
 
-			XPath xpath = XPathFactory.newInstance().newXPath();
+			XPath xpath = AgentRegistry.get().newXPath();
 			// /agent/delegate
-			String delegateAgent =
-				(String)xpath.evaluate("/agent/delegate", configDocument, XPathConstants.STRING);
-			
-			// /agent/classpath
-			NodeList classpathEntries =
-				(NodeList)xpath.evaluate(
-					"/agent/classpath/entry",
-					configDocument,
-					XPathConstants.NODESET
-				);
-			List<String> classpaths = new ArrayList<String>();
-			for(int i = 0; i < classpathEntries.getLength(); i++) {
-				Node classpathEntry = classpathEntries.item(i).getFirstChild();
-				classpaths.add(((Text)classpathEntry).getData());
-			}
-			
-			// /agent/filter/include
-			NodeList includeEntries = 
-				(NodeList)xpath.evaluate(
-					"/agent/filter/include",
-					configDocument,
-					XPathConstants.NODESET
-				);
-			List<Pattern> includePatterns = new ArrayList<Pattern>();
-			for(int i = 0; i < includeEntries.getLength(); i++) {
-				Node includeEntry = includeEntries.item(i).getFirstChild();
-				if(includeEntry != null)
-					includePatterns.add(Pattern.compile(((Text)includeEntry).getData()));
-			}
-			if(includePatterns.size() == 0)
-				includePatterns.add(Pattern.compile(".+"));
-			
-			// /agent/filter/exclude
-			NodeList excludeEntries = 
-				(NodeList)xpath.evaluate(
-					"/agent/filter/exclude",
-					configDocument,
-					XPathConstants.NODESET
-				);
-			List<Pattern> excludePatterns = new ArrayList<Pattern>();
-			for(int i = 0; i < excludeEntries.getLength(); i++) {
-				Node excludeEntry = excludeEntries.item(i).getFirstChild();
-				if(excludeEntry != null)
-					excludePatterns.add(Pattern.compile(((Text)excludeEntry).getData()));
-			}
-			
-			// /agent/configuration
-			Node configuration = 
-				(Node)xpath.evaluate(
-					"/agent/configuration",
-					configDocument,
-					XPathConstants.NODE
-				);
-			
-			retVal = 
-				new ConfigElements(
-					classpaths,
-					includePatterns,
-					excludePatterns,
-					delegateAgent,
-					(Element)configuration
-				);
+			NodeList delegateEntries =
+				(NodeList)xpath.evaluate("/agent/delegate", configDocument, XPathConstants.NODESET);
+			for(int i = 0; i < delegateEntries.getLength(); i++)
+				retVal.add(readDelegate(xpath, (Element)delegateEntries.item(i)));
 			
 		}
 		catch(SAXException e) {
@@ -786,7 +2015,185 @@ public class Agent
 		
 		return retVal;
 	}
-
+
+	
+	/**
+	 * Reads the configuration elements of one {@code /agent/delegate} element. The delegate
+	 * {@code classpath}, {@code filter} and {@code configuration} child elements take precedence
+	 * over the {@code /agent} ones.
+	 */
+	private static DelegateDefinition readDelegate(XPath xpath, Element delegateEntry)
+		throws
+			XPathExpressionException
+	{
+		// /agent/delegate[@class] or /agent/delegate text
+		String delegateAgent = delegateEntry.getAttribute("class").trim();
+		if(delegateAgent.length() == 0) {
+			StringBuilder delegateText = new StringBuilder();
+			for(Node child = delegateEntry.getFirstChild(); child != null; child = child.getNextSibling())
+				if(child.getNodeType() == Node.TEXT_NODE)
+					delegateText.append(((Text)child).getData());
+			delegateAgent = delegateText.toString().trim();
+		}
+		if(delegateAgent.length() == 0)
+			throw
+				new ConfigurationError(
+					"/agent/delegate element must define the delegate class name, either as text or as \"class\" attribute."
+				);
+		
+		// /agent/classpath
+		NodeList classpathEntries = getDelegateNodes(xpath, delegateEntry, "classpath", "classpath/entry");
+		if(classpathEntries.getLength() == 0)
+			throw
+				new ConfigurationError(
+					"The classpath of the delegate agent \"" + delegateAgent + "\" is not defined."
+				);
+		List<String> classpaths = new ArrayList<String>();
+		for(int i = 0; i < classpathEntries.getLength(); i++) {
+			Node classpathEntry = classpathEntries.item(i).getFirstChild();
+			classpaths.add(((Text)classpathEntry).getData());
+		}
+		
+		// /agent/filter/include
+		NodeList includeEntries = getDelegateNodes(xpath, delegateEntry, "filter", "filter/include");
+		List<String> includes = new ArrayList<String>();
+		for(int i = 0; i < includeEntries.getLength(); i++) {
+			Node includeEntry = includeEntries.item(i).getFirstChild();
+			if(includeEntry != null)
+				includes.add(((Text)includeEntry).getData());
+		}
+		if(includes.size() == 0)
+			includes.add(".+");
+		
+		// /agent/filter/exclude
+		NodeList excludeEntries = getDelegateNodes(xpath, delegateEntry, "filter", "filter/exclude");
+		List<String> excludes = new ArrayList<String>();
+		for(int i = 0; i < excludeEntries.getLength(); i++) {
+			Node excludeEntry = excludeEntries.item(i).getFirstChild();
+			if(excludeEntry != null)
+				excludes.add(((Text)excludeEntry).getData());
+		}
+		
+		// /agent/configuration
+		Node configuration = (Node)xpath.evaluate("./configuration", delegateEntry, XPathConstants.NODE);
+		if(configuration == null)
+			configuration = (Node)xpath.evaluate("/agent/configuration", delegateEntry, XPathConstants.NODE);
+		
+		// /agent/budget
+		NodeList budgetEntries = getDelegateNodes(xpath, delegateEntry, OverheadBudget.ELEMENT, OverheadBudget.ELEMENT);
+		List<String> budget = Collections.emptyList();
+		if(budgetEntries.getLength() > 0) {
+			Element budgetEntry = (Element)budgetEntries.item(0);
+			budget =
+				OverheadBudget.toAttributes(
+					budgetEntry.getAttribute(OverheadBudget.TOTAL_ATTRIBUTE),
+					budgetEntry.getAttribute(OverheadBudget.CLASS_ATTRIBUTE),
+					budgetEntry.getAttribute(OverheadBudget.WINDOW_ATTRIBUTE)
+				);
+		}
+		
+		// /agent/sampling
+		NodeList samplingEntries = getDelegateNodes(xpath, delegateEntry, TransformSampler.ELEMENT, TransformSampler.ELEMENT);
+		List<String> sampling = Collections.emptyList();
+		if(samplingEntries.getLength() > 0) {
+			Element samplingEntry = (Element)samplingEntries.item(0);
+			sampling =
+				TransformSampler.toAttributes(
+					samplingEntry.getAttribute(TransformSampler.FRACTION_ATTRIBUTE),
+					samplingEntry.getAttribute(TransformSampler.RATE_ATTRIBUTE)
+				);
+		}
+		
+		return
+			new DelegateDefinition(
+				delegateAgent,
+				classpaths,
+				includes,
+				excludes,
+				(Element)configuration,
+				budget,
+				sampling
+			);
+	}
+	
+	
+	/**
+	 * Compiles the filter patterns and checks the class path of the delegate.
+	 */
+	private static ConfigElements createConfigElements(DelegateDefinition definition, String configFileName)
+	{
+		try {
+			return
+				new ConfigElements(
+					definition.getClasspaths(),
+					compilePatterns(definition.getIncludes()),
+					compilePatterns(definition.getExcludes()),
+					definition.getDelegateAgentName(),
+					definition.getConfigurationElement(),
+					OverheadBudget.parse(definition.getBudget()),
+					TransformSampler.parse(definition.getSampling())
+				);
+		}
+		catch(MalformedURLException e) {
+			throw
+				new ConfigurationError(
+					"IO error with the agent configuration file \""
+						+ configFileName + "\".",
+					e
+				);
+		}
+	}
+	
+	
+	static List<Pattern> compilePatterns(List<String> regexes)
+	{
+		List<Pattern> patterns = new ArrayList<Pattern>(regexes.size());
+		for(String regex : regexes)
+			patterns.add(compilePattern(regex));
+		return patterns;
+	}
+	
+	
+	/**
+	 * Compiles the filter pattern, unless already compiled by the current configuration.
+	 */
+	private static Pattern compilePattern(String regex)
+	{
+		for(Map<String, Pattern> patterns : compiledPatterns.values()) {
+			Pattern pattern = patterns.get(regex);
+			if(pattern != null)
+				return pattern;
+		}
+		return Pattern.compile(regex);
+	}
+	
+	
+	/**
+	 * Keeps the filter patterns of the configuration just read for the next reads, and drops the
+	 * ones of its previous read.
+	 */
+	private static void retainPatterns(String agentConfigPath, List<ConfigElements> delegates)
+	{
+		Map<String, Pattern> patterns = new HashMap<String, Pattern>();
+		for(ConfigElements configElements : delegates) {
+			for(Pattern pattern : configElements.getIncludePatterns())
+				patterns.put(pattern.pattern(), pattern);
+			for(Pattern pattern : configElements.getExcludePatterns())
+				patterns.put(pattern.pattern(), pattern);
+		}
+		compiledPatterns.put(agentConfigPath, patterns);
+	}
+	
+	
+	private static NodeList getDelegateNodes(XPath xpath, Element delegateEntry, String elementName, String path)
+		throws
+			XPathExpressionException
+	{
+		if((Boolean)xpath.evaluate("./" + elementName, delegateEntry, XPathConstants.BOOLEAN))
+			return (NodeList)xpath.evaluate("./" + path, delegateEntry, XPathConstants.NODESET);
+		return (NodeList)xpath.evaluate("/agent/" + path, delegateEntry, XPathConstants.NODESET);
+	}
+	
 	
 	private static void instantiateUnresolvedVariables(Map<String, VariableValue> variables) {
 		// Instantiate as system properties the unresolved variables
@@ -797,9 +2204,9 @@ public class Agent
 			Matcher m = variablePattern.matcher(value);
 			while(m.find()) {
 				String variableName = m.group(2);
-				if (System.getenv().get(variableName) == null && System.getProperty(variableName) == null){
+				if (AgentRegistry.get().getEnvironment().get(variableName) == null && System.getProperty(variableName) == null){
 					// Set it as system property
-					BootLogger.debug("Agent variable " + key + " is referencing an unresolved variable. Set it as system property " + variableName + " with the default value : " + defaultValue);
+					BootLogger.debug("Agent variable {} is referencing an unresolved variable. Set it as system property {} with the default value : {}", key, variableName, defaultValue);
 					System.setProperty(variableName, defaultValue);
 					break; // do it only once					
 				}
@@ -808,8 +2215,8 @@ public class Agent
 	}
 
 
-	private static void populateAllData(Document configDocument, Map<String, VariableValue> variables, Map<String, String> agentParams) throws XPathExpressionException {
-		XPath xpath = XPathFactory.newInstance().newXPath();
+	private static void populateAllData(Document configDocument, Map<String, VariableValue> variables, Map<String, String> agentParams, Map<String, VariableValue> lateBoundVariables) throws XPathExpressionException {
+		XPath xpath = AgentRegistry.get().newXPath();
 		
 		// Replace all variables in elements in the configuration file.
 		//  Exclude variable test fields that may reference system properties 
@@ -830,7 +2237,6 @@ public class Agent
 				Pattern variablePattern = Pattern.compile(VARIABLE_PATTERN);
 				Matcher m = variablePattern.matcher(elementValue);
 				while(m.find()) {
-					matched = true;
 					VariableValue substituteValue = variables.get(m.group(2));
 					if (substituteValue == null) {
 						String ex =
@@ -839,10 +2245,17 @@ public class Agent
 							throw new ConfigurationError(ex);							
 					}
 					String substitute = substituteValue.getValue();
+					if(lateBoundVariables != null && substitute.contains(VARIABLE_PREFIX)) {
+						// Keep the reference, resolved when the compiled configuration is loaded
+						lateBoundVariables.put(m.group(2), substituteValue);
+						continue;
+					}
+					matched = true;
 					if(substitute.trim().startsWith("${")) {  // unresolved variable
 						// Take default value if any
 						if (substituteValue.hasDefaultValue()) {
-							BootLogger.debug("Taking the default value for the " + m.group(1) + " unresolved agent variable. Agent variable value is now : " + substituteValue.getDefaultValue());
+							BootLogger.debug("Taking the default value for the {} unresolved agent variable. Agent variable value is now : {}", m.group(1), substituteValue.getDefaultValue());
+							BootTrace.variable(m.group(2), "default value");
 							substitute = substituteValue.getDefaultValue();
 						}
 						else {
@@ -865,13 +2278,13 @@ public class Agent
 					configDocument,
 					XPathConstants.NODESET
 				);
-			putVariablesWithNamesToMap(variableEntriesWithName, variables, agentParams);
+			putVariablesWithNamesToMap(variableEntriesWithName, variables, agentParams, lateBoundVariables);
 		} while(matched);
 	}
 
 
-	private static void populateAllAttributes(Document configDocument, Map<String, VariableValue> variables, Map<String, String> agentParams) throws XPathExpressionException {
-		XPath xpath = XPathFactory.newInstance().newXPath();
+	private static void populateAllAttributes(Document configDocument, Map<String, VariableValue> variables, Map<String, String> agentParams, Map<String, VariableValue> lateBoundVariables) throws XPathExpressionException {
+		XPath xpath = AgentRegistry.get().newXPath();
 		
 		// Replace all variables in attributes in the configuration file.
 		NodeList allAttributes =
@@ -889,7 +2302,6 @@ public class Agent
 				String attributeValue = ((Attr)attributeEntry).getValue();
 				Matcher m = variablePattern.matcher(attributeValue);
 				while(m.find()) {
-					matched = true;
 					VariableValue substituteValue = variables.get(m.group(2));
 					if(substituteValue == null) {
 						String ex =
@@ -899,6 +2311,12 @@ public class Agent
 						throw new ConfigurationError(ex);
 					}
 					String substitute = variables.get(m.group(2)).getValue();
+					if(lateBoundVariables != null && substitute.contains(VARIABLE_PREFIX)) {
+						// Keep the reference, resolved when the compiled configuration is loaded
+						lateBoundVariables.put(m.group(2), substituteValue);
+						continue;
+					}
+					matched = true;
 					attributeValue = attributeValue.replace(m.group(1), substitute);
 					((Attr)attributeEntry).setValue(attributeValue);
 				}
@@ -912,14 +2330,14 @@ public class Agent
 					configDocument,
 					XPathConstants.NODESET
 				);
-			putVariablesWithNamesToMap(variableEntriesWithName, variables, agentParams);
+			putVariablesWithNamesToMap(variableEntriesWithName, variables, agentParams, lateBoundVariables);
 		} while(matched);
 
 	}
 
 
-	private static void loadAgentVariables(Document configDocument, Map<String, VariableValue> variables, Map<String, String> agentParams) throws XPathExpressionException {
-		XPath xpath = XPathFactory.newInstance().newXPath();
+	private static void loadAgentVariables(Document configDocument, Map<String, VariableValue> variables, Map<String, String> agentParams, Map<String, VariableValue> lateBoundVariables) throws XPathExpressionException {
+		XPath xpath = AgentRegistry.get().newXPath();
 		
 		// All /agent/variables.
 		NodeList allVariableEntries = 
@@ -940,14 +2358,27 @@ public class Agent
 			throw
 				new ConfigurationError("\"name\" attribute is mandatory on the /agent/variable element.");
 		
-		putVariablesWithNamesToMap(variableEntriesWithName, variables, agentParams);
+		putVariablesWithNamesToMap(variableEntriesWithName, variables, agentParams, lateBoundVariables);
 	}
 
 
-	private static void validateDOMDocument(Document configDocument) throws SAXException, IOException {
-		boolean validate = true;
+	static void validateDOMDocument(Document configDocument) throws SAXException, IOException {
+		// Compiled once per JVM
+		Schema schema = AgentRegistry.get().getSchema();
+		if (schema != null){
+			Validator validator = schema.newValidator();
+			validator.validate(new DOMSource(configDocument));
+		}
+	}
+
+	/**
+	 * @return the configuration schema, null if the validation must be disabled
+	 */
+	static Schema createSchema() throws SAXException {
 		ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
-		SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+		if (classLoader == null)
+			classLoader = Agent.class.getClassLoader();
+		SchemaFactory factory;
 		
 		// Force the Sun Apache Xerces implementation
 		try{
@@ -958,26 +2389,22 @@ public class Agent
 					);
 		}catch(IllegalArgumentException ex){
 			// if JVM is not Sun one
-			BootLogger.debug("Sun Apache schema factory : " + SUN_XML_SCHEMA_FACTORY + " not found. Loading default one.");
+			BootLogger.debug("Sun Apache schema factory : {} not found. Loading default one.", SUN_XML_SCHEMA_FACTORY);
 			factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-			BootLogger.debug("Default JVM schema factory is : " + factory.getClass().getName());
+			BootLogger.debug("Default JVM schema factory is : {}", factory.getClass().getName());
 			
 			if (APACHE_XML_SCHEMA_FACTORY.equals(factory.getClass().getName()))
 				// if application comes with its own Apache Xerces library, validation fails with this error :  
 				//   org.xml.sax.SAXParseException; cvc-elt.1.a: Cannot find the declaration of element 'agent'.
 				// Disable therefore the validation
-				validate = false;
+				return null;
 		}
 		
-		if (validate){
-			Source schemaFile =	new StreamSource(classLoader.getResourceAsStream("agent.xsd"));
-			Schema schema = factory.newSchema(schemaFile);
-			Validator validator = schema.newValidator();
-			validator.validate(new DOMSource(configDocument));
-		}
+		Source schemaFile =	new StreamSource(classLoader.getResourceAsStream("agent.xsd"));
+		return factory.newSchema(schemaFile);
 	}
 
-	private static void putVariablesWithNamesToMap(NodeList variableEntries, Map<String, VariableValue> map, Map<String, String> agentParams)
+	private static void putVariablesWithNamesToMap(NodeList variableEntries, Map<String, VariableValue> map, Map<String, String> agentParams, Map<String, VariableValue> lateBoundVariables)
 	{
 		map.clear();
 		for(int i = 0; i < variableEntries.getLength(); i++) {
@@ -985,11 +2412,11 @@ public class Agent
 			Node variableValue = variableEntry.getFirstChild();
 			NamedNodeMap nameAttributes = variableEntry.getAttributes();
 			Node nameAttribute = nameAttributes.getNamedItem("name");
-			String value = resolveValue(((Text)variableValue).getData(), map, agentParams);
+			String value = resolveValue(((Text)variableValue).getData(), map, agentParams, lateBoundVariables);
 			Node defaultAttribute = nameAttributes.getNamedItem("default");
 			String defaultValue = null;
 			if (defaultAttribute != null && defaultAttribute.getNodeValue() != null) {
-				defaultValue = resolveValue((defaultAttribute.getNodeValue()), map, agentParams);
+				defaultValue = resolveValue((defaultAttribute.getNodeValue()), map, agentParams, lateBoundVariables);
 				defaultAttribute.setNodeValue(defaultValue); // update the default attribute value
 			}
 			map.put(nameAttribute.getNodeValue(), new VariableValue(value, defaultValue));
@@ -1001,8 +2428,11 @@ public class Agent
 	 * Resolves the variables ${VARIABLE} if present, 
 	 * looking first for previous agent variable, second system property, third for environment variable.
 	 * @param agentParams 
+	 * @param lateBoundVariables 
+	 * 		Not null when compiling the configuration : agent parameters, system properties and
+	 * 		environment variables are then left unresolved.
 	 */
-	private static String resolveValue(String value, Map<String, VariableValue> map, Map<String, String> agentParams){
+	private static String resolveValue(String value, Map<String, VariableValue> map, Map<String, String> agentParams, Map<String, VariableValue> lateBoundVariables){
 		StringBuilder resolvedValue = new StringBuilder(10);
 		int end = 0;
 		int pos = 0;
@@ -1021,7 +2451,7 @@ public class Agent
 					return resolvedValue.toString();
 				}
 				else{
-					resolvedValue.append(resolveVariable(value.substring(pos, end+1), map, agentParams));
+					resolvedValue.append(resolveVariable(value.substring(pos, end+1), map, agentParams, lateBoundVariables));
 				}
 				
 				prev = end +1;
@@ -1042,7 +2472,7 @@ public class Agent
 	 * looking first for previous agent variable, second system property, third for environment variable.
 	 * @param agentParams 
 	 */
-	private static String resolveVariable(String value, Map<String, VariableValue> map, Map<String, String> agentParams){
+	private static String resolveVariable(String value, Map<String, VariableValue> map, Map<String, String> agentParams, Map<String, VariableValue> lateBoundVariables){
 
 		if (value !=null && value.startsWith(VARIABLE_PREFIX) && value.endsWith(VARIABLE_SUFFIX)){
 			String variable = value.substring(2, value.length()-1);
@@ -1055,41 +2485,57 @@ public class Agent
 			if (map.get(variable) != null) {
 				resolvedValue = map.get(variable).getValue();
 				if (resolvedValue != null) {
-					BootLogger.debug("Variable " + variable + " is resolved through inner variable. Resulting value is : " + resolvedValue);
-					return resolveInnerVariable(resolvedValue, value, map, agentParams);				
+					BootLogger.debug("Variable {} is resolved through inner variable. Resulting value is : {}", variable, resolvedValue);
+					BootTrace.variable(variable, "inner variable");
+					return resolveInnerVariable(resolvedValue, value, map, agentParams, lateBoundVariables);				
 				}
 			}
 			
+			if (lateBoundVariables != null)
+				// Resolved when the compiled configuration is loaded
+				return value;
+			
 			resolvedValue = agentParams.get(variable);
 			if (resolvedValue != null) {
-				BootLogger.debug("Variable " + variable + " is resolved through agent parameter. Resulting value is : " + resolvedValue);
-				return resolveInnerVariable(resolvedValue, value, map, agentParams);
+				BootLogger.debug("Variable {} is resolved through agent parameter. Resulting value is : {}", variable, resolvedValue);
+				BootTrace.variable(variable, "agent parameter");
+				return resolveInnerVariable(resolvedValue, value, map, agentParams, lateBoundVariables);
 			}
 			
 			resolvedValue = System.getProperty(variable);
 			if (resolvedValue != null) {
-				BootLogger.debug("Variable " + variable + " is resolved through system property. Resulting value is : " + resolvedValue);
-				return resolveInnerVariable(resolvedValue, value, map, agentParams);
+				BootLogger.debug("Variable {} is resolved through system property. Resulting value is : {}", variable, resolvedValue);
+				BootTrace.variable(variable, "system property");
+				return resolveInnerVariable(resolvedValue, value, map, agentParams, lateBoundVariables);
 			}
 			
-			resolvedValue = System.getenv(variable);
+			resolvedValue = AgentRegistry.get().getEnvironment().get(variable);
 			if (resolvedValue != null) {
-				BootLogger.debug("Variable " + variable + " is resolved through environment variable. Resulting value is : " + resolvedValue);
-				return resolveInnerVariable(resolvedValue, value, map, agentParams);
+				BootLogger.debug("Variable {} is resolved through environment variable. Resulting value is : {}", variable, resolvedValue);
+				BootTrace.variable(variable, "environment variable");
+				return resolveInnerVariable(resolvedValue, value, map, agentParams, lateBoundVariables);
 			}
 		}
 		
 		return value;
 	}
 	
-	private static String resolveInnerVariable(String resolvedValue, String originalValue, Map<String, VariableValue> map, Map<String, String> agentParams){
+	private static String resolveInnerVariable(String resolvedValue, String originalValue, Map<String, VariableValue> map, Map<String, String> agentParams, Map<String, VariableValue> lateBoundVariables){
 		String result = resolvedValue;
 		if (resolvedValue.contains(VARIABLE_PREFIX)){
-			result = resolveValue(resolvedValue, map, agentParams);
+			result = resolveValue(resolvedValue, map, agentParams, lateBoundVariables);
 		}
 		return result;
 	}
 	
+	/**
+	 * Resolves the agent parameters, system properties and environment variables referenced by
+	 * the given value, as done for the agent variables.
+	 */
+	static String resolveExternalVariables(String value, Map<String, String> agentParams){
+		return resolveValue(value, Collections.<String, VariableValue>emptyMap(), agentParams, null);
+	}
+	
 	/**
 	 * Creates an object according to the given configuration elements (i.e. /agent/configuration
 	 * element).
@@ -1115,81 +2561,19 @@ public class Agent
 	 */
 	static Object unmarshall(Class<?> delegateAgentClass, ConfigElements configElements)
 	{
+		if(configElements.isCompiled())
+			return unmarshallCompiled(delegateAgentClass, configElements);
+		
 		Element configElement = configElements.getConfigurationElement();
 		if(configElement != null) {
 			if(configElement.getElementsByTagName("item").getLength() > 0)
-				return createCollectionConfiguration(configElements);
+				return createCollectionConfiguration(configElement);
 			else {
-				Node firstNode = configElement.getFirstChild();
-				Node targetNode = firstNode;
-				boolean customElementFound = false;
-				boolean textNodeFound = false;
-				while(targetNode != null) {
-					if(targetNode.getNodeName().equals("#text") && targetNode.getNodeValue().trim().length() > 0)
-						textNodeFound = true;
-					if(targetNode.getNodeName().equals("custom")) {
-						customElementFound = true;
-						break;
-					}
-					targetNode = targetNode.getNextSibling();
-				}
-				if(textNodeFound && customElementFound)
-					throw
-						new ConfigurationError(
-							"/agent/configuration/custom element cannot co-exist with a text element "
-							+ "(i.e. a pure string under /agent/configuration)."
-						);
-				if(!customElementFound)
-					targetNode = firstNode;
-				if(customElementFound) {
-					try {
-						// Invokes the unmarshaller.
-						return
-							delegateAgentClass.getMethod(
-								"unmarshall",
-								new Class[] {Element.class}
-							).invoke(null, targetNode);
-					}
-					catch(NoSuchMethodException e) {
-						throw
-							new ConfigurationError(
-								"static Object unmarshall(Element) method was not defined in \""
-									+ delegateAgentClass.getName() + "\".",
-								e
-							);
-					}
-					catch(IllegalArgumentException e) {
-						throw
-							new ConfigurationError(
-								"Argument mismatch with static Object unmarshall(Element) method "
-									+ "in \"" + delegateAgentClass.getName() + "\".",
-								e
-							);
-					}
-					catch(InvocationTargetException e) {
-						throw
-							new ConfigurationError(
-								"static Object unmarshall(Element) method "
-									+ "in \"" + delegateAgentClass.getName()
-									+ "\" threw an exception.",
-								e
-							);
-					}
-					catch(IllegalAccessException e) {
-						assert false: e;
-						return null;
-					}
-				}
-				else {
-					if(targetNode == null || targetNode.getNodeValue().trim().length() == 0)
-						throw
-							new ConfigurationError(
-								"/agent/configuration does not have a proper string (i.e. text element) "
-									+ "(or any other elements)"
-							);
-					
-					return targetNode.getNodeValue().trim();
-				}
+				Element customElement = getCustomConfigurationElement(configElement);
+				if(customElement != null)
+					return invokeUnmarshaller(delegateAgentClass, customElement, null);
+				else
+					return getStringConfiguration(configElement);
 			}
 		}
 		else
@@ -1197,88 +2581,236 @@ public class Agent
 	}
 	
 	
+	/**
+	 * Creates the configuration object of a configuration loaded from a compiled configuration file.
+	 * The user defined configuration is parsed only at that time.
+	 */
+	@SuppressWarnings("unchecked")
+	private static Object unmarshallCompiled(Class<?> delegateAgentClass, ConfigElements configElements)
+	{
+		if(configElements.getCustomConfiguration() != null)
+			return invokeUnmarshaller(delegateAgentClass, null, configElements.getCustomConfiguration());
+		
+		// Delegates get their own copy
+		Object configuration = configElements.getCompiledConfiguration();
+		if(configuration instanceof List)
+			return new ArrayList<String>((List<String>)configuration);
+		if(configuration instanceof Map && !(configuration instanceof TypedConfiguration))
+			return new HashMap<String, String>((Map<String, String>)configuration);
+		return configuration;
+	}
+	
+	
+	/**
+	 * Returns the {@code /agent/configuration/custom} element if any.
+	 */
+	static Element getCustomConfigurationElement(Element configElement)
+	{
+		Node targetNode = configElement.getFirstChild();
+		boolean customElementFound = false;
+		boolean textNodeFound = false;
+		while(targetNode != null) {
+			if(targetNode.getNodeName().equals("#text") && targetNode.getNodeValue().trim().length() > 0)
+				textNodeFound = true;
+			if(targetNode.getNodeName().equals("custom")) {
+				customElementFound = true;
+				break;
+			}
+			targetNode = targetNode.getNextSibling();
+		}
+		if(textNodeFound && customElementFound)
+			throw
+				new ConfigurationError(
+					"/agent/configuration/custom element cannot co-exist with a text element "
+					+ "(i.e. a pure string under /agent/configuration)."
+				);
+		return customElementFound ? (Element)targetNode : null;
+	}
+	
+	
+	/**
+	 * Returns the {@code /agent/configuration} text.
+	 */
+	static String getStringConfiguration(Element configElement)
+	{
+		Node targetNode = configElement.getFirstChild();
+		if(targetNode == null || targetNode.getNodeValue().trim().length() == 0)
+			throw
+				new ConfigurationError(
+					"/agent/configuration does not have a proper string (i.e. text element) "
+						+ "(or any other elements)"
+				);
+		
+		return targetNode.getNodeValue().trim();
+	}
+	
+	
+	private static Object invokeUnmarshaller(Class<?> delegateAgentClass, Element customElement, String customConfiguration)
+	{
+		MethodHandle unmarshaller = DelegateMethods.get(delegateAgentClass).getUnmarshall();
+		if(unmarshaller == null)
+			throw
+				new ConfigurationError(
+					"static Object unmarshall(Element) method was not defined in \""
+						+ delegateAgentClass.getName() + "\"."
+				);
+		
+		try {
+			// Invokes the unmarshaller.
+			if(unmarshaller.type().equals(DelegateMethods.UNMARSHALL_VIEW_TYPE))
+				return
+					(Object)unmarshaller.invokeExact(
+						new ConfigurationView(customConfiguration != null ? customConfiguration : toXml(customElement))
+					);
+			return (Object)unmarshaller.invokeExact(customElement != null ? customElement : parseXml(customConfiguration));
+		}
+		catch(ConfigurationError e) {
+			throw e;
+		}
+		catch(Throwable e) {
+			throw
+				new ConfigurationError(
+					"static Object unmarshall method "
+						+ "in \"" + delegateAgentClass.getName()
+						+ "\" threw an exception.",
+					e
+				);
+		}
+	}
+	
+	
+	/**
+	 * Serializes the element, without XML declaration.
+	 */
+	static String toXml(Element element)
+	{
+		try {
+			Transformer transformer = TransformerFactory.newInstance().newTransformer();
+			transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+			StringWriter writer = new StringWriter();
+			transformer.transform(new DOMSource(element), new StreamResult(writer));
+			return writer.toString();
+		}
+		catch(TransformerException e) {
+			throw
+				new ConfigurationError(
+					"/agent/configuration/custom element cannot be serialized.",
+					e
+				);
+		}
+	}
+	
+	
+	private static Element parseXml(String xml)
+	{
+		try {
+			return
+				DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(
+					new InputSource(new StringReader(xml))
+				).getDocumentElement();
+		}
+		catch(ParserConfigurationException | SAXException | IOException e) {
+			throw
+				new ConfigurationError(
+					"/agent/configuration/custom element cannot be parsed.",
+					e
+				);
+		}
+	}
+	
+	
 	/**
 	 * Creates either {@code List<String>} or {@code Map<String, String>} configuration object.
+	 * The map is a {@link TypedConfiguration} if at least one item declares a {@code type}.
 	 * 
-	 * @param configElements
-	 * 		Configuration elements to be used as a basis for the configuration object creation.
+	 * @param configElement
+	 * 		The {@code /agent/configuration} element.
 	 * 
 	 * @return
 	 * 		A configuration collection object which is either one of the following:
 	 * 		<ul>
 	 * 			<li>{@code List<String>}</li>
 	 * 			<li>{@code Map<String, String>}</li>
+	 * 			<li>{@link TypedConfiguration}</li>
 	 * 		</ul>
 	 */
-	private static Object createCollectionConfiguration(ConfigElements configElements)
+	static Object createCollectionConfiguration(Element configElement)
 	{
 		boolean dontUseMap = false;
 		boolean dontUseList = false;
-		Object retVal = null;
-
-		XPath xpath = XPathFactory.newInstance().newXPath();
-		try {
-			NodeList configurationItems = (NodeList)xpath.evaluate(
-				"./item",
-				configElements.getConfigurationElement(),
-				XPathConstants.NODESET
-			);
-			for(int i = 0; i < configurationItems.getLength(); i++) {
-				Node item = configurationItems.item(i);
-				if(item.getAttributes().getNamedItem("key") == null)
-					dontUseMap = true;
-				else
+		boolean typed = false;
+		
+		// ./item
+		List<Element> configurationItems = new ArrayList<Element>();
+		for(Node child = configElement.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if(child.getNodeType() == Node.ELEMENT_NODE && child.getNodeName().equals("item")) {
+				Element item = (Element)child;
+				configurationItems.add(item);
+				if(item.hasAttribute("key"))
 					dontUseList = true;
+				else
+					dontUseMap = true;
+				if(item.hasAttribute("type"))
+					typed = true;
 			}
-			
-			if(dontUseList && dontUseMap)
-				throw
-					new ConfigurationError(
-						"/agent/configuration/item tags have improper attributes."
-					);
-			
-			// Uses a list.
-			if(!dontUseList) {
-				List<String> list = new ArrayList<String>();
-				for(int i = 0; i < configurationItems.getLength(); i++) {
-					Node item = configurationItems.item(i).getFirstChild();
-					if(item != null)
-						list.add(((Text)item).getData());
-					else
-						list.add("");
-				}
-				retVal = list;
-			}
-			
-			// Uses a map.
-			if(!dontUseMap) {
-				Map<String, String> map = new HashMap<String, String>();
-				for(int i = 0; i < configurationItems.getLength(); i++) {
-					Node item = configurationItems.item(i);
-					Node keyNode = item.getAttributes().getNamedItem("key");
-					String key = keyNode == null ? "" : keyNode.getNodeValue();
-					if(item != null)
-						map.put(key, ((Text)item.getFirstChild()).getData());
-				}
-				retVal = map;
+		}
+		
+		if(dontUseList && dontUseMap)
+			throw
+				new ConfigurationError(
+					"/agent/configuration/item tags have improper attributes."
+				);
+		
+		// Uses a list.
+		if(!dontUseList) {
+			List<String> list = new ArrayList<String>(configurationItems.size());
+			for(Element item : configurationItems) {
+				Node text = item.getFirstChild();
+				if(text != null)
+					list.add(((Text)text).getData());
+				else
+					list.add("");
 			}
+			return list;
 		}
-		catch(XPathExpressionException e) {
-			assert false : e;
+		
+		// Uses a typed map.
+		if(typed) {
+			List<String> keys = new ArrayList<String>(configurationItems.size());
+			List<TypedConfiguration.Type> types = new ArrayList<TypedConfiguration.Type>(configurationItems.size());
+			List<String> values = new ArrayList<String>(configurationItems.size());
+			for(Element item : configurationItems) {
+				keys.add(item.getAttribute("key"));
+				types.add(TypedConfiguration.Type.fromAttribute(item.getAttribute("type")));
+				values.add(((Text)item.getFirstChild()).getData());
+			}
+			return new TypedConfiguration(keys, types, values);
 		}
 		
-		assert retVal != null;
-		return retVal;
+		// Uses a map.
+		Map<String, String> map = new HashMap<String, String>();
+		for(Element item : configurationItems)
+			map.put(item.getAttribute("key"), ((Text)item.getFirstChild()).getData());
+		return map;
 	}
 	
 	public static void publishAgentVersion() {
+		String version = compiledAgentVersion != null ? compiledAgentVersion : readAgentVersion();
+		if (version != null)
+			System.setProperty(PROPERTY_JEYZER_AGENT_VERSION, version);
+	}
+	
+	/**
+	 * @return the agent version read from the agent jar manifest. Null if not available.
+	 */
+	static String readAgentVersion() {
 		try {
 			Class<Agent> clazz = Agent.class;
 			String className = clazz.getSimpleName() + ".class";
 			String classPath = clazz.getResource(className).toString();
 			if (!classPath.startsWith("jar"))
 				// Class not loaded from JAR
-				return;
+				return null;
 			
 			String manifestPath = classPath.substring(0,
 					classPath.lastIndexOf('!') + 1)
@@ -1286,13 +2818,11 @@ public class Agent
 			Manifest manifest = new Manifest(new URL(manifestPath).openStream());
 			Attributes attr = manifest.getMainAttributes();
 			String value = attr.getValue("Specification-Version");
-			if (value == null)
-				// Class loaded from JAR within war file
-				return;
-			
-			System.setProperty(PROPERTY_JEYZER_AGENT_VERSION, value);
+			// Null if class loaded from JAR within war file
+			return value;
 		} catch (IOException ex) {
 			BootLogger.warning("Failed to access the Agent version from its Manifest file : " + ex.getMessage());
+			return null;
 		}
 	}
 
@@ -1310,8 +2840,14 @@ public class Agent
 		private final String delegateAgentName;
 		private final List<Pattern> includePatterns;
 		private final List<Pattern> excludePatterns;
+		private final ClassFilter classFilter;
 		private final List<URL> classpaths;
 		private final Element configurationElement;
+		private final boolean compiled;
+		private final Object compiledConfiguration;
+		private final String customConfiguration;
+		private final OverheadBudget overheadBudget;
+		private final TransformSampler sampler;
 		
 		public ConfigElements(
 			List<String> classpaths,
@@ -1323,12 +2859,113 @@ public class Agent
 			throws
 				MalformedURLException
 		{
+			this(classpaths, includePatterns, excludePatterns, delegateAgentName, configElement, null, null);
+		}
+		
+		/**
+		 * @param overheadBudget
+		 * 		The delegate transform overhead budget. Null if none.
+		 * 
+		 * @param sampler
+		 * 		The sampler of the classes handed over to the delegate. Null if all the classes are.
+		 */
+		public ConfigElements(
+			List<String> classpaths,
+			List<Pattern> includePatterns,
+			List<Pattern> excludePatterns,
+			String delegateAgentName,
+			Element configElement,
+			OverheadBudget overheadBudget,
+			TransformSampler sampler
+		)
+			throws
+				MalformedURLException
+		{
+			this(
+				classpaths,
+				includePatterns,
+				excludePatterns,
+				delegateAgentName,
+				configElement,
+				false,
+				null,
+				null,
+				overheadBudget,
+				sampler
+			);
+		}
+		
+		/**
+		 * Creates the configuration elements of a compiled configuration.
+		 * 
+		 * @param compiledConfiguration
+		 * 		The {@code String}, {@code List<String>} or {@code Map<String, String>} configuration
+		 * 		object. Null if none.
+		 * 
+		 * @param customConfiguration
+		 * 		The XML text of the {@code /agent/configuration/custom} element. Null if none.
+		 * 
+		 * @param overheadBudget
+		 * 		The delegate transform overhead budget. Null if none.
+		 * 
+		 * @param sampler
+		 * 		The sampler of the classes handed over to the delegate. Null if all the classes are.
+		 */
+		public ConfigElements(
+			List<String> classpaths,
+			List<Pattern> includePatterns,
+			List<Pattern> excludePatterns,
+			String delegateAgentName,
+			Object compiledConfiguration,
+			String customConfiguration,
+			OverheadBudget overheadBudget,
+			TransformSampler sampler
+		)
+			throws
+				MalformedURLException
+		{
+			this(
+				classpaths,
+				includePatterns,
+				excludePatterns,
+				delegateAgentName,
+				null,
+				true,
+				compiledConfiguration,
+				customConfiguration,
+				overheadBudget,
+				sampler
+			);
+		}
+		
+		private ConfigElements(
+			List<String> classpaths,
+			List<Pattern> includePatterns,
+			List<Pattern> excludePatterns,
+			String delegateAgentName,
+			Element configElement,
+			boolean compiled,
+			Object compiledConfiguration,
+			String customConfiguration,
+			OverheadBudget overheadBudget,
+			TransformSampler sampler
+		)
+			throws
+				MalformedURLException
+		{
+			this.compiled = compiled;
+			this.compiledConfiguration = compiledConfiguration;
+			this.customConfiguration = customConfiguration;
+			this.overheadBudget = overheadBudget;
+			this.sampler = sampler;
+			
 			List<URL> classpathsAsURLs = new ArrayList<URL>();
 			for(String classpath : classpaths) {
 				File file = new File(classpath);
 				// Stay backward compatible : do not throw an exception
 				if(!file.exists()) {
 					BootLogger.warning("Agent class path entry is invalid : " + file + " - Please fix the agent classpath configuration.");
+					BootTrace.classpathRejected(classpath, "does not exist");
 					continue;
 				}
 				classpathsAsURLs.add(file.toURI().toURL());
@@ -1337,11 +2974,40 @@ public class Agent
 			
 			this.includePatterns = Collections.unmodifiableList(includePatterns);
 			this.excludePatterns = Collections.unmodifiableList(excludePatterns);
+			this.classFilter = new ClassFilter(includePatterns, excludePatterns);
 
 			this.delegateAgentName = delegateAgentName;
 			this.configurationElement = configElement;
 		}
 
+		/**
+		 * Copies the configuration elements, without the delegate configuration.
+		 */
+		private ConfigElements(ConfigElements source)
+		{
+			this.delegateAgentName = source.delegateAgentName;
+			this.includePatterns = source.includePatterns;
+			this.excludePatterns = source.excludePatterns;
+			this.classFilter = source.classFilter;
+			this.classpaths = source.classpaths;
+			this.configurationElement = null;
+			this.compiled = true;
+			this.compiledConfiguration = null;
+			this.customConfiguration = null;
+			this.overheadBudget = source.overheadBudget;
+			this.sampler = source.sampler;
+		}
+		
+		/**
+		 * @return
+		 * 		A copy of these configuration elements which does not reference the delegate
+		 * 		configuration, nor the configuration DOM.
+		 */
+		public ConfigElements withoutConfiguration()
+		{
+			return new ConfigElements(this);
+		}
+		
 		public Element getConfigurationElement()
 		{
 			return configurationElement;
@@ -1366,6 +3032,138 @@ public class Agent
 		{
 			return excludePatterns.toArray(new Pattern[0]);
 		}
+		
+		public ClassFilter getClassFilter()
+		{
+			return classFilter;
+		}
+		
+		/**
+		 * @return
+		 * 		{@code true} if read from a compiled configuration file, in which case there is no
+		 * 		configuration element.
+		 */
+		public boolean isCompiled()
+		{
+			return compiled;
+		}
+		
+		public Object getCompiledConfiguration()
+		{
+			return compiledConfiguration;
+		}
+		
+		public String getCustomConfiguration()
+		{
+			return customConfiguration;
+		}
+		
+		/**
+		 * @return
+		 * 		The delegate transform overhead budget. Null if none.
+		 */
+		public OverheadBudget getOverheadBudget()
+		{
+			return overheadBudget;
+		}
+		
+		/**
+		 * @return
+		 * 		The sampler of the classes handed over to the delegate. Null if all the classes are.
+		 */
+		public TransformSampler getSampler()
+		{
+			return sampler;
+		}
+	}
+	
+	
+	/**
+	 * {@code DelegateAgent} is a booted delegate agent. Its configuration elements are replaced
+	 * on configuration reload.
+	 * 
+	 * @author jeyzer
+	 *
+	 */
+	static class DelegateAgent
+	{
+		private final Class<?> delegateAgentClass;
+		private final AgentClassLoader classLoader;
+		private final AgentInstrumentation agentInstrumentation;
+		private volatile ConfigElements configElements;
+		
+		DelegateAgent(
+			Class<?> delegateAgentClass,
+			AgentClassLoader classLoader,
+			AgentInstrumentation agentInstrumentation,
+			ConfigElements configElements
+		)
+		{
+			this.delegateAgentClass = delegateAgentClass;
+			this.classLoader = classLoader;
+			this.agentInstrumentation = agentInstrumentation;
+			this.configElements = configElements;
+		}
+		
+		public String getDelegateAgentName()
+		{
+			return delegateAgentClass.getName();
+		}
+		
+		public Class<?> getDelegateAgentClass()
+		{
+			return delegateAgentClass;
+		}
+		
+		public AgentClassLoader getClassLoader()
+		{
+			return classLoader;
+		}
+		
+		/**
+		 * @return
+		 * 		The {@code Instrumentation} handed over to the delegate.
+		 */
+		public Instrumentation getInstrumentation()
+		{
+			return agentInstrumentation.getProxy();
+		}
+		
+		/**
+		 * @return
+		 * 		The guard of the delegate transform overhead budget.
+		 */
+		OverheadBudgetGuard getBudgetGuard()
+		{
+			return agentInstrumentation.getBudgetGuard();
+		}
+		
+		/**
+		 * Applies the transform overhead budget, the sampling and the class load notification filter
+		 * of the configuration elements.
+		 * The degraded packages are restored.
+		 */
+		void applyDispatchSettings(ConfigElements configElements)
+		{
+			agentInstrumentation.getBudgetGuard().setBudget(configElements.getOverheadBudget());
+			agentInstrumentation.setSampler(configElements.getSampler());
+			agentInstrumentation.setClassFilter(configElements.getClassFilter());
+		}
+		
+		AgentInstrumentation getAgentInstrumentation()
+		{
+			return agentInstrumentation;
+		}
+		
+		public ConfigElements getConfigElements()
+		{
+			return configElements;
+		}
+		
+		void setConfigElements(ConfigElements configElements)
+		{
+			this.configElements = configElements;
+		}
 	}
 	
 	
@@ -0,0 +1,280 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.io.IOException;
+import java.lang.instrument.ClassFileTransformer;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@code AgentClassLoader} is the class loader of the agent delegate. On top of the
+ * {@link URLClassLoader} behaviour, it keeps track of its own footprint per class path entry :
+ * number of classes defined, bytes of class data read and time spent in {@link #findClass(String)}.
+ * The time is the self time of each call : defining a class loads its super class and interfaces
+ * through nested {@code findClass} calls, whose time is counted for the nested class only.
+ * <p>
+ * The class data size is only known by the JVM when the class gets defined. It is collected by the
+ * {@link #FOOTPRINT_TRANSFORMER} which must be registered on the {@code Instrumentation}.
+ * <p>
+ * The class data of the jars shared with the class loaders of other delegates is read through
+ * the {@link SharedClassData} : read once, but defined by each class loader.
+ *
+ * @author jeyzer
+ *
+ */
+class AgentClassLoader extends URLClassLoader {
+
+	static {
+		ClassLoader.registerAsParallelCapable();
+	}
+
+	/**
+	 * Transformer collecting the class data size of the classes defined by any {@code AgentClassLoader}.
+	 * It never transforms anything.
+	 */
+	static final ClassFileTransformer FOOTPRINT_TRANSFORMER = new ClassFileTransformer() {
+		@Override
+		public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+				ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+			if (loader instanceof AgentClassLoader && classBeingRedefined == null && classfileBuffer != null)
+				((AgentClassLoader)loader).recordClassData(protectionDomain, classfileBuffer.length);
+			return null;
+		}
+	};
+
+	// Time spent in the nested findClass calls of the current findClass call, per thread
+	private static final ThreadLocal<long[]> nestedNanos = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[1];
+		}
+	};
+
+	private final Map<String, EntryCounters> entryCounters;
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong missNanos = new AtomicLong();
+
+	// Jars shared with the class loaders of other delegates, by class path entry URL
+	private final Map<String, SharedEntry> sharedEntries;
+	private final SharedClassData sharedClassData;
+
+	AgentClassLoader(URL[] urls, ClassLoader parent) {
+		this(urls, parent, Collections.<String, SharedEntry>emptyMap(), null);
+	}
+
+	/**
+	 * @param sharedEntries
+	 * 		The class path entries shared with the class loaders of other delegates, by entry URL.
+	 * @param sharedClassData
+	 * 		The class data of the shared entries. Can be null if there is no shared entry.
+	 */
+	AgentClassLoader(URL[] urls, ClassLoader parent, Map<String, SharedEntry> sharedEntries, SharedClassData sharedClassData) {
+		super(urls, parent);
+		Map<String, EntryCounters> counters = new LinkedHashMap<>();
+		for (URL url : urls)
+			counters.put(url.toExternalForm(), new EntryCounters(url));
+		this.entryCounters = Collections.unmodifiableMap(counters);
+		this.sharedEntries = sharedEntries;
+		this.sharedClassData = sharedClassData;
+	}
+
+	@Override
+	protected Class<?> findClass(String name) throws ClassNotFoundException {
+		long[] nested = nestedNanos.get();
+		long outerNested = nested[0];
+		nested[0] = 0;
+		long start = System.nanoTime();
+		Class<?> clazz = null;
+		boolean missed = false;
+		try {
+			clazz = findSharedClass(name);
+			if (clazz == null)
+				clazz = super.findClass(name);
+		} catch (ClassNotFoundException ex) {
+			missed = true;
+			throw ex;
+		} finally {
+			long elapsed = System.nanoTime() - start;
+			long self = elapsed - nested[0];
+			nested[0] = outerNested + elapsed;
+			if (missed) {
+				missCount.incrementAndGet();
+				missNanos.addAndGet(self);
+			} else if (clazz != null) {
+				EntryCounters counters = getEntryCounters(clazz.getProtectionDomain());
+				if (counters != null)
+					counters.recordDefinition(self);
+			}
+		}
+		return clazz;
+	}
+
+	/**
+	 * Defines the class from the shared class data if the class path resolves it to a shared jar.
+	 *
+	 * @return the class, null if not found in a shared jar
+	 */
+	private Class<?> findSharedClass(String name) throws ClassNotFoundException {
+		if (sharedEntries.isEmpty())
+			return null;
+		String path = name.replace('.', '/').concat(".class");
+		// Class path order : the class can be hidden by a previous entry
+		URL resource = findResource(path);
+		if (resource == null || !"jar".equals(resource.getProtocol()))
+			return null;
+		String file = resource.getFile();
+		int separator = file.indexOf("!/");
+		SharedEntry shared = separator > 0 ? sharedEntries.get(file.substring(0, separator)) : null;
+		if (shared == null)
+			return null;
+
+		try {
+			URL entry = new URL(file.substring(0, separator));
+			SharedClassData.ClassData data = sharedClassData.get(shared.canonicalPath + "!/" + path, resource, shared.sharers);
+			definePackage(name, entry, data);
+			return defineClass(name, data.getBytes(), 0, data.getBytes().length, new CodeSource(entry, data.getSigners()));
+		} catch (IOException ex) {
+			throw new ClassNotFoundException(name, ex);
+		}
+	}
+
+	@SuppressWarnings("deprecation")
+	private void definePackage(String className, URL entry, SharedClassData.ClassData data) {
+		int index = className.lastIndexOf('.');
+		if (index <= 0)
+			return;
+		String packageName = className.substring(0, index);
+		if (getPackage(packageName) != null)
+			return;
+		try {
+			if (data.getManifest() != null)
+				definePackage(packageName, data.getManifest(), entry);
+			else
+				definePackage(packageName, null, null, null, null, null, null, null);
+		} catch (IllegalArgumentException ex) {
+			// Defined concurrently
+		}
+	}
+
+	/**
+	 * @return a snapshot of the class loading statistics of this class loader
+	 */
+	ClassLoaderStatistics getStatistics() {
+		List<ClassLoaderStatistics.EntryStatistics> entries = new ArrayList<>(entryCounters.size());
+		for (EntryCounters counters : entryCounters.values())
+			entries.add(counters.snapshot());
+		return new ClassLoaderStatistics(entries, missCount.get(), missNanos.get());
+	}
+
+	/**
+	 * @return the number of classes defined, read from the live counters
+	 */
+	long getClassesDefined() {
+		long total = 0;
+		for (EntryCounters counters : entryCounters.values())
+			total += counters.classesDefined.get();
+		return total;
+	}
+
+	long getClassDataBytes() {
+		long total = 0;
+		for (EntryCounters counters : entryCounters.values())
+			total += counters.classDataBytes.get();
+		return total;
+	}
+
+	long getFindClassNanos() {
+		long total = 0;
+		for (EntryCounters counters : entryCounters.values())
+			total += counters.findClassNanos.get();
+		return total;
+	}
+
+	long getMissCount() {
+		return missCount.get();
+	}
+
+	private void recordClassData(ProtectionDomain domain, int length) {
+		EntryCounters counters = getEntryCounters(domain);
+		if (counters != null)
+			counters.recordClassData(length);
+	}
+
+	private EntryCounters getEntryCounters(ProtectionDomain domain) {
+		if (domain == null)
+			return null;
+		CodeSource source = domain.getCodeSource();
+		if (source == null || source.getLocation() == null)
+			return null;
+		return entryCounters.get(source.getLocation().toExternalForm());
+	}
+
+	/**
+	 * Class path entry shared by the class path of several delegates.
+	 */
+	static final class SharedEntry {
+
+		private final String canonicalPath;
+		private final int sharers;
+
+		/**
+		 * @param canonicalPath
+		 * 		The canonical path of the jar.
+		 * @param sharers
+		 * 		The number of delegates sharing the jar.
+		 */
+		SharedEntry(String canonicalPath, int sharers) {
+			this.canonicalPath = canonicalPath;
+			this.sharers = sharers;
+		}
+	}
+
+	private static class EntryCounters {
+
+		private final URL entry;
+		private final AtomicLong classesDefined = new AtomicLong();
+		private final AtomicLong classDataBytes = new AtomicLong();
+		private final AtomicLong findClassNanos = new AtomicLong();
+
+		EntryCounters(URL entry) {
+			this.entry = entry;
+		}
+
+		void recordDefinition(long nanos) {
+			classesDefined.incrementAndGet();
+			findClassNanos.addAndGet(nanos);
+		}
+
+		void recordClassData(int length) {
+			classDataBytes.addAndGet(length);
+		}
+
+		ClassLoaderStatistics.EntryStatistics snapshot() {
+			return new ClassLoaderStatistics.EntryStatistics(
+					entry,
+					classesDefined.get(),
+					classDataBytes.get(),
+					findClassNanos.get()
+					);
+		}
+	}
+}
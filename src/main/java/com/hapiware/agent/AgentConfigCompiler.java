@@ -0,0 +1,234 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.SAXException;
+
+import com.hapiware.agent.Agent.ConfigurationError;
+import com.hapiware.agent.Agent.VariableValue;
+
+/**
+ * {@code AgentConfigCompiler} compiles an agent XML configuration file into a compiled
+ * configuration file ({@code .agentc}), typically at image build time :
+ * <pre>
+ * java -cp jeyzer-agent.jar com.hapiware.agent.AgentConfigCompiler agent.xml [agent.agentc]
+ * </pre>
+ * The configuration is validated against the agent schema, the agent variables are resolved and
+ * the filter patterns are checked. The agent variables referencing agent parameters, system
+ * properties or environment variables are kept as late bound variables, resolved at agent start.
+ * The agent version is embedded in the compiled file. The configuration is compiled once without
+ * any profile section, then once per declared profile (see {@link ConfigurationProfile}). Each
+ * declared instrumentation level is compiled for each of them as well.
+ * <p>
+ * The compiled file is then given to the agent instead of the XML one :
+ * <pre>
+ * -javaagent:jeyzer-agent.jar=agent.agentc
+ * </pre>
+ *
+ * @see CompiledConfiguration
+ *
+ * @author jeyzer
+ *
+ */
+public final class AgentConfigCompiler {
+
+	private AgentConfigCompiler() {
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("Usage : java -cp <agent jar> " + AgentConfigCompiler.class.getName()
+					+ " <agent configuration file> [<compiled configuration file>]");
+			System.exit(2);
+		}
+
+		File source = new File(args[0]);
+		File target = args.length == 2 ? new File(args[1]) : getDefaultTarget(source);
+		try {
+			CompiledConfiguration configuration = compile(source, target);
+			System.out.println("Agent configuration " + source + " compiled into " + target + " : "
+					+ configuration.getDelegates().size() + " delegate(s), "
+					+ configuration.getLateBoundVariables().size() + " late bound variable(s), "
+					+ configuration.getProfileNames().size() + " profile(s), "
+					+ configuration.getLevels().size() + " instrumentation level(s).");
+		} catch (ConfigurationError | IOException ex) {
+			System.err.println("Failed to compile the agent configuration " + source + " : " + ex.getMessage());
+			if (ex.getCause() != null)
+				System.err.println("\t" + ex.getCause().getMessage());
+			System.exit(1);
+		}
+	}
+
+	static File getDefaultTarget(File source) {
+		String name = source.getName();
+		int extension = name.lastIndexOf('.');
+		if (extension > 0)
+			name = name.substring(0, extension);
+		return new File(source.getAbsoluteFile().getParentFile(), name + CompiledConfiguration.FILE_EXTENSION);
+	}
+
+	/**
+	 * Compiles the agent configuration file and writes the compiled configuration.
+	 *
+	 * @throws ConfigurationError
+	 * 		If the agent configuration is invalid.
+	 */
+	static CompiledConfiguration compile(File source, File target) throws IOException {
+		CompiledConfiguration configuration = compile(source);
+		try (OutputStream output = new BufferedOutputStream(new FileOutputStream(target))) {
+			configuration.write(output);
+		}
+		return configuration;
+	}
+
+	/**
+	 * Compiles the agent configuration file.
+	 *
+	 * @throws ConfigurationError
+	 * 		If the agent configuration is invalid.
+	 */
+	static CompiledConfiguration compile(File source) throws IOException {
+		if (!source.exists())
+			throw new ConfigurationError("The agent configuration file \"" + source + "\" does not exist.");
+
+		String configFileName = source.getCanonicalPath();
+		String agentVersion = Agent.readAgentVersion();
+		try {
+			CompiledConfiguration configuration = compile(source, configFileName, null, null, agentVersion);
+			Set<String> levels = ConfigurationProfile.getLevelNames(source);
+			for (String level : levels)
+				configuration.addProfile(
+						ConfigurationProfile.getSelectionKey(null, level),
+						compile(source, configFileName, null, level, agentVersion));
+			for (String profile : ConfigurationProfile.getProfileNames(source)) {
+				configuration.addProfile(profile, compile(source, configFileName, profile, null, agentVersion));
+				for (String level : levels)
+					configuration.addProfile(
+							ConfigurationProfile.getSelectionKey(profile, level),
+							compile(source, configFileName, profile, level, agentVersion));
+			}
+			return configuration;
+		} catch (ParserConfigurationException ex) {
+			throw new ConfigurationError("XML document builder cannot be created.", ex);
+		} catch (SAXException ex) {
+			throw new ConfigurationError("Parsing the agent configuration file \"" + source + "\" didn't succeed.", ex);
+		}
+	}
+
+	private static CompiledConfiguration compile(File source, String configFileName, String profile, String level,
+			String agentVersion) throws ParserConfigurationException, SAXException, IOException {
+		Document document = ConfigurationProfile.parse(source, profile, level);
+
+		Map<String, VariableValue> lateBoundVariables = new LinkedHashMap<>();
+		List<DelegateDefinition> definitions = Agent.readDelegateDefinitions(
+				document,
+				configFileName,
+				Collections.<String, String>emptyMap(),
+				lateBoundVariables);
+
+		List<CompiledConfiguration.Delegate> delegates = new ArrayList<>(definitions.size());
+		for (DelegateDefinition definition : definitions) {
+			checkPatterns(definition.getIncludes());
+			checkPatterns(definition.getExcludes());
+			checkBudget(definition.getBudget());
+			checkSampling(definition.getSampling());
+			CompiledConfiguration.Delegate delegate = new CompiledConfiguration.Delegate(
+					definition.getDelegateAgentName(),
+					definition.getClasspaths(),
+					definition.getIncludes(),
+					definition.getExcludes());
+			compileConfiguration(delegate, definition.getConfigurationElement());
+			delegate.setBudget(definition.getBudget());
+			delegate.setSampling(definition.getSampling());
+			delegates.add(delegate);
+		}
+
+		return new CompiledConfiguration(agentVersion, configFileName, lateBoundVariables, delegates);
+	}
+
+	private static void checkPatterns(List<String> regexes) {
+		for (String regex : regexes) {
+			// Late bound patterns get checked at agent start
+			if (regex.contains("${"))
+				continue;
+			try {
+				Pattern.compile(regex);
+			} catch (PatternSyntaxException ex) {
+				throw new ConfigurationError("Invalid filter pattern \"" + regex + "\".", ex);
+			}
+		}
+	}
+
+	private static void checkBudget(List<String> budget) {
+		if (!isLateBound(budget))
+			OverheadBudget.parse(budget);
+	}
+
+	private static void checkSampling(List<String> sampling) {
+		if (!isLateBound(sampling))
+			TransformSampler.parse(sampling);
+	}
+
+	/**
+	 * @return true if a value references a late bound variable, checked at agent start
+	 */
+	private static boolean isLateBound(List<String> values) {
+		for (String value : values)
+			if (value != null && value.contains("${"))
+				return true;
+		return false;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void compileConfiguration(CompiledConfiguration.Delegate delegate, Element configElement) {
+		if (configElement == null) {
+			delegate.setNoConfiguration();
+			return;
+		}
+
+		if (configElement.getElementsByTagName("item").getLength() > 0) {
+			Object configuration = Agent.createCollectionConfiguration(configElement);
+			if (configuration instanceof TypedConfiguration)
+				delegate.setTypedMapConfiguration((TypedConfiguration)configuration);
+			else if (configuration instanceof List)
+				delegate.setListConfiguration((List<String>)configuration);
+			else
+				delegate.setMapConfiguration((Map<String, String>)configuration);
+			return;
+		}
+
+		Element customElement = Agent.getCustomConfigurationElement(configElement);
+		if (customElement != null)
+			delegate.setCustomConfiguration(Agent.toXml(customElement));
+		else
+			delegate.setStringConfiguration(Agent.getStringConfiguration(configElement));
+	}
+}
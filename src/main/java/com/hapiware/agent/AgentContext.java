@@ -0,0 +1,145 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.lang.instrument.Instrumentation;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * {@code AgentContext} is handed over to the agent delegates declaring the
+ * {@code static void premain(AgentContext)} (or {@code agentmain}, {@code reconfigure}) method.
+ * <p>
+ * It gives access to the compiled class filter, the configuration object, the delegate
+ * {@code Instrumentation}, the agent worker pool and the agent metrics registry. Delegates which
+ * only need to know the loaded classes should {@link #subscribe(ClassLoadListener)} rather than
+ * register a transformer.
+ * <p>
+ * {@code AgentContext} is <b>immutable</b> and thread safe. A new context is created on each
+ * configuration reload.
+ *
+ * @author jeyzer
+ *
+ */
+public final class AgentContext {
+
+	private final String delegateAgentName;
+	private final ClassFilter classFilter;
+	private final Object configuration;
+	private final String instrumentationLevel;
+	private final Instrumentation instrumentation;
+	private final ExecutorService executor;
+	private final MetricsRegistry metrics;
+	private final ClassLoadNotifier notifier;
+
+	AgentContext(
+			String delegateAgentName,
+			ClassFilter classFilter,
+			Object configuration,
+			String instrumentationLevel,
+			Instrumentation instrumentation,
+			ExecutorService executor,
+			MetricsRegistry metrics,
+			ClassLoadNotifier notifier) {
+		this.delegateAgentName = delegateAgentName;
+		this.classFilter = classFilter;
+		this.configuration = configuration;
+		this.instrumentationLevel = instrumentationLevel;
+		this.instrumentation = instrumentation;
+		this.executor = executor;
+		this.metrics = metrics;
+		this.notifier = notifier;
+	}
+
+	public String getDelegateAgentName() {
+		return delegateAgentName;
+	}
+
+	/**
+	 * @return the compiled {@code /agent/filter}
+	 */
+	public ClassFilter getClassFilter() {
+		return classFilter;
+	}
+
+	/**
+	 * @return the configuration object created from the {@code /agent/configuration} element. Can be null.
+	 */
+	public Object getConfiguration() {
+		return configuration;
+	}
+
+	/**
+	 * @param type
+	 * 		The expected configuration type, for example {@code String}, {@code List} or {@code Map}.
+	 *
+	 * @return the configuration object created from the {@code /agent/configuration} element. Can be null.
+	 *
+	 * @throws ClassCastException
+	 * 		If the configuration object is not of the expected type.
+	 */
+	public <T> T getConfiguration(Class<T> type) {
+		return type.cast(configuration);
+	}
+
+	/**
+	 * @return the active instrumentation level, null if none. See {@link InstrumentationLevels}.
+	 */
+	public String getInstrumentationLevel() {
+		return instrumentationLevel;
+	}
+
+	/**
+	 * @return the {@code Instrumentation} of the delegate
+	 */
+	public Instrumentation getInstrumentation() {
+		return instrumentation;
+	}
+
+	/**
+	 * @return the agent worker pool, shared by all the delegates
+	 */
+	public ExecutorService getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * @return the agent metrics registry, shared by all the delegates
+	 */
+	public MetricsRegistry getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Subscribes to the class loads matching the delegate class filter. The events are delivered
+	 * asynchronously, in batches, on the agent notification thread : see {@link ClassLoadListener}.
+	 * The subscription survives the configuration reloads, the filter in use being the current one.
+	 *
+	 * @param listener
+	 * 		The class load listener.
+	 */
+	public void subscribe(ClassLoadListener listener) {
+		notifier.subscribe(listener);
+	}
+
+	/**
+	 * @return true if the listener was subscribed
+	 */
+	public boolean unsubscribe(ClassLoadListener listener) {
+		return notifier.unsubscribe(listener);
+	}
+
+	@Override
+	public String toString() {
+		return "AgentContext[" + delegateAgentName + ", " + classFilter + "]";
+	}
+}
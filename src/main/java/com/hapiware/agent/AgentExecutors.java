@@ -0,0 +1,233 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@code AgentExecutors} creates the worker pool shared by the agent delegates.
+ * <p>
+ * The pool is sized from the container CPU quota (cgroup v2 {@code cpu.max} or cgroup v1
+ * {@code cpu.cfs_quota_us} / {@code cpu.cfs_period_us}), bounded by the available processors.
+ * On Java 21+, a virtual thread per task executor can be requested instead. The delegates get a
+ * view of the pool which cannot be shut down : the agent shuts the pool down at JVM exit.
+ *
+ * @author jeyzer
+ *
+ */
+final class AgentExecutors {
+
+	private static final String CGROUP_V2_CPU_MAX = "/sys/fs/cgroup/cpu.max";
+	private static final String CGROUP_V1_CPU_QUOTA = "/sys/fs/cgroup/cpu/cpu.cfs_quota_us";
+	private static final String CGROUP_V1_CPU_PERIOD = "/sys/fs/cgroup/cpu/cpu.cfs_period_us";
+
+	private static final long KEEP_ALIVE_SECONDS = 60;
+	private static final long SHUTDOWN_TIMEOUT_MILLIS = 5000;
+
+	private AgentExecutors() {
+	}
+
+	/**
+	 * Creates the worker pool and registers its shutdown at JVM exit.
+	 *
+	 * @param threads
+	 * 		The pool size. 0 or less to size it from the CPU quota.
+	 * @param virtual
+	 * 		Use virtual threads if available.
+	 *
+	 * @return the view of the pool to hand over to the delegates
+	 */
+	static ExecutorService create(int threads, boolean virtual) {
+		final ExecutorService executor = virtual ? createVirtualThreadExecutor() : null;
+		final ExecutorService pool = executor != null ? executor : createThreadPool(threads > 0 ? threads : getPoolSize());
+
+		Runtime.getRuntime().addShutdownHook(new Thread("Jeyzer agent worker pool shutdown") {
+			@Override
+			public void run() {
+				shutdown(pool);
+			}
+		});
+		return new SharedExecutorService(pool);
+	}
+
+	/**
+	 * @return the number of processors available to the JVM, bounded by the container CPU quota
+	 */
+	static int getPoolSize() {
+		int processors = Runtime.getRuntime().availableProcessors();
+		int quota = getCpuQuota();
+		return quota > 0 ? Math.max(1, Math.min(processors, quota)) : processors;
+	}
+
+	/**
+	 * @return the container CPU quota rounded up, -1 if unlimited or unknown
+	 */
+	static int getCpuQuota() {
+		String cpuMax = readFirstLine(CGROUP_V2_CPU_MAX);
+		if (cpuMax != null)
+			return parseCpuMax(cpuMax);
+
+		String quota = readFirstLine(CGROUP_V1_CPU_QUOTA);
+		String period = readFirstLine(CGROUP_V1_CPU_PERIOD);
+		if (quota != null && period != null)
+			return parseCpuQuota(quota, period);
+
+		return -1;
+	}
+
+	/**
+	 * Parses the cgroup v2 {@code cpu.max} content : "$MAX $PERIOD", $MAX being "max" if unlimited.
+	 */
+	static int parseCpuMax(String cpuMax) {
+		String[] values = cpuMax.trim().split("\\s+");
+		if (values.length != 2)
+			return -1;
+		return parseCpuQuota(values[0], values[1]);
+	}
+
+	/**
+	 * Parses the cgroup CPU quota and period, the quota being "max" or -1 if unlimited.
+	 */
+	static int parseCpuQuota(String quota, String period) {
+		try {
+			if ("max".equals(quota.trim()))
+				return -1;
+			long quotaValue = Long.parseLong(quota.trim());
+			long periodValue = Long.parseLong(period.trim());
+			if (quotaValue <= 0 || periodValue <= 0)
+				return -1;
+			return (int)((quotaValue + periodValue - 1) / periodValue);
+		} catch (NumberFormatException ex) {
+			return -1;
+		}
+	}
+
+	private static String readFirstLine(String path) {
+		File file = new File(path);
+		if (!file.isFile())
+			return null;
+		try {
+			List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.US_ASCII);
+			return lines.isEmpty() ? null : lines.get(0);
+		} catch (IOException | SecurityException ex) {
+			BootLogger.debug("Failed to read {} : {}", path, ex);
+			return null;
+		}
+	}
+
+	private static ExecutorService createThreadPool(int threads) {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(
+				threads,
+				threads,
+				KEEP_ALIVE_SECONDS,
+				TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "Jeyzer agent worker " + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		// Idle pool costs no thread
+		pool.allowCoreThreadTimeOut(true);
+		BootLogger.debug("Agent worker pool created with {} threads.", threads);
+		return pool;
+	}
+
+	private static ExecutorService createVirtualThreadExecutor() {
+		try {
+			// Java 21+
+			ExecutorService executor = (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			BootLogger.debug("Agent virtual thread executor created.");
+			return executor;
+		} catch (NoSuchMethodException | IllegalAccessException ex) {
+			BootLogger.debug("Virtual threads are not available. Using the agent worker pool instead.");
+		} catch (InvocationTargetException ex) {
+			BootLogger.debug("Virtual threads are not enabled ({}). Using the agent worker pool instead.", ex.getCause());
+		}
+		return null;
+	}
+
+	private static void shutdown(ExecutorService executor) {
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))
+				executor.shutdownNow();
+		} catch (InterruptedException ex) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * The executor view handed over to the delegates : shutdown requests are ignored, the pool
+	 * being shared by all the delegates.
+	 */
+	static final class SharedExecutorService extends AbstractExecutorService {
+
+		private final ExecutorService executor;
+
+		SharedExecutorService(ExecutorService executor) {
+			this.executor = executor;
+		}
+
+		@Override
+		public void execute(Runnable command) {
+			executor.execute(command);
+		}
+
+		@Override
+		public void shutdown() {
+			BootLogger.debug("Shutdown of the agent worker pool requested by a delegate : ignored.");
+		}
+
+		@Override
+		public List<Runnable> shutdownNow() {
+			shutdown();
+			return Collections.emptyList();
+		}
+
+		@Override
+		public boolean isShutdown() {
+			return executor.isShutdown();
+		}
+
+		@Override
+		public boolean isTerminated() {
+			return executor.isTerminated();
+		}
+
+		@Override
+		public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+			return executor.awaitTermination(timeout, unit);
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * {@code AgentFootprint} gives access to the memory and class loading footprint of one agent delegate :
+ * the statistics of its class loader and the estimated retained size of its configuration objects.
+ * <p>
+ * The class loader statistics are live : each call to {@link #getClassLoaderStatistics()} returns
+ * a new snapshot.
+ *
+ * @author jeyzer
+ *
+ */
+public class AgentFootprint {
+
+	// Bounds the configuration graph walk
+	private static final int MAX_VISITED_OBJECTS = 1000000;
+
+	private final String delegateAgentName;
+	private final AgentClassLoader classLoader;
+	private final long configurationSize;
+
+	AgentFootprint(String delegateAgentName, AgentClassLoader classLoader, long configurationSize) {
+		this.delegateAgentName = delegateAgentName;
+		this.classLoader = classLoader;
+		this.configurationSize = configurationSize;
+	}
+
+	public String getDelegateAgentName() {
+		return delegateAgentName;
+	}
+
+	AgentClassLoader getClassLoader() {
+		return classLoader;
+	}
+
+	public ClassLoaderStatistics getClassLoaderStatistics() {
+		return classLoader.getStatistics();
+	}
+
+	/**
+	 * @return the estimated retained size in bytes of the agent configuration objects,
+	 * 		including the configuration DOM, or -1 if it could not be estimated
+	 */
+	public long getConfigurationSize() {
+		return configurationSize;
+	}
+
+	@Override
+	public String toString() {
+		return delegateAgentName + " : " + getClassLoaderStatistics()
+				+ ", configuration retained size : " + configurationSize + " bytes";
+	}
+
+	/**
+	 * Estimates the retained size of the given object graphs with {@link Instrumentation#getObjectSize(Object)}.
+	 * <p>
+	 * Collections, maps, arrays, DOM nodes and the agent or delegate objects are walked. JDK internals
+	 * are not : a {@code String} is counted as its shallow size plus one byte per character, the
+	 * backing array being not reachable.
+	 */
+	static long estimateRetainedSize(Instrumentation instrumentation, Object... roots) {
+		Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		Deque<Object> pending = new ArrayDeque<>();
+		for (Object root : roots)
+			if (root != null)
+				pending.push(root);
+
+		long size = 0;
+		while (!pending.isEmpty() && visited.size() < MAX_VISITED_OBJECTS) {
+			Object obj = pending.pop();
+			if (!visited.add(obj))
+				continue;
+			size += instrumentation.getObjectSize(obj);
+
+			if (obj instanceof String)
+				size += ((String)obj).length();
+			else if (obj instanceof Node)
+				pushNodeReferences((Node)obj, pending);
+			else if (obj instanceof Collection<?>)
+				pushAll(((Collection<?>)obj).toArray(), pending);
+			else if (obj instanceof Map<?, ?>) {
+				pushAll(((Map<?, ?>)obj).keySet().toArray(), pending);
+				pushAll(((Map<?, ?>)obj).values().toArray(), pending);
+			}
+			else if (obj instanceof Object[])
+				pushAll((Object[])obj, pending);
+			else if (isWalkable(obj.getClass()))
+				pushFieldValues(obj, pending);
+		}
+		return size;
+	}
+
+	private static void pushNodeReferences(Node node, Deque<Object> pending) {
+		push(node.getOwnerDocument(), pending);
+		push(node.getFirstChild(), pending);
+		push(node.getNextSibling(), pending);
+		if (node.getNodeType() != Node.ELEMENT_NODE)
+			push(node.getNodeValue(), pending);
+		NamedNodeMap attributes = node.getAttributes();
+		if (attributes != null)
+			for (int i = 0; i < attributes.getLength(); i++)
+				push(attributes.item(i), pending);
+	}
+
+	private static boolean isWalkable(Class<?> clazz) {
+		if (clazz.isArray() || Class.class == clazz || ClassLoader.class.isAssignableFrom(clazz)
+				|| Thread.class.isAssignableFrom(clazz))
+			return false;
+		String name = clazz.getName();
+		return !name.startsWith("java.") && !name.startsWith("javax.") && !name.startsWith("sun.")
+				&& !name.startsWith("com.sun.") && !name.startsWith("jdk.");
+	}
+
+	private static void pushFieldValues(Object obj, Deque<Object> pending) {
+		for (Class<?> clazz = obj.getClass(); clazz != null && isWalkable(clazz); clazz = clazz.getSuperclass()) {
+			for (Field field : clazz.getDeclaredFields()) {
+				if (Modifier.isStatic(field.getModifiers()) || field.getType().isPrimitive())
+					continue;
+				try {
+					field.setAccessible(true);
+					push(field.get(obj), pending);
+				} catch (RuntimeException | IllegalAccessException ex) {
+					// not accessible, count it as shallow
+				}
+			}
+		}
+	}
+
+	private static void pushAll(Object[] values, Deque<Object> pending) {
+		for (Object value : values)
+			push(value, pending);
+	}
+
+	private static void push(Object value, Deque<Object> pending) {
+		if (value != null)
+			pending.push(value);
+	}
+}
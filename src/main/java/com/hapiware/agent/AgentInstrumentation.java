@@ -0,0 +1,158 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * {@code AgentInstrumentation} is the {@code Instrumentation} handed over to one agent delegate.
+ * <p>
+ * All the calls are forwarded to the JVM {@code Instrumentation}, except the transformer registrations :
+ * the delegate transformers are collected into {@link TransformerChain}s which are called by the
+ * {@link TransformerDispatcher}. This gives the agent a dispatch point in front of the delegate transformers.
+ *
+ * @author jeyzer
+ *
+ */
+class AgentInstrumentation implements InvocationHandler {
+
+	private final TransformerDispatcher dispatcher;
+	private final Instrumentation instrumentation;
+	private final String delegateAgentName;
+
+	private final TransformerChain chain = new TransformerChain();
+	private final TransformerChain retransformableChain = new TransformerChain();
+	private final OverheadBudgetGuard budgetGuard;
+	private final ClassLoadNotifier notifier;
+	private volatile ClassFilter classFilter;
+	private volatile TransformSampler sampler;
+
+	private final Instrumentation proxy;
+
+	AgentInstrumentation(TransformerDispatcher dispatcher, String delegateAgentName) {
+		this.dispatcher = dispatcher;
+		this.instrumentation = dispatcher.getInstrumentation();
+		this.delegateAgentName = delegateAgentName;
+		this.budgetGuard = new OverheadBudgetGuard(delegateAgentName);
+		this.notifier = new ClassLoadNotifier(dispatcher, delegateAgentName);
+		this.proxy = (Instrumentation)Proxy.newProxyInstance(
+				AgentInstrumentation.class.getClassLoader(),
+				new Class<?>[] {Instrumentation.class},
+				this
+				);
+	}
+
+	/**
+	 * @return the {@code Instrumentation} to hand over to the agent delegate
+	 */
+	Instrumentation getProxy() {
+		return proxy;
+	}
+
+	/**
+	 * @return the index of the agent instance of the delegate in the JVM
+	 */
+	int getAgentIndex() {
+		return dispatcher.getAgentIndex();
+	}
+
+	String getDelegateAgentName() {
+		return delegateAgentName;
+	}
+
+	TransformerChain getChain() {
+		return chain;
+	}
+
+	TransformerChain getRetransformableChain() {
+		return retransformableChain;
+	}
+
+	OverheadBudgetGuard getBudgetGuard() {
+		return budgetGuard;
+	}
+
+	ClassLoadNotifier getNotifier() {
+		return notifier;
+	}
+
+	/**
+	 * @return the class filter of the delegate, null if not yet configured
+	 */
+	ClassFilter getClassFilter() {
+		return classFilter;
+	}
+
+	void setClassFilter(ClassFilter classFilter) {
+		this.classFilter = classFilter;
+	}
+
+	/**
+	 * @return the sampler of the classes handed over to the delegate transformers. Null if all
+	 * 		the classes are.
+	 */
+	TransformSampler getSampler() {
+		return sampler;
+	}
+
+	void setSampler(TransformSampler sampler) {
+		this.sampler = sampler;
+	}
+
+	@Override
+	public Object invoke(Object target, Method method, Object[] args) throws Throwable {
+		String name = method.getName();
+		if ("addTransformer".equals(name)) {
+			boolean canRetransform = args.length > 1 && (Boolean)args[1];
+			addTransformer((ClassFileTransformer)args[0], canRetransform);
+			return null;
+		}
+		if ("removeTransformer".equals(name)) {
+			ClassFileTransformer transformer = (ClassFileTransformer)args[0];
+			return chain.remove(transformer) || retransformableChain.remove(transformer);
+		}
+		if (method.getDeclaringClass() == Object.class) {
+			if ("equals".equals(name))
+				return target == args[0];
+			if ("hashCode".equals(name))
+				return System.identityHashCode(target);
+			return "AgentInstrumentation[" + delegateAgentName + ", " + instrumentation + "]";
+		}
+
+		try {
+			return method.invoke(instrumentation, args);
+		} catch (InvocationTargetException ex) {
+			throw ex.getCause();
+		}
+	}
+
+	private void addTransformer(ClassFileTransformer transformer, boolean canRetransform) {
+		if (transformer == null)
+			throw new NullPointerException("null passed as 'transformer' in addTransformer");
+		if (canRetransform && !instrumentation.isRetransformClassesSupported())
+			throw new UnsupportedOperationException(
+					"adding retransformable transformers is not supported in this environment");
+
+		boolean retransformable = canRetransform || dispatcher.isRetransformAll();
+		if (retransformable)
+			retransformableChain.add(transformer);
+		else
+			chain.add(transformer);
+		dispatcher.transformerAdded(retransformable);
+	}
+}
@@ -0,0 +1,113 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.util.Map;
+
+/**
+ * Management interface of the agent, registered under {@value AgentMonitor#OBJECT_NAME} when the
+ * {@code jeyzer.agent.jmx} option is set to {@code true}. All the values are live and JVM wide :
+ * they cover all the agent instances.
+ *
+ * @author jeyzer
+ *
+ */
+public interface AgentMXBean {
+
+	String getAgentVersion();
+
+	boolean isReady();
+
+	/**
+	 * @return the boot phase durations in nanoseconds, by agent instance and phase name (for example "agent0.boot")
+	 */
+	Map<String, Long> getBootPhaseNanos();
+
+	/**
+	 * @return the resolved configuration summary of each delegate : name, class path size and class filter
+	 */
+	String[] getDelegates();
+
+	/**
+	 * @return the packages no longer instrumented because their delegate exceeded its transform
+	 * 		overhead budget, as "delegate : package"
+	 */
+	String[] getDegradedPackages();
+
+	/**
+	 * Instruments the degraded packages again, for the classes loaded from now on.
+	 */
+	void restoreDegradedPackages();
+
+	/**
+	 * @return the active instrumentation level, null if none
+	 */
+	String getInstrumentationLevel();
+
+	/**
+	 * Switches the instrumentation level : the delegates are reconfigured and the affected classes
+	 * retransformed before returning. See {@link InstrumentationLevels}.
+	 *
+	 * @param level
+	 * 		The new level, one of {@link #getInstrumentationLevels()}. Empty for none.
+	 */
+	void setInstrumentationLevel(String level);
+
+	/**
+	 * @return the instrumentation levels declared in the agent configuration
+	 */
+	String[] getInstrumentationLevels();
+
+	/**
+	 * @return the number of loaded classes examined by the delegate class filters, counted once per class
+	 */
+	long getFilterSeenCount();
+
+	long getFilterIncludedCount();
+
+	long getFilterExcludedCount();
+
+	long getTransformerCallCount();
+
+	/**
+	 * @return the time spent in the delegate transformers, in nanoseconds
+	 */
+	long getTransformerNanos();
+
+	/**
+	 * @return the number of classes defined by each delegate class loader, by delegate index and
+	 * 		name (for example "delegate0.com.mycompany.AgentDelegate"), in the delegate boot order
+	 */
+	Map<String, Long> getClassesDefined();
+
+	Map<String, Long> getClassDataBytes();
+
+	Map<String, Long> getFindClassNanos();
+
+	Map<String, Long> getClassLoaderMissCount();
+
+	/**
+	 * @return the agent and delegate counters of the {@link MetricsRegistry}
+	 */
+	Map<String, Long> getCounters();
+
+	boolean isBootDebug();
+
+	void setBootDebug(boolean enabled);
+
+	/**
+	 * Sets all the {@link MetricsRegistry} counters to zero, including the filter and transformer ones,
+	 * and clears the transform latency histograms.
+	 */
+	void resetCounters();
+}
@@ -0,0 +1,213 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.hapiware.agent.Agent.ConfigElements;
+import com.hapiware.agent.Agent.DelegateAgent;
+
+/**
+ * {@code AgentMonitor} is the {@link AgentMXBean} implementation. It reads the agent state on
+ * each attribute access : nothing is computed while the agent runs, except the filter and
+ * transformer counters.
+ *
+ * @author jeyzer
+ *
+ */
+final class AgentMonitor implements AgentMXBean {
+
+	static final String OBJECT_NAME = "org.jeyzer.agent:type=Agent";
+
+	private AgentMonitor() {
+	}
+
+	/**
+	 * Registers the agent MBean on the platform MBean server, once per JVM.
+	 */
+	static synchronized void register() {
+		TransformAccounting.enable();
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new AgentMonitor(), new ObjectName(OBJECT_NAME));
+			BootLogger.debug("Agent MBean registered under {}", OBJECT_NAME);
+		} catch (InstanceAlreadyExistsException ex) {
+			// Registered by another agent instance
+		} catch (JMException | RuntimeException ex) {
+			BootLogger.warning("Agent MBean " + OBJECT_NAME + " cannot be registered : " + ex);
+		}
+	}
+
+	@Override
+	public String getAgentVersion() {
+		return Agent.readAgentVersion();
+	}
+
+	@Override
+	public boolean isReady() {
+		return Agent.isReady();
+	}
+
+	@Override
+	public Map<String, Long> getBootPhaseNanos() {
+		return Agent.getBootPhases();
+	}
+
+	@Override
+	public String[] getDelegates() {
+		List<DelegateAgent> delegates = Agent.getBootedDelegates();
+		String[] summaries = new String[delegates.size()];
+		for (int i = 0; i < summaries.length; i++) {
+			ConfigElements configElements = delegates.get(i).getConfigElements();
+			summaries[i] = delegates.get(i).getDelegateAgentName() + " : "
+					+ configElements.getClasspaths().length + " class path entries, "
+					+ configElements.getClassFilter();
+		}
+		return summaries;
+	}
+
+	@Override
+	public String[] getDegradedPackages() {
+		List<String> degraded = new ArrayList<>();
+		for (DelegateAgent delegate : Agent.getBootedDelegates())
+			for (String packageName : delegate.getBudgetGuard().getDegradedPackages())
+				degraded.add(delegate.getDelegateAgentName() + " : " + packageName);
+		return degraded.toArray(new String[degraded.size()]);
+	}
+
+	@Override
+	public void restoreDegradedPackages() {
+		for (DelegateAgent delegate : Agent.getBootedDelegates())
+			delegate.getBudgetGuard().restore();
+	}
+
+	@Override
+	public String getInstrumentationLevel() {
+		return InstrumentationLevels.getActiveLevel();
+	}
+
+	@Override
+	public void setInstrumentationLevel(String level) {
+		InstrumentationLevels.switchTo(level);
+	}
+
+	@Override
+	public String[] getInstrumentationLevels() {
+		Set<String> levels = InstrumentationLevels.getLevels();
+		return levels.toArray(new String[levels.size()]);
+	}
+
+	@Override
+	public long getFilterSeenCount() {
+		return counter(MetricsRegistry.FILTER_SEEN);
+	}
+
+	@Override
+	public long getFilterIncludedCount() {
+		return counter(MetricsRegistry.FILTER_INCLUDED);
+	}
+
+	@Override
+	public long getFilterExcludedCount() {
+		return counter(MetricsRegistry.FILTER_EXCLUDED);
+	}
+
+	@Override
+	public long getTransformerCallCount() {
+		return counter(MetricsRegistry.TRANSFORMER_CALLS);
+	}
+
+	@Override
+	public long getTransformerNanos() {
+		return counter(MetricsRegistry.TRANSFORMER_NANOS);
+	}
+
+	@Override
+	public Map<String, Long> getClassesDefined() {
+		Map<String, Long> values = new LinkedHashMap<>();
+		List<AgentFootprint> footprints = Agent.getFootprints();
+		for (int i = 0; i < footprints.size(); i++)
+			values.put(getDelegateKey(i, footprints.get(i)), footprints.get(i).getClassLoaderStatistics().getClassesDefined());
+		return values;
+	}
+
+	@Override
+	public Map<String, Long> getClassDataBytes() {
+		Map<String, Long> values = new LinkedHashMap<>();
+		List<AgentFootprint> footprints = Agent.getFootprints();
+		for (int i = 0; i < footprints.size(); i++)
+			values.put(getDelegateKey(i, footprints.get(i)), footprints.get(i).getClassLoaderStatistics().getClassDataBytes());
+		return values;
+	}
+
+	@Override
+	public Map<String, Long> getFindClassNanos() {
+		Map<String, Long> values = new LinkedHashMap<>();
+		List<AgentFootprint> footprints = Agent.getFootprints();
+		for (int i = 0; i < footprints.size(); i++)
+			values.put(getDelegateKey(i, footprints.get(i)), footprints.get(i).getClassLoaderStatistics().getFindClassNanos());
+		return values;
+	}
+
+	@Override
+	public Map<String, Long> getClassLoaderMissCount() {
+		Map<String, Long> values = new LinkedHashMap<>();
+		List<AgentFootprint> footprints = Agent.getFootprints();
+		for (int i = 0; i < footprints.size(); i++)
+			values.put(getDelegateKey(i, footprints.get(i)), footprints.get(i).getClassLoaderStatistics().getMissCount());
+		return values;
+	}
+
+	@Override
+	public Map<String, Long> getCounters() {
+		return Agent.getMetrics().getCounters();
+	}
+
+	@Override
+	public boolean isBootDebug() {
+		return BootLogger.isDebugEnabled();
+	}
+
+	@Override
+	public void setBootDebug(boolean enabled) {
+		BootLogger.setDebugEnabled(enabled);
+	}
+
+	@Override
+	public void resetCounters() {
+		Agent.getMetrics().reset();
+		TransformLatencies latencies = TransformLatencies.get();
+		if (latencies != null)
+			latencies.reset();
+	}
+
+	/**
+	 * @return the key of the given delegate in the per delegate maps, for example
+	 * 		"delegate0.com.mycompany.AgentDelegate". The same delegate can be declared several times.
+	 */
+	static String getDelegateKey(int index, AgentFootprint footprint) {
+		return "delegate" + index + "." + footprint.getDelegateAgentName();
+	}
+
+	private static long counter(String name) {
+		return Agent.getMetrics().counter(name).get();
+	}
+}
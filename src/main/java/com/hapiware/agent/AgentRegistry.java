@@ -0,0 +1,319 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.io.IOException;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.lang.instrument.Instrumentation;
+import java.net.URL;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.validation.Schema;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathFactory;
+
+import org.xml.sax.SAXException;
+
+/**
+ * {@code AgentRegistry} holds the state shared by all the agent instances of the JVM, typically
+ * started by several {@code -javaagent} entries referencing this agent jar :
+ * <ul>
+ * 		<li>the compiled configuration schema</li>
+ * 		<li>the XPath factories, one per thread</li>
+ * 		<li>the parsed configuration fragments</li>
+ * 		<li>the environment variable snapshot used for the variable resolution</li>
+ * 		<li>
+ * 			the delegate class loaders : a class loader is reused for the same class path and parent,
+ * 			unless it already loaded the same delegate for another agent instance
+ * 		</li>
+ * 		<li>the class data of the jars shared by several delegates (see {@link SharedClassData})</li>
+ * 		<li>
+ * 			the JVM transformers : the {@link TransformerDispatcher} of each agent instance is called
+ * 			in the agent instance order by a single pair of transformers registered on the JVM
+ * 		</li>
+ * </ul>
+ *
+ * @author jeyzer
+ *
+ */
+final class AgentRegistry {
+
+	private static final AgentRegistry INSTANCE = new AgentRegistry();
+
+	private final AtomicInteger agentCount = new AtomicInteger();
+
+	private final Object schemaLock = new Object();
+	private volatile Schema schema;
+	private volatile boolean schemaLoaded;
+
+	private final ThreadLocal<XPathFactory> xpathFactories = new ThreadLocal<XPathFactory>() {
+		@Override
+		protected XPathFactory initialValue() {
+			return XPathFactory.newInstance();
+		}
+	};
+
+	private final Map<String, ConfigurationFragment> fragments = new ConcurrentHashMap<>();
+
+	private final Map<String, String> environment = Collections.unmodifiableMap(new HashMap<>(System.getenv()));
+
+	private final Map<ClassLoaderKey, SharedClassLoader> classLoaders = new HashMap<>();
+	private final SharedClassData sharedClassData = new SharedClassData();
+
+	private final List<TransformerDispatcher> dispatchers = new CopyOnWriteArrayList<>();
+	private final List<TransformerDispatcher> retransformableDispatchers = new CopyOnWriteArrayList<>();
+	private boolean registered;
+	private volatile boolean retransformableRegistered;
+
+	// Accounting of the class being loaded, handed over from the retransformation incapable transformer
+	// to the capable one, called next by the JVM on the same thread
+	private final ThreadLocal<TransformAccounting> pendingAccounting = new ThreadLocal<>();
+
+	private final ClassFileTransformer transformer = new DispatchingTransformer() {
+		@Override
+		byte[] transformClass(Object module, ClassLoader loader, String className, Class<?> classBeingRedefined,
+				ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException {
+			if (classBeingRedefined != null)
+				return null;
+			// Class load aborted between the two transformers
+			completePendingAccounting();
+			TransformAccounting accounting = TransformAccounting.start(className);
+			try {
+				return dispatch(dispatchers, module, loader, className, classBeingRedefined, protectionDomain, classfileBuffer,
+						false, accounting);
+			} finally {
+				if (accounting != null) {
+					if (retransformableRegistered)
+						pendingAccounting.set(accounting);
+					else
+						accounting.complete();
+				}
+			}
+		}
+	};
+
+	private final ClassFileTransformer retransformableTransformer = new DispatchingTransformer() {
+		@Override
+		byte[] transformClass(Object module, ClassLoader loader, String className, Class<?> classBeingRedefined,
+				ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException {
+			TransformAccounting accounting = pendingAccounting.get();
+			if (accounting != null) {
+				pendingAccounting.remove();
+				if (classBeingRedefined != null || !accounting.isFor(className)) {
+					accounting.complete();
+					accounting = null;
+				}
+			}
+			if (accounting == null)
+				accounting = TransformAccounting.start(className);
+			try {
+				return dispatch(retransformableDispatchers, module, loader, className, classBeingRedefined, protectionDomain,
+						classfileBuffer, true, accounting);
+			} finally {
+				if (accounting != null)
+					accounting.complete();
+			}
+		}
+	};
+
+	AgentRegistry() {
+	}
+
+	static AgentRegistry get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @return the index of the new agent instance, starting at 0
+	 */
+	int nextAgentIndex() {
+		return agentCount.getAndIncrement();
+	}
+
+	int getAgentCount() {
+		return agentCount.get();
+	}
+
+	/**
+	 * @return the compiled configuration schema, null if the validation is disabled
+	 */
+	Schema getSchema() throws SAXException, IOException {
+		if (schemaLoaded)
+			return schema;
+		synchronized (schemaLock) {
+			if (!schemaLoaded) {
+				schema = Agent.createSchema();
+				schemaLoaded = true;
+			}
+			return schema;
+		}
+	}
+
+	/**
+	 * @return a new XPath, created from the XPath factory of the current thread
+	 */
+	XPath newXPath() {
+		return xpathFactories.get().newXPath();
+	}
+
+	/**
+	 * @return the parsed configuration fragments, by content hash
+	 */
+	Map<String, ConfigurationFragment> getFragments() {
+		return fragments;
+	}
+
+	/**
+	 * @return the environment variables, as read by the first agent instance
+	 */
+	Map<String, String> getEnvironment() {
+		return environment;
+	}
+
+	/**
+	 * Returns the class loader for the given class path and parent : an existing one if it did not
+	 * already load the given delegate, a new one otherwise.
+	 *
+	 * @param delegateAgentName
+	 * 		The delegate loaded by the class loader. Null for a parent class loader.
+	 */
+	synchronized AgentClassLoader getClassLoader(URL[] urls, ClassLoader parent, String delegateAgentName) {
+		return getClassLoader(urls, parent, delegateAgentName, Collections.<String, AgentClassLoader.SharedEntry>emptyMap());
+	}
+
+	/**
+	 * Returns the class loader for the given class path and parent, see
+	 * {@link #getClassLoader(URL[], ClassLoader, String)}.
+	 *
+	 * @param sharedEntries
+	 * 		The class path entries shared with other delegates, by entry URL : their class data is read
+	 * 		once for all the class loaders.
+	 */
+	synchronized AgentClassLoader getClassLoader(URL[] urls, ClassLoader parent, String delegateAgentName,
+			Map<String, AgentClassLoader.SharedEntry> sharedEntries) {
+		ClassLoaderKey key = new ClassLoaderKey(urls, parent);
+		SharedClassLoader shared = classLoaders.get(key);
+		if (shared != null && (delegateAgentName == null || shared.delegateAgentNames.add(delegateAgentName))) {
+			BootLogger.debug("Agent class loader reused for the class path {}", Arrays.asList(urls));
+			return shared.classLoader;
+		}
+
+		// Same delegate loaded twice : keep the delegate static states apart
+		AgentClassLoader classLoader = new AgentClassLoader(urls, parent, sharedEntries, sharedClassData);
+		if (shared == null) {
+			shared = new SharedClassLoader(classLoader);
+			if (delegateAgentName != null)
+				shared.delegateAgentNames.add(delegateAgentName);
+			classLoaders.put(key, shared);
+		}
+		return classLoader;
+	}
+
+	SharedClassData getSharedClassData() {
+		return sharedClassData;
+	}
+
+	/**
+	 * Registers the dispatcher transformers of the given kind. The JVM transformer of that kind is
+	 * registered on the first call.
+	 */
+	synchronized void addDispatcher(TransformerDispatcher dispatcher, boolean retransformable) {
+		List<TransformerDispatcher> list = retransformable ? retransformableDispatchers : dispatchers;
+		int index = 0;
+		while (index < list.size() && list.get(index).getAgentIndex() < dispatcher.getAgentIndex())
+			index++;
+		list.add(index, dispatcher);
+
+		Instrumentation instrumentation = dispatcher.getInstrumentation();
+		if (retransformable && !retransformableRegistered) {
+			instrumentation.addTransformer(retransformableTransformer, true);
+			retransformableRegistered = true;
+		} else if (!retransformable && !registered) {
+			instrumentation.addTransformer(transformer);
+			registered = true;
+		}
+	}
+
+	private void completePendingAccounting() {
+		TransformAccounting accounting = pendingAccounting.get();
+		if (accounting != null) {
+			pendingAccounting.remove();
+			accounting.complete();
+		}
+	}
+
+	private static byte[] dispatch(List<TransformerDispatcher> dispatchers, Object module, ClassLoader loader, String className,
+			Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer,
+			boolean retransformable, TransformAccounting accounting) throws IllegalClassFormatException {
+		byte[] current = classfileBuffer;
+		boolean transformed = false;
+		for (TransformerDispatcher dispatcher : dispatchers) {
+			byte[] result = dispatcher.dispatch(module, loader, className, classBeingRedefined, protectionDomain, current,
+					retransformable, accounting);
+			if (result != null) {
+				current = result;
+				transformed = true;
+			}
+		}
+		return transformed ? current : null;
+	}
+
+	private static final class SharedClassLoader {
+
+		private final AgentClassLoader classLoader;
+		private final Set<String> delegateAgentNames = new HashSet<>();
+
+		SharedClassLoader(AgentClassLoader classLoader) {
+			this.classLoader = classLoader;
+		}
+	}
+
+	private static final class ClassLoaderKey {
+
+		private final List<String> urls;
+		private final ClassLoader parent;
+
+		ClassLoaderKey(URL[] urls, ClassLoader parent) {
+			List<String> list = new ArrayList<>(urls.length);
+			for (URL url : urls)
+				list.add(url.toExternalForm());
+			this.urls = list;
+			this.parent = parent;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof ClassLoaderKey))
+				return false;
+			ClassLoaderKey other = (ClassLoaderKey)obj;
+			return parent == other.parent && urls.equals(other.urls);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(parent) + urls.hashCode();
+		}
+	}
+}
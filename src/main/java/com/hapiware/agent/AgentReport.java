@@ -0,0 +1,209 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@code AgentReport} summarizes the agent overhead for the process lifetime in a single line,
+ * emitted at JVM exit : boot phase durations, time spent in the delegate transformers, classes
+ * examined by the filters and transformed, top packages by transform time (if the transform
+ * latencies are recorded, see {@link TransformLatencies}), class load notifications and delegate
+ * class loader footprint. The examined, included, excluded and transformed classes are counted once
+ * per class by the transformer dispatch (see {@link TransformAccounting}).
+ * <p>
+ * The transform time ({@code transform.wall}) is the wall clock time spent in the delegate
+ * transformers, not their CPU time : the thread CPU time is not read on the class load path. There is
+ * no filter cache efficiency figure : the class filters have no cache, the included and excluded
+ * counts give their selectivity instead.
+ * <p>
+ * The report is written in the boot log if the {@code jeyzer.agent.report} option is set to
+ * {@code true}, and appended to the {@code jeyzer.agent.report.file} file if set : one line per
+ * run, prefixed with the date and the agent version, to track the agent overhead across releases.
+ * <p>
+ * Example :
+ * <pre>
+ * uptime=12.3s boot={agent0.configuration=338.6ms, agent0.boot=83.2ms} transform.wall=412.9ms calls=2210 examined=5120
+ * included=2210 excluded=4 transformed=1930 top={com.mycompany=311.4ms, org.acme=80.2ms}
+ * notifications={delivered=0, dropped=0}
+ * classloaders={classes=112, bytes=402113, find=25.3ms, misses=61, configuration=18232}
+ * </pre>
+ *
+ * @author jeyzer
+ *
+ */
+final class AgentReport {
+
+	private static final int TOP_PACKAGES = 5;
+	private static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss";
+
+	private static boolean registered;
+
+	private AgentReport() {
+	}
+
+	/**
+	 * Registers the report shutdown hook if the {@code jeyzer.agent.report} or
+	 * {@code jeyzer.agent.report.file} option is set. The first agent instance of the JVM
+	 * registers it, the next ones share it.
+	 */
+	static synchronized void enable(Map<String, String> agentParams) {
+		final boolean log = Agent.isOptionEnabled(agentParams, Agent.OPTION_REPORT);
+		String path = Agent.getOption(agentParams, Agent.OPTION_REPORT_FILE);
+		final File file = path != null && !path.trim().isEmpty() ? new File(path.trim()) : null;
+		if (registered || (!log && file == null))
+			return;
+
+		Runtime.getRuntime().addShutdownHook(new Thread("Jeyzer agent report") {
+			@Override
+			public void run() {
+				String report = render();
+				if (log) {
+					BootLogger.info("Agent report : " + report);
+					BootLogger.flush();
+				}
+				if (file != null)
+					append(file, report);
+			}
+		});
+		registered = true;
+		TransformAccounting.enable();
+	}
+
+	static void append(File file, String report) {
+		String version = Agent.readAgentVersion();
+		String line = new SimpleDateFormat(DATE_FORMAT, Locale.ENGLISH).format(new Date())
+				+ " " + (version != null ? version : "unknown") + " " + report + System.lineSeparator();
+		try {
+			File parent = file.getAbsoluteFile().getParentFile();
+			if (parent != null && !parent.isDirectory() && !parent.mkdirs())
+				throw new IOException("Directory " + parent + " cannot be created");
+			Files.write(file.toPath(), line.getBytes(StandardCharsets.UTF_8),
+					StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		} catch (IOException ex) {
+			BootLogger.warning("Agent report cannot be written in " + file + " : " + ex);
+		}
+	}
+
+	/**
+	 * @return the single line report of the agent overhead so far
+	 */
+	static String render() {
+		MetricsRegistry metrics = Agent.getMetrics();
+		StringBuilder report = new StringBuilder(512);
+		report.append("uptime=").append(seconds(ManagementFactory.getRuntimeMXBean().getUptime()));
+
+		report.append(" boot={");
+		String separator = "";
+		for (Map.Entry<String, Long> phase : Agent.getBootPhases().entrySet()) {
+			report.append(separator).append(phase.getKey()).append('=').append(millis(phase.getValue()));
+			separator = ", ";
+		}
+		report.append('}');
+
+		report.append(" transform.wall=").append(millis(metrics.counter(MetricsRegistry.TRANSFORMER_NANOS).get()));
+		report.append(" calls=").append(metrics.counter(MetricsRegistry.TRANSFORMER_CALLS).get());
+		report.append(" examined=").append(metrics.counter(MetricsRegistry.FILTER_SEEN).get());
+		report.append(" included=").append(metrics.counter(MetricsRegistry.FILTER_INCLUDED).get());
+		report.append(" excluded=").append(metrics.counter(MetricsRegistry.FILTER_EXCLUDED).get());
+		report.append(" transformed=").append(metrics.counter(MetricsRegistry.TRANSFORMER_TRANSFORMED).get());
+
+		List<Map.Entry<String, Long>> packages = getTopPackages();
+		if (packages != null) {
+			report.append(" top={");
+			separator = "";
+			for (Map.Entry<String, Long> entry : packages) {
+				report.append(separator).append(entry.getKey()).append('=').append(millis(entry.getValue()));
+				separator = ", ";
+			}
+			report.append('}');
+		}
+
+		report.append(" notifications={delivered=").append(metrics.counter(MetricsRegistry.NOTIFICATIONS_DELIVERED).get())
+				.append(", dropped=").append(metrics.counter(MetricsRegistry.NOTIFICATIONS_DROPPED).get()).append('}');
+
+		// Class loaders can be shared by several delegates
+		Set<AgentClassLoader> classLoaders = Collections.newSetFromMap(new IdentityHashMap<AgentClassLoader, Boolean>());
+		long classes = 0, bytes = 0, findNanos = 0, misses = 0, configurationSize = 0;
+		for (AgentFootprint footprint : Agent.getFootprints()) {
+			if (footprint.getConfigurationSize() > 0)
+				configurationSize += footprint.getConfigurationSize();
+			AgentClassLoader classLoader = footprint.getClassLoader();
+			if (!classLoaders.add(classLoader))
+				continue;
+			classes += classLoader.getClassesDefined();
+			bytes += classLoader.getClassDataBytes();
+			findNanos += classLoader.getFindClassNanos();
+			misses += classLoader.getMissCount();
+		}
+		report.append(" classloaders={classes=").append(classes)
+				.append(", bytes=").append(bytes)
+				.append(", find=").append(millis(findNanos))
+				.append(", misses=").append(misses)
+				.append(", configuration=").append(configurationSize).append('}');
+		return report.toString();
+	}
+
+	/**
+	 * @return the packages with the highest transform time, null if the latencies are not recorded
+	 */
+	private static List<Map.Entry<String, Long>> getTopPackages() {
+		TransformLatencies latencies = TransformLatencies.get();
+		if (latencies == null)
+			return null;
+
+		final List<Map.Entry<String, Long>> packages = new ArrayList<>();
+		try {
+			latencies.visit(new TransformLatencies.HistogramVisitor() {
+				@Override
+				public void visit(String packageName, LatencyHistogram histogram) {
+					if (histogram.getCount() > 0)
+						packages.add(new AbstractMap.SimpleImmutableEntry<>(packageName, histogram.getTotalNanos()));
+				}
+			});
+		} catch (IOException ex) {
+			// Not thrown by this visitor
+		}
+		Collections.sort(packages, new Comparator<Map.Entry<String, Long>>() {
+			@Override
+			public int compare(Map.Entry<String, Long> first, Map.Entry<String, Long> second) {
+				return Long.compare(second.getValue(), first.getValue());
+			}
+		});
+		return packages.size() > TOP_PACKAGES ? packages.subList(0, TOP_PACKAGES) : packages;
+	}
+
+	private static String millis(long nanos) {
+		return String.format(Locale.ENGLISH, "%.1fms", nanos / 1000000.0);
+	}
+
+	private static String seconds(long millis) {
+		return String.format(Locale.ENGLISH, "%.1fs", millis / 1000.0);
+	}
+}
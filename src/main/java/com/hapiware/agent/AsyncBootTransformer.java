@@ -0,0 +1,96 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.lang.instrument.IllegalClassFormatException;
+import java.security.ProtectionDomain;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code AsyncBootTransformer} is the transformer registered on the JVM when the agent boots asynchronously.
+ * <p>
+ * Until the agent is ready, the loaded classes are either held up to the configured wait bound or
+ * recorded for a later retransformation. Once ready, the transformations are dispatched to the
+ * delegate transformers.
+ *
+ * @author jeyzer
+ *
+ */
+class AsyncBootTransformer extends DispatchingTransformer {
+
+	private final TransformerDispatcher dispatcher;
+	private final long waitMillis;
+	private final CountDownLatch readiness = new CountDownLatch(1);
+	private final Set<String> pendingClasses = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private volatile boolean ready = false;
+
+	/**
+	 * @param waitMillis
+	 * 		The maximum time a class loading thread is held waiting for the agent readiness. 0 for no wait.
+	 */
+	AsyncBootTransformer(TransformerDispatcher dispatcher, long waitMillis) {
+		this.dispatcher = dispatcher;
+		this.waitMillis = waitMillis;
+	}
+
+	CountDownLatch getReadiness() {
+		return readiness;
+	}
+
+	/**
+	 * Opens the barrier. Must be called once the delegate premain has been executed, successfully or not.
+	 *
+	 * @return the names of the classes loaded before the readiness and not handed over to the delegate
+	 */
+	Set<String> ready() {
+		ready = true;
+		readiness.countDown();
+		Set<String> pending = new HashSet<>(pendingClasses);
+		pendingClasses.clear();
+		return pending;
+	}
+
+	@Override
+	byte[] transformClass(Object module, ClassLoader loader, String className, Class<?> classBeingRedefined,
+			ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException {
+		if (ready)
+			return dispatcher.dispatch(module, loader, className, classBeingRedefined, protectionDomain, classfileBuffer);
+
+		if (className == null || classBeingRedefined != null)
+			return null;
+
+		if (waitMillis > 0 && !Agent.isBootThread() && awaitReadiness())
+			return dispatcher.dispatch(module, loader, className, classBeingRedefined, protectionDomain, classfileBuffer);
+
+		pendingClasses.add(className);
+		if (ready)
+			// Readiness reached in the meantime : the class might be missed by the pending list drain
+			return dispatcher.dispatch(module, loader, className, classBeingRedefined, protectionDomain, classfileBuffer);
+		return null;
+	}
+
+	private boolean awaitReadiness() {
+		try {
+			return readiness.await(waitMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.io.PrintStream;
+
+/**
+ * {@code BootLogAppender} writes the boot log messages to {@code System.out} from a daemon thread,
+ * so that the agent boot does not wait on the console while the application classes get loaded.
+ * <p>
+ * The messages are kept in a bounded ring buffer. When it is full, the logging thread writes the
+ * pending messages itself : no message is lost. The writer thread is started on the first message.
+ * Pending messages are written on {@link #flush()} and at JVM exit. Messages logged for the first
+ * time during the JVM shutdown are written synchronously.
+ *
+ * @author jeyzer
+ *
+ */
+final class BootLogAppender {
+
+	static final int DEFAULT_CAPACITY = 1024;
+
+	private static final String THREAD_NAME = "Jeyzer agent boot logger";
+
+	private final String[] messages;
+	private final PrintStream out;
+
+	// Ring buffer state, guarded by this
+	private int head;
+	private int count;
+	private boolean started;
+	private boolean shutdown;
+
+	// Keeps the message order between the writer thread and the flushing threads
+	private final Object writeLock = new Object();
+
+	// Messages being written, guarded by the write lock
+	private final String[] batch;
+
+	BootLogAppender() {
+		this(DEFAULT_CAPACITY, System.out);
+	}
+
+	BootLogAppender(int capacity, PrintStream out) {
+		this.messages = new String[capacity];
+		this.batch = new String[capacity];
+		this.out = out;
+	}
+
+	void append(String message) {
+		synchronized (this) {
+			if (!started)
+				start();
+			if (!shutdown && count < messages.length) {
+				messages[(head + count) % messages.length] = message;
+				if (count++ == 0)
+					notifyAll();
+				return;
+			}
+		}
+
+		// Ring buffer full or JVM shutting down : write the pending messages, then this one
+		synchronized (writeLock) {
+			writePending();
+			out.println(message);
+		}
+	}
+
+	/**
+	 * Writes the pending messages.
+	 */
+	void flush() {
+		synchronized (writeLock) {
+			writePending();
+			out.flush();
+		}
+	}
+
+	private void start() {
+		started = true;
+		try {
+			Runtime.getRuntime().addShutdownHook(new Thread(THREAD_NAME + " flush") {
+				@Override
+				public void run() {
+					flush();
+				}
+			});
+		} catch (IllegalStateException ex) {
+			// Shutdown in progress : no writer thread
+			shutdown = true;
+			return;
+		}
+
+		Thread writer = new Thread(THREAD_NAME) {
+			@Override
+			public void run() {
+				drain();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	private void drain() {
+		while (true) {
+			synchronized (this) {
+				while (count == 0) {
+					try {
+						wait();
+					} catch (InterruptedException ex) {
+						return;
+					}
+				}
+			}
+			synchronized (writeLock) {
+				writePending();
+			}
+		}
+	}
+
+	// Called with the write lock held
+	private void writePending() {
+		int size;
+		synchronized (this) {
+			size = count;
+			for (int i = 0; i < size; i++) {
+				int index = (head + i) % messages.length;
+				batch[i] = messages[index];
+				messages[index] = null;
+			}
+			head = (head + count) % messages.length;
+			count = 0;
+		}
+		for (int i = 0; i < size; i++) {
+			out.println(batch[i]);
+			batch[i] = null;
+		}
+	}
+}
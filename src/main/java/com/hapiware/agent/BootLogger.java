@@ -12,32 +12,114 @@ package com.hapiware.agent;
  * ----------------------------LICENSE_END----------------------------
  */
 
+/**
+ * Boot logger of the agent.
+ * <p>
+ * The debug messages are only formatted if the boot debug is enabled : the format methods take
+ * a message pattern with {@code {}} placeholders, replaced by the arguments. The messages are
+ * written by the {@link BootLogAppender} daemon thread, unless the
+ * {@code jeyzer.agent.boot.log.async} system property is set to {@code false}. The pending
+ * messages are flushed before any error and at JVM exit. Warnings and errors are also recorded in
+ * the {@link BootTrace}, if enabled.
+ */
 public class BootLogger {
 	
 	public static final String PROPERTY_JEYZER_AGENT_BOOT_DEBUG = "jeyzer.agent.boot.debug";
+	public static final String PROPERTY_JEYZER_AGENT_BOOT_LOG_ASYNC = "jeyzer.agent.boot.log.async";
 	
 	public static final String LOGGER_BOOT_DEBUG_PREFIX = "  Jeyzer agent boot debug - ";
+	public static final String LOGGER_BOOT_INFO_PREFIX = "  Jeyzer agent boot info - ";
 	public static final String LOGGER_BOOT_WARNING_PREFIX = "  Jeyzer agent boot warning - ";
 	public static final String LOGGER_BOOT_ERROR_PREFIX = "  Jeyzer agent boot error - ";
 	
-	private static boolean bootDebug = Boolean.parseBoolean(System.getProperty(PROPERTY_JEYZER_AGENT_BOOT_DEBUG));
+	private static final String PLACEHOLDER = "{}";
+	
+	private static volatile boolean bootDebug = Boolean.parseBoolean(System.getProperty(PROPERTY_JEYZER_AGENT_BOOT_DEBUG));
+	
+	private static final BootLogAppender appender =
+			Boolean.parseBoolean(System.getProperty(PROPERTY_JEYZER_AGENT_BOOT_LOG_ASYNC, "true")) ? new BootLogAppender() : null;
+	
+	public static boolean isDebugEnabled() {
+		return bootDebug;
+	}
+	
+	static void setDebugEnabled(boolean enabled) {
+		bootDebug = enabled;
+	}
 	
 	public static void debug(String message) {
 		if (bootDebug)
-			System.out.println(LOGGER_BOOT_DEBUG_PREFIX + message);
+			out(LOGGER_BOOT_DEBUG_PREFIX + message);
+	}
+	
+	public static void debug(String pattern, Object arg) {
+		if (bootDebug)
+			out(LOGGER_BOOT_DEBUG_PREFIX + format(pattern, arg, null, null, 1));
+	}
+	
+	public static void debug(String pattern, Object arg1, Object arg2) {
+		if (bootDebug)
+			out(LOGGER_BOOT_DEBUG_PREFIX + format(pattern, arg1, arg2, null, 2));
+	}
+	
+	public static void debug(String pattern, Object arg1, Object arg2, Object arg3) {
+		if (bootDebug)
+			out(LOGGER_BOOT_DEBUG_PREFIX + format(pattern, arg1, arg2, arg3, 3));
+	}
+	
+	/**
+	 * Writes the message whatever the boot debug setting.
+	 */
+	public static void info(String message) {
+		out(LOGGER_BOOT_INFO_PREFIX + message);
 	}
 	
 	public static void warning(String message) {
-		System.out.println(LOGGER_BOOT_WARNING_PREFIX + message);
+		out(LOGGER_BOOT_WARNING_PREFIX + message);
+		BootTrace.warning(message);
 	}
 	
-	public static void error(String message, Exception ex) {
+	public static void error(String message, Throwable ex) {
+		BootTrace.error(message, ex);
+		flush();
 		System.err.println(LOGGER_BOOT_ERROR_PREFIX + message);
 		ex.printStackTrace();
 	}
 	
 	public static void error(String message) {
+		BootTrace.error(message, null);
+		flush();
 		System.err.println(LOGGER_BOOT_ERROR_PREFIX + message);
 	}
+	
+	/**
+	 * Writes the pending messages.
+	 */
+	public static void flush() {
+		if (appender != null)
+			appender.flush();
+	}
+	
+	private static void out(String message) {
+		if (appender != null)
+			appender.append(message);
+		else
+			System.out.println(message);
+	}
+	
+	static String format(String pattern, Object arg1, Object arg2, Object arg3, int count) {
+		StringBuilder result = new StringBuilder(pattern.length() + 32 * count);
+		int start = 0;
+		for (int i = 0; i < count; i++) {
+			int position = pattern.indexOf(PLACEHOLDER, start);
+			if (position == -1)
+				break;
+			result.append(pattern, start, position);
+			result.append(i == 0 ? arg1 : i == 1 ? arg2 : arg3);
+			start = position + PLACEHOLDER.length();
+		}
+		result.append(pattern, start, pattern.length());
+		return result.toString();
+	}
 
 }
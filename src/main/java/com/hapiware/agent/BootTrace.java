@@ -0,0 +1,227 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+
+/**
+ * {@code BootTrace} writes the structured boot trace of the agent into a memory mapped file,
+ * created in the {@code jeyzer.agent.boot.trace} directory (agent parameter or system property).
+ * The trace is disabled if the option is not set. The file size is set by the
+ * {@code jeyzer.agent.boot.trace.size} option (1 MB by default) : records beyond are dropped
+ * and the overflow flag is set.
+ * <p>
+ * The trace outlives the JVM : the file is readable by its owner only, and the variable records
+ * hold the variable name and source, never the resolved value (which can come from a secret
+ * environment variable).
+ * <p>
+ * Each record is committed by writing its length last. The file stays readable after a JVM crash :
+ * the reader stops at the first uncommitted record. Use the {@link BootTraceReader} to render it.
+ * <p>
+ * File format (big endian) :
+ * <pre>
+ * int     magic ("JZBT")
+ * int     format version
+ * long    trace start time (epoch milliseconds)
+ * int     flags (1 : overflow)
+ * int     reserved
+ * records, each :
+ *   int     record length, 0 if not committed
+ *   byte    record type
+ *   long    record time (nanoseconds since the trace start)
+ *   long    record value (phase duration in nanoseconds)
+ *   byte    string count, then for each : short length, UTF-8 bytes
+ * </pre>
+ *
+ * @author jeyzer
+ *
+ */
+final class BootTrace {
+
+	static final int MAGIC = 0x4A5A4254;
+	static final int FORMAT_VERSION = 1;
+
+	static final int HEADER_SIZE = 24;
+	static final int FLAGS_OFFSET = 16;
+	static final int FLAG_OVERFLOW = 1;
+
+	static final byte PHASE = 1;
+	static final byte VARIABLE = 2;
+	static final byte CLASSPATH_REJECTED = 3;
+	static final byte WARNING = 4;
+	static final byte ERROR = 5;
+
+	static final String FILE_EXTENSION = ".trace";
+
+	private static final String FILE_PREFIX = "jeyzer-agent-boot-";
+	private static final long DEFAULT_SIZE = 1024 * 1024;
+
+	// Fixed part of a record : length, type, time, value and string count
+	private static final int RECORD_HEADER_SIZE = 4 + 1 + 8 + 8 + 1;
+
+	private static volatile BootTrace trace;
+
+	private final File file;
+	private final MappedByteBuffer buffer;
+	private final long startNanos;
+
+	// Guarded by this
+	private int position = HEADER_SIZE;
+
+	private BootTrace(File file, MappedByteBuffer buffer) {
+		this.file = file;
+		this.buffer = buffer;
+		this.startNanos = System.nanoTime();
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, FORMAT_VERSION);
+		buffer.putLong(8, System.currentTimeMillis());
+	}
+
+	/**
+	 * Opens the boot trace if the {@code jeyzer.agent.boot.trace} option is set. The first agent
+	 * instance of the JVM opens it, the next ones share it.
+	 */
+	static synchronized void open(Map<String, String> agentParams) {
+		String directory = Agent.getOption(agentParams, Agent.OPTION_BOOT_TRACE);
+		if (trace != null || directory == null || directory.trim().isEmpty())
+			return;
+
+		long size = Agent.getLongOption(agentParams, Agent.OPTION_BOOT_TRACE_SIZE, DEFAULT_SIZE);
+		try {
+			File dir = new File(directory.trim());
+			if (!dir.isDirectory() && !dir.mkdirs())
+				throw new IOException("Directory " + dir + " cannot be created");
+			// Owner only on POSIX
+			File file = Files.createTempFile(dir.toPath(), FILE_PREFIX, FILE_EXTENSION).toFile();
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.setLength(size);
+				// The mapping remains valid once the channel is closed
+				trace = new BootTrace(file, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size));
+			}
+			BootLogger.debug("Agent boot trace written in {}", file);
+		} catch (IOException | RuntimeException ex) {
+			BootLogger.warning("Agent boot trace cannot be created in " + directory + " : " + ex);
+		}
+	}
+
+	static boolean isEnabled() {
+		return trace != null;
+	}
+
+	/**
+	 * @return the boot trace file, null if the trace is disabled
+	 */
+	static File getFile() {
+		BootTrace current = trace;
+		return current != null ? current.file : null;
+	}
+
+	static void phase(String name, long durationNanos) {
+		BootTrace current = trace;
+		if (current != null)
+			current.write(PHASE, durationNanos, name, null, null);
+	}
+
+	/**
+	 * @param source
+	 * 		The variable source : inner variable, agent parameter, system property, environment
+	 * 		variable or default value.
+	 */
+	static void variable(String name, String source) {
+		BootTrace current = trace;
+		if (current != null)
+			current.write(VARIABLE, 0, name, source, null);
+	}
+
+	static void classpathRejected(String entry, String reason) {
+		BootTrace current = trace;
+		if (current != null)
+			current.write(CLASSPATH_REJECTED, 0, entry, reason, null);
+	}
+
+	static void warning(String message) {
+		BootTrace current = trace;
+		if (current != null)
+			current.write(WARNING, 0, message, null, null);
+	}
+
+	static void error(String message, Throwable ex) {
+		BootTrace current = trace;
+		if (current != null) {
+			current.write(ERROR, 0, message, ex != null ? ex.toString() : null, null);
+			current.force();
+		}
+	}
+
+	/**
+	 * Closes the boot trace. Test purposes.
+	 */
+	static synchronized void close() {
+		if (trace != null) {
+			trace.force();
+			trace = null;
+		}
+	}
+
+	private synchronized void write(byte type, long value, String first, String second, String third) {
+		int start = position;
+		if (start + RECORD_HEADER_SIZE > buffer.capacity()) {
+			overflow();
+			return;
+		}
+		try {
+			buffer.position(start + 4);
+			buffer.put(type);
+			buffer.putLong(System.nanoTime() - startNanos);
+			buffer.putLong(value);
+			int count = third != null ? 3 : second != null ? 2 : first != null ? 1 : 0;
+			buffer.put((byte)count);
+			putString(first, count > 0);
+			putString(second, count > 1);
+			putString(third, count > 2);
+		} catch (BufferOverflowException ex) {
+			// The partial record is not committed : the reader stops there
+			overflow();
+			return;
+		}
+		position = buffer.position();
+		// Commit
+		buffer.putInt(start, position - start);
+	}
+
+	private void overflow() {
+		buffer.putInt(FLAGS_OFFSET, buffer.getInt(FLAGS_OFFSET) | FLAG_OVERFLOW);
+		position = buffer.capacity();
+	}
+
+	private void putString(String value, boolean present) {
+		if (!present)
+			return;
+		byte[] bytes = (value != null ? value : "").getBytes(StandardCharsets.UTF_8);
+		int length = Math.min(bytes.length, Short.MAX_VALUE);
+		buffer.putShort((short)length);
+		buffer.put(bytes, 0, length);
+	}
+
+	private synchronized void force() {
+		buffer.force();
+	}
+}
@@ -0,0 +1,204 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * {@code BootTraceReader} renders a boot trace file written by the agent (see {@link BootTrace}) :
+ * <pre>
+ * java -cp jeyzer-agent.jar com.hapiware.agent.BootTraceReader jeyzer-agent-boot-123.trace
+ * </pre>
+ * The committed records are listed, one per line, with their time since the trace start.
+ *
+ * @author jeyzer
+ *
+ */
+public final class BootTraceReader {
+
+	private final long startTime;
+	private final boolean overflow;
+	private final List<Record> records;
+
+	private BootTraceReader(long startTime, boolean overflow, List<Record> records) {
+		this.startTime = startTime;
+		this.overflow = overflow;
+		this.records = Collections.unmodifiableList(records);
+	}
+
+	public static void main(String[] args) {
+		if (args.length != 1) {
+			System.err.println("Usage : java -cp <agent jar> " + BootTraceReader.class.getName() + " <boot trace file>");
+			System.exit(2);
+		}
+
+		try {
+			read(new File(args[0])).print(System.out);
+		} catch (IOException ex) {
+			System.err.println("Failed to read the boot trace " + args[0] + " : " + ex.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Reads the committed records of the boot trace file.
+	 *
+	 * @throws IOException
+	 * 		If the file cannot be read or is not a boot trace file.
+	 */
+	public static BootTraceReader read(File file) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+		try {
+			if (buffer.getInt() != BootTrace.MAGIC)
+				throw new IOException(file + " is not an agent boot trace file.");
+			int version = buffer.getInt();
+			if (version != BootTrace.FORMAT_VERSION)
+				throw new IOException(file + " has an unsupported boot trace format version : " + version);
+			long startTime = buffer.getLong();
+			boolean overflow = (buffer.getInt(BootTrace.FLAGS_OFFSET) & BootTrace.FLAG_OVERFLOW) != 0;
+
+			List<Record> records = new ArrayList<>();
+			int position = BootTrace.HEADER_SIZE;
+			while (position + 4 <= buffer.limit()) {
+				int length = buffer.getInt(position);
+				// Not committed : end of the trace
+				if (length <= 0 || position + length > buffer.limit())
+					break;
+				buffer.position(position + 4);
+				byte type = buffer.get();
+				long time = buffer.getLong();
+				long value = buffer.getLong();
+				String[] values = new String[buffer.get()];
+				for (int i = 0; i < values.length; i++) {
+					byte[] bytes = new byte[buffer.getShort()];
+					buffer.get(bytes);
+					values[i] = new String(bytes, StandardCharsets.UTF_8);
+				}
+				records.add(new Record(type, time, value, values));
+				position += length;
+			}
+			return new BootTraceReader(startTime, overflow, records);
+		} catch (BufferUnderflowException | IllegalArgumentException ex) {
+			throw new IOException(file + " is corrupted.", ex);
+		}
+	}
+
+	/**
+	 * @return the trace start time, in epoch milliseconds
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * @return true if records were dropped because the trace file was full
+	 */
+	public boolean isOverflow() {
+		return overflow;
+	}
+
+	public List<Record> getRecords() {
+		return records;
+	}
+
+	public void print(PrintStream out) {
+		out.println("Jeyzer agent boot trace started on " + new Date(startTime));
+		for (Record record : records)
+			out.println(record);
+		if (overflow)
+			out.println("Trace file full : next records were dropped.");
+	}
+
+	/**
+	 * A boot trace record.
+	 */
+	public static final class Record {
+
+		private final byte type;
+		private final long time;
+		private final long value;
+		private final String[] values;
+
+		Record(byte type, long time, long value, String[] values) {
+			this.type = type;
+			this.time = time;
+			this.value = value;
+			this.values = values;
+		}
+
+		/**
+		 * @return the record type : PHASE, VARIABLE, CLASSPATH_REJECTED, WARNING or ERROR
+		 */
+		public String getType() {
+			switch (type) {
+			case BootTrace.PHASE:
+				return "PHASE";
+			case BootTrace.VARIABLE:
+				return "VARIABLE";
+			case BootTrace.CLASSPATH_REJECTED:
+				return "CLASSPATH_REJECTED";
+			case BootTrace.WARNING:
+				return "WARNING";
+			case BootTrace.ERROR:
+				return "ERROR";
+			default:
+				return "UNKNOWN(" + type + ")";
+			}
+		}
+
+		/**
+		 * @return the record time, in nanoseconds since the trace start
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * @return the phase duration in nanoseconds, 0 for the other records
+		 */
+		public long getValue() {
+			return value;
+		}
+
+		/**
+		 * @return the value at the given index, null if none. Phase : name. Variable : name, source.
+		 * 		Rejected class path entry : entry, reason. Warning : message. Error : message,
+		 * 		exception.
+		 */
+		public String getValue(int index) {
+			return index < values.length ? values[index] : null;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder result = new StringBuilder();
+			result.append(String.format(Locale.ENGLISH, "+%10.3f ms %-18s", time / 1000000.0, getType()));
+			for (String text : values)
+				result.append(' ').append(text);
+			if (type == BootTrace.PHASE)
+				result.append(String.format(Locale.ENGLISH, " : %.3f ms", value / 1000000.0));
+			return result.toString();
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * {@code ClassFilter} is the compiled form of the {@code /agent/filter} element.
+ * <p>
+ * A class matches the filter if its name matches at least one of the include patterns and
+ * none of the exclude patterns. Class names are in the internal form (e.g. "java/util/List").
+ * The class loads examined by the delegate filters are counted by the {@link TransformerDispatcher},
+ * once per class (see {@link TransformAccounting}).
+ * <p>
+ * {@code ClassFilter} is <b>immutable</b> and thread safe.
+ *
+ * @author jeyzer
+ *
+ */
+public class ClassFilter {
+
+	// Filter decisions
+	static final int EXCLUDED = -1;
+	static final int NOT_INCLUDED = 0;
+	static final int INCLUDED = 1;
+
+	private final Pattern[] includePatterns;
+	private final Pattern[] excludePatterns;
+
+	// Shared read only views
+	private final List<Pattern> includePatternList;
+	private final List<Pattern> excludePatternList;
+
+	ClassFilter(List<Pattern> includePatterns, List<Pattern> excludePatterns) {
+		this.includePatterns = includePatterns.toArray(new Pattern[includePatterns.size()]);
+		this.excludePatterns = excludePatterns.toArray(new Pattern[excludePatterns.size()]);
+		this.includePatternList = Collections.unmodifiableList(Arrays.asList(this.includePatterns));
+		this.excludePatternList = Collections.unmodifiableList(Arrays.asList(this.excludePatterns));
+	}
+
+	/**
+	 * @param className
+	 * 		The class name in the internal form. Can be null.
+	 *
+	 * @return true if the class must be instrumented
+	 */
+	public boolean matches(String className) {
+		return evaluate(className) == INCLUDED;
+	}
+
+	/**
+	 * @param className
+	 * 		The class name in the internal form. Can be null.
+	 *
+	 * @return {@link #EXCLUDED} if the class matches an exclude pattern, {@link #INCLUDED} if it
+	 * 		matches an include pattern, {@link #NOT_INCLUDED} otherwise
+	 */
+	int evaluate(String className) {
+		if (className == null)
+			return NOT_INCLUDED;
+		for (Pattern pattern : excludePatterns)
+			if (pattern.matcher(className).matches())
+				return EXCLUDED;
+		for (Pattern pattern : includePatterns)
+			if (pattern.matcher(className).matches())
+				return INCLUDED;
+		return NOT_INCLUDED;
+	}
+
+	public List<Pattern> getIncludePatterns() {
+		return includePatternList;
+	}
+
+	public List<Pattern> getExcludePatterns() {
+		return excludePatternList;
+	}
+
+	/**
+	 * @return true if both filters have the same include and exclude patterns, in the same order
+	 */
+	boolean hasSamePatterns(ClassFilter other) {
+		return samePatterns(includePatterns, other.includePatterns) && samePatterns(excludePatterns, other.excludePatterns);
+	}
+
+	private static boolean samePatterns(Pattern[] patterns, Pattern[] others) {
+		if (patterns.length != others.length)
+			return false;
+		for (int i = 0; i < patterns.length; i++)
+			if (!patterns[i].pattern().equals(others[i].pattern()) || patterns[i].flags() != others[i].flags())
+				return false;
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "include " + Arrays.toString(includePatterns) + ", exclude " + Arrays.toString(excludePatterns);
+	}
+}
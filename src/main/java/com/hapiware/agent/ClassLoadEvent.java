@@ -0,0 +1,67 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+/**
+ * A class load, delivered to the {@link ClassLoadListener}.
+ * <p>
+ * {@code ClassLoadEvent} is <b>immutable</b>.
+ *
+ * @author jeyzer
+ *
+ */
+public final class ClassLoadEvent {
+
+	private final String internalName;
+	private final ClassLoader classLoader;
+	private final long timestamp;
+
+	ClassLoadEvent(String internalName, ClassLoader classLoader, long timestamp) {
+		this.internalName = internalName;
+		this.classLoader = classLoader;
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * @return the class name, in the internal form (a/b/C)
+	 */
+	public String getInternalName() {
+		return internalName;
+	}
+
+	/**
+	 * @return the binary class name (a.b.C)
+	 */
+	public String getClassName() {
+		return internalName.replace('/', '.');
+	}
+
+	/**
+	 * @return the defining class loader, null for the bootstrap class loader
+	 */
+	public ClassLoader getClassLoader() {
+		return classLoader;
+	}
+
+	/**
+	 * @return the load time, in epoch milliseconds
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	@Override
+	public String toString() {
+		return getClassName();
+	}
+}
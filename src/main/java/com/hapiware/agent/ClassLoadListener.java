@@ -0,0 +1,36 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.util.List;
+
+/**
+ * Listener of the class loads matching the delegate class filter, subscribed through
+ * {@link AgentContext#subscribe(ClassLoadListener)}.
+ * <p>
+ * The events are delivered in batches on the agent notification thread, never on the class loading
+ * threads : the listener can do its bookkeeping without delaying the application class loading.
+ *
+ * @author jeyzer
+ *
+ */
+public interface ClassLoadListener {
+
+	/**
+	 * Called on the agent notification thread with the next class loads, in the load order.
+	 *
+	 * @param events
+	 * 		The class load events. Never empty. Only valid during the call.
+	 */
+	void classesLoaded(List<ClassLoadEvent> events);
+}
@@ -0,0 +1,180 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@code ClassLoadNotifier} delivers the class loads of a delegate to its
+ * {@link ClassLoadListener}s.
+ * <p>
+ * The transform hook only appends the class loads matching the delegate class filter to a lock free
+ * queue : the filter is evaluated once by the {@link TransformerDispatcher}. The listeners are called
+ * on the agent notification thread, in batches of up to {@value #BATCH_SIZE} events, every
+ * {@value #DELIVERY_INTERVAL} milliseconds. The remaining events are delivered at JVM exit. Up to
+ * {@value #MAX_PENDING} events are queued per delegate : the next matching class loads are dropped
+ * and counted under {@value MetricsRegistry#NOTIFICATIONS_DROPPED}.
+ * <p>
+ * The notifications ignore the transform overhead budget and the sampling, which only apply to
+ * the delegate transformers.
+ *
+ * @author jeyzer
+ *
+ */
+final class ClassLoadNotifier {
+
+	static final int BATCH_SIZE = 512;
+	static final long DELIVERY_INTERVAL = 50;
+	static final int MAX_PENDING = 64 * 1024;
+
+	private static final String THREAD_NAME = "Jeyzer agent class load notifier";
+
+	// Notifiers with listeners, JVM wide
+	private static final List<ClassLoadNotifier> notifiers = new CopyOnWriteArrayList<>();
+	private static Thread deliveryThread;
+
+	private static final AtomicLong delivered = Agent.getMetrics().counter(MetricsRegistry.NOTIFICATIONS_DELIVERED);
+	private static final AtomicLong dropped = Agent.getMetrics().counter(MetricsRegistry.NOTIFICATIONS_DROPPED);
+
+	private final TransformerDispatcher dispatcher;
+	private final String delegateAgentName;
+	private final List<ClassLoadListener> listeners = new CopyOnWriteArrayList<>();
+	private final Queue<ClassLoadEvent> queue = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pending = new AtomicInteger();
+
+	ClassLoadNotifier(TransformerDispatcher dispatcher, String delegateAgentName) {
+		this.dispatcher = dispatcher;
+		this.delegateAgentName = delegateAgentName;
+	}
+
+	void subscribe(ClassLoadListener listener) {
+		if (listener == null)
+			throw new NullPointerException("null passed as 'listener' in subscribe");
+		listeners.add(listener);
+		register(this);
+		// The class loads are only seen once the dispatcher is registered on the JVM
+		dispatcher.transformerAdded(false);
+	}
+
+	boolean unsubscribe(ClassLoadListener listener) {
+		return listeners.remove(listener);
+	}
+
+	/**
+	 * @return true if the delegate subscribed at least one listener
+	 */
+	boolean hasListeners() {
+		return !listeners.isEmpty();
+	}
+
+	/**
+	 * Transform hook : queues the class load if the delegate has listeners. Only called for the
+	 * classes matching the delegate class filter.
+	 *
+	 * @param className
+	 * 		The class name, in the internal form. Null for the hidden classes, ignored.
+	 */
+	void classLoaded(ClassLoader loader, String className) {
+		if (listeners.isEmpty() || className == null)
+			return;
+		if (pending.incrementAndGet() > MAX_PENDING) {
+			pending.decrementAndGet();
+			dropped.incrementAndGet();
+			return;
+		}
+		queue.offer(new ClassLoadEvent(className, loader, System.currentTimeMillis()));
+	}
+
+	/**
+	 * Delivers the queued class loads.
+	 *
+	 * @return the number of delivered events
+	 */
+	int deliver() {
+		int count = 0;
+		List<ClassLoadEvent> batch = new ArrayList<>();
+		ClassLoadEvent event;
+		while ((event = queue.poll()) != null) {
+			pending.decrementAndGet();
+			batch.add(event);
+			if (batch.size() == BATCH_SIZE) {
+				count += notifyListeners(batch);
+				batch.clear();
+			}
+		}
+		if (!batch.isEmpty())
+			count += notifyListeners(batch);
+		return count;
+	}
+
+	private int notifyListeners(List<ClassLoadEvent> batch) {
+		List<ClassLoadEvent> events = Collections.unmodifiableList(batch);
+		for (ClassLoadListener listener : listeners) {
+			try {
+				listener.classesLoaded(events);
+			} catch (Throwable ex) {
+				// Whatever the failure, the delivery thread and the next listeners keep going
+				BootLogger.error("The class load listener " + listener + " of the delegate agent \"" + delegateAgentName
+						+ "\" threw an exception.", ex);
+			}
+		}
+		delivered.addAndGet(batch.size());
+		return batch.size();
+	}
+
+	private static synchronized void register(ClassLoadNotifier notifier) {
+		if (!notifiers.contains(notifier))
+			notifiers.add(notifier);
+		if (deliveryThread != null)
+			return;
+
+		deliveryThread = new Thread(THREAD_NAME) {
+			@Override
+			public void run() {
+				while (true) {
+					LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(DELIVERY_INTERVAL));
+					deliverAll();
+				}
+			}
+		};
+		deliveryThread.setDaemon(true);
+		deliveryThread.start();
+
+		Runtime.getRuntime().addShutdownHook(new Thread(THREAD_NAME + " flush") {
+			@Override
+			public void run() {
+				deliverAll();
+			}
+		});
+	}
+
+	/**
+	 * Delivers the queued class loads of all the delegates. Serialized : the listeners are never
+	 * called concurrently.
+	 */
+	static synchronized int deliverAll() {
+		int count = 0;
+		for (ClassLoadNotifier notifier : notifiers)
+			count += notifier.deliver();
+		return count;
+	}
+}
@@ -0,0 +1,129 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Snapshot of the class loading statistics of an agent delegate class loader.
+ * <p>
+ * {@code ClassLoaderStatistics} is <b>immutable</b>.
+ *
+ * @author jeyzer
+ *
+ */
+public class ClassLoaderStatistics {
+
+	private final List<EntryStatistics> entries;
+	private final long missCount;
+	private final long missNanos;
+
+	ClassLoaderStatistics(List<EntryStatistics> entries, long missCount, long missNanos) {
+		this.entries = Collections.unmodifiableList(entries);
+		this.missCount = missCount;
+		this.missNanos = missNanos;
+	}
+
+	/**
+	 * @return the statistics per class path entry, in the class path order
+	 */
+	public List<EntryStatistics> getEntries() {
+		return entries;
+	}
+
+	public long getClassesDefined() {
+		long total = 0;
+		for (EntryStatistics entry : entries)
+			total += entry.getClassesDefined();
+		return total;
+	}
+
+	public long getClassDataBytes() {
+		long total = 0;
+		for (EntryStatistics entry : entries)
+			total += entry.getClassDataBytes();
+		return total;
+	}
+
+	public long getFindClassNanos() {
+		long total = missNanos;
+		for (EntryStatistics entry : entries)
+			total += entry.getFindClassNanos();
+		return total;
+	}
+
+	/**
+	 * @return the number of classes requested to the class loader but not found in its class path
+	 */
+	public long getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * @return the time spent looking up classes not found in the class path
+	 */
+	public long getMissNanos() {
+		return missNanos;
+	}
+
+	@Override
+	public String toString() {
+		return getClassesDefined() + " classes defined, "
+				+ getClassDataBytes() + " bytes of class data, "
+				+ getFindClassNanos() / 1000000L + " ms in findClass, "
+				+ missCount + " misses";
+	}
+
+	/**
+	 * Class loading statistics of one class path entry.
+	 */
+	public static class EntryStatistics {
+
+		private final URL entry;
+		private final long classesDefined;
+		private final long classDataBytes;
+		private final long findClassNanos;
+
+		EntryStatistics(URL entry, long classesDefined, long classDataBytes, long findClassNanos) {
+			this.entry = entry;
+			this.classesDefined = classesDefined;
+			this.classDataBytes = classDataBytes;
+			this.findClassNanos = findClassNanos;
+		}
+
+		public URL getEntry() {
+			return entry;
+		}
+
+		public long getClassesDefined() {
+			return classesDefined;
+		}
+
+		public long getClassDataBytes() {
+			return classDataBytes;
+		}
+
+		public long getFindClassNanos() {
+			return findClassNanos;
+		}
+
+		@Override
+		public String toString() {
+			return entry + " : " + classesDefined + " classes, "
+					+ classDataBytes + " bytes, "
+					+ findClassNanos / 1000000L + " ms";
+		}
+	}
+}
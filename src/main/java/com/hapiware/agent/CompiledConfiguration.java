@@ -0,0 +1,568 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.hapiware.agent.Agent.ConfigElements;
+import com.hapiware.agent.Agent.ConfigurationError;
+import com.hapiware.agent.Agent.VariableValue;
+
+/**
+ * {@code CompiledConfiguration} is the content of a compiled agent configuration file ({@code .agentc}),
+ * produced by the {@link AgentConfigCompiler}.
+ * <p>
+ * The configuration is validated and its static variables are resolved at compile time. The agent
+ * variables referencing agent parameters, system properties or environment variables are kept as
+ * <i>late bound</i> variables, resolved when the file is loaded, the same way as for the XML
+ * configuration. The file is read without any XML processing, except for the
+ * {@code /agent/configuration/custom} elements which are kept as XML text and parsed only when
+ * the delegate configuration gets unmarshalled.
+ * <p>
+ * The configuration compiled without any profile section is the default entry. Each profile
+ * declared in the source file gets its own entry (see {@link ConfigurationProfile}), selected
+ * at load time. Each instrumentation level gets an entry per profile as well, keyed
+ * {@code [profile]@level}.
+ * <p>
+ * File format (big endian) :
+ * <pre>
+ * int     magic ("JZAC")
+ * int     format version
+ * string  agent version
+ * string  source file
+ * entry   default entry
+ * int     profile count, then for each : string profile name (or profile and level key), entry
+ * </pre>
+ * Entry :
+ * <pre>
+ * int     late bound variable count, then for each : string name, string value, string default value
+ * int     delegate count, then for each :
+ *           string delegate class name
+ *           strings class path entries, include patterns, exclude patterns (each : int count, then strings)
+ *           byte configuration type, then the configuration (typed map items : string key, byte type, string value)
+ *           strings overhead budget total, class and window attributes (int count, 0 if none, then strings)
+ *           strings sampling fraction and rate attributes (int count, 0 if none, then strings)
+ * </pre>
+ * Strings are written as an int length (-1 for null) followed by the UTF-8 bytes.
+ *
+ * @author jeyzer
+ *
+ */
+final class CompiledConfiguration {
+
+	static final String FILE_EXTENSION = ".agentc";
+
+	private static final int MAGIC = 0x4A5A4143;
+	private static final int FORMAT_VERSION = 4;
+
+	static final byte CONFIGURATION_NONE = 0;
+	static final byte CONFIGURATION_STRING = 1;
+	static final byte CONFIGURATION_LIST = 2;
+	static final byte CONFIGURATION_MAP = 3;
+	static final byte CONFIGURATION_CUSTOM = 4;
+	static final byte CONFIGURATION_TYPED_MAP = 5;
+
+	private static final TypedConfiguration.Type[] TYPES = TypedConfiguration.Type.values();
+
+	private static final Pattern VARIABLE_REFERENCE = Pattern.compile("\\$\\{([^\\$\\{\\}]+?)\\}");
+
+	private final String agentVersion;
+	private final String source;
+	private final Map<String, VariableValue> lateBoundVariables;
+	private final List<Delegate> delegates;
+	private final Map<String, CompiledConfiguration> profiles = new LinkedHashMap<>();
+
+	CompiledConfiguration(String agentVersion, String source, Map<String, VariableValue> lateBoundVariables, List<Delegate> delegates) {
+		this.agentVersion = agentVersion;
+		this.source = source;
+		this.lateBoundVariables = Collections.unmodifiableMap(new LinkedHashMap<>(lateBoundVariables));
+		this.delegates = Collections.unmodifiableList(delegates);
+	}
+
+	static boolean isCompiledConfiguration(String path) {
+		return path.endsWith(FILE_EXTENSION);
+	}
+
+	/**
+	 * @return the agent version at compile time. Can be null.
+	 */
+	String getAgentVersion() {
+		return agentVersion;
+	}
+
+	String getSource() {
+		return source;
+	}
+
+	Map<String, VariableValue> getLateBoundVariables() {
+		return lateBoundVariables;
+	}
+
+	List<Delegate> getDelegates() {
+		return delegates;
+	}
+
+	void addProfile(String profile, CompiledConfiguration configuration) {
+		profiles.put(profile, configuration);
+	}
+
+	Map<String, CompiledConfiguration> getProfiles() {
+		return Collections.unmodifiableMap(profiles);
+	}
+
+	/**
+	 * @return the profiles declared at compile time, in the declaration order
+	 */
+	Set<String> getProfileNames() {
+		Set<String> names = new LinkedHashSet<>();
+		for (String key : profiles.keySet())
+			if (key.indexOf('@') == -1)
+				names.add(key);
+		return names;
+	}
+
+	/**
+	 * @return the levels declared at compile time, in the declaration order
+	 */
+	Set<String> getLevels() {
+		Set<String> levels = new LinkedHashSet<>();
+		for (String key : profiles.keySet()) {
+			int index = key.indexOf('@');
+			if (index != -1)
+				levels.add(key.substring(index + 1));
+		}
+		return levels;
+	}
+
+	/**
+	 * @return the entry of the given profile and instrumentation level. The profile entry if the
+	 * 		level is null or was not declared at compile time.
+	 */
+	CompiledConfiguration select(String profile, String level) {
+		if (level != null) {
+			CompiledConfiguration configuration = profiles.get(ConfigurationProfile.getSelectionKey(profile, level));
+			if (configuration != null)
+				return configuration;
+			BootLogger.warning("Instrumentation level " + level + " is not declared in the compiled agent configuration file \""
+					+ source + "\". Ignoring the level sections.");
+		}
+		return select(profile);
+	}
+
+	/**
+	 * @return the entry of the given profile, the default entry if the profile is null or was not
+	 * 		declared at compile time
+	 */
+	CompiledConfiguration select(String profile) {
+		if (profile == null)
+			return this;
+		CompiledConfiguration configuration = profiles.get(profile);
+		if (configuration == null) {
+			BootLogger.warning("Profile " + profile + " is not declared in the compiled agent configuration file \""
+					+ source + "\". Using the default configuration.");
+			return this;
+		}
+		return configuration;
+	}
+
+	/**
+	 * Resolves the late bound variables and creates the configuration elements of the delegates.
+	 *
+	 * @throws ConfigurationError
+	 * 		If a late bound variable cannot be resolved or a pattern is invalid.
+	 */
+	List<ConfigElements> toConfigElements(Map<String, String> agentParams) {
+		Map<String, String> values = resolveLateBoundVariables(agentParams);
+		List<ConfigElements> configElements = new ArrayList<>(delegates.size());
+		for (Delegate delegate : delegates) {
+			try {
+				configElements.add(
+						new ConfigElements(
+								substitute(delegate.classpaths, values),
+								Agent.compilePatterns(substitute(delegate.includes, values)),
+								Agent.compilePatterns(substitute(delegate.excludes, values)),
+								substitute(delegate.delegateAgentName, values, false),
+								substituteConfiguration(delegate, values),
+								substitute(delegate.customConfiguration, values, true),
+								OverheadBudget.parse(substitute(delegate.budget, values)),
+								TransformSampler.parse(substitute(delegate.sampling, values))
+						));
+			} catch (MalformedURLException ex) {
+				throw new ConfigurationError("IO error with the agent configuration file \"" + source + "\".", ex);
+			}
+		}
+		return configElements;
+	}
+
+	private Map<String, String> resolveLateBoundVariables(Map<String, String> agentParams) {
+		Map<String, String> values = new LinkedHashMap<>();
+		for (Map.Entry<String, VariableValue> entry : lateBoundVariables.entrySet()) {
+			VariableValue variable = entry.getValue();
+			String value = Agent.resolveExternalVariables(variable.getValue(), agentParams);
+			Matcher unresolved = VARIABLE_REFERENCE.matcher(value);
+			if (unresolved.find()) {
+				if (!variable.hasDefaultValue()) {
+					if (value.trim().startsWith("${"))
+						throw new ConfigurationError(
+								"Agent variable " + entry.getKey() + " has an unrecognised variable "
+										+ unresolved.group() + " and does not have any default value.");
+				} else {
+					// Same as the XML configuration : the unresolved variable is set as system property
+					BootLogger.debug("Agent variable {} is referencing an unresolved variable. Set it as system property {} with the default value : {}",
+							entry.getKey(), unresolved.group(1), variable.getDefaultValue());
+					System.setProperty(unresolved.group(1), variable.getDefaultValue());
+					if (value.trim().startsWith("${"))
+						value = variable.getDefaultValue();
+				}
+			}
+			values.put(entry.getKey(), value);
+		}
+		return values;
+	}
+
+	private static Object substituteConfiguration(Delegate delegate, Map<String, String> values) {
+		switch (delegate.configurationType) {
+		case CONFIGURATION_STRING:
+			return substitute(delegate.stringConfiguration, values, false);
+		case CONFIGURATION_LIST:
+			return substitute(delegate.listConfiguration, values);
+		case CONFIGURATION_MAP:
+			Map<String, String> map = new LinkedHashMap<>();
+			for (Map.Entry<String, String> entry : delegate.mapConfiguration.entrySet())
+				map.put(substitute(entry.getKey(), values, false), substitute(entry.getValue(), values, false));
+			return map;
+		case CONFIGURATION_TYPED_MAP:
+			List<String> keys = new ArrayList<>(delegate.typedMapConfiguration.size());
+			List<TypedConfiguration.Type> types = new ArrayList<>(delegate.typedMapConfiguration.size());
+			List<String> typedValues = new ArrayList<>(delegate.typedMapConfiguration.size());
+			for (Map.Entry<String, String> entry : delegate.typedMapConfiguration.entrySet()) {
+				keys.add(substitute(entry.getKey(), values, false));
+				types.add(delegate.typedMapConfiguration.getType(entry.getKey()));
+				typedValues.add(substitute(entry.getValue(), values, false));
+			}
+			return new TypedConfiguration(keys, types, typedValues);
+		default:
+			return null;
+		}
+	}
+
+	private static List<String> substitute(List<String> texts, Map<String, String> values) {
+		List<String> result = new ArrayList<>(texts.size());
+		for (String text : texts)
+			result.add(substitute(text, values, false));
+		return result;
+	}
+
+	private static String substitute(String text, Map<String, String> values, boolean xml) {
+		if (text == null || values.isEmpty() || text.indexOf("${") == -1)
+			return text;
+		Matcher matcher = VARIABLE_REFERENCE.matcher(text);
+		StringBuffer result = new StringBuffer(text.length());
+		while (matcher.find()) {
+			String value = values.get(matcher.group(1));
+			if (value == null)
+				value = matcher.group();
+			else if (xml)
+				value = escapeXml(value);
+			matcher.appendReplacement(result, Matcher.quoteReplacement(value));
+		}
+		matcher.appendTail(result);
+		return result.toString();
+	}
+
+	private static String escapeXml(String value) {
+		return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;").replace("'", "&apos;");
+	}
+
+	void write(OutputStream output) throws IOException {
+		DataOutputStream out = new DataOutputStream(output);
+		out.writeInt(MAGIC);
+		out.writeInt(FORMAT_VERSION);
+		writeString(out, agentVersion);
+		writeString(out, source);
+		writeEntry(out);
+
+		out.writeInt(profiles.size());
+		for (Map.Entry<String, CompiledConfiguration> entry : profiles.entrySet()) {
+			writeString(out, entry.getKey());
+			entry.getValue().writeEntry(out);
+		}
+		out.flush();
+	}
+
+	private void writeEntry(DataOutputStream out) throws IOException {
+		out.writeInt(lateBoundVariables.size());
+		for (Map.Entry<String, VariableValue> entry : lateBoundVariables.entrySet()) {
+			writeString(out, entry.getKey());
+			writeString(out, entry.getValue().getValue());
+			writeString(out, entry.getValue().getDefaultValue());
+		}
+
+		out.writeInt(delegates.size());
+		for (Delegate delegate : delegates) {
+			writeString(out, delegate.delegateAgentName);
+			writeStrings(out, delegate.classpaths);
+			writeStrings(out, delegate.includes);
+			writeStrings(out, delegate.excludes);
+			out.writeByte(delegate.configurationType);
+			switch (delegate.configurationType) {
+			case CONFIGURATION_STRING:
+				writeString(out, delegate.stringConfiguration);
+				break;
+			case CONFIGURATION_LIST:
+				writeStrings(out, delegate.listConfiguration);
+				break;
+			case CONFIGURATION_MAP:
+				out.writeInt(delegate.mapConfiguration.size());
+				for (Map.Entry<String, String> entry : delegate.mapConfiguration.entrySet()) {
+					writeString(out, entry.getKey());
+					writeString(out, entry.getValue());
+				}
+				break;
+			case CONFIGURATION_TYPED_MAP:
+				out.writeInt(delegate.typedMapConfiguration.size());
+				for (Map.Entry<String, String> entry : delegate.typedMapConfiguration.entrySet()) {
+					writeString(out, entry.getKey());
+					out.writeByte(delegate.typedMapConfiguration.getType(entry.getKey()).ordinal());
+					writeString(out, entry.getValue());
+				}
+				break;
+			case CONFIGURATION_CUSTOM:
+				writeString(out, delegate.customConfiguration);
+				break;
+			default:
+				break;
+			}
+			writeStrings(out, delegate.budget);
+			writeStrings(out, delegate.sampling);
+		}
+	}
+
+	/**
+	 * Reads a compiled configuration file.
+	 *
+	 * @throws IOException
+	 * 		If the file cannot be read or is not a valid compiled configuration file.
+	 */
+	static CompiledConfiguration read(Path path) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+		try {
+			if (buffer.getInt() != MAGIC)
+				throw new IOException(path + " is not a compiled agent configuration file.");
+			int version = buffer.getInt();
+			if (version != FORMAT_VERSION)
+				throw new IOException(path + " has an unsupported compiled configuration format version : " + version
+						+ ". Please compile the configuration again.");
+
+			String agentVersion = readString(buffer);
+			String source = readString(buffer);
+			CompiledConfiguration configuration = readEntry(buffer, path, agentVersion, source);
+
+			int count = buffer.getInt();
+			for (int i = 0; i < count; i++) {
+				String profile = readString(buffer);
+				configuration.addProfile(profile, readEntry(buffer, path, agentVersion, source));
+			}
+			return configuration;
+		} catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException ex) {
+			throw new IOException(path + " is corrupted.", ex);
+		}
+	}
+
+	private static CompiledConfiguration readEntry(ByteBuffer buffer, Path path, String agentVersion, String source) throws IOException {
+		int count = buffer.getInt();
+		Map<String, VariableValue> lateBoundVariables = new LinkedHashMap<>();
+		for (int i = 0; i < count; i++) {
+			String name = readString(buffer);
+			lateBoundVariables.put(name, new VariableValue(readString(buffer), readString(buffer)));
+		}
+
+		count = buffer.getInt();
+		List<Delegate> delegates = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			Delegate delegate = new Delegate(readString(buffer), readStrings(buffer), readStrings(buffer), readStrings(buffer));
+			byte type = buffer.get();
+			switch (type) {
+			case CONFIGURATION_NONE:
+				delegate.setNoConfiguration();
+				break;
+			case CONFIGURATION_STRING:
+				delegate.setStringConfiguration(readString(buffer));
+				break;
+			case CONFIGURATION_LIST:
+				delegate.setListConfiguration(readStrings(buffer));
+				break;
+			case CONFIGURATION_MAP:
+				int size = buffer.getInt();
+				Map<String, String> map = new LinkedHashMap<>();
+				for (int j = 0; j < size; j++)
+					map.put(readString(buffer), readString(buffer));
+				delegate.setMapConfiguration(map);
+				break;
+			case CONFIGURATION_TYPED_MAP:
+				int items = buffer.getInt();
+				List<String> keys = new ArrayList<>(items);
+				List<TypedConfiguration.Type> types = new ArrayList<>(items);
+				List<String> values = new ArrayList<>(items);
+				for (int j = 0; j < items; j++) {
+					keys.add(readString(buffer));
+					types.add(TYPES[buffer.get()]);
+					values.add(readString(buffer));
+				}
+				delegate.setTypedMapConfiguration(new TypedConfiguration(keys, types, values));
+				break;
+			case CONFIGURATION_CUSTOM:
+				delegate.setCustomConfiguration(readString(buffer));
+				break;
+			default:
+				throw new IOException(path + " is corrupted : unknown configuration type " + type);
+			}
+			delegate.setBudget(readStrings(buffer));
+			delegate.setSampling(readStrings(buffer));
+			delegates.add(delegate);
+		}
+		return new CompiledConfiguration(agentVersion, source, lateBoundVariables, delegates);
+	}
+
+	static void writeStrings(DataOutputStream out, List<String> values) throws IOException {
+		out.writeInt(values.size());
+		for (String value : values)
+			writeString(out, value);
+	}
+
+	static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static List<String> readStrings(ByteBuffer buffer) {
+		int count = buffer.getInt();
+		List<String> values = new ArrayList<>(count);
+		for (int i = 0; i < count; i++)
+			values.add(readString(buffer));
+		return values;
+	}
+
+	static String readString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0)
+			return null;
+		String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+		buffer.position(buffer.position() + length);
+		return value;
+	}
+
+	/**
+	 * The compiled {@code /agent/delegate}. Strings can reference late bound variables.
+	 */
+	static final class Delegate {
+
+		private final String delegateAgentName;
+		private final List<String> classpaths;
+		private final List<String> includes;
+		private final List<String> excludes;
+
+		private byte configurationType = CONFIGURATION_NONE;
+		private String stringConfiguration;
+		private List<String> listConfiguration;
+		private Map<String, String> mapConfiguration;
+		private TypedConfiguration typedMapConfiguration;
+		private String customConfiguration;
+		private List<String> budget = Collections.emptyList();
+		private List<String> sampling = Collections.emptyList();
+
+		Delegate(String delegateAgentName, List<String> classpaths, List<String> includes, List<String> excludes) {
+			this.delegateAgentName = delegateAgentName;
+			this.classpaths = classpaths;
+			this.includes = includes;
+			this.excludes = excludes;
+		}
+
+		String getDelegateAgentName() {
+			return delegateAgentName;
+		}
+
+		byte getConfigurationType() {
+			return configurationType;
+		}
+
+		void setNoConfiguration() {
+			this.configurationType = CONFIGURATION_NONE;
+		}
+
+		void setStringConfiguration(String configuration) {
+			this.configurationType = CONFIGURATION_STRING;
+			this.stringConfiguration = configuration;
+		}
+
+		void setListConfiguration(List<String> configuration) {
+			this.configurationType = CONFIGURATION_LIST;
+			this.listConfiguration = configuration;
+		}
+
+		void setMapConfiguration(Map<String, String> configuration) {
+			this.configurationType = CONFIGURATION_MAP;
+			this.mapConfiguration = configuration;
+		}
+
+		void setTypedMapConfiguration(TypedConfiguration configuration) {
+			this.configurationType = CONFIGURATION_TYPED_MAP;
+			this.typedMapConfiguration = configuration;
+		}
+
+		void setCustomConfiguration(String configuration) {
+			this.configurationType = CONFIGURATION_CUSTOM;
+			this.customConfiguration = configuration;
+		}
+
+		/**
+		 * @param budget
+		 * 		The overhead budget attribute values (see {@link OverheadBudget#toAttributes(String, String, String)}).
+		 * 		Empty if none.
+		 */
+		void setBudget(List<String> budget) {
+			this.budget = budget;
+		}
+
+		/**
+		 * @param sampling
+		 * 		The sampling attribute values (see {@link TransformSampler#toAttributes(String, String)}).
+		 * 		Empty if none.
+		 */
+		void setSampling(List<String> sampling) {
+			this.sampling = sampling;
+		}
+	}
+}
@@ -0,0 +1,389 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+import com.hapiware.agent.Agent.ConfigurationError;
+
+/**
+ * {@code ConfigurationFragment} is a shared configuration file imported by the agent configuration
+ * files with the {@code <import file="..."/>} element :
+ * <ul>
+ * 		<li>{@code /agent/import} imports the fragment {@code variable} elements, before the agent ones</li>
+ * 		<li>
+ * 			{@code filter/import} (in {@code /agent/filter} or in a delegate {@code filter}) imports the
+ * 			fragment {@code filter/include} and {@code filter/exclude} elements
+ * 		</li>
+ * </ul>
+ * Relative fragment paths are resolved against the directory of the importing configuration file.
+ * A fragment file looks like this :
+ * <pre>
+ * {@code
+ * 	<fragment>
+ * 		<variable name="jeyzer-home">${JEYZER_HOME}</variable>
+ * 		<filter>
+ * 			<include>^com/mycompany/.+</include>
+ * 			<exclude>^com/mycompany/generated/.+</exclude>
+ * 		</filter>
+ * 	</fragment>}
+ * </pre>
+ * Each fragment is parsed and validated once per JVM (see {@link AgentRegistry}), whatever the
+ * number of agent configurations importing it. Its parsed form is also cached on disk (in the {@code jeyzer.agent.fragment.cache}
+ * directory, a per user directory of the temporary directory by default), keyed by the SHA-256 of its
+ * content : the next JVMs then skip the XML processing. Variables are still resolved by each importing
+ * configuration.
+ * <p>
+ * The cached fragments are trusted like the configuration itself : the cache directory is created
+ * accessible to its owner only, and the cache is disabled if the directory is not owned by the
+ * current user or is writable by the group or the others.
+ *
+ * @author jeyzer
+ *
+ */
+final class ConfigurationFragment {
+
+	static final String CACHE_FILE_EXTENSION = ".agentf";
+
+	private static final int MAGIC = 0x4A5A4146;
+	private static final int FORMAT_VERSION = 1;
+
+	private static final String DEFAULT_CACHE_DIRECTORY = "jeyzer-agent-fragments";
+
+	private final List<String> variableNames;
+	private final List<String> variableValues;
+	private final List<String> variableDefaults;
+	private final List<String> includes;
+	private final List<String> excludes;
+
+	private ConfigurationFragment(List<String> variableNames, List<String> variableValues, List<String> variableDefaults,
+			List<String> includes, List<String> excludes) {
+		this.variableNames = variableNames;
+		this.variableValues = variableValues;
+		this.variableDefaults = variableDefaults;
+		this.includes = includes;
+		this.excludes = excludes;
+	}
+
+	List<String> getVariableNames() {
+		return variableNames;
+	}
+
+	List<String> getIncludes() {
+		return includes;
+	}
+
+	List<String> getExcludes() {
+		return excludes;
+	}
+
+	/**
+	 * @return the fragment cache directory, null if the cache is disabled (option set to {@code false})
+	 * 		or if the directory cannot be trusted
+	 */
+	static File getCacheDirectory(Map<String, String> agentParams) {
+		String directory = Agent.getOption(agentParams, Agent.OPTION_FRAGMENT_CACHE);
+		File cacheDirectory;
+		if (directory == null || directory.trim().isEmpty()) {
+			// The temporary directory is shared by all the users
+			String user = System.getProperty("user.name", "").replaceAll("[^A-Za-z0-9._-]", "_");
+			cacheDirectory = new File(System.getProperty("java.io.tmpdir"), DEFAULT_CACHE_DIRECTORY + "-" + user);
+		} else if ("false".equalsIgnoreCase(directory.trim())) {
+			return null;
+		} else {
+			cacheDirectory = new File(directory.trim());
+		}
+		return isTrusted(cacheDirectory) ? cacheDirectory : null;
+	}
+
+	/**
+	 * Creates the cache directory if needed, accessible to its owner only.
+	 *
+	 * @return true if the cache directory is owned by the current user and, on POSIX file systems,
+	 * 		not writable by the group or the others
+	 */
+	static boolean isTrusted(File cacheDirectory) {
+		Path path = cacheDirectory.toPath();
+		try {
+			if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+				if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix"))
+					Files.createDirectories(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+				else
+					Files.createDirectories(path);
+			}
+			if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS))
+				throw new IOException("Not a directory");
+
+			UserPrincipal owner = Files.getOwner(path, LinkOption.NOFOLLOW_LINKS);
+			UserPrincipal user = path.getFileSystem().getUserPrincipalLookupService()
+					.lookupPrincipalByName(System.getProperty("user.name"));
+			if (!owner.equals(user))
+				throw new IOException("Owned by " + owner.getName());
+
+			PosixFileAttributeView view = Files.getFileAttributeView(path, PosixFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+			if (view != null) {
+				Set<PosixFilePermission> permissions = view.readAttributes().permissions();
+				if (permissions.contains(PosixFilePermission.GROUP_WRITE) || permissions.contains(PosixFilePermission.OTHERS_WRITE))
+					throw new IOException("Writable by the group or the others : " + PosixFilePermissions.toString(permissions));
+			}
+			return true;
+		} catch (IOException | UnsupportedOperationException | SecurityException ex) {
+			BootLogger.warning("Agent configuration fragment cache disabled : the directory " + cacheDirectory
+					+ " cannot be trusted. " + ex);
+			return false;
+		}
+	}
+
+	/**
+	 * Replaces the {@code import} elements of the configuration document with the content of the
+	 * imported fragments.
+	 *
+	 * @throws ConfigurationError
+	 * 		If a fragment cannot be read or is invalid.
+	 */
+	static void importFragments(Document configDocument, String configFileName, File cacheDirectory) {
+		Element agent = configDocument.getDocumentElement();
+		if (agent == null || agent.getElementsByTagName("import").getLength() == 0)
+			return;
+
+		File baseDirectory = new File(configFileName).getAbsoluteFile().getParentFile();
+
+		// /agent/import
+		for (Element importElement : getChildElements(agent, "import")) {
+			ConfigurationFragment fragment = load(resolve(baseDirectory, importElement), cacheDirectory);
+			for (int i = 0; i < fragment.variableNames.size(); i++) {
+				Element variable = configDocument.createElement("variable");
+				variable.setAttribute("name", fragment.variableNames.get(i));
+				if (fragment.variableDefaults.get(i) != null)
+					variable.setAttribute("default", fragment.variableDefaults.get(i));
+				variable.appendChild(configDocument.createTextNode(fragment.variableValues.get(i)));
+				agent.insertBefore(variable, importElement);
+			}
+			agent.removeChild(importElement);
+		}
+
+		// /agent/filter/import and /agent/delegate/filter/import
+		List<Element> filters = getChildElements(agent, "filter");
+		for (Element delegate : getChildElements(agent, "delegate"))
+			filters.addAll(getChildElements(delegate, "filter"));
+		for (Element filter : filters) {
+			for (Element importElement : getChildElements(filter, "import")) {
+				ConfigurationFragment fragment = load(resolve(baseDirectory, importElement), cacheDirectory);
+				// Imported at the import position, includes staying before the excludes
+				Node includeAnchor = importElement;
+				Node excludeAnchor = importElement;
+				for (Node sibling = filter.getFirstChild(); sibling != importElement; sibling = sibling.getNextSibling())
+					if ("exclude".equals(sibling.getNodeName()) && includeAnchor == importElement)
+						includeAnchor = sibling;
+				for (Node sibling = importElement.getNextSibling(); sibling != null; sibling = sibling.getNextSibling())
+					if ("include".equals(sibling.getNodeName()))
+						excludeAnchor = sibling.getNextSibling();
+				for (String include : fragment.includes)
+					filter.insertBefore(createTextElement(configDocument, "include", include), includeAnchor);
+				for (String exclude : fragment.excludes)
+					filter.insertBefore(createTextElement(configDocument, "exclude", exclude), excludeAnchor);
+				filter.removeChild(importElement);
+			}
+		}
+	}
+
+	/**
+	 * Loads the fragment : from the JVM fragments first, then from the disk cache. The fragment
+	 * file is parsed and validated only if not found in both.
+	 */
+	static ConfigurationFragment load(File file, File cacheDirectory) {
+		byte[] content;
+		try {
+			content = Files.readAllBytes(file.toPath());
+		} catch (IOException ex) {
+			throw new ConfigurationError("The agent configuration fragment \"" + file + "\" cannot be read.", ex);
+		}
+
+		String hash = hash(content);
+		Map<String, ConfigurationFragment> fragments = AgentRegistry.get().getFragments();
+		ConfigurationFragment fragment = fragments.get(hash);
+		if (fragment != null)
+			return fragment;
+
+		File cacheFile = cacheDirectory != null ? new File(cacheDirectory, hash + CACHE_FILE_EXTENSION) : null;
+		fragment = readCache(cacheFile);
+		if (fragment == null) {
+			fragment = parse(content, file);
+			writeCache(fragment, cacheFile);
+		} else {
+			BootLogger.debug("Agent configuration fragment {} loaded from the cache {}", file, cacheFile);
+		}
+
+		ConfigurationFragment previous = fragments.putIfAbsent(hash, fragment);
+		return previous != null ? previous : fragment;
+	}
+
+	private static ConfigurationFragment parse(byte[] content, File file) {
+		Document document;
+		try {
+			document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(content));
+			Agent.validateDOMDocument(document);
+		} catch (ParserConfigurationException ex) {
+			throw new ConfigurationError("XML document builder cannot be created.", ex);
+		} catch (SAXException | IOException ex) {
+			throw new ConfigurationError("Parsing the agent configuration fragment \"" + file + "\" didn't succeed.\n"
+					+ "\t->" + ex.getMessage(), ex);
+		}
+
+		Element root = document.getDocumentElement();
+		if (!"fragment".equals(root.getNodeName()))
+			throw new ConfigurationError("The agent configuration fragment \"" + file + "\" must have the <fragment> root element.");
+
+		List<String> names = new ArrayList<>();
+		List<String> values = new ArrayList<>();
+		List<String> defaults = new ArrayList<>();
+		for (Element variable : getChildElements(root, "variable")) {
+			names.add(variable.getAttribute("name"));
+			values.add(variable.getTextContent());
+			defaults.add(variable.hasAttribute("default") ? variable.getAttribute("default") : null);
+		}
+
+		List<String> includes = new ArrayList<>();
+		List<String> excludes = new ArrayList<>();
+		for (Element filter : getChildElements(root, "filter")) {
+			if (!getChildElements(filter, "import").isEmpty())
+				throw new ConfigurationError("The agent configuration fragment \"" + file + "\" cannot import other fragments.");
+			for (Element include : getChildElements(filter, "include"))
+				includes.add(include.getTextContent());
+			for (Element exclude : getChildElements(filter, "exclude"))
+				excludes.add(exclude.getTextContent());
+		}
+
+		if (BootLogger.isDebugEnabled())
+			BootLogger.debug("Agent configuration fragment " + file + " parsed : " + names.size() + " variables, "
+					+ includes.size() + " includes, " + excludes.size() + " excludes.");
+		return new ConfigurationFragment(names, values, defaults, includes, excludes);
+	}
+
+	private static ConfigurationFragment readCache(File cacheFile) {
+		if (cacheFile == null || !cacheFile.isFile())
+			return null;
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(cacheFile.toPath()));
+			if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION)
+				return null;
+			int count = buffer.getInt();
+			List<String> names = new ArrayList<>(count);
+			List<String> values = new ArrayList<>(count);
+			List<String> defaults = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				names.add(CompiledConfiguration.readString(buffer));
+				values.add(CompiledConfiguration.readString(buffer));
+				defaults.add(CompiledConfiguration.readString(buffer));
+			}
+			List<String> includes = CompiledConfiguration.readStrings(buffer);
+			List<String> excludes = CompiledConfiguration.readStrings(buffer);
+			return new ConfigurationFragment(names, values, defaults, includes, excludes);
+		} catch (IOException | BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException ex) {
+			BootLogger.debug("Agent configuration fragment cache {} cannot be read : {}", cacheFile, ex);
+			return null;
+		}
+	}
+
+	private static void writeCache(ConfigurationFragment fragment, File cacheFile) {
+		if (cacheFile == null)
+			return;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(fragment.variableNames.size());
+			for (int i = 0; i < fragment.variableNames.size(); i++) {
+				CompiledConfiguration.writeString(out, fragment.variableNames.get(i));
+				CompiledConfiguration.writeString(out, fragment.variableValues.get(i));
+				CompiledConfiguration.writeString(out, fragment.variableDefaults.get(i));
+			}
+			CompiledConfiguration.writeStrings(out, fragment.includes);
+			CompiledConfiguration.writeStrings(out, fragment.excludes);
+			out.flush();
+
+			// Written aside then moved : concurrent JVMs never read a partial file. Owner only on POSIX
+			Path temporary = Files.createTempFile(cacheFile.getParentFile().toPath(), "fragment", ".tmp");
+			Files.write(temporary, bytes.toByteArray());
+			try {
+				Files.move(temporary, cacheFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException ex) {
+				Files.deleteIfExists(temporary);
+				throw ex;
+			}
+		} catch (IOException | SecurityException ex) {
+			BootLogger.debug("Agent configuration fragment cache {} cannot be written : {}", cacheFile, ex);
+		}
+	}
+
+	private static File resolve(File baseDirectory, Element importElement) {
+		File file = new File(importElement.getAttribute("file"));
+		return file.isAbsolute() || baseDirectory == null ? file : new File(baseDirectory, file.getPath());
+	}
+
+	private static Element createTextElement(Document document, String name, String text) {
+		Element element = document.createElement(name);
+		element.appendChild(document.createTextNode(text));
+		return element;
+	}
+
+	private static List<Element> getChildElements(Element parent, String name) {
+		List<Element> elements = new ArrayList<>();
+		for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling())
+			if (child.getNodeType() == Node.ELEMENT_NODE && child.getNodeName().equals(name))
+				elements.add((Element)child);
+		return elements;
+	}
+
+	static String hash(byte[] content) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+			StringBuilder hex = new StringBuilder(digest.length * 2);
+			for (byte b : digest)
+				hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			return hex.toString();
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException("SHA-256 is not available.", ex);
+		}
+	}
+}
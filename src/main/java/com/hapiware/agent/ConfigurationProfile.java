@@ -0,0 +1,336 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.w3c.dom.CDATASection;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.w3c.dom.Text;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.DefaultHandler2;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * {@code ConfigurationProfile} selects the {@code <profile name="...">} sections of the agent
+ * configuration file. The active profile is given by the {@code jeyzer.agent.profile} option :
+ * <pre>
+ * 	-javaagent:jeyzer-agent.jar=agent.xml;jeyzer.agent.profile=test
+ * </pre>
+ * A profile section can be put anywhere in the configuration, except in the
+ * {@code /agent/configuration/custom} element. Its content replaces it if the section is
+ * selected, otherwise the section is dropped. The {@code name} attribute can list several
+ * profiles, separated by commas :
+ * <pre>
+ * {@code
+ * 	<filter>
+ * 		<include>^com/mycompany/.+</include>
+ * 		<profile name="test,dev">
+ * 			<include>^org/junit/.+</include>
+ * 		</profile>
+ * 	</filter>}
+ * </pre>
+ * The configuration file is parsed with a SAX parser which builds the DOM document of the active
+ * profile only : the unselected sections are skipped at the token level and never reach the
+ * schema validation, the fragment imports nor the variable resolution. The other nodes (comments,
+ * CDATA sections and processing instructions) are kept as a {@code DocumentBuilder} would.
+ * <p>
+ * {@code <level name="...">} sections are processed the same way for the active instrumentation
+ * level (see {@link InstrumentationLevels}), which can be switched at runtime.
+ * <p>
+ * The {@link AgentConfigCompiler} compiles one configuration per declared profile and level.
+ *
+ * @author jeyzer
+ *
+ */
+final class ConfigurationProfile {
+
+	static final String PROFILE_ELEMENT = "profile";
+	static final String LEVEL_ELEMENT = "level";
+
+	private static final String NAME_ATTRIBUTE = "name";
+	private static final String CUSTOM_ELEMENT = "custom";
+	private static final String LEXICAL_HANDLER_PROPERTY = "http://xml.org/sax/properties/lexical-handler";
+
+	private ConfigurationProfile() {
+	}
+
+	/**
+	 * @return the active profile, null if none
+	 */
+	static String getProfile(Map<String, String> agentParams) {
+		String profile = Agent.getOption(agentParams, Agent.OPTION_PROFILE);
+		if (profile == null || profile.trim().isEmpty())
+			return null;
+		return profile.trim();
+	}
+
+	/**
+	 * @return the key of the compiled configuration entry for the given profile and level, null
+	 * 		for the default entry
+	 */
+	static String getSelectionKey(String profile, String level) {
+		if (level == null)
+			return profile;
+		return (profile != null ? profile : "") + "@" + level;
+	}
+
+	/**
+	 * @return true if the profile (or level) section {@code name} attribute lists the active one
+	 */
+	static boolean isSelected(String names, String profile) {
+		if (profile == null || names == null)
+			return false;
+		for (String name : names.split(","))
+			if (profile.equals(name.trim()))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Parses the configuration file into the DOM document of the given profile and level.
+	 *
+	 * @param profile
+	 * 		The active profile. Null to drop all the profile sections.
+	 * @param level
+	 * 		The active instrumentation level. Null to drop all the level sections.
+	 */
+	static Document parse(File configFile, String profile, String level)
+			throws ParserConfigurationException, SAXException, IOException {
+		Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+		ProfileDocumentBuilder builder = new ProfileDocumentBuilder(document, profile, level);
+		SAXParser parser = SAXParserFactory.newInstance().newSAXParser();
+		parser.setProperty(LEXICAL_HANDLER_PROPERTY, builder);
+		parser.parse(configFile, builder);
+		return document;
+	}
+
+	/**
+	 * @return the profiles declared in the configuration file, in the document order
+	 */
+	static Set<String> getProfileNames(File configFile) throws ParserConfigurationException, SAXException, IOException {
+		return getSectionNames(configFile, PROFILE_ELEMENT);
+	}
+
+	/**
+	 * @return the instrumentation levels declared in the configuration file, in the document order
+	 */
+	static Set<String> getLevelNames(File configFile) throws ParserConfigurationException, SAXException, IOException {
+		return getSectionNames(configFile, LEVEL_ELEMENT);
+	}
+
+	private static Set<String> getSectionNames(File configFile, final String sectionElement)
+			throws ParserConfigurationException, SAXException, IOException {
+		final Set<String> names = new LinkedHashSet<>();
+		SAXParserFactory.newInstance().newSAXParser().parse(configFile, new DefaultHandler() {
+			private int customDepth;
+
+			@Override
+			public void startElement(String uri, String localName, String qName, Attributes attributes) {
+				if (customDepth > 0 || CUSTOM_ELEMENT.equals(qName)) {
+					customDepth++;
+					return;
+				}
+				if (sectionElement.equals(qName) && attributes.getValue(NAME_ATTRIBUTE) != null)
+					for (String name : attributes.getValue(NAME_ATTRIBUTE).split(","))
+						if (!name.trim().isEmpty())
+							names.add(name.trim());
+			}
+
+			@Override
+			public void endElement(String uri, String localName, String qName) {
+				if (customDepth > 0)
+					customDepth--;
+			}
+		});
+		return names;
+	}
+
+	/**
+	 * Applies the profile and level selection on an already parsed configuration document : the
+	 * selected sections are replaced by their content, the other ones are removed.
+	 */
+	static void selectProfiles(Document configDocument, String profile, String level) {
+		selectSections(configDocument, PROFILE_ELEMENT, profile);
+		selectSections(configDocument, LEVEL_ELEMENT, level);
+	}
+
+	private static void selectSections(Document configDocument, String sectionElement, String selected) {
+		NodeList sections = configDocument.getElementsByTagName(sectionElement);
+		if (sections.getLength() == 0)
+			return;
+
+		// The node list is live : copy it first
+		List<Element> elements = new ArrayList<>(sections.getLength());
+		for (int i = 0; i < sections.getLength(); i++)
+			elements.add((Element)sections.item(i));
+
+		for (Element section : elements) {
+			// Sections dropped with an enclosing one are detached
+			if (!isAttached(section) || isInCustom(section))
+				continue;
+			Node parent = section.getParentNode();
+			if (isSelected(section.getAttribute(NAME_ATTRIBUTE), selected))
+				while (section.getFirstChild() != null)
+					parent.insertBefore(section.getFirstChild(), section);
+			parent.removeChild(section);
+		}
+	}
+
+	private static boolean isInCustom(Node node) {
+		for (Node parent = node.getParentNode(); parent != null; parent = parent.getParentNode())
+			if (CUSTOM_ELEMENT.equals(parent.getNodeName()))
+				return true;
+		return false;
+	}
+
+	private static boolean isAttached(Node node) {
+		Node parent = node.getParentNode();
+		while (parent != null && parent.getNodeType() != Node.DOCUMENT_NODE)
+			parent = parent.getParentNode();
+		return parent != null;
+	}
+
+	/**
+	 * Builds the DOM document from the SAX events, skipping the unselected profile and level
+	 * sections.
+	 */
+	private static final class ProfileDocumentBuilder extends DefaultHandler2 {
+
+		private final Document document;
+		private final String profile;
+		private final String level;
+
+		// Whether each open element was added to the document
+		private final Deque<Boolean> created = new ArrayDeque<>();
+		private Node current;
+		private int skipDepth;
+		private int customDepth;
+		private boolean inDtd;
+		private CDATASection cdata;
+
+		ProfileDocumentBuilder(Document document, String profile, String level) {
+			this.document = document;
+			this.profile = profile;
+			this.level = level;
+			this.current = document;
+		}
+
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes attributes) {
+			if (skipDepth > 0) {
+				skipDepth++;
+				return;
+			}
+
+			boolean profileSection = PROFILE_ELEMENT.equals(qName);
+			if (customDepth == 0 && (profileSection || LEVEL_ELEMENT.equals(qName))) {
+				if (isSelected(attributes.getValue(NAME_ATTRIBUTE), profileSection ? profile : level))
+					created.push(Boolean.FALSE);
+				else
+					skipDepth = 1;
+				return;
+			}
+
+			Element element = document.createElement(qName);
+			for (int i = 0; i < attributes.getLength(); i++)
+				element.setAttribute(attributes.getQName(i), attributes.getValue(i));
+			current.appendChild(element);
+			current = element;
+			created.push(Boolean.TRUE);
+			if (customDepth > 0 || CUSTOM_ELEMENT.equals(qName))
+				customDepth++;
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) {
+			if (skipDepth > 0) {
+				skipDepth--;
+				return;
+			}
+			if (created.pop()) {
+				current = current.getParentNode();
+				if (customDepth > 0)
+					customDepth--;
+			}
+		}
+
+		@Override
+		public void characters(char[] ch, int start, int length) {
+			if (skipDepth > 0 || current == document)
+				return;
+			if (cdata != null) {
+				cdata.appendData(new String(ch, start, length));
+				return;
+			}
+			Node last = current.getLastChild();
+			if (last != null && last.getNodeType() == Node.TEXT_NODE)
+				((Text)last).appendData(new String(ch, start, length));
+			else
+				current.appendChild(document.createTextNode(new String(ch, start, length)));
+		}
+
+		@Override
+		public void startCDATA() {
+			if (skipDepth > 0 || current == document)
+				return;
+			cdata = document.createCDATASection("");
+			current.appendChild(cdata);
+		}
+
+		@Override
+		public void endCDATA() {
+			cdata = null;
+		}
+
+		@Override
+		public void comment(char[] ch, int start, int length) {
+			// The DTD comments are not part of the document content
+			if (skipDepth == 0 && !inDtd)
+				current.appendChild(document.createComment(new String(ch, start, length)));
+		}
+
+		@Override
+		public void processingInstruction(String target, String data) {
+			if (skipDepth == 0)
+				current.appendChild(document.createProcessingInstruction(target, data));
+		}
+
+		@Override
+		public void startDTD(String name, String publicId, String systemId) {
+			inDtd = true;
+		}
+
+		@Override
+		public void endDTD() {
+			inDtd = false;
+		}
+	}
+}
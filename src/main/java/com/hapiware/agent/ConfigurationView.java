@@ -0,0 +1,193 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * {@code ConfigurationView} is the DOM free view of the {@code /agent/configuration/custom}
+ * element, handed over to the agent delegates declaring the
+ * {@code static Object unmarshall(ConfigurationView)} method instead of the
+ * {@code static Object unmarshall(org.w3c.dom.Element)} one.
+ * <p>
+ * The view only keeps the XML text of the {@code custom} element. It can be read either :
+ * <ul>
+ * 		<li>with {@link #createReader()}, which streams the XML text</li>
+ * 		<li>
+ * 			by path, relative to the {@code custom} element : {@code "a/b"} for the text of the
+ * 			{@code <a><b>} elements, {@code "a/@name"} for their {@code name} attribute. The path
+ * 			index is built from the XML text on first access.
+ * 		</li>
+ * </ul>
+ * {@code ConfigurationView} is thread safe.
+ *
+ * @author jeyzer
+ *
+ */
+public final class ConfigurationView {
+
+	private final String xml;
+	private volatile Map<String, List<String>> index;
+
+	ConfigurationView(String xml) {
+		this.xml = xml;
+	}
+
+	/**
+	 * @return the first value found at the given path, null if none
+	 */
+	public String get(String path) {
+		List<String> values = getIndex().get(path);
+		return values == null ? null : values.get(0);
+	}
+
+	/**
+	 * @return the first value found at the given path, the default value if none
+	 */
+	public String get(String path, String defaultValue) {
+		String value = get(path);
+		return value != null ? value : defaultValue;
+	}
+
+	/**
+	 * @return all the values found at the given path, in the document order
+	 */
+	public List<String> getAll(String path) {
+		List<String> values = getIndex().get(path);
+		return values != null ? values : Collections.<String>emptyList();
+	}
+
+	/**
+	 * @return all the element and attribute paths, in the document order
+	 */
+	public Set<String> getPaths() {
+		return getIndex().keySet();
+	}
+
+	/**
+	 * Streams the {@code custom} element. Each call creates a new reader : the caller must close it.
+	 *
+	 * @throws XMLStreamException
+	 * 		If the reader cannot be created.
+	 */
+	public XMLStreamReader createReader() throws XMLStreamException {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		return factory.createXMLStreamReader(new StringReader(xml));
+	}
+
+	/**
+	 * @return the XML text of the {@code custom} element
+	 */
+	public String toXml() {
+		return xml;
+	}
+
+	@Override
+	public String toString() {
+		return "ConfigurationView[" + xml.length() + " characters]";
+	}
+
+	private Map<String, List<String>> getIndex() {
+		Map<String, List<String>> result = index;
+		if (result == null) {
+			synchronized (this) {
+				result = index;
+				if (result == null) {
+					result = buildIndex();
+					index = result;
+				}
+			}
+		}
+		return result;
+	}
+
+	private Map<String, List<String>> buildIndex() {
+		Map<String, List<String>> values = new LinkedHashMap<>();
+		Deque<String> paths = new ArrayDeque<>();
+		Deque<StringBuilder> texts = new ArrayDeque<>();
+		XMLStreamReader reader = null;
+		try {
+			reader = createReader();
+			while (reader.hasNext()) {
+				switch (reader.next()) {
+				case XMLStreamConstants.START_ELEMENT:
+					// The custom element is the root : its children paths start from there
+					String path = paths.isEmpty()
+							? ""
+							: paths.peek().isEmpty() ? reader.getLocalName() : paths.peek() + "/" + reader.getLocalName();
+					paths.push(path);
+					texts.push(new StringBuilder());
+					for (int i = 0; i < reader.getAttributeCount(); i++)
+						add(values, path.isEmpty() ? "@" + reader.getAttributeLocalName(i) : path + "/@" + reader.getAttributeLocalName(i),
+								reader.getAttributeValue(i));
+					break;
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+					if (!texts.isEmpty())
+						texts.peek().append(reader.getText());
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					String elementPath = paths.pop();
+					String text = texts.pop().toString().trim();
+					if (!elementPath.isEmpty())
+						add(values, elementPath, text);
+					break;
+				default:
+					break;
+				}
+			}
+		} catch (XMLStreamException ex) {
+			throw new IllegalStateException("The /agent/configuration/custom element cannot be read.", ex);
+		} finally {
+			close(reader);
+		}
+
+		for (Map.Entry<String, List<String>> entry : values.entrySet())
+			entry.setValue(Collections.unmodifiableList(entry.getValue()));
+		return Collections.unmodifiableMap(values);
+	}
+
+	private static void add(Map<String, List<String>> values, String path, String value) {
+		List<String> list = values.get(path);
+		if (list == null) {
+			list = new ArrayList<>(1);
+			values.put(path, list);
+		}
+		list.add(value);
+	}
+
+	private static void close(XMLStreamReader reader) {
+		if (reader == null)
+			return;
+		try {
+			reader.close();
+		} catch (XMLStreamException ex) {
+			// ignore
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code ConfigurationWatcher} watches the agent configuration file and notifies its listener once
+ * the file has changed. Bursts of changes (editors usually write a file several times) are debounced :
+ * the listener is called once the file has not changed for the debounce period.
+ * <p>
+ * The watcher runs on its own daemon thread.
+ *
+ * @author jeyzer
+ *
+ */
+class ConfigurationWatcher implements Runnable {
+
+	private final Path configFile;
+	private final long debounceMillis;
+	private final Runnable listener;
+
+	private ConfigurationWatcher(Path configFile, long debounceMillis, Runnable listener) {
+		this.configFile = configFile;
+		this.debounceMillis = debounceMillis;
+		this.listener = listener;
+	}
+
+	/**
+	 * Starts watching the given configuration file.
+	 *
+	 * @param listener
+	 * 		Called on the watcher thread once the file has changed.
+	 */
+	static void start(File configFile, long debounceMillis, Runnable listener) throws IOException {
+		ConfigurationWatcher watcher = new ConfigurationWatcher(
+				configFile.getCanonicalFile().toPath(),
+				debounceMillis,
+				listener
+				);
+		Thread thread = new Thread(watcher, "Jeyzer agent configuration watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void run() {
+		try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+			configFile.getParent().register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+			BootLogger.debug("Watching the agent configuration file {}", configFile);
+
+			while (true) {
+				WatchKey key = watchService.take();
+				boolean changed = isConfigFileChanged(key);
+				if (!changed)
+					continue;
+
+				// Debounce
+				WatchKey next;
+				while ((next = watchService.poll(debounceMillis, TimeUnit.MILLISECONDS)) != null)
+					isConfigFileChanged(next);
+
+				try {
+					listener.run();
+				} catch (Throwable ex) {
+					BootLogger.error("Agent configuration reload failed.", ex);
+				}
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} catch (IOException | RuntimeException ex) {
+			BootLogger.error("Failed to watch the agent configuration file " + configFile + ". Configuration reload is disabled.", ex);
+		}
+	}
+
+	private boolean isConfigFileChanged(WatchKey key) {
+		boolean changed = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == OVERFLOW || configFile.getFileName().equals(event.context()))
+				changed = true;
+		}
+		key.reset();
+		return changed;
+	}
+}
@@ -0,0 +1,97 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.util.Collections;
+import java.util.List;
+
+import org.w3c.dom.Element;
+
+/**
+ * {@code DelegateDefinition} is the raw content of one {@code /agent/delegate} element once the
+ * agent variables have been resolved : nothing is compiled nor checked yet.
+ * <p>
+ * {@code DelegateDefinition} is <b>immutable</b>.
+ *
+ * @author jeyzer
+ *
+ */
+class DelegateDefinition {
+
+	private final String delegateAgentName;
+	private final List<String> classpaths;
+	private final List<String> includes;
+	private final List<String> excludes;
+	private final Element configurationElement;
+	private final List<String> budget;
+	private final List<String> sampling;
+
+	DelegateDefinition(
+			String delegateAgentName,
+			List<String> classpaths,
+			List<String> includes,
+			List<String> excludes,
+			Element configurationElement,
+			List<String> budget,
+			List<String> sampling) {
+		this.delegateAgentName = delegateAgentName;
+		this.classpaths = Collections.unmodifiableList(classpaths);
+		this.includes = Collections.unmodifiableList(includes);
+		this.excludes = Collections.unmodifiableList(excludes);
+		this.configurationElement = configurationElement;
+		this.budget = Collections.unmodifiableList(budget);
+		this.sampling = Collections.unmodifiableList(sampling);
+	}
+
+	String getDelegateAgentName() {
+		return delegateAgentName;
+	}
+
+	List<String> getClasspaths() {
+		return classpaths;
+	}
+
+	/**
+	 * @return the include regular expressions. Never empty.
+	 */
+	List<String> getIncludes() {
+		return includes;
+	}
+
+	List<String> getExcludes() {
+		return excludes;
+	}
+
+	/**
+	 * @return the {@code configuration} element of the delegate, or the {@code /agent} one. Can be null.
+	 */
+	Element getConfigurationElement() {
+		return configurationElement;
+	}
+
+	/**
+	 * @return the raw overhead budget attribute values of the delegate, or of the {@code /agent}
+	 * 		one (see {@link OverheadBudget#toAttributes(String, String, String)}). Empty if none.
+	 */
+	List<String> getBudget() {
+		return budget;
+	}
+
+	/**
+	 * @return the raw sampling attribute values of the delegate, or of the {@code /agent} one
+	 * 		(see {@link TransformSampler#toAttributes(String, String)}). Empty if none.
+	 */
+	List<String> getSampling() {
+		return sampling;
+	}
+}
@@ -0,0 +1,119 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.lang.instrument.Instrumentation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ExecutorService;
+import java.util.regex.Pattern;
+
+import org.w3c.dom.Element;
+
+/**
+ * {@code DelegateMethods} holds the method handles of the static methods of an agent delegate class.
+ * <p>
+ * The methods are resolved once per class. Each handle is adapted to one of the exact types declared
+ * here, so that it can be called with {@code invokeExact}. Entry points are looked up in this order :
+ * {@link #CONTEXT_TYPE}, {@link #EXECUTOR_TYPE}, {@link #LEGACY_TYPE}. The unmarshall method is
+ * looked up with {@link #UNMARSHALL_VIEW_TYPE} first, then {@link #UNMARSHALL_TYPE}.
+ *
+ * @author jeyzer
+ *
+ */
+final class DelegateMethods {
+
+	static final MethodType CONTEXT_TYPE =
+			MethodType.methodType(void.class, AgentContext.class);
+	static final MethodType EXECUTOR_TYPE =
+			MethodType.methodType(void.class, Pattern[].class, Pattern[].class, Object.class, Instrumentation.class, ExecutorService.class);
+	static final MethodType LEGACY_TYPE =
+			MethodType.methodType(void.class, Pattern[].class, Pattern[].class, Object.class, Instrumentation.class);
+	static final MethodType RECONFIGURE_TYPE =
+			MethodType.methodType(void.class, Pattern[].class, Pattern[].class, Object.class);
+	static final MethodType UNMARSHALL_TYPE =
+			MethodType.methodType(Object.class, Element.class);
+	static final MethodType UNMARSHALL_VIEW_TYPE =
+			MethodType.methodType(Object.class, ConfigurationView.class);
+
+	private static final ClassValue<DelegateMethods> METHODS = new ClassValue<DelegateMethods>() {
+		@Override
+		protected DelegateMethods computeValue(Class<?> delegateAgentClass) {
+			return new DelegateMethods(delegateAgentClass);
+		}
+	};
+
+	private final MethodHandle premain;
+	private final MethodHandle agentmain;
+	private final MethodHandle reconfigure;
+	private final MethodHandle unmarshall;
+
+	private DelegateMethods(Class<?> delegateAgentClass) {
+		this.premain = findStatic(delegateAgentClass, "premain", CONTEXT_TYPE, EXECUTOR_TYPE, LEGACY_TYPE);
+		this.agentmain = findStatic(delegateAgentClass, "agentmain", CONTEXT_TYPE, EXECUTOR_TYPE, LEGACY_TYPE);
+		this.reconfigure = findStatic(delegateAgentClass, "reconfigure", CONTEXT_TYPE, RECONFIGURE_TYPE);
+		this.unmarshall = findStatic(delegateAgentClass, "unmarshall", UNMARSHALL_VIEW_TYPE, UNMARSHALL_TYPE);
+	}
+
+	static DelegateMethods get(Class<?> delegateAgentClass) {
+		return METHODS.get(delegateAgentClass);
+	}
+
+	/**
+	 * @return the premain handle, null if not defined
+	 */
+	MethodHandle getPremain() {
+		return premain;
+	}
+
+	/**
+	 * @return the agentmain handle, null if not defined
+	 */
+	MethodHandle getAgentmain() {
+		return agentmain;
+	}
+
+	/**
+	 * @return the reconfigure handle, null if not defined
+	 */
+	MethodHandle getReconfigure() {
+		return reconfigure;
+	}
+
+	/**
+	 * @return the unmarshall handle, null if not defined
+	 */
+	MethodHandle getUnmarshall() {
+		return unmarshall;
+	}
+
+	private static MethodHandle findStatic(Class<?> delegateAgentClass, String name, MethodType... types) {
+		for (MethodType type : types) {
+			try {
+				// Reflective lookup first : the declared return type can be more specific
+				Method method = delegateAgentClass.getMethod(name, type.parameterArray());
+				if (!Modifier.isStatic(method.getModifiers()))
+					continue;
+				return MethodHandles.publicLookup().unreflect(method).asType(type);
+			} catch (NoSuchMethodException ex) {
+				// try next
+			} catch (IllegalAccessException | SecurityException ex) {
+				BootLogger.warning("Method " + name + type + " of " + delegateAgentClass.getName() + " is not accessible : " + ex.getMessage());
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,48 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.security.ProtectionDomain;
+
+/**
+ * {@code DispatchingTransformer} is the base of the agent transformers. From Java 9, the JVM calls
+ * the module aware {@code transform} method : the module of the class is kept to be handed over to
+ * the delegate transformers, which may implement that method only (see {@link TransformerChain}).
+ * Before Java 9, the module is null.
+ *
+ * @author jeyzer
+ *
+ */
+abstract class DispatchingTransformer implements ClassFileTransformer {
+
+	@Override
+	public final byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+			ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException {
+		return transformClass(null, loader, className, classBeingRedefined, protectionDomain, classfileBuffer);
+	}
+
+	@Override
+	public final byte[] transform(Module module, ClassLoader loader, String className, Class<?> classBeingRedefined,
+			ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException {
+		return transformClass(module, loader, className, classBeingRedefined, protectionDomain, classfileBuffer);
+	}
+
+	/**
+	 * @param module
+	 * 		The {@code java.lang.Module} of the class, null before Java 9.
+	 */
+	abstract byte[] transformClass(Object module, ClassLoader loader, String className, Class<?> classBeingRedefined,
+			ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException;
+}
@@ -0,0 +1,168 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.instrument.Instrumentation;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.xml.sax.SAXException;
+
+import com.hapiware.agent.Agent.DelegateAgent;
+
+/**
+ * {@code InstrumentationLevels} switches the instrumentation level of the running agents, for
+ * example from a full instrumentation off-peak to a light one under load, without restart.
+ * <p>
+ * A level is declared by {@code <level name="...">} sections, which can wrap any part of the
+ * configuration like the profile sections (see {@link ConfigurationProfile}) : typically filter
+ * patterns and delegate configuration elements. The initial level is given by the
+ * {@code jeyzer.agent.level} option, none by default :
+ * <pre>
+ * {@code
+ * 	<filter>
+ * 		<include>^com/mycompany/api/.+</include>
+ * 		<level name="full">
+ * 			<include>^com/mycompany/.+</include>
+ * 		</level>
+ * 	</filter>}
+ * </pre>
+ * Switching the level (see {@link AgentMXBean#setInstrumentationLevel(String)}) reloads the
+ * configuration of every agent instance of the JVM with the sections of the new level : each
+ * delegate is handed over its new configuration through its {@code reconfigure} method, and the
+ * loaded classes whose decision changed for the compiled filters are retransformed in batches
+ * (see the {@code jeyzer.agent.retransform.batch.size} and {@code jeyzer.agent.retransform.batch.pause}
+ * options). Delegates using the {@link AgentContext} get the new level from
+ * {@link AgentContext#getInstrumentationLevel()}.
+ *
+ * @author jeyzer
+ *
+ */
+final class InstrumentationLevels {
+
+	private static final List<AgentInstance> instances = new CopyOnWriteArrayList<>();
+
+	// Once switched, the runtime level replaces the jeyzer.agent.level option
+	private static volatile boolean switched;
+	private static volatile String level;
+
+	private InstrumentationLevels() {
+	}
+
+	/**
+	 * @return the active instrumentation level, null if none
+	 */
+	static String getLevel(Map<String, String> agentParams) {
+		if (switched)
+			return level;
+		String option = Agent.getOption(agentParams, Agent.OPTION_LEVEL);
+		if (option == null || option.trim().isEmpty())
+			return null;
+		return option.trim();
+	}
+
+	/**
+	 * @return the active instrumentation level of the agent instances, null if none
+	 */
+	static String getActiveLevel() {
+		if (switched || instances.isEmpty())
+			return level;
+		return getLevel(instances.get(0).agentParams);
+	}
+
+	/**
+	 * Registers a booted agent instance, reconfigured on each level switch.
+	 */
+	static void register(Map<String, String> agentParams, Instrumentation instrumentation, List<DelegateAgent> delegates) {
+		instances.add(new AgentInstance(agentParams, instrumentation, delegates));
+	}
+
+	/**
+	 * @return the levels declared in the configuration files of the agent instances
+	 */
+	static Set<String> getLevels() {
+		Set<String> levels = new LinkedHashSet<>();
+		for (AgentInstance instance : instances) {
+			File configFile = new File(instance.agentParams.get(Agent.AGENT_CONFIGURATION_PATH));
+			try {
+				if (CompiledConfiguration.isCompiledConfiguration(configFile.getPath()))
+					levels.addAll(CompiledConfiguration.read(configFile.toPath()).getLevels());
+				else
+					levels.addAll(ConfigurationProfile.getLevelNames(configFile));
+			} catch (ParserConfigurationException | SAXException | IOException | RuntimeException ex) {
+				BootLogger.warning("Instrumentation levels of the agent configuration file \"" + configFile
+						+ "\" cannot be read : " + ex);
+			}
+		}
+		return levels;
+	}
+
+	/**
+	 * Switches the instrumentation level of all the agent instances. Returns once the delegates
+	 * are reconfigured and the affected classes retransformed.
+	 *
+	 * @param newLevel
+	 * 		The new level. Null or empty for none : all the level sections are dropped.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If the level is not declared in the agent configuration.
+	 */
+	static synchronized void switchTo(String newLevel) {
+		String target = newLevel != null && !newLevel.trim().isEmpty() ? newLevel.trim() : null;
+		if (target != null && !getLevels().contains(target))
+			throw new IllegalArgumentException("Instrumentation level " + target + " is not declared in the agent configuration.");
+
+		String previous = getActiveLevel();
+		level = target;
+		switched = true;
+		BootLogger.debug("Switching the instrumentation level from {} to {}.", previous, target);
+
+		for (AgentInstance instance : instances) {
+			if (!instance.instrumentation.isRetransformClassesSupported()) {
+				BootLogger.warning("Switching the instrumentation level requires the class retransformation support. The agent "
+						+ instance.agentParams.get(Agent.AGENT_CONFIGURATION_PATH) + " is not reconfigured.");
+				continue;
+			}
+			Agent.reloadConfiguration(instance.agentParams, instance.instrumentation, instance.delegates);
+		}
+	}
+
+	/**
+	 * Resets the runtime level. Test purposes.
+	 */
+	static synchronized void reset() {
+		instances.clear();
+		switched = false;
+		level = null;
+	}
+
+	private static final class AgentInstance {
+
+		private final Map<String, String> agentParams;
+		private final Instrumentation instrumentation;
+		private final List<DelegateAgent> delegates;
+
+		AgentInstance(Map<String, String> agentParams, Instrumentation instrumentation, List<DelegateAgent> delegates) {
+			this.agentParams = agentParams;
+			this.instrumentation = instrumentation;
+			this.delegates = delegates;
+		}
+	}
+}
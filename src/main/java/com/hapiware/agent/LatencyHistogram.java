@@ -0,0 +1,149 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@code LatencyHistogram} is a lock free log-linear histogram of nanosecond latencies, in the
+ * HDR histogram style : each power of two range is split in {@value #SUB_BUCKETS} linear
+ * sub-buckets, which bounds the relative error of the reported percentiles to 12.5%. Values
+ * above 2^{@value #MAX_EXPONENT} nanoseconds (about 18 minutes) are counted in the last bucket.
+ * <p>
+ * The memory is fixed : {@value #BUCKET_COUNT} counters. Recording is wait free, except for a
+ * new maximum value.
+ *
+ * @author jeyzer
+ *
+ */
+final class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	static final int MAX_EXPONENT = 40;
+	static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		counts.incrementAndGet(bucketIndex(nanos));
+		totalNanos.addAndGet(nanos);
+		long max = maxNanos.get();
+		while (nanos > max && !maxNanos.compareAndSet(max, nanos))
+			max = maxNanos.get();
+	}
+
+	static int bucketIndex(long nanos) {
+		if (nanos < SUB_BUCKETS)
+			return (int)nanos;
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		if (exponent > MAX_EXPONENT)
+			return BUCKET_COUNT - 1;
+		int subBucket = (int)(nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * @return the highest value counted in the given bucket
+	 */
+	static long bucketUpperBound(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long subBucket = index % SUB_BUCKETS;
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		return (1L << exponent) + (subBucket + 1) * width - 1;
+	}
+
+	/**
+	 * @return the number of recorded values, read from the live counters
+	 */
+	long getCount() {
+		long count = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++)
+			count += counts.get(i);
+		return count;
+	}
+
+	long getTotalNanos() {
+		return totalNanos.get();
+	}
+
+	long getMaxNanos() {
+		return maxNanos.get();
+	}
+
+	/**
+	 * Reads the percentile from the live counters, without copying them. Concurrent recordings may
+	 * shift the result by one bucket.
+	 *
+	 * @param count
+	 * 		The number of recorded values, as returned by {@link #getCount()}
+	 */
+	long getPercentile(double percentile, long count) {
+		if (count == 0)
+			return 0;
+		long rank = Math.max(1, (long)Math.ceil(count * percentile));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += counts.get(i);
+			if (seen >= rank)
+				return Math.min(bucketUpperBound(i), maxNanos.get());
+		}
+		return maxNanos.get();
+	}
+
+	void reset() {
+		for (int i = 0; i < BUCKET_COUNT; i++)
+			counts.set(i, 0);
+		totalNanos.set(0);
+		maxNanos.set(0);
+	}
+
+	/**
+	 * @return a snapshot of the histogram. Concurrent recordings may be partially included.
+	 */
+	LatencySnapshot snapshot() {
+		long[] values = new long[BUCKET_COUNT];
+		long count = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			values[i] = counts.get(i);
+			count += values[i];
+		}
+		long max = maxNanos.get();
+		return new LatencySnapshot(
+				count,
+				totalNanos.get(),
+				Math.min(percentile(values, count, 0.50), max),
+				Math.min(percentile(values, count, 0.99), max),
+				max);
+	}
+
+	private static long percentile(long[] values, long count, double percentile) {
+		if (count == 0)
+			return 0;
+		long rank = Math.max(1, (long)Math.ceil(count * percentile));
+		long seen = 0;
+		for (int i = 0; i < values.length; i++) {
+			seen += values[i];
+			if (seen >= rank)
+				return bucketUpperBound(i);
+		}
+		return bucketUpperBound(values.length - 1);
+	}
+}
@@ -0,0 +1,67 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.util.Locale;
+
+/**
+ * Snapshot of a latency histogram. Percentiles are upper bounds, within 12.5% of the recorded
+ * values.
+ * <p>
+ * {@code LatencySnapshot} is <b>immutable</b>.
+ *
+ * @author jeyzer
+ *
+ */
+public class LatencySnapshot {
+
+	private final long count;
+	private final long totalNanos;
+	private final long p50Nanos;
+	private final long p99Nanos;
+	private final long maxNanos;
+
+	LatencySnapshot(long count, long totalNanos, long p50Nanos, long p99Nanos, long maxNanos) {
+		this.count = count;
+		this.totalNanos = totalNanos;
+		this.p50Nanos = p50Nanos;
+		this.p99Nanos = p99Nanos;
+		this.maxNanos = maxNanos;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getTotalNanos() {
+		return totalNanos;
+	}
+
+	public long getP50Nanos() {
+		return p50Nanos;
+	}
+
+	public long getP99Nanos() {
+		return p99Nanos;
+	}
+
+	public long getMaxNanos() {
+		return maxNanos;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.ENGLISH, "count %d, total %.3f ms, p50 %.3f ms, p99 %.3f ms, max %.3f ms",
+				count, totalNanos / 1e6, p50Nanos / 1e6, p99Nanos / 1e6, maxNanos / 1e6);
+	}
+}
@@ -0,0 +1,94 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.lang.instrument.IllegalClassFormatException;
+import java.security.ProtectionDomain;
+import java.util.List;
+
+/**
+ * {@code LazyBootTransformer} is the transformer registered on the JVM when the agent boots lazily.
+ * <p>
+ * It only evaluates the class filters until the first matching class gets loaded. The delegates are
+ * then booted on the loading thread and that class is handed over to the delegate transformers.
+ * Other threads loading a matching class in the meantime wait for the boot completion.
+ * <p>
+ * A failed boot is not retried.
+ *
+ * @author jeyzer
+ *
+ */
+class LazyBootTransformer extends DispatchingTransformer {
+
+	private final TransformerDispatcher dispatcher;
+	private final List<ClassFilter> filters;
+	// Released once run, with the configuration it holds
+	private Runnable booter;
+
+	private volatile boolean booted = false;
+	private volatile boolean failed = false;
+
+	/**
+	 * @param filters
+	 * 		The class filters of the delegates.
+	 * @param booter
+	 * 		Boots the delegates, registering their transformers on the dispatcher.
+	 */
+	LazyBootTransformer(TransformerDispatcher dispatcher, List<ClassFilter> filters, Runnable booter) {
+		this.dispatcher = dispatcher;
+		this.filters = filters;
+		this.booter = booter;
+	}
+
+	boolean isBooted() {
+		return booted;
+	}
+
+	@Override
+	byte[] transformClass(Object module, ClassLoader loader, String className, Class<?> classBeingRedefined,
+			ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException {
+		if (booted)
+			return dispatcher.dispatch(module, loader, className, classBeingRedefined, protectionDomain, classfileBuffer);
+
+		if (failed || classBeingRedefined != null || Agent.isBootThread() || !matches(className))
+			return null;
+
+		if (!boot(className))
+			return null;
+		return dispatcher.dispatch(module, loader, className, classBeingRedefined, protectionDomain, classfileBuffer);
+	}
+
+	private boolean matches(String className) {
+		for (ClassFilter filter : filters)
+			if (filter.matches(className))
+				return true;
+		return false;
+	}
+
+	private synchronized boolean boot(String className) {
+		if (booted || failed)
+			return booted;
+
+		BootLogger.debug("First matching class {} loaded. Booting the agent.", className);
+		try {
+			booter.run();
+			booted = true;
+		} catch (Throwable ex) {
+			failed = true;
+			BootLogger.error("Lazy agent boot failed.", ex);
+		} finally {
+			booter = null;
+		}
+		return booted;
+	}
+}
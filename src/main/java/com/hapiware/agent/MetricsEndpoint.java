@@ -0,0 +1,272 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * {@code MetricsEndpoint} serves the agent metrics in the Prometheus text format, on the
+ * {@code /metrics} path of an embedded HTTP server. It is started if the
+ * {@code jeyzer.agent.metrics.port} option (agent parameter or system property) is set, and binds
+ * to {@code 127.0.0.1} unless the {@code jeyzer.agent.metrics.host} option says otherwise. To
+ * expose it through a Unix socket, forward the socket to that local port.
+ * <p>
+ * Served metrics :
+ * <ul>
+ * 		<li>the agent readiness and the boot phase durations</li>
+ * 		<li>the {@link MetricsRegistry} counters : class filter, transformer, notifications and delegate ones</li>
+ * 		<li>the delegate class loader statistics</li>
+ * 		<li>the transform latencies per package, if recorded (see {@link TransformLatencies})</li>
+ * </ul>
+ * The response is rendered incrementally from the live counters and boot phases and streamed : no
+ * snapshot is taken, a scrape never blocks the class loading nor the agent boot.
+ *
+ * @author jeyzer
+ *
+ */
+final class MetricsEndpoint {
+
+	static final String PATH = "/metrics";
+	static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private static final String DEFAULT_HOST = "127.0.0.1";
+	private static final String THREAD_NAME = "Jeyzer agent metrics endpoint";
+	private static final double NANOS_PER_SECOND = 1e9;
+
+	private static HttpServer server;
+
+	private MetricsEndpoint() {
+	}
+
+	/**
+	 * Starts the endpoint if the {@code jeyzer.agent.metrics.port} option is set. The first agent
+	 * instance of the JVM starts it, the next ones share it.
+	 */
+	static synchronized void start(Map<String, String> agentParams) {
+		if (server != null)
+			return;
+		long port = Agent.getLongOption(agentParams, Agent.OPTION_METRICS_PORT, -1);
+		if (port < 0)
+			return;
+		String host = Agent.getOption(agentParams, Agent.OPTION_METRICS_HOST);
+		start(host == null || host.trim().isEmpty() ? DEFAULT_HOST : host.trim(), (int)port);
+	}
+
+	/**
+	 * @param port
+	 * 		The port, 0 for an ephemeral one
+	 *
+	 * @return the bound address, null if the server could not be started
+	 */
+	static synchronized InetSocketAddress start(final String host, final int port) {
+		if (server != null)
+			return server.getAddress();
+
+		// The HTTP server dispatcher thread inherits the daemon status : it must not hold the JVM exit
+		final Exception[] failure = new Exception[1];
+		Thread starter = new Thread(THREAD_NAME + " starter") {
+			@Override
+			public void run() {
+				try {
+					HttpServer created = HttpServer.create(new InetSocketAddress(host, port), 0);
+					created.createContext(PATH, new MetricsHandler());
+					created.start();
+					server = created;
+				} catch (IOException | RuntimeException ex) {
+					failure[0] = ex;
+				}
+			}
+		};
+		starter.setDaemon(true);
+		starter.start();
+		try {
+			starter.join();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+
+		if (server == null) {
+			BootLogger.warning("Agent metrics endpoint cannot be started on " + host + ":" + port + " : " + failure[0]);
+			return null;
+		}
+		TransformAccounting.enable();
+		BootLogger.debug("Agent metrics endpoint started on http://{}:{}{}", host, server.getAddress().getPort(), PATH);
+		return server.getAddress();
+	}
+
+	/**
+	 * Stops the endpoint. Test purposes.
+	 */
+	static synchronized void stop() {
+		if (server != null) {
+			server.stop(0);
+			server = null;
+		}
+	}
+
+	/**
+	 * Writes all the agent metrics in the Prometheus text format.
+	 */
+	static void render(Writer out) throws IOException {
+		out.write("# HELP jeyzer_agent_ready 1 once all the agent delegates are started.\n");
+		out.write("# TYPE jeyzer_agent_ready gauge\n");
+		out.write("jeyzer_agent_ready " + (Agent.isReady() ? 1 : 0) + "\n");
+
+		renderBootPhases(out);
+		renderCounters(out);
+		renderClassLoaders(out);
+		renderLatencies(out);
+	}
+
+	private static void renderBootPhases(Writer out) throws IOException {
+		out.write("# HELP jeyzer_agent_boot_phase_seconds Agent boot phase durations.\n");
+		out.write("# TYPE jeyzer_agent_boot_phase_seconds gauge\n");
+		for (String phase : Agent.getBootPhaseKeys())
+			sample(out, "jeyzer_agent_boot_phase_seconds", "phase", phase, Agent.getBootPhase(phase) / NANOS_PER_SECOND);
+	}
+
+	private static void renderCounters(Writer out) throws IOException {
+		for (Map.Entry<String, AtomicLong> counter : Agent.getMetrics().getLiveCounters().entrySet()) {
+			String name = toMetricName(counter.getKey()) + "_total";
+			out.write("# HELP " + name + " " + getHelp(counter.getKey()) + "\n");
+			out.write("# TYPE " + name + " counter\n");
+			out.write(name + " " + counter.getValue().get() + "\n");
+		}
+	}
+
+	private static String getHelp(String counter) {
+		switch (counter) {
+		case MetricsRegistry.FILTER_SEEN:
+			return "Classes examined by the delegate filters.";
+		case MetricsRegistry.FILTER_INCLUDED:
+			return "Classes included by the delegate filters.";
+		case MetricsRegistry.FILTER_EXCLUDED:
+			return "Classes excluded by the delegate filters.";
+		case MetricsRegistry.TRANSFORMER_CALLS:
+			return "Delegate transformer calls.";
+		case MetricsRegistry.TRANSFORMER_NANOS:
+			return "Time spent in the delegate transformers, in nanoseconds.";
+		case MetricsRegistry.TRANSFORMER_TRANSFORMED:
+			return "Classes transformed by the delegate transformers.";
+		case MetricsRegistry.NOTIFICATIONS_DELIVERED:
+			return "Class load notifications delivered to the listeners.";
+		case MetricsRegistry.NOTIFICATIONS_DROPPED:
+			return "Class load notifications dropped.";
+		default:
+			return "Delegate counter " + counter + ".";
+		}
+	}
+
+	private static void renderClassLoaders(Writer out) throws IOException {
+		out.write("# HELP jeyzer_agent_classloader_classes_defined_total Classes defined by the delegate class loaders.\n");
+		out.write("# TYPE jeyzer_agent_classloader_classes_defined_total counter\n");
+		for (AgentFootprint footprint : Agent.getFootprints())
+			sample(out, "jeyzer_agent_classloader_classes_defined_total", "delegate", footprint.getDelegateAgentName(),
+					footprint.getClassLoader().getClassesDefined());
+		out.write("# HELP jeyzer_agent_classloader_class_data_bytes_total Class data bytes read by the delegate class loaders.\n");
+		out.write("# TYPE jeyzer_agent_classloader_class_data_bytes_total counter\n");
+		for (AgentFootprint footprint : Agent.getFootprints())
+			sample(out, "jeyzer_agent_classloader_class_data_bytes_total", "delegate", footprint.getDelegateAgentName(),
+					footprint.getClassLoader().getClassDataBytes());
+		out.write("# HELP jeyzer_agent_classloader_find_class_seconds_total Time spent finding classes in the delegate class loaders.\n");
+		out.write("# TYPE jeyzer_agent_classloader_find_class_seconds_total counter\n");
+		for (AgentFootprint footprint : Agent.getFootprints())
+			sample(out, "jeyzer_agent_classloader_find_class_seconds_total", "delegate", footprint.getDelegateAgentName(),
+					footprint.getClassLoader().getFindClassNanos() / NANOS_PER_SECOND);
+		out.write("# HELP jeyzer_agent_classloader_misses_total Classes not found in the delegate class loader class paths.\n");
+		out.write("# TYPE jeyzer_agent_classloader_misses_total counter\n");
+		for (AgentFootprint footprint : Agent.getFootprints())
+			sample(out, "jeyzer_agent_classloader_misses_total", "delegate", footprint.getDelegateAgentName(),
+					footprint.getClassLoader().getMissCount());
+	}
+
+	private static void renderLatencies(final Writer out) throws IOException {
+		TransformLatencies latencies = TransformLatencies.get();
+		if (latencies == null)
+			return;
+		out.write("# HELP jeyzer_agent_transform_latency_seconds Delegate transform latencies per package.\n");
+		out.write("# TYPE jeyzer_agent_transform_latency_seconds summary\n");
+		latencies.visit(new TransformLatencies.HistogramVisitor() {
+			@Override
+			public void visit(String packageName, LatencyHistogram histogram) throws IOException {
+				long count = histogram.getCount();
+				if (count == 0)
+					return;
+				String label = "package=\"" + escape(packageName) + "\"";
+				out.write("jeyzer_agent_transform_latency_seconds{" + label + ",quantile=\"0.5\"} "
+						+ histogram.getPercentile(0.50, count) / NANOS_PER_SECOND + "\n");
+				out.write("jeyzer_agent_transform_latency_seconds{" + label + ",quantile=\"0.99\"} "
+						+ histogram.getPercentile(0.99, count) / NANOS_PER_SECOND + "\n");
+				out.write("jeyzer_agent_transform_latency_seconds{" + label + ",quantile=\"1\"} "
+						+ histogram.getMaxNanos() / NANOS_PER_SECOND + "\n");
+				out.write("jeyzer_agent_transform_latency_seconds_sum{" + label + "} "
+						+ histogram.getTotalNanos() / NANOS_PER_SECOND + "\n");
+				out.write("jeyzer_agent_transform_latency_seconds_count{" + label + "} " + count + "\n");
+			}
+		});
+	}
+
+	private static void sample(Writer out, String name, String label, String value, Object sample) throws IOException {
+		out.write(name + "{" + label + "=\"" + escape(value) + "\"} " + sample + "\n");
+	}
+
+	/**
+	 * @return the counter name with the characters not allowed in a metric name replaced by '_'
+	 */
+	static String toMetricName(String name) {
+		StringBuilder result = new StringBuilder(name.length());
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == ':'
+					|| (i > 0 && c >= '0' && c <= '9');
+			result.append(valid ? c : '_');
+		}
+		return result.toString();
+	}
+
+	static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	private static final class MetricsHandler implements HttpHandler {
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				if (!"GET".equals(exchange.getRequestMethod())) {
+					exchange.sendResponseHeaders(405, -1);
+					return;
+				}
+				exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+				// Chunked : streamed while rendered
+				exchange.sendResponseHeaders(200, 0);
+				try (Writer out = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8))) {
+					render(out);
+				}
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@code MetricsRegistry} holds the named counters of the agent and of its delegates.
+ * <p>
+ * There is one registry per JVM, shared by all the delegates : delegates should prefix their
+ * counter names (for example with their own package name) to avoid collisions.
+ * <p>
+ * {@code MetricsRegistry} is thread safe.
+ *
+ * @author jeyzer
+ *
+ */
+public class MetricsRegistry {
+
+	// Agent counters
+	static final String FILTER_SEEN = "jeyzer.agent.filter.seen";
+	static final String FILTER_INCLUDED = "jeyzer.agent.filter.included";
+	static final String FILTER_EXCLUDED = "jeyzer.agent.filter.excluded";
+	static final String TRANSFORMER_CALLS = "jeyzer.agent.transformer.calls";
+	static final String TRANSFORMER_NANOS = "jeyzer.agent.transformer.nanos";
+	static final String TRANSFORMER_TRANSFORMED = "jeyzer.agent.transformer.transformed";
+	static final String NOTIFICATIONS_DELIVERED = "jeyzer.agent.notifications.delivered";
+	static final String NOTIFICATIONS_DROPPED = "jeyzer.agent.notifications.dropped";
+
+	private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+
+	MetricsRegistry() {
+	}
+
+	/**
+	 * Returns the counter registered under the given name, creating it if needed.
+	 *
+	 * @param name
+	 * 		The counter name.
+	 *
+	 * @return the counter, to be cached by the caller on hot paths
+	 */
+	public AtomicLong counter(String name) {
+		AtomicLong counter = counters.get(name);
+		if (counter == null) {
+			AtomicLong created = new AtomicLong();
+			counter = counters.putIfAbsent(name, created);
+			if (counter == null)
+				counter = created;
+		}
+		return counter;
+	}
+
+	/**
+	 * @return a snapshot of the counter values, sorted by name
+	 */
+	public Map<String, Long> getCounters() {
+		Map<String, Long> snapshot = new TreeMap<>();
+		for (Map.Entry<String, AtomicLong> entry : counters.entrySet())
+			snapshot.put(entry.getKey(), entry.getValue().get());
+		return snapshot;
+	}
+
+	/**
+	 * @return the live counters, by name. Not sorted : iterating does not block the counter updates.
+	 */
+	Map<String, AtomicLong> getLiveCounters() {
+		return Collections.unmodifiableMap(counters);
+	}
+
+	/**
+	 * Sets all the counters to zero.
+	 */
+	void reset() {
+		for (AtomicLong counter : counters.values())
+			counter.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return getCounters().toString();
+	}
+}
@@ -0,0 +1,274 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@code MetricsSegment} publishes the agent counters and boot phase durations into a memory
+ * mapped file of fixed layout, the way the JVM publishes its hsperfdata. The segment is created in
+ * the {@code jeyzer.agent.metrics.segment} directory (agent parameter or system property), one
+ * file per JVM named after the process id, and deleted at JVM exit. The segment is disabled if
+ * the option is not set.
+ * <p>
+ * A background thread copies the counters every {@code jeyzer.agent.metrics.segment.period}
+ * milliseconds (1 second by default) with plain writes : the transformer hot path is not touched
+ * and no lock is taken. Each slot name is written before the slot count is raised, so a reader
+ * never sees an unnamed slot. Use the {@link MetricsSegmentReader} to read the segments of all the
+ * JVMs of a directory.
+ * <p>
+ * File format (big endian) :
+ * <pre>
+ * int     magic ("JZMS")
+ * int     format version
+ * long    process id, -1 if unknown
+ * long    JVM start time (epoch milliseconds)
+ * long    last update time (epoch milliseconds)
+ * int     slot count
+ * int     flags (1 : full)
+ * reserved up to 64 bytes
+ * slots, 64 bytes each :
+ *   long    value
+ *   byte    name length, then the UTF-8 name bytes (55 bytes at most)
+ * </pre>
+ * Longer names are cut and suffixed with {@code ~} and the hexadecimal hash of the full name, so
+ * that names sharing the same first 55 bytes still get distinct slots.
+ * Boot phases are published as {@code jeyzer.agent.boot.agent<index>.<phase>} slots, in nanoseconds.
+ *
+ * @author jeyzer
+ *
+ */
+final class MetricsSegment {
+
+	static final int MAGIC = 0x4A5A4D53;
+	static final int FORMAT_VERSION = 1;
+
+	static final int HEADER_SIZE = 64;
+	static final int PID_OFFSET = 8;
+	static final int START_TIME_OFFSET = 16;
+	static final int UPDATE_TIME_OFFSET = 24;
+	static final int COUNT_OFFSET = 32;
+	static final int FLAGS_OFFSET = 36;
+	static final int FLAG_FULL = 1;
+
+	static final int SLOT_SIZE = 64;
+	static final int MAX_NAME_LENGTH = SLOT_SIZE - 8 - 1;
+	static final int MAX_SLOTS = 256;
+
+	static final String FILE_EXTENSION = ".metrics";
+	static final String BOOT_PHASE_PREFIX = "jeyzer.agent.boot.";
+	static final char HASH_SEPARATOR = '~';
+
+	private static final String THREAD_NAME = "Jeyzer agent metrics segment";
+	private static final long DEFAULT_PERIOD = 1000;
+
+	private static MetricsSegment segment;
+
+	private final File file;
+	private final MappedByteBuffer buffer;
+
+	// Slot index by name. Guarded by this
+	private final Map<String, Integer> slots = new HashMap<>();
+
+	private MetricsSegment(File file, MappedByteBuffer buffer, long pid) {
+		this.file = file;
+		this.buffer = buffer;
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, FORMAT_VERSION);
+		buffer.putLong(PID_OFFSET, pid);
+		buffer.putLong(START_TIME_OFFSET, ManagementFactory.getRuntimeMXBean().getStartTime());
+	}
+
+	/**
+	 * Creates the metrics segment if the {@code jeyzer.agent.metrics.segment} option is set, and
+	 * starts its publication. The first agent instance of the JVM creates it, the next ones share it.
+	 */
+	static synchronized void open(Map<String, String> agentParams) {
+		String directory = Agent.getOption(agentParams, Agent.OPTION_METRICS_SEGMENT);
+		if (segment != null || directory == null || directory.trim().isEmpty())
+			return;
+
+		long period = Agent.getLongOption(agentParams, Agent.OPTION_METRICS_SEGMENT_PERIOD, DEFAULT_PERIOD);
+		if (period <= 0) {
+			BootLogger.warning("Invalid metrics segment period : " + period + ". Using " + DEFAULT_PERIOD + " ms.");
+			period = DEFAULT_PERIOD;
+		}
+
+		final MetricsSegment created;
+		try {
+			File dir = new File(directory.trim());
+			if (!dir.isDirectory() && !dir.mkdirs())
+				throw new IOException("Directory " + dir + " cannot be created");
+			long pid = getProcessId();
+			File file = new File(dir, (pid != -1 ? Long.toString(pid) : "unknown-" + System.nanoTime()) + FILE_EXTENSION);
+			int size = HEADER_SIZE + MAX_SLOTS * SLOT_SIZE;
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				// Same process id as a dead JVM : start from a blank segment
+				raf.setLength(0);
+				raf.setLength(size);
+				// The mapping remains valid once the channel is closed
+				created = new MetricsSegment(file, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size), pid);
+			}
+			file.deleteOnExit();
+		} catch (IOException | RuntimeException ex) {
+			BootLogger.warning("Agent metrics segment cannot be created in " + directory + " : " + ex);
+			return;
+		}
+		segment = created;
+		TransformAccounting.enable();
+		BootLogger.debug("Agent metrics segment written in {}", created.file);
+
+		final long periodNanos = TimeUnit.MILLISECONDS.toNanos(period);
+		Thread publisher = new Thread(THREAD_NAME) {
+			@Override
+			public void run() {
+				while (true) {
+					LockSupport.parkNanos(periodNanos);
+					created.publish();
+				}
+			}
+		};
+		publisher.setDaemon(true);
+		publisher.start();
+
+		Runtime.getRuntime().addShutdownHook(new Thread(THREAD_NAME + " flush") {
+			@Override
+			public void run() {
+				created.publish();
+			}
+		});
+	}
+
+	/**
+	 * @return the metrics segment file, null if the segment is disabled
+	 */
+	static synchronized File getFile() {
+		return segment != null ? segment.file : null;
+	}
+
+	/**
+	 * Publishes the current counter values immediately.
+	 */
+	static void publishNow() {
+		MetricsSegment current;
+		synchronized (MetricsSegment.class) {
+			current = segment;
+		}
+		if (current != null)
+			current.publish();
+	}
+
+	/**
+	 * Closes and deletes the metrics segment. Test purposes : the publisher thread keeps
+	 * publishing into the detached mapping.
+	 */
+	static synchronized void close() {
+		if (segment != null) {
+			segment.buffer.force();
+			if (!segment.file.delete())
+				segment.file.deleteOnExit();
+			segment = null;
+		}
+	}
+
+	/**
+	 * Copies the counters and boot phase durations into their slots. Only called by the publisher
+	 * thread, the exit hook or {@link #publishNow()} : the instance lock is never contended by the
+	 * transformers.
+	 */
+	synchronized void publish() {
+		for (Map.Entry<String, AtomicLong> counter : Agent.getMetrics().getLiveCounters().entrySet())
+			put(counter.getKey(), counter.getValue().get());
+
+		for (String phase : Agent.getBootPhaseKeys())
+			put(BOOT_PHASE_PREFIX + phase, Agent.getBootPhase(phase));
+
+		buffer.putLong(UPDATE_TIME_OFFSET, System.currentTimeMillis());
+	}
+
+	private void put(String name, long value) {
+		Integer slot = slots.get(name);
+		if (slot == null) {
+			slot = allocate(name);
+			if (slot == null)
+				return;
+		}
+		buffer.putLong(HEADER_SIZE + slot * SLOT_SIZE, value);
+	}
+
+	private Integer allocate(String name) {
+		int index = slots.size();
+		if (index >= MAX_SLOTS) {
+			if ((buffer.getInt(FLAGS_OFFSET) & FLAG_FULL) == 0) {
+				buffer.putInt(FLAGS_OFFSET, buffer.getInt(FLAGS_OFFSET) | FLAG_FULL);
+				BootLogger.warning("Agent metrics segment full : the " + name + " metric and the next ones are not published.");
+			}
+			return null;
+		}
+
+		byte[] bytes = getSlotName(name).getBytes(StandardCharsets.UTF_8);
+		int length = bytes.length;
+		int offset = HEADER_SIZE + index * SLOT_SIZE;
+		buffer.put(offset + 8, (byte)length);
+		for (int i = 0; i < length; i++)
+			buffer.put(offset + 9 + i, bytes[i]);
+		// Commit : the slot becomes visible to the readers
+		buffer.putInt(COUNT_OFFSET, index + 1);
+
+		Integer slot = Integer.valueOf(index);
+		slots.put(name, slot);
+		return slot;
+	}
+
+	/**
+	 * @return the name as written in its slot : the name itself if it fits, otherwise its first
+	 * 		bytes followed by {@code ~} and the hash of the full name
+	 */
+	static String getSlotName(String name) {
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length <= MAX_NAME_LENGTH)
+			return name;
+
+		String suffix = HASH_SEPARATOR + String.format("%08x", name.hashCode());
+		int length = MAX_NAME_LENGTH - suffix.length();
+		// Do not cut a multi-byte character
+		while (length > 0 && (bytes[length] & 0xC0) == 0x80)
+			length--;
+		return new String(bytes, 0, length, StandardCharsets.UTF_8) + suffix;
+	}
+
+	/**
+	 * @return the current process id, -1 if unknown. Read from the runtime name
+	 * 		({@code <pid>@<host>} on the HotSpot and OpenJ9 JVMs).
+	 */
+	static long getProcessId() {
+		String name = ManagementFactory.getRuntimeMXBean().getName();
+		int index = name.indexOf('@');
+		try {
+			return Long.parseLong(index > 0 ? name.substring(0, index) : name);
+		} catch (NumberFormatException ex) {
+			return -1;
+		}
+	}
+}
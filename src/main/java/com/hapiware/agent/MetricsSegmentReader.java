@@ -0,0 +1,195 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@code MetricsSegmentReader} reads the metrics segments published by the agents of the local
+ * JVMs (see {@link MetricsSegment}) :
+ * <pre>
+ * java -cp jeyzer-agent.jar com.hapiware.agent.MetricsSegmentReader /tmp/jeyzer-agent-metrics
+ * </pre>
+ * The argument is either the segment directory, in which case all the segments are listed, or a
+ * single segment file. Reading a segment is a plain file read : the JVMs are neither attached nor
+ * contacted.
+ *
+ * @author jeyzer
+ *
+ */
+public final class MetricsSegmentReader {
+
+	private final File file;
+	private final long pid;
+	private final long startTime;
+	private final long updateTime;
+	private final boolean full;
+	private final Map<String, Long> values;
+
+	private MetricsSegmentReader(File file, long pid, long startTime, long updateTime, boolean full,
+			Map<String, Long> values) {
+		this.file = file;
+		this.pid = pid;
+		this.startTime = startTime;
+		this.updateTime = updateTime;
+		this.full = full;
+		this.values = Collections.unmodifiableMap(values);
+	}
+
+	public static void main(String[] args) {
+		if (args.length != 1) {
+			System.err.println("Usage : java -cp <agent jar> " + MetricsSegmentReader.class.getName()
+					+ " <metrics segment directory or file>");
+			System.exit(2);
+		}
+
+		File target = new File(args[0]);
+		try {
+			List<MetricsSegmentReader> segments = target.isDirectory()
+					? readAll(target)
+					: Collections.singletonList(read(target));
+			if (segments.isEmpty())
+				System.out.println("No agent metrics segment found in " + target);
+			for (MetricsSegmentReader segment : segments)
+				segment.print(System.out);
+		} catch (IOException ex) {
+			System.err.println("Failed to read the metrics segment " + args[0] + " : " + ex.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Reads all the metrics segments of the given directory, sorted by file name. Unreadable
+	 * segments, typically of a JVM being started, are skipped.
+	 */
+	public static List<MetricsSegmentReader> readAll(File directory) {
+		File[] files = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isFile() && file.getName().endsWith(MetricsSegment.FILE_EXTENSION);
+			}
+		});
+		if (files == null)
+			return Collections.emptyList();
+
+		Arrays.sort(files);
+		List<MetricsSegmentReader> segments = new ArrayList<>(files.length);
+		for (File file : files) {
+			try {
+				segments.add(read(file));
+			} catch (IOException ex) {
+				// Deleted or not yet initialized
+			}
+		}
+		return segments;
+	}
+
+	/**
+	 * Reads the published slots of the metrics segment file.
+	 *
+	 * @throws IOException
+	 * 		If the file cannot be read or is not a metrics segment file.
+	 */
+	public static MetricsSegmentReader read(File file) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+		try {
+			if (buffer.getInt(0) != MetricsSegment.MAGIC)
+				throw new IOException(file + " is not an agent metrics segment file.");
+			int version = buffer.getInt(4);
+			if (version != MetricsSegment.FORMAT_VERSION)
+				throw new IOException(file + " has an unsupported metrics segment format version : " + version);
+
+			int count = Math.min(buffer.getInt(MetricsSegment.COUNT_OFFSET),
+					(buffer.limit() - MetricsSegment.HEADER_SIZE) / MetricsSegment.SLOT_SIZE);
+			Map<String, Long> values = new LinkedHashMap<>();
+			for (int i = 0; i < count; i++) {
+				int offset = MetricsSegment.HEADER_SIZE + i * MetricsSegment.SLOT_SIZE;
+				int length = Math.min(buffer.get(offset + 8) & 0xFF, MetricsSegment.MAX_NAME_LENGTH);
+				String name = new String(buffer.array(), offset + 9, length, StandardCharsets.UTF_8);
+				values.put(name, buffer.getLong(offset));
+			}
+			return new MetricsSegmentReader(
+					file,
+					buffer.getLong(MetricsSegment.PID_OFFSET),
+					buffer.getLong(MetricsSegment.START_TIME_OFFSET),
+					buffer.getLong(MetricsSegment.UPDATE_TIME_OFFSET),
+					(buffer.getInt(MetricsSegment.FLAGS_OFFSET) & MetricsSegment.FLAG_FULL) != 0,
+					values);
+		} catch (BufferUnderflowException | IndexOutOfBoundsException ex) {
+			throw new IOException(file + " is corrupted.", ex);
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the process id of the JVM, -1 if unknown
+	 */
+	public long getPid() {
+		return pid;
+	}
+
+	/**
+	 * @return the JVM start time, in epoch milliseconds
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * @return the last publication time, in epoch milliseconds. 0 if not yet published. A segment
+	 * 		not updated for long belongs to a JVM which did not exit cleanly.
+	 */
+	public long getUpdateTime() {
+		return updateTime;
+	}
+
+	/**
+	 * @return true if metrics were not published because the segment was full
+	 */
+	public boolean isFull() {
+		return full;
+	}
+
+	/**
+	 * @return the published values, by name, in the publication order
+	 */
+	public Map<String, Long> getValues() {
+		return values;
+	}
+
+	public void print(PrintStream out) {
+		out.println("JVM " + (pid != -1 ? pid : file.getName()) + " started on " + new Date(startTime)
+				+ (updateTime != 0 ? ", updated on " + new Date(updateTime) : ", not yet updated"));
+		for (Map.Entry<String, Long> value : values.entrySet())
+			out.println("  " + value.getKey() + " = " + value.getValue());
+		if (full)
+			out.println("  Segment full : next metrics were not published.");
+	}
+}
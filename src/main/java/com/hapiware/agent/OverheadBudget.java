@@ -0,0 +1,129 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import com.hapiware.agent.Agent.ConfigurationError;
+
+/**
+ * {@code OverheadBudget} is the transform time budget of a delegate, declared by the optional
+ * {@code budget} element of the {@code /agent} or {@code /agent/delegate} element :
+ * <pre>
+ * {@code
+ * 	<budget total="2s" class="200ms" window="60s"/>}
+ * </pre>
+ * <ul>
+ * 		<li>{@code total} : the maximum time spent in the delegate transformers within the window</li>
+ * 		<li>{@code class} : the maximum time spent in the delegate transformers for a single class</li>
+ * 		<li>{@code window} : the accounting window of the total budget, 60 seconds by default</li>
+ * </ul>
+ * Durations are in milliseconds, with the optional ms, s, m, h or d unit suffix. See
+ * {@link OverheadBudgetGuard} for the degradation applied once the budget is exceeded.
+ * <p>
+ * {@code OverheadBudget} is <b>immutable</b>.
+ *
+ * @author jeyzer
+ *
+ */
+final class OverheadBudget {
+
+	static final String ELEMENT = "budget";
+	static final String TOTAL_ATTRIBUTE = "total";
+	static final String CLASS_ATTRIBUTE = "class";
+	static final String WINDOW_ATTRIBUTE = "window";
+
+	private static final long DEFAULT_WINDOW = 60000;
+
+	private final long totalNanos;
+	private final long classNanos;
+	private final long windowNanos;
+
+	OverheadBudget(long totalMillis, long classMillis, long windowMillis) {
+		this.totalNanos = TimeUnit.MILLISECONDS.toNanos(totalMillis);
+		this.classNanos = TimeUnit.MILLISECONDS.toNanos(classMillis);
+		this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+	}
+
+	/**
+	 * @return the raw {@code total}, {@code class} and {@code window} attribute values, null if
+	 * 		not set
+	 */
+	static List<String> toAttributes(String total, String perClass, String window) {
+		return Arrays.asList(emptyToNull(total), emptyToNull(perClass), emptyToNull(window));
+	}
+
+	/**
+	 * Parses the budget attribute values, as returned by {@link #toAttributes(String, String, String)}.
+	 *
+	 * @return the budget, null if neither the total nor the class budget is set
+	 *
+	 * @throws ConfigurationError
+	 * 		If a value is not a valid duration.
+	 */
+	static OverheadBudget parse(List<String> attributes) {
+		if (attributes == null || attributes.isEmpty())
+			return null;
+		long total = parse(TOTAL_ATTRIBUTE, attributes.get(0), 0);
+		long perClass = parse(CLASS_ATTRIBUTE, attributes.get(1), 0);
+		long window = parse(WINDOW_ATTRIBUTE, attributes.get(2), DEFAULT_WINDOW);
+		if (total <= 0 && perClass <= 0)
+			return null;
+		if (window <= 0)
+			throw new ConfigurationError("/agent/budget window must be positive : " + attributes.get(2));
+		return new OverheadBudget(total, perClass, window);
+	}
+
+	private static long parse(String name, String value, long defaultValue) {
+		if (value == null)
+			return defaultValue;
+		try {
+			return TypedConfiguration.parse(name, value, TypedConfiguration.Type.DURATION);
+		} catch (IllegalArgumentException ex) {
+			throw new ConfigurationError("/agent/budget " + name + " attribute \"" + value + "\" is not a valid duration.", ex);
+		}
+	}
+
+	private static String emptyToNull(String value) {
+		return value == null || value.trim().isEmpty() ? null : value.trim();
+	}
+
+	/**
+	 * @return the total budget within the window, 0 if none
+	 */
+	long getTotalNanos() {
+		return totalNanos;
+	}
+
+	/**
+	 * @return the budget of a single class, 0 if none
+	 */
+	long getClassNanos() {
+		return classNanos;
+	}
+
+	long getWindowNanos() {
+		return windowNanos;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.ENGLISH, "total %d ms, class %d ms, window %d ms",
+				TimeUnit.NANOSECONDS.toMillis(totalNanos),
+				TimeUnit.NANOSECONDS.toMillis(classNanos),
+				TimeUnit.NANOSECONDS.toMillis(windowNanos));
+	}
+}
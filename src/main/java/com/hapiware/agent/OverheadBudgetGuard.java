@@ -0,0 +1,178 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@code OverheadBudgetGuard} enforces the {@link OverheadBudget} of a delegate in the
+ * {@link TransformerDispatcher}. Once the budget is exceeded, the offending package is degraded :
+ * the delegate transformers are no longer called for its classes, which are loaded with their
+ * original bytes. The degradation is logged as a boot warning.
+ * <ul>
+ * 		<li>a class transform above the class budget degrades the package of that class</li>
+ * 		<li>
+ * 			a total above the budget within the window degrades the package which took the most time
+ * 			in that window
+ * 		</li>
+ * </ul>
+ * The degraded packages are restored by a configuration reload or through the
+ * {@link AgentMXBean}. Classes loaded in between are not retransformed.
+ * <p>
+ * The degradation check does not allocate. The accounting does, only if a budget is set.
+ *
+ * @author jeyzer
+ *
+ */
+final class OverheadBudgetGuard {
+
+	private final String delegateAgentName;
+
+	private volatile OverheadBudget budget;
+
+	// Package internal names (a/b)
+	private final Set<String> degradedPackages = new CopyOnWriteArraySet<>();
+
+	private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+	private final AtomicLong windowNanos = new AtomicLong();
+	private final Map<String, AtomicLong> packageNanos = new ConcurrentHashMap<>();
+
+	OverheadBudgetGuard(String delegateAgentName) {
+		this.delegateAgentName = delegateAgentName;
+	}
+
+	OverheadBudget getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Sets the budget and restores the degraded packages.
+	 *
+	 * @param budget
+	 * 		The new budget. Null to disable the guard.
+	 */
+	void setBudget(OverheadBudget budget) {
+		this.budget = budget;
+		restore();
+	}
+
+	/**
+	 * @return true if the delegate transformers must not be called for the given class
+	 */
+	boolean isDegraded(String className) {
+		if (degradedPackages.isEmpty() || className == null)
+			return false;
+		int length = Math.max(className.lastIndexOf('/'), 0);
+		for (String degraded : degradedPackages)
+			if (degraded.length() == length && className.startsWith(degraded))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Accounts the time spent in the delegate transformers for the given class.
+	 */
+	void record(String className, long nanos) {
+		OverheadBudget current = budget;
+		if (current == null || className == null)
+			return;
+
+		long now = System.nanoTime();
+		long start = windowStart.get();
+		if (now - start > current.getWindowNanos() && windowStart.compareAndSet(start, now)) {
+			packageNanos.clear();
+			windowNanos.set(0);
+		}
+
+		String packageName = className.substring(0, Math.max(className.lastIndexOf('/'), 0));
+		if (current.getClassNanos() > 0 && nanos > current.getClassNanos()) {
+			degrade(packageName, "the transform of the class " + className.replace('/', '.') + " took " + nanos / 1000000
+					+ " ms");
+			return;
+		}
+		if (current.getTotalNanos() <= 0)
+			return;
+
+		AtomicLong counter = packageNanos.get(packageName);
+		if (counter == null) {
+			AtomicLong created = new AtomicLong();
+			counter = packageNanos.putIfAbsent(packageName, created);
+			if (counter == null)
+				counter = created;
+		}
+		counter.addAndGet(nanos);
+		if (windowNanos.addAndGet(nanos) > current.getTotalNanos())
+			degradeTopPackage(current);
+	}
+
+	/**
+	 * @return the degraded package names
+	 */
+	List<String> getDegradedPackages() {
+		List<String> names = new ArrayList<>(degradedPackages.size());
+		for (String degraded : degradedPackages)
+			names.add(toPackageName(degraded));
+		return names;
+	}
+
+	/**
+	 * Restores the degraded packages and restarts the budget window.
+	 */
+	void restore() {
+		if (!degradedPackages.isEmpty())
+			BootLogger.warning("Agent " + delegateAgentName + " transform overhead budget reset : packages "
+					+ getDegradedPackages() + " are instrumented again.");
+		degradedPackages.clear();
+		packageNanos.clear();
+		windowNanos.set(0);
+		windowStart.set(System.nanoTime());
+	}
+
+	private synchronized void degradeTopPackage(OverheadBudget current) {
+		// Concurrent transforms may have degraded one already
+		long total = windowNanos.get();
+		if (total <= current.getTotalNanos())
+			return;
+		String top = null;
+		long topNanos = -1;
+		for (Map.Entry<String, AtomicLong> entry : packageNanos.entrySet()) {
+			long value = entry.getValue().get();
+			if (value > topNanos) {
+				top = entry.getKey();
+				topNanos = value;
+			}
+		}
+		if (top == null)
+			return;
+		packageNanos.remove(top);
+		windowNanos.addAndGet(-topNanos);
+		degrade(top, "the transforms took " + total / 1000000 + " ms in the budget window, " + topNanos / 1000000
+				+ " ms of them in this package");
+	}
+
+	private void degrade(String packageName, String reason) {
+		if (degradedPackages.add(packageName))
+			BootLogger.warning("Agent " + delegateAgentName + " transform overhead budget (" + budget + ") exceeded : "
+					+ reason + ". Package " + toPackageName(packageName) + " is no longer instrumented.");
+	}
+
+	private static String toPackageName(String internalName) {
+		return internalName.isEmpty() ? TransformLatencies.DEFAULT_PACKAGE : internalName.replace('/', '.');
+	}
+}
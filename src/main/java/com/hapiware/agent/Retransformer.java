@@ -0,0 +1,152 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Retransforms classes on behalf of the agent delegate, in batches to bound the time
+ * the JVM spends in each retransformation.
+ *
+ * @author jeyzer
+ *
+ */
+class Retransformer {
+
+	static final int DEFAULT_BATCH_SIZE = 100;
+
+	private final Instrumentation instrumentation;
+	private final int batchSize;
+	private final long pauseMillis;
+
+	/**
+	 * @param batchSize
+	 * 		The maximum number of classes per retransformation.
+	 * @param pauseMillis
+	 * 		The pause between two batches. 0 for none.
+	 */
+	Retransformer(Instrumentation instrumentation, int batchSize, long pauseMillis) {
+		this.instrumentation = instrumentation;
+		this.batchSize = batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
+		this.pauseMillis = pauseMillis;
+	}
+
+	/**
+	 * Returns the loaded classes which can be retransformed and whose name is accepted by at least one of the given filters.
+	 *
+	 * @param filters
+	 * 		The class filters.
+	 */
+	List<Class<?>> getModifiableClasses(List<ClassFilter> filters) {
+		List<Class<?>> classes = new ArrayList<>();
+		for (Class<?> clazz : instrumentation.getAllLoadedClasses()) {
+			if (!instrumentation.isModifiableClass(clazz))
+				continue;
+			String className = getInternalName(clazz);
+			for (ClassFilter filter : filters) {
+				if (filter.matches(className)) {
+					classes.add(clazz);
+					break;
+				}
+			}
+		}
+		return classes;
+	}
+
+	/**
+	 * Returns the loaded classes which can be retransformed and whose filter decision changed.
+	 *
+	 * @param previousFilters
+	 * 		The previous class filters.
+	 * @param currentFilters
+	 * 		The current class filters, in the same order.
+	 */
+	List<Class<?>> getReclassifiedClasses(List<ClassFilter> previousFilters, List<ClassFilter> currentFilters) {
+		List<Class<?>> classes = new ArrayList<>();
+		for (Class<?> clazz : instrumentation.getAllLoadedClasses()) {
+			if (!instrumentation.isModifiableClass(clazz))
+				continue;
+			String className = getInternalName(clazz);
+			for (int i = 0; i < previousFilters.size(); i++) {
+				if (previousFilters.get(i).matches(className) != currentFilters.get(i).matches(className)) {
+					classes.add(clazz);
+					break;
+				}
+			}
+		}
+		return classes;
+	}
+
+	/**
+	 * Retransforms the given classes.
+	 *
+	 * @return the number of classes successfully retransformed
+	 */
+	int retransform(Collection<Class<?>> classes) {
+		if (classes.isEmpty() || !instrumentation.isRetransformClassesSupported())
+			return 0;
+
+		int count = 0;
+		List<Class<?>> batch = new ArrayList<>(batchSize);
+		for (Class<?> clazz : classes) {
+			batch.add(clazz);
+			if (batch.size() == batchSize) {
+				count += retransformBatch(batch);
+				batch.clear();
+				if (!pause())
+					return count;
+			}
+		}
+		if (!batch.isEmpty())
+			count += retransformBatch(batch);
+		return count;
+	}
+
+	private int retransformBatch(List<Class<?>> batch) {
+		try {
+			instrumentation.retransformClasses(batch.toArray(new Class<?>[batch.size()]));
+			return batch.size();
+		} catch (Exception | LinkageError ex) {
+			// Isolate the faulty classes
+			int count = 0;
+			for (Class<?> clazz : batch) {
+				try {
+					instrumentation.retransformClasses(clazz);
+					count++;
+				} catch (Exception | LinkageError ex2) {
+					BootLogger.warning("Failed to retransform the class " + clazz.getName() + " : " + ex2);
+				}
+			}
+			return count;
+		}
+	}
+
+	private boolean pause() {
+		if (pauseMillis <= 0)
+			return true;
+		try {
+			Thread.sleep(pauseMillis);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	static String getInternalName(Class<?> clazz) {
+		return clazz.getName().replace('.', '/');
+	}
+}
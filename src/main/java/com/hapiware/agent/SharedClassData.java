@@ -0,0 +1,149 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.SoftReference;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.CodeSigner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.jar.JarEntry;
+import java.util.jar.Manifest;
+
+/**
+ * {@code SharedClassData} holds the class data read from the jars shared by the class path of
+ * several delegates, keyed by the canonical jar path and the class file name. The first delegate
+ * class loader reads the class data, the next ones get it from memory : each shared class file is
+ * read and inflated once, while every delegate still defines the class in its own class loader.
+ * <p>
+ * The class data is released once all the sharing delegates got it, or by the garbage collector
+ * under memory pressure (it is softly referenced).
+ * <p>
+ * Only the class data reading and inflation are shared : the class path of each delegate class
+ * loader still opens its own copy of the jar. The class data is read through the JVM jar file cache
+ * of the {@code jar:} URL connections, which keeps one more copy of each shared jar open for the JVM
+ * lifetime. This is deliberate : the delegate class loaders are never closed either, and opening
+ * the jar without the cache would read its central directory again for every class file.
+ * <p>
+ * {@code SharedClassData} is thread safe.
+ *
+ * @author jeyzer
+ *
+ */
+final class SharedClassData {
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+	private final AtomicLong hits = new AtomicLong();
+
+	/**
+	 * Returns the class data of the given class file, read from the given {@code jar:} URL if not in
+	 * memory.
+	 *
+	 * @param key
+	 * 		The canonical jar path and the class file name.
+	 * @param sharers
+	 * 		The number of delegates sharing the jar.
+	 */
+	ClassData get(String key, URL resource, int sharers) throws IOException {
+		Entry entry = entries.get(key);
+		if (entry != null) {
+			ClassData data = entry.data.get();
+			if (entry.remaining.decrementAndGet() <= 0 || data == null)
+				entries.remove(key, entry);
+			if (data != null) {
+				hits.incrementAndGet();
+				return data;
+			}
+		}
+
+		ClassData data = read(resource);
+		if (entry == null && sharers > 1)
+			entries.putIfAbsent(key, new Entry(data, sharers - 1));
+		return data;
+	}
+
+	/**
+	 * @return the number of class files served from memory
+	 */
+	long getHits() {
+		return hits.get();
+	}
+
+	private static ClassData read(URL resource) throws IOException {
+		// Cached connection : the jar file stays open for the next class files
+		URLConnection connection = resource.openConnection();
+		if (!(connection instanceof JarURLConnection))
+			throw new IOException(resource + " is not a jar entry.");
+		JarURLConnection jarConnection = (JarURLConnection)connection;
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (InputStream in = jarConnection.getInputStream()) {
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1)
+				bytes.write(buffer, 0, read);
+		}
+		// The signers are known once the entry is fully read
+		JarEntry jarEntry = jarConnection.getJarEntry();
+		return new ClassData(bytes.toByteArray(), jarEntry.getCodeSigners(), jarConnection.getManifest());
+	}
+
+	static final class ClassData {
+
+		private final byte[] bytes;
+		private final CodeSigner[] signers;
+		private final Manifest manifest;
+
+		ClassData(byte[] bytes, CodeSigner[] signers, Manifest manifest) {
+			this.bytes = bytes;
+			this.signers = signers;
+			this.manifest = manifest;
+		}
+
+		byte[] getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * @return the signers of the class file, null if not signed
+		 */
+		CodeSigner[] getSigners() {
+			return signers;
+		}
+
+		/**
+		 * @return the jar manifest, null if none
+		 */
+		Manifest getManifest() {
+			return manifest;
+		}
+	}
+
+	private static final class Entry {
+
+		private final SoftReference<ClassData> data;
+		private final AtomicInteger remaining;
+
+		Entry(ClassData data, int remaining) {
+			this.data = new SoftReference<>(data);
+			this.remaining = new AtomicInteger(remaining);
+		}
+	}
+}
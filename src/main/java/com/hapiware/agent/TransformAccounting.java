@@ -0,0 +1,132 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@code TransformAccounting} collects what happened to one class file transformation across all
+ * the {@link TransformerDispatcher}s of the JVM, and counts it once in the agent
+ * {@link MetricsRegistry} when complete. On class load, it spans the retransformation incapable
+ * and capable dispatch passes : the time spent in the delegate transformers of both passes is
+ * recorded once (see {@link TransformLatencies}).
+ * <p>
+ * A loaded class is examined by the class filter of each delegate : it is counted as included if
+ * at least one delegate filter includes it, as excluded if none includes it and at least one
+ * excludes it. Class retransformations are not counted as examined. A class is counted as
+ * transformed once, whatever the number of delegate transformers which modified it.
+ * <p>
+ * The accounting is only done once one of its consumers is enabled : the agent MBean, the metrics
+ * endpoint or segment, the agent report or the transform latencies. Until then, the class loads
+ * are neither accounted nor examined by the class filters, unless notified to a listener.
+ * <p>
+ * {@code TransformAccounting} is <b>not</b> thread safe : it is confined to the transforming thread.
+ *
+ * @author jeyzer
+ *
+ */
+final class TransformAccounting {
+
+	// JVM wide, whatever the filter
+	private static final AtomicLong seen = Agent.getMetrics().counter(MetricsRegistry.FILTER_SEEN);
+	private static final AtomicLong included = Agent.getMetrics().counter(MetricsRegistry.FILTER_INCLUDED);
+	private static final AtomicLong excluded = Agent.getMetrics().counter(MetricsRegistry.FILTER_EXCLUDED);
+	private static final AtomicLong transformedClasses = Agent.getMetrics().counter(MetricsRegistry.TRANSFORMER_TRANSFORMED);
+
+	private static volatile boolean enabled;
+
+	private final String className;
+	private long elapsed = -1;
+	private boolean examined;
+	private boolean anyIncluded;
+	private boolean anyExcluded;
+	private boolean transformed;
+
+	TransformAccounting(String className) {
+		this.className = className;
+	}
+
+	/**
+	 * Enables the accounting, called by its consumers once enabled.
+	 */
+	static void enable() {
+		enabled = true;
+	}
+
+	/**
+	 * Disables the accounting. Test purposes.
+	 */
+	static void reset() {
+		enabled = false;
+	}
+
+	/**
+	 * @return a new accounting of the given class, null if the accounting is disabled
+	 */
+	static TransformAccounting start(String className) {
+		return enabled ? new TransformAccounting(className) : null;
+	}
+
+	/**
+	 * @return true if this accounting is the one of the given class
+	 */
+	boolean isFor(String name) {
+		return className != null ? className.equals(name) : name == null;
+	}
+
+	/**
+	 * Adds the time spent in one delegate transformer chain.
+	 */
+	void addElapsed(long duration) {
+		elapsed = elapsed < 0 ? duration : elapsed + duration;
+	}
+
+	/**
+	 * Records that a delegate transformer modified the class file.
+	 */
+	void transformed() {
+		transformed = true;
+	}
+
+	/**
+	 * Records the decision of one delegate class filter.
+	 *
+	 * @param decision
+	 * 		The filter decision, see {@link ClassFilter#evaluate(String)}.
+	 */
+	void examined(int decision) {
+		examined = true;
+		if (decision == ClassFilter.INCLUDED)
+			anyIncluded = true;
+		else if (decision == ClassFilter.EXCLUDED)
+			anyExcluded = true;
+	}
+
+	/**
+	 * Counts the class file transformation. Must be called once.
+	 */
+	void complete() {
+		if (examined) {
+			seen.incrementAndGet();
+			if (anyIncluded)
+				included.incrementAndGet();
+			else if (anyExcluded)
+				excluded.incrementAndGet();
+		}
+		if (transformed)
+			transformedClasses.incrementAndGet();
+		TransformLatencies latencies = TransformLatencies.get();
+		if (latencies != null && elapsed >= 0)
+			latencies.record(className, elapsed);
+	}
+}
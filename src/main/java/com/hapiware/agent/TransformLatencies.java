@@ -0,0 +1,240 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * {@code TransformLatencies} records the transform latency of each loaded class into a
+ * {@link LatencyHistogram} per package. It is enabled by the {@code jeyzer.agent.latency} option
+ * (agent parameter or system property) set to {@code true}. The latencies are then written in the
+ * boot log at JVM exit and available through {@link Agent#getTransformLatencies()}.
+ * <p>
+ * The number of tracked packages is capped by the {@code jeyzer.agent.latency.packages} option
+ * (256 by default) : the packages beyond are recorded under {@value #OTHER_PACKAGES}. The package
+ * lookup is lock free and does not allocate : it hashes the class name up to its last slash and
+ * probes an open addressing table. Only the first class of a package takes a lock, to insert it,
+ * until the cap is reached : the untracked packages then go to {@value #OTHER_PACKAGES} lock free.
+ *
+ * @author jeyzer
+ *
+ */
+final class TransformLatencies {
+
+	static final String OTHER_PACKAGES = "<other packages>";
+	static final String DEFAULT_PACKAGE = "<default package>";
+	static final int DEFAULT_MAX_PACKAGES = 256;
+
+	private static volatile TransformLatencies current;
+
+	private final int maxPackages;
+	private final AtomicReferenceArray<Entry> table;
+	private final int mask;
+	private final LatencyHistogram other = new LatencyHistogram();
+
+	// Guarded by this
+	private int size;
+	// Set once the cap is reached : no more insertion
+	private volatile boolean full;
+
+	TransformLatencies(int maxPackages) {
+		this.maxPackages = Math.max(maxPackages, 0);
+		// Load factor below 0.5 : the probe sequences stay short and the table never fills up
+		int capacity = Integer.highestOneBit(Math.max(this.maxPackages, 1) * 2) * 2;
+		this.table = new AtomicReferenceArray<>(capacity);
+		this.mask = capacity - 1;
+	}
+
+	/**
+	 * Enables the latency recording if the {@code jeyzer.agent.latency} option is set. The first
+	 * agent instance of the JVM enables it, the next ones share it.
+	 */
+	static synchronized void enable(Map<String, String> agentParams) {
+		if (current != null || !Agent.isOptionEnabled(agentParams, Agent.OPTION_LATENCY))
+			return;
+
+		final TransformLatencies latencies = new TransformLatencies(
+				(int)Agent.getLongOption(agentParams, Agent.OPTION_LATENCY_PACKAGES, DEFAULT_MAX_PACKAGES));
+		Runtime.getRuntime().addShutdownHook(new Thread("Jeyzer agent transform latencies") {
+			@Override
+			public void run() {
+				String report = latencies.render();
+				if (report != null) {
+					BootLogger.info("Agent transform latencies :" + report);
+					BootLogger.flush();
+				}
+			}
+		});
+		current = latencies;
+		TransformAccounting.enable();
+	}
+
+	/**
+	 * @return the JVM latencies, null if the recording is disabled
+	 */
+	static TransformLatencies get() {
+		return current;
+	}
+
+	/**
+	 * Disables the latency recording. Test purposes.
+	 */
+	static synchronized void disable() {
+		current = null;
+	}
+
+	/**
+	 * @param className
+	 * 		The class name, in the internal form (a/b/C). Null for the hidden classes.
+	 */
+	void record(String className, long nanos) {
+		histogram(className).record(nanos);
+	}
+
+	/**
+	 * @return the latency snapshots by package name, sorted by name
+	 */
+	Map<String, LatencySnapshot> snapshot() {
+		Map<String, LatencySnapshot> snapshots = new TreeMap<>();
+		for (int i = 0; i < table.length(); i++) {
+			Entry entry = table.get(i);
+			if (entry != null)
+				snapshots.put(entry.getPackageName(), entry.histogram.snapshot());
+		}
+		LatencySnapshot others = other.snapshot();
+		if (others.getCount() > 0)
+			snapshots.put(OTHER_PACKAGES, others);
+		return snapshots;
+	}
+
+	/**
+	 * Renders the latencies of each package, one per line, the longest total transform time first.
+	 *
+	 * @return the latencies, null if no class was transformed
+	 */
+	String render() {
+		List<Map.Entry<String, LatencySnapshot>> entries = new ArrayList<>(snapshot().entrySet());
+		if (entries.isEmpty())
+			return null;
+		Collections.sort(entries, new Comparator<Map.Entry<String, LatencySnapshot>>() {
+			@Override
+			public int compare(Map.Entry<String, LatencySnapshot> e1, Map.Entry<String, LatencySnapshot> e2) {
+				return Long.compare(e2.getValue().getTotalNanos(), e1.getValue().getTotalNanos());
+			}
+		});
+		StringBuilder report = new StringBuilder();
+		for (Map.Entry<String, LatencySnapshot> entry : entries) {
+			LatencySnapshot snapshot = entry.getValue();
+			report.append(String.format(Locale.ENGLISH, "%n  %-60s %8d classes  p50 %9.3f ms  p99 %9.3f ms  max %9.3f ms",
+					entry.getKey(), snapshot.getCount(),
+					snapshot.getP50Nanos() / 1e6, snapshot.getP99Nanos() / 1e6, snapshot.getMaxNanos() / 1e6));
+		}
+		return report.toString();
+	}
+
+	/**
+	 * Visits the live histogram of each package, then the one of the other packages. No snapshot is
+	 * taken.
+	 */
+	void visit(HistogramVisitor visitor) throws IOException {
+		for (int i = 0; i < table.length(); i++) {
+			Entry entry = table.get(i);
+			if (entry != null)
+				visitor.visit(entry.getPackageName(), entry.histogram);
+		}
+		visitor.visit(OTHER_PACKAGES, other);
+	}
+
+	void reset() {
+		for (int i = 0; i < table.length(); i++) {
+			Entry entry = table.get(i);
+			if (entry != null)
+				entry.histogram.reset();
+		}
+		other.reset();
+	}
+
+	LatencyHistogram histogram(String className) {
+		if (className == null)
+			return other;
+		int length = Math.max(className.lastIndexOf('/'), 0);
+		int hash = hash(className, length);
+		for (int index = hash & mask; ; index = (index + 1) & mask) {
+			Entry entry = table.get(index);
+			if (entry == null)
+				return full ? other : insert(className, length, hash);
+			if (entry.matches(className, length, hash))
+				return entry.histogram;
+		}
+	}
+
+	private synchronized LatencyHistogram insert(String className, int length, int hash) {
+		int index = hash & mask;
+		for (Entry entry = table.get(index); entry != null; entry = table.get(index)) {
+			// Inserted concurrently
+			if (entry.matches(className, length, hash))
+				return entry.histogram;
+			index = (index + 1) & mask;
+		}
+		if (size >= maxPackages) {
+			full = true;
+			return other;
+		}
+		Entry entry = new Entry(className.substring(0, length), hash);
+		table.set(index, entry);
+		if (++size >= maxPackages)
+			full = true;
+		return entry.histogram;
+	}
+
+	private static int hash(String className, int length) {
+		int hash = 0;
+		for (int i = 0; i < length; i++)
+			hash = 31 * hash + className.charAt(i);
+		// Spread the high bits, the table index uses the low ones
+		return hash ^ (hash >>> 16);
+	}
+
+	interface HistogramVisitor {
+
+		void visit(String packageName, LatencyHistogram histogram) throws IOException;
+	}
+
+	private static final class Entry {
+
+		private final String internalName;
+		private final int hash;
+		private final LatencyHistogram histogram = new LatencyHistogram();
+
+		Entry(String internalName, int hash) {
+			this.internalName = internalName;
+			this.hash = hash;
+		}
+
+		boolean matches(String className, int length, int hash) {
+			return this.hash == hash && internalName.length() == length && className.regionMatches(0, internalName, 0, length);
+		}
+
+		String getPackageName() {
+			return internalName.isEmpty() ? DEFAULT_PACKAGE : internalName.replace('/', '.');
+		}
+	}
+}
@@ -0,0 +1,184 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hapiware.agent.Agent.ConfigurationError;
+
+/**
+ * {@code TransformSampler} selects the classes handed over to the transformers of an observation
+ * only delegate. It is declared by the optional {@code sampling} element of the {@code /agent} or
+ * {@code /agent/delegate} element :
+ * <pre>
+ * {@code
+ * 	<sampling fraction="10%" rate="50"/>}
+ * </pre>
+ * <ul>
+ * 		<li>
+ * 			{@code fraction} : the fraction of the class names to sample, as a decimal (0.1) or a
+ * 			percentage (10%). The selection hashes the class name : the same classes are sampled on
+ * 			each run and on each JVM, which keeps the results comparable.
+ * 		</li>
+ * 		<li>
+ * 			{@code rate} : the maximum number of sampled classes per second. The classes beyond are
+ * 			not sampled. Unlike the fraction, the rate limit depends on the class loading timing.
+ * 			Retransformations are not rate limited.
+ * 		</li>
+ * </ul>
+ * The classes not sampled are passed through without calling the delegate transformers.
+ *
+ * @author jeyzer
+ *
+ */
+final class TransformSampler {
+
+	static final String ELEMENT = "sampling";
+	static final String FRACTION_ATTRIBUTE = "fraction";
+	static final String RATE_ATTRIBUTE = "rate";
+
+	// The hash is compared on 24 bits
+	private static final int HASH_BITS = 24;
+	private static final int HASH_MASK = (1 << HASH_BITS) - 1;
+
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	private final double fraction;
+	private final int threshold;
+	private final long rate;
+
+	private final AtomicLong rateSecond = new AtomicLong(Long.MIN_VALUE);
+	private final AtomicLong rateCount = new AtomicLong();
+
+	TransformSampler(double fraction, long rate) {
+		this.fraction = fraction;
+		this.threshold = (int)Math.round(fraction * (1 << HASH_BITS));
+		this.rate = rate;
+	}
+
+	/**
+	 * @return the raw {@code fraction} and {@code rate} attribute values, null if not set
+	 */
+	static List<String> toAttributes(String fraction, String rate) {
+		return Arrays.asList(emptyToNull(fraction), emptyToNull(rate));
+	}
+
+	/**
+	 * Parses the sampling attribute values, as returned by {@link #toAttributes(String, String)}.
+	 *
+	 * @return the sampler, null if all the classes are sampled
+	 *
+	 * @throws ConfigurationError
+	 * 		If a value is invalid.
+	 */
+	static TransformSampler parse(List<String> attributes) {
+		if (attributes == null || attributes.isEmpty())
+			return null;
+		double fraction = parseFraction(attributes.get(0));
+		long rate = parseRate(attributes.get(1));
+		if (fraction >= 1 && rate == 0)
+			return null;
+		return new TransformSampler(fraction, rate);
+	}
+
+	private static double parseFraction(String value) {
+		if (value == null)
+			return 1;
+		try {
+			double fraction = value.endsWith("%")
+					? Double.parseDouble(value.substring(0, value.length() - 1).trim()) / 100
+					: Double.parseDouble(value);
+			if (fraction >= 0 && fraction <= 1)
+				return fraction;
+		} catch (NumberFormatException ex) {
+			// reported below
+		}
+		throw new ConfigurationError("/agent/sampling fraction attribute \"" + value
+				+ "\" must be a decimal between 0 and 1, or a percentage.");
+	}
+
+	private static long parseRate(String value) {
+		if (value == null)
+			return 0;
+		try {
+			long rate = Long.parseLong(value);
+			if (rate > 0)
+				return rate;
+		} catch (NumberFormatException ex) {
+			// reported below
+		}
+		throw new ConfigurationError("/agent/sampling rate attribute \"" + value
+				+ "\" must be a positive number of classes per second.");
+	}
+
+	private static String emptyToNull(String value) {
+		return value == null || value.trim().isEmpty() ? null : value.trim();
+	}
+
+	double getFraction() {
+		return fraction;
+	}
+
+	/**
+	 * @return the maximum number of sampled classes per second, 0 if unlimited
+	 */
+	long getRate() {
+		return rate;
+	}
+
+	/**
+	 * @param className
+	 * 		The class name, in the internal form (a/b/C). Null for the hidden classes, always sampled.
+	 * @param retransformation
+	 * 		true if the class is being retransformed or redefined
+	 *
+	 * @return true if the delegate transformers must be called for the class
+	 */
+	boolean isSampled(String className, boolean retransformation) {
+		if (className != null && (hash(className) & HASH_MASK) >= threshold)
+			return false;
+		if (rate == 0 || retransformation)
+			return true;
+
+		long second = System.nanoTime() / SECOND;
+		long current = rateSecond.get();
+		if (current != second && rateSecond.compareAndSet(current, second))
+			rateCount.set(0);
+		return rateCount.incrementAndGet() <= rate;
+	}
+
+	/**
+	 * FNV-1a hash of the class name, with a final avalanche : unlike {@code String.hashCode()},
+	 * close class names get unrelated hashes. Stable across JVMs.
+	 */
+	static int hash(String className) {
+		int hash = 0x811C9DC5;
+		for (int i = 0; i < className.length(); i++) {
+			hash ^= className.charAt(i);
+			hash *= 0x01000193;
+		}
+		hash ^= hash >>> 16;
+		hash *= 0x85EBCA6B;
+		hash ^= hash >>> 13;
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.ENGLISH, "fraction %.4f, rate %s", fraction, rate > 0 ? rate + "/s" : "unlimited");
+	}
+}
@@ -0,0 +1,72 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * {@code TransformerChain} dispatches the class file transformations to the transformers registered
+ * by the agent delegate, in their registration order. The output of one transformer is the input of
+ * the next one, as done by the JVM for the transformers registered on the {@code Instrumentation}.
+ * <p>
+ * Like the JVM, the transformers are called through their module aware {@code transform} method when
+ * the module of the class is known (Java 9 and later), and an exception thrown by a transformer is
+ * ignored : the class data is left unchanged by that transformer. The exception is logged at debug level.
+ *
+ * @author jeyzer
+ *
+ */
+class TransformerChain extends DispatchingTransformer {
+
+	private final List<ClassFileTransformer> transformers = new CopyOnWriteArrayList<>();
+
+	void add(ClassFileTransformer transformer) {
+		transformers.add(transformer);
+	}
+
+	boolean remove(ClassFileTransformer transformer) {
+		return transformers.remove(transformer);
+	}
+
+	boolean isEmpty() {
+		return transformers.isEmpty();
+	}
+
+	@Override
+	byte[] transformClass(Object module, ClassLoader loader, String className, Class<?> classBeingRedefined,
+			ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+		byte[] current = classfileBuffer;
+		boolean transformed = false;
+		for (ClassFileTransformer transformer : transformers) {
+			byte[] result;
+			try {
+				// A transformer can implement the module aware method only
+				if (module != null)
+					result = transformer.transform((Module)module, loader, className, classBeingRedefined, protectionDomain, current);
+				else
+					result = transformer.transform(loader, className, classBeingRedefined, protectionDomain, current);
+			} catch (Throwable ex) {
+				BootLogger.debug("Transformer {} failed to transform the class {} : {}", transformer, className, ex);
+				continue;
+			}
+			if (result != null) {
+				current = result;
+				transformed = true;
+			}
+		}
+		return transformed ? current : null;
+	}
+}
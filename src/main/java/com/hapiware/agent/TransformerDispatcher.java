@@ -0,0 +1,210 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.lang.instrument.IllegalClassFormatException;
+import java.lang.instrument.Instrumentation;
+import java.security.ProtectionDomain;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@code TransformerDispatcher} is the agent transformer registered on the JVM. It dispatches the
+ * class file transformations to the transformers of the agent delegates, delegate after delegate
+ * in the configuration order, whatever the order the delegates registered their transformers.
+ * <p>
+ * Like the JVM, the retransformation incapable transformers are called first, then the retransformation
+ * capable ones. Only the latter are called on class retransformation. Each kind is registered on the
+ * {@link AgentRegistry} on the first delegate transformer registration of that kind : the dispatchers
+ * of all the agent instances of the JVM are then called by the same JVM transformer, in the agent
+ * instance order. The retransformation incapable kind is always registered : it is the pass where the
+ * class loads are notified and examined by the delegate class filters (see {@link TransformAccounting}).
+ * <p>
+ * When <i>gated</i>, nothing is registered on the JVM : another agent transformer is then responsible for
+ * calling {@link #dispatch(Object, ClassLoader, String, Class, ProtectionDomain, byte[])}.
+ * <p>
+ * The module of the class, passed by the JVM from Java 9, is handed over to the delegate transformers
+ * (see {@link TransformerChain}).
+ *
+ * @author jeyzer
+ *
+ */
+class TransformerDispatcher {
+
+	private final Instrumentation instrumentation;
+	private final boolean retransformAll;
+	private final boolean gated;
+	private final int agentIndex;
+
+	private final List<AgentInstrumentation> delegates = new CopyOnWriteArrayList<>();
+
+	// Time spent in the delegate transformers, JVM wide
+	private static final AtomicLong transformerCalls = Agent.getMetrics().counter(MetricsRegistry.TRANSFORMER_CALLS);
+	private static final AtomicLong transformerNanos = Agent.getMetrics().counter(MetricsRegistry.TRANSFORMER_NANOS);
+
+	private final AtomicBoolean registered = new AtomicBoolean(false);
+	private final AtomicBoolean retransformableRegistered = new AtomicBoolean(false);
+
+	/**
+	 * @param instrumentation
+	 * 		The JVM instrumentation.
+	 * @param retransformAll
+	 * 		Registers all the delegate transformers as retransformation capable, allowing the agent to
+	 * 		retransform classes on behalf of the delegates.
+	 * @param gated
+	 * 		Do not register anything on the JVM.
+	 */
+	TransformerDispatcher(Instrumentation instrumentation, boolean retransformAll, boolean gated) {
+		this.instrumentation = instrumentation;
+		this.retransformAll = retransformAll && instrumentation.isRetransformClassesSupported();
+		this.gated = gated;
+		this.agentIndex = AgentRegistry.get().nextAgentIndex();
+	}
+
+	/**
+	 * @return the index of the agent instance in the JVM
+	 */
+	int getAgentIndex() {
+		return agentIndex;
+	}
+
+	Instrumentation getInstrumentation() {
+		return instrumentation;
+	}
+
+	boolean isRetransformAll() {
+		return retransformAll;
+	}
+
+	/**
+	 * Creates the {@code Instrumentation} of the next agent delegate. Delegates must be added in
+	 * the configuration order.
+	 */
+	AgentInstrumentation addDelegate(String delegateAgentName) {
+		AgentInstrumentation agentInstrumentation = new AgentInstrumentation(this, delegateAgentName);
+		delegates.add(agentInstrumentation);
+		return agentInstrumentation;
+	}
+
+	/**
+	 * Called on each delegate transformer registration.
+	 */
+	void transformerAdded(boolean retransformable) {
+		if (gated)
+			return;
+		if (registered.compareAndSet(false, true))
+			AgentRegistry.get().addDispatcher(this, false);
+		if (retransformable && retransformableRegistered.compareAndSet(false, true))
+			AgentRegistry.get().addDispatcher(this, true);
+	}
+
+	/**
+	 * Dispatches the class file transformation to all the delegate transformers. Only the retransformation
+	 * capable ones are called when a class is retransformed.
+	 */
+	byte[] dispatch(ClassLoader loader, String className, Class<?> classBeingRedefined,
+			ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException {
+		return dispatch(null, loader, className, classBeingRedefined, protectionDomain, classfileBuffer);
+	}
+
+	/**
+	 * Dispatches the class file transformation to all the delegate transformers, see
+	 * {@link #dispatch(ClassLoader, String, Class, ProtectionDomain, byte[])}.
+	 *
+	 * @param module
+	 * 		The {@code java.lang.Module} of the class, null if unknown.
+	 */
+	byte[] dispatch(Object module, ClassLoader loader, String className, Class<?> classBeingRedefined,
+			ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException {
+		TransformAccounting accounting = TransformAccounting.start(className);
+		try {
+			byte[] current = classfileBuffer;
+			boolean transformed = false;
+			if (classBeingRedefined == null) {
+				byte[] result = dispatch(module, loader, className, classBeingRedefined, protectionDomain, current, false, accounting);
+				if (result != null) {
+					current = result;
+					transformed = true;
+				}
+			}
+			byte[] result = dispatch(module, loader, className, classBeingRedefined, protectionDomain, current, true, accounting);
+			if (result != null)
+				return result;
+			return transformed ? current : null;
+		} finally {
+			if (accounting != null)
+				accounting.complete();
+		}
+	}
+
+	/**
+	 * Dispatches the class file transformation to the delegate transformers of the given kind. On class
+	 * load, the retransformation incapable pass also notifies the class load and records the decision of
+	 * each delegate class filter into the given accounting. The time spent in the delegate transformers
+	 * and the class file modification are added to the accounting.
+	 *
+	 * @param accounting
+	 * 		The accounting of the class, null if disabled : the class filters are then only evaluated for
+	 * 		the delegates with class load listeners.
+	 */
+	byte[] dispatch(Object module, ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain,
+			byte[] classfileBuffer, boolean retransformable, TransformAccounting accounting) throws IllegalClassFormatException {
+		byte[] current = classfileBuffer;
+		boolean transformed = false;
+		boolean classLoad = !retransformable && classBeingRedefined == null && className != null;
+		for (AgentInstrumentation delegate : delegates) {
+			if (classLoad) {
+				ClassFilter filter = delegate.getClassFilter();
+				ClassLoadNotifier notifier = delegate.getNotifier();
+				boolean notified = notifier.hasListeners();
+				if (filter != null && (accounting != null || notified)) {
+					int decision = filter.evaluate(className);
+					if (accounting != null)
+						accounting.examined(decision);
+					if (notified && decision == ClassFilter.INCLUDED)
+						notifier.classLoaded(loader, className);
+				}
+			}
+			TransformerChain chain = retransformable ? delegate.getRetransformableChain() : delegate.getChain();
+			OverheadBudgetGuard budgetGuard = delegate.getBudgetGuard();
+			if (chain.isEmpty() || budgetGuard.isDegraded(className))
+				continue;
+			TransformSampler sampler = delegate.getSampler();
+			if (sampler != null && !sampler.isSampled(className, classBeingRedefined != null))
+				continue;
+			long start = System.nanoTime();
+			byte[] result;
+			try {
+				result = chain.transformClass(module, loader, className, classBeingRedefined, protectionDomain, current);
+			} finally {
+				long duration = System.nanoTime() - start;
+				if (accounting != null)
+					accounting.addElapsed(duration);
+				transformerNanos.addAndGet(duration);
+				transformerCalls.incrementAndGet();
+				budgetGuard.record(className, duration);
+			}
+			if (result != null) {
+				current = result;
+				transformed = true;
+			}
+		}
+		if (!transformed)
+			return null;
+		if (accounting != null)
+			accounting.transformed();
+		return current;
+	}
+}
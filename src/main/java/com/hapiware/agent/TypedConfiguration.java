@@ -0,0 +1,315 @@
+package com.hapiware.agent;
+
+/*-
+ * ---------------------------LICENSE_START---------------------------
+ * Jeyzer Recorder
+ * --
+ * Copyright (C) 2020 - 2021 Jeyzer SAS
+ * --
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ * ----------------------------LICENSE_END----------------------------
+ */
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * {@code TypedConfiguration} is the delegate configuration map created when at least one
+ * {@code /agent/configuration/item} element declares a {@code type} attribute :
+ * <pre>
+ * {@code
+ * 	<configuration>
+ * 		<item key="max-depth" type="int">12</item>
+ * 		<item key="enabled" type="boolean">true</item>
+ * 		<item key="period" type="duration">30s</item>
+ * 		<item key="buffer" type="size">64k</item>
+ * 		<item key="name">plain string</item>
+ * 	</configuration>}
+ * </pre>
+ * It is still a {@code Map<String, String>} of the raw values. The typed getters parse each
+ * numeric or boolean value on first access only and keep it in a primitive array, so that
+ * delegates can read them on their hot paths. Supported types are :
+ * <ul>
+ * 		<li>{@code int}, {@code long}</li>
+ * 		<li>{@code boolean} : {@code true} or {@code false}, case insensitive</li>
+ * 		<li>{@code duration} : in milliseconds, with the optional ms, s, m, h or d unit suffix</li>
+ * 		<li>{@code size} : in bytes, with the optional k, m or g (or kb, mb, gb) unit suffix</li>
+ * </ul>
+ * Typed getters throw an {@code IllegalArgumentException} if the item is declared with another
+ * type or if its value cannot be parsed.
+ * <p>
+ * {@code TypedConfiguration} is <b>immutable</b> and thread safe. Keys are stored in an open
+ * addressing table.
+ *
+ * @author jeyzer
+ *
+ */
+public final class TypedConfiguration extends AbstractMap<String, String> {
+
+	/**
+	 * The {@code /agent/configuration/item} {@code type} attribute values.
+	 */
+	public enum Type {
+		STRING, INT, LONG, BOOLEAN, DURATION, SIZE;
+
+		/**
+		 * @return the type matching the {@code type} attribute value, {@code STRING} if null or empty
+		 */
+		static Type fromAttribute(String value) {
+			if (value == null || value.trim().isEmpty())
+				return STRING;
+			return valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+		}
+
+		String toAttribute() {
+			return name().toLowerCase(Locale.ENGLISH);
+		}
+	}
+
+	private static final Type[] TYPES = Type.values();
+
+	private static final int NOT_PARSED = 0;
+	private static final int PARSED = 1;
+
+	// Open addressing table, linear probing
+	private final String[] keys;
+	private final String[] values;
+	private final byte[] types;
+	private final int mask;
+
+	// Parsed values, published through the parsed states
+	private final long[] numbers;
+	private final AtomicIntegerArray states;
+
+	// Table positions in the item order
+	private final int[] order;
+
+	TypedConfiguration(List<String> itemKeys, List<Type> itemTypes, List<String> itemValues) {
+		int capacity = Integer.highestOneBit(Math.max(2, itemKeys.size() * 2 - 1)) << 1;
+		this.keys = new String[capacity];
+		this.values = new String[capacity];
+		this.types = new byte[capacity];
+		this.numbers = new long[capacity];
+		this.states = new AtomicIntegerArray(capacity);
+		this.mask = capacity - 1;
+
+		int[] positions = new int[itemKeys.size()];
+		int size = 0;
+		for (int i = 0; i < itemKeys.size(); i++) {
+			String key = itemKeys.get(i);
+			int position = probe(key);
+			if (keys[position] == null) {
+				keys[position] = key;
+				positions[size++] = position;
+			}
+			// Last item wins, as for the plain map configuration
+			values[position] = itemValues.get(i);
+			types[position] = (byte)itemTypes.get(i).ordinal();
+		}
+		this.order = new int[size];
+		System.arraycopy(positions, 0, this.order, 0, size);
+	}
+
+	/**
+	 * @return the declared type of the item, null if the item does not exist
+	 */
+	public Type getType(String key) {
+		int position = find(key);
+		return position < 0 ? null : TYPES[types[position]];
+	}
+
+	public int getInt(String key, int defaultValue) {
+		int position = find(key);
+		return position < 0 ? defaultValue : (int)getNumber(position, Type.INT);
+	}
+
+	public long getLong(String key, long defaultValue) {
+		int position = find(key);
+		return position < 0 ? defaultValue : getNumber(position, Type.LONG);
+	}
+
+	public boolean getBoolean(String key, boolean defaultValue) {
+		int position = find(key);
+		return position < 0 ? defaultValue : getNumber(position, Type.BOOLEAN) != 0;
+	}
+
+	/**
+	 * @return the duration in milliseconds
+	 */
+	public long getDuration(String key, long defaultMillis) {
+		int position = find(key);
+		return position < 0 ? defaultMillis : getNumber(position, Type.DURATION);
+	}
+
+	/**
+	 * @return the size in bytes
+	 */
+	public long getSize(String key, long defaultBytes) {
+		int position = find(key);
+		return position < 0 ? defaultBytes : getNumber(position, Type.SIZE);
+	}
+
+	@Override
+	public String get(Object key) {
+		if (!(key instanceof String))
+			return null;
+		int position = find((String)key);
+		return position < 0 ? null : values[position];
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return key instanceof String && find((String)key) >= 0;
+	}
+
+	@Override
+	public int size() {
+		return order.length;
+	}
+
+	@Override
+	public Set<Map.Entry<String, String>> entrySet() {
+		return new AbstractSet<Map.Entry<String, String>>() {
+			@Override
+			public Iterator<Map.Entry<String, String>> iterator() {
+				return new Iterator<Map.Entry<String, String>>() {
+					private int index;
+
+					@Override
+					public boolean hasNext() {
+						return index < order.length;
+					}
+
+					@Override
+					public Map.Entry<String, String> next() {
+						if (!hasNext())
+							throw new NoSuchElementException();
+						int position = order[index++];
+						return new SimpleImmutableEntry<>(keys[position], values[position]);
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return order.length;
+			}
+		};
+	}
+
+	private long getNumber(int position, Type requested) {
+		Type declared = TYPES[types[position]];
+		if (declared != requested && !(requested == Type.LONG && declared == Type.INT))
+			throw new IllegalArgumentException("Configuration item \"" + keys[position] + "\" is declared as "
+					+ declared.toAttribute() + ", not as " + requested.toAttribute() + ".");
+
+		if (states.get(position) == PARSED)
+			return numbers[position];
+
+		// Concurrent first accesses parse the same value
+		long number = parse(keys[position], values[position], declared);
+		numbers[position] = number;
+		states.lazySet(position, PARSED);
+		return number;
+	}
+
+	static long parse(String key, String value, Type type) {
+		String text = value.trim();
+		try {
+			switch (type) {
+			case INT:
+				return Integer.parseInt(text);
+			case LONG:
+				return Long.parseLong(text);
+			case BOOLEAN:
+				if ("true".equalsIgnoreCase(text))
+					return 1;
+				if ("false".equalsIgnoreCase(text))
+					return 0;
+				break;
+			case DURATION:
+				return parseDuration(text);
+			case SIZE:
+				return parseSize(text);
+			default:
+				break;
+			}
+		} catch (NumberFormatException ex) {
+			// reported below
+		}
+		throw new IllegalArgumentException("Configuration item \"" + key + "\" value \"" + value
+				+ "\" is not a valid " + type.toAttribute() + ".");
+	}
+
+	private static long parseDuration(String text) {
+		String lower = text.toLowerCase(Locale.ENGLISH);
+		if (lower.endsWith("ms"))
+			return Long.parseLong(lower.substring(0, lower.length() - 2).trim());
+		long multiplier;
+		switch (lower.isEmpty() ? ' ' : lower.charAt(lower.length() - 1)) {
+		case 's':
+			multiplier = 1000L;
+			break;
+		case 'm':
+			multiplier = 60 * 1000L;
+			break;
+		case 'h':
+			multiplier = 60 * 60 * 1000L;
+			break;
+		case 'd':
+			multiplier = 24 * 60 * 60 * 1000L;
+			break;
+		default:
+			return Long.parseLong(lower);
+		}
+		return Long.parseLong(lower.substring(0, lower.length() - 1).trim()) * multiplier;
+	}
+
+	private static long parseSize(String text) {
+		String lower = text.toLowerCase(Locale.ENGLISH);
+		if (lower.endsWith("b"))
+			lower = lower.substring(0, lower.length() - 1);
+		int shift;
+		switch (lower.isEmpty() ? ' ' : lower.charAt(lower.length() - 1)) {
+		case 'k':
+			shift = 10;
+			break;
+		case 'm':
+			shift = 20;
+			break;
+		case 'g':
+			shift = 30;
+			break;
+		default:
+			return Long.parseLong(lower.trim());
+		}
+		return Long.parseLong(lower.substring(0, lower.length() - 1).trim()) << shift;
+	}
+
+	private int find(String key) {
+		int position = probe(key);
+		return keys[position] == null ? -1 : position;
+	}
+
+	private int probe(String key) {
+		int hash = key.hashCode();
+		int position = (hash ^ (hash >>> 16)) & mask;
+		while (keys[position] != null && !keys[position].equals(key))
+			position = (position + 1) & mask;
+		return position;
+	}
+}
@@ -0,0 +1,119 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.junit.Test;
+
+
+public class AgentClassLoaderTest
+{
+	private static final String TEST_CLASSES = "target/test-classes/";
+	
+	
+	@Test
+	public void classDefinitionIsTracked() throws Exception
+	{
+		URL entry = new File(TEST_CLASSES).toURI().toURL();
+		try(AgentClassLoader cl = new AgentClassLoader(new URL[] { entry }, null)) {
+			Class<?> clazz = cl.loadClass(TestBase.class.getName());
+			assertEquals(cl, clazz.getClassLoader());
+			
+			ClassLoaderStatistics statistics = cl.getStatistics();
+			assertEquals(1, statistics.getEntries().size());
+			assertEquals(entry, statistics.getEntries().get(0).getEntry());
+			assertEquals(1, statistics.getClassesDefined());
+			assertTrue(statistics.getFindClassNanos() > 0);
+			assertEquals(0, statistics.getMissCount());
+		}
+	}
+	
+	@Test
+	public void nestedDefinitionIsNotCountedTwice() throws Exception
+	{
+		URL entry = new File(TEST_CLASSES).toURI().toURL();
+		try(AgentClassLoader cl = new AgentClassLoader(new URL[] { entry }, null)) {
+			long start = System.nanoTime();
+			// Defining the derived class loads its super class
+			cl.loadClass(Derived.class.getName());
+			long elapsed = System.nanoTime() - start;
+			
+			ClassLoaderStatistics statistics = cl.getStatistics();
+			assertEquals(2, statistics.getClassesDefined());
+			assertTrue(statistics.getFindClassNanos() > 0);
+			assertTrue(statistics.getFindClassNanos() <= elapsed);
+		}
+	}
+	
+	@Test
+	public void missIsTracked() throws Exception
+	{
+		URL entry = new File(TEST_CLASSES).toURI().toURL();
+		try(AgentClassLoader cl = new AgentClassLoader(new URL[] { entry }, null)) {
+			try {
+				cl.loadClass("com.hapiware.agent.DoesNotExist");
+			}
+			catch(ClassNotFoundException e) {
+				// expected
+			}
+			ClassLoaderStatistics statistics = cl.getStatistics();
+			assertEquals(0, statistics.getClassesDefined());
+			assertEquals(1, statistics.getMissCount());
+		}
+	}
+	
+	@Test
+	public void sharedJarIsReadOnceAndDefinedPerDelegate() throws Exception
+	{
+		// The shared class depends on a class of the delegate own entries
+		String path = ConfigurationFragmentTest.class.getName().replace('.', '/') + ".class";
+		File jar = File.createTempFile("shared", ".jar");
+		jar.deleteOnExit();
+		try(JarOutputStream out = new JarOutputStream(new FileOutputStream(jar))) {
+			out.putNextEntry(new JarEntry(path));
+			out.write(Files.readAllBytes(new File(TEST_CLASSES + path).toPath()));
+			out.closeEntry();
+		}
+		
+		URL jarEntry = jar.toURI().toURL();
+		URL[] urls = new URL[] { jarEntry, new File(TEST_CLASSES).toURI().toURL() };
+		Map<String, AgentClassLoader.SharedEntry> sharedEntries =
+			Collections.singletonMap(jarEntry.toExternalForm(), new AgentClassLoader.SharedEntry(jar.getCanonicalPath(), 2));
+		SharedClassData sharedClassData = new SharedClassData();
+		try(
+			AgentClassLoader first = new AgentClassLoader(urls, null, sharedEntries, sharedClassData);
+			AgentClassLoader second = new AgentClassLoader(urls, null, sharedEntries, sharedClassData)
+		) {
+			Class<?> firstClass = first.loadClass(ConfigurationFragmentTest.class.getName());
+			Class<?> secondClass = second.loadClass(ConfigurationFragmentTest.class.getName());
+			assertNotSame(firstClass, secondClass);
+			assertSame(first, firstClass.getClassLoader());
+			assertSame(second, secondClass.getClassLoader());
+			assertSame(first, firstClass.getSuperclass().getClassLoader());
+			assertEquals(jarEntry, secondClass.getProtectionDomain().getCodeSource().getLocation());
+			assertEquals(1, sharedClassData.getHits());
+			assertEquals(2, second.getStatistics().getClassesDefined());
+		}
+	}
+	
+	
+	public static class Base
+	{
+	}
+	
+	
+	public static class Derived extends Base
+	{
+	}
+}
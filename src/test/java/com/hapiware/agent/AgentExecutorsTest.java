@@ -0,0 +1,58 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+
+public class AgentExecutorsTest
+{
+	@Test
+	public void cgroupV2CpuQuota()
+	{
+		assertEquals(2, AgentExecutors.parseCpuMax("200000 100000"));
+		assertEquals(1, AgentExecutors.parseCpuMax("50000 100000\n"));
+		assertEquals(3, AgentExecutors.parseCpuMax("250000 100000"));
+		assertEquals(-1, AgentExecutors.parseCpuMax("max 100000"));
+		assertEquals(-1, AgentExecutors.parseCpuMax("garbage"));
+	}
+
+	@Test
+	public void cgroupV1CpuQuota()
+	{
+		assertEquals(4, AgentExecutors.parseCpuQuota("400000", "100000"));
+		assertEquals(-1, AgentExecutors.parseCpuQuota("-1", "100000"));
+		assertEquals(-1, AgentExecutors.parseCpuQuota("100000", "0"));
+	}
+
+	@Test
+	public void poolSizeIsBoundedByTheProcessors()
+	{
+		int size = AgentExecutors.getPoolSize();
+		assertTrue(size >= 1);
+		assertTrue(size <= Runtime.getRuntime().availableProcessors());
+	}
+
+	@Test
+	public void delegatesCannotShutTheSharedPoolDown() throws Exception
+	{
+		ExecutorService executor = AgentExecutors.create(1, false);
+		executor.shutdown();
+		assertFalse(executor.isShutdown());
+		Future<String> result = executor.submit(
+			new Callable<String>() {
+				@Override
+				public String call() {
+					return Thread.currentThread().getName();
+				}
+			}
+		);
+		assertTrue(result.get().startsWith("Jeyzer agent worker"));
+	}
+}
@@ -0,0 +1,187 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.instrument.Instrumentation;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.junit.Test;
+
+
+public class AgentMonitorTest
+{
+	@Test
+	public void countersAreExposed() throws Exception
+	{
+		AgentMonitor.register();
+		// Once per JVM
+		AgentMonitor.register();
+		
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(AgentMonitor.OBJECT_NAME);
+		
+		server.invoke(name, "resetCounters", null, null);
+		TransformerDispatcher dispatcher = new TransformerDispatcher(createInstrumentation(), false, true);
+		ClassFilter filter =
+			new ClassFilter(
+				Collections.singletonList(Pattern.compile("^com/hapiware/.+")),
+				Collections.singletonList(Pattern.compile("^com/hapiware/.+Test"))
+			);
+		dispatcher.addDelegate("first").setClassFilter(filter);
+		dispatcher.addDelegate("second").setClassFilter(
+			new ClassFilter(
+				Collections.singletonList(Pattern.compile("^org/acme/.+")),
+				Collections.<Pattern>emptyList()
+			)
+		);
+		dispatcher.dispatch(null, "com/hapiware/Agent", null, null, new byte[0]);
+		dispatcher.dispatch(null, "com/hapiware/AgentTest", null, null, new byte[0]);
+		dispatcher.dispatch(null, "org/acme/Foo", null, null, new byte[0]);
+		dispatcher.dispatch(null, "java/util/List", null, null, new byte[0]);
+		// Neither the retransformations nor the direct filter evaluations are counted
+		dispatcher.dispatch(null, "com/hapiware/Agent", String.class, null, new byte[0]);
+		filter.matches("com/hapiware/Other");
+		
+		// Once per class, whatever the number of delegates
+		assertEquals(4L, server.getAttribute(name, "FilterSeenCount"));
+		assertEquals(2L, server.getAttribute(name, "FilterIncludedCount"));
+		assertEquals(1L, server.getAttribute(name, "FilterExcludedCount"));
+		
+		server.invoke(name, "resetCounters", null, null);
+		assertEquals(0L, server.getAttribute(name, "FilterSeenCount"));
+	}
+	
+	@Test
+	public void classLoadsAreNotExaminedWithoutConsumer() throws Exception
+	{
+		TransformAccounting.reset();
+		try {
+			Agent.getMetrics().reset();
+			final AtomicInteger evaluations = new AtomicInteger();
+			TransformerDispatcher dispatcher = new TransformerDispatcher(createInstrumentation(), false, true);
+			dispatcher.addDelegate("first").setClassFilter(
+				new ClassFilter(
+					Collections.singletonList(Pattern.compile("^com/hapiware/.+")),
+					Collections.<Pattern>emptyList()
+				)
+				{
+					@Override
+					int evaluate(String className)
+					{
+						evaluations.incrementAndGet();
+						return super.evaluate(className);
+					}
+				}
+			);
+			dispatcher.dispatch(null, "com/hapiware/Agent", null, null, new byte[0]);
+			assertEquals(0, evaluations.get());
+			assertEquals(0L, Agent.getMetrics().counter(MetricsRegistry.FILTER_SEEN).get());
+		}
+		finally {
+			TransformAccounting.enable();
+		}
+	}
+	
+	@Test
+	public void duplicateDelegatesAreKeyedByIndex() throws Exception
+	{
+		AgentMonitor.register();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(AgentMonitor.OBJECT_NAME);
+		
+		File config = File.createTempFile("agent-monitor", ".xml");
+		config.deleteOnExit();
+		Files.write(
+			config.toPath(),
+			(
+				"<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n"
+					+ "<agent>\n"
+					+ "	<delegate>" + NoopDelegate.class.getName() + "</delegate>\n"
+					+ "	<classpath>\n"
+					+ "		<entry>.</entry>\n"
+					+ "	</classpath>\n"
+					+ "</agent>\n"
+			).getBytes(StandardCharsets.UTF_8)
+		);
+		try {
+			Agent.agentmain(config.getPath(), createInstrumentation());
+			Agent.agentmain(config.getPath(), createInstrumentation());
+		}
+		finally {
+			InstrumentationLevels.reset();
+		}
+		
+		Set<String> keys = new HashSet<>();
+		for(Object row : ((TabularData)server.getAttribute(name, "ClassesDefined")).values())
+			if(((String)((CompositeData)row).get("key")).endsWith("." + NoopDelegate.class.getName()))
+				keys.add((String)((CompositeData)row).get("key"));
+		assertEquals(keys.toString(), 2, keys.size());
+	}
+	
+	@Test
+	public void bootDebugToggle() throws Exception
+	{
+		AgentMonitor.register();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(AgentMonitor.OBJECT_NAME);
+		
+		boolean initial = BootLogger.isDebugEnabled();
+		try {
+			server.setAttribute(name, new Attribute("BootDebug", true));
+			assertTrue(BootLogger.isDebugEnabled());
+			server.setAttribute(name, new Attribute("BootDebug", false));
+			assertFalse((Boolean)server.getAttribute(name, "BootDebug"));
+		}
+		finally {
+			BootLogger.setDebugEnabled(initial);
+		}
+	}
+	
+	private static Instrumentation createInstrumentation()
+	{
+		return
+			(Instrumentation)Proxy.newProxyInstance(
+				AgentMonitorTest.class.getClassLoader(),
+				new Class<?>[] { Instrumentation.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if(method.getName().equals("getAllLoadedClasses"))
+							return new Class<?>[0];
+						if(method.getName().equals("getObjectSize"))
+							return 0L;
+						if(method.getReturnType() == boolean.class)
+							return Boolean.TRUE;
+						return null;
+					}
+				}
+			);
+	}
+	
+	
+	public static class NoopDelegate
+	{
+		public static void premain(Pattern[] includePatterns, Pattern[] excludePatterns, Object config, Instrumentation instrumentation)
+		{
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+
+public class AgentRegistryTest
+{
+	private static final byte[] CLASS_DATA = new byte[] { 1 };
+	
+	
+	@Test
+	public void classLoaderIsSharedAcrossAgentInstances() throws Exception
+	{
+		AgentRegistry registry = new AgentRegistry();
+		URL[] urls = new URL[] { new File("target/test-classes/").toURI().toURL() };
+		
+		AgentClassLoader first = registry.getClassLoader(urls, null, "DelegateA");
+		assertSame(first, registry.getClassLoader(urls, null, "DelegateB"));
+		
+		// Parent class loaders are always shared
+		assertSame(first, registry.getClassLoader(urls, null, null));
+		
+		// The same delegate started by another agent instance keeps its own static state
+		AgentClassLoader second = registry.getClassLoader(urls, null, "DelegateA");
+		assertNotSame(first, second);
+		second.close();
+		first.close();
+	}
+	
+	@Test
+	public void classLoaderIsNotSharedAcrossClasspaths() throws Exception
+	{
+		AgentRegistry registry = new AgentRegistry();
+		URL[] urls = new URL[] { new File("target/test-classes/").toURI().toURL() };
+		URL[] otherUrls = new URL[] { new File("target/classes/").toURI().toURL() };
+		
+		AgentClassLoader first = registry.getClassLoader(urls, null, "DelegateA");
+		AgentClassLoader second = registry.getClassLoader(otherUrls, null, "DelegateB");
+		assertNotSame(first, second);
+		second.close();
+		first.close();
+	}
+	
+	@Test
+	public void dispatchersAreCalledInAgentInstanceOrder() throws Exception
+	{
+		AgentRegistry registry = new AgentRegistry();
+		List<ClassFileTransformer> registered = new ArrayList<>();
+		Instrumentation instrumentation = createInstrumentation(registered);
+		List<String> calls = new ArrayList<>();
+		
+		TransformerDispatcher first = createDispatcher(instrumentation, "first", calls);
+		TransformerDispatcher second = createDispatcher(instrumentation, "second", calls);
+		
+		registry.addDispatcher(second, false);
+		registry.addDispatcher(first, false);
+		
+		// One JVM transformer for all the agent instances
+		assertEquals(1, registered.size());
+		assertArrayEquals(CLASS_DATA, registered.get(0).transform(null, "com/hapiware/Test", null, null, CLASS_DATA));
+		assertEquals("[first, second]", calls.toString());
+		
+		registry.addDispatcher(first, true);
+		assertEquals(2, registered.size());
+	}
+	
+	@Test
+	public void latencyIsRecordedOncePerClassLoad() throws Exception
+	{
+		TransformLatencies.disable();
+		TransformLatencies.enable(Collections.singletonMap(Agent.OPTION_LATENCY, "true"));
+		try {
+			AgentRegistry registry = new AgentRegistry();
+			List<ClassFileTransformer> registered = new ArrayList<>();
+			Instrumentation instrumentation = createInstrumentation(registered);
+			final List<String> calls = new ArrayList<>();
+			TransformerDispatcher dispatcher = new TransformerDispatcher(instrumentation, false, true);
+			Instrumentation delegateInstrumentation = dispatcher.addDelegate("both").getProxy();
+			ClassFileTransformer transformer =
+				new ClassFileTransformer() {
+					@Override
+					public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+							ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+						calls.add(className);
+						return null;
+					}
+				};
+			delegateInstrumentation.addTransformer(transformer);
+			delegateInstrumentation.addTransformer(transformer, true);
+			registry.addDispatcher(dispatcher, false);
+			registry.addDispatcher(dispatcher, true);
+			
+			// Class load : both JVM transformers, in the JVM order
+			registered.get(0).transform(null, "com/mycompany/Foo", null, null, CLASS_DATA);
+			registered.get(1).transform(null, "com/mycompany/Foo", null, null, CLASS_DATA);
+			// Retransformation : only the capable one
+			registered.get(1).transform(null, "com/mycompany/Foo", String.class, null, CLASS_DATA);
+			// Class load aborted after the first transformer
+			registered.get(0).transform(null, "com/mycompany/Bar", null, null, CLASS_DATA);
+			registered.get(0).transform(null, "com/mycompany/Baz", null, null, CLASS_DATA);
+			registered.get(1).transform(null, "com/mycompany/Baz", null, null, CLASS_DATA);
+			
+			assertEquals(6, calls.size());
+			assertEquals(4, TransformLatencies.get().snapshot().get("com.mycompany").getCount());
+		}
+		finally {
+			TransformLatencies.disable();
+		}
+	}
+	
+	@Test
+	public void schemaIsCreatedOnce() throws Exception
+	{
+		assertSame(AgentRegistry.get().getSchema(), AgentRegistry.get().getSchema());
+	}
+	
+	private static TransformerDispatcher createDispatcher(Instrumentation instrumentation, final String name, final List<String> calls)
+	{
+		// Gated : the test registers the dispatcher itself
+		TransformerDispatcher dispatcher = new TransformerDispatcher(instrumentation, false, true);
+		dispatcher.addDelegate(name).getProxy().addTransformer(
+			new ClassFileTransformer() {
+				@Override
+				public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+						ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+					calls.add(name);
+					return classfileBuffer;
+				}
+			}
+		);
+		return dispatcher;
+	}
+	
+	private static Instrumentation createInstrumentation(final List<ClassFileTransformer> registered)
+	{
+		return
+			(Instrumentation)Proxy.newProxyInstance(
+				AgentRegistryTest.class.getClassLoader(),
+				new Class<?>[] { Instrumentation.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if("addTransformer".equals(method.getName()))
+							registered.add((ClassFileTransformer)args[0]);
+						if(method.getReturnType() == boolean.class)
+							return Boolean.TRUE;
+						return null;
+					}
+				}
+			);
+	}
+}
@@ -0,0 +1,131 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.ProtectionDomain;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class AgentReportTest
+{
+	@After
+	public void disable()
+	{
+		TransformLatencies.disable();
+	}
+	
+	@Test
+	public void singleLineReport()
+	{
+		TransformLatencies.enable(Collections.singletonMap(Agent.OPTION_LATENCY, "true"));
+		TransformLatencies.get().record("com/mycompany/Foo", 3000000);
+		TransformLatencies.get().record("org/acme/Bar", 1000000);
+		
+		String report = AgentReport.render();
+		assertTrue(report, report.matches("uptime=\\d+\\.\\ds boot=\\{.*\\} transform\\.wall=\\d+\\.\\dms calls=\\d+ examined=\\d+ .*"));
+		assertTrue(report, report.contains(" transformed="));
+		assertTrue(report, report.contains(" top={com.mycompany=3.0ms, org.acme=1.0ms}"));
+		assertTrue(report, report.contains(" classloaders={classes="));
+		assertEquals(-1, report.indexOf('\n'));
+	}
+	
+	@Test
+	public void classLoadsAreCountedOnce() throws Exception
+	{
+		TransformAccounting.enable();
+		Agent.getMetrics().reset();
+		TransformerDispatcher dispatcher = new TransformerDispatcher(createInstrumentation(), false, true);
+		AgentInstrumentation delegate = dispatcher.addDelegate("report");
+		final ClassFilter filter =
+			new ClassFilter(
+				Collections.singletonList(Pattern.compile("^com/hapiware/.+")),
+				Collections.singletonList(Pattern.compile(".+Test"))
+			);
+		delegate.setClassFilter(filter);
+		ClassFileTransformer transformer =
+			new ClassFileTransformer() {
+				@Override
+				public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+						ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+					return filter.matches(className) ? classfileBuffer.clone() : null;
+				}
+			};
+		// Called on both passes
+		delegate.getProxy().addTransformer(transformer);
+		delegate.getProxy().addTransformer(transformer, true);
+		
+		for(Class<?> type : new Class<?>[] { ClassFilter.class, AgentReportTest.class, Assert.class })
+			dispatcher.dispatch(
+				type.getClassLoader(),
+				type.getName().replace('.', '/'),
+				null,
+				type.getProtectionDomain(),
+				readClassFile(type)
+			);
+		
+		String report = AgentReport.render();
+		assertTrue(report, report.contains(" calls=6 examined=3 included=1 excluded=1 transformed=1 "));
+	}
+	
+	@Test
+	public void oneLinePerRun() throws Exception
+	{
+		File file = File.createTempFile("agent-report", ".log");
+		file.deleteOnExit();
+		Files.delete(file.toPath());
+		AgentReport.append(file, "first");
+		AgentReport.append(file, "second");
+		
+		List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+		assertEquals(2, lines.size());
+		assertTrue(lines.get(0), lines.get(0).matches("\\d{4}-\\d{2}-\\d{2}T\\d{2}:\\d{2}:\\d{2} .* first"));
+		assertTrue(lines.get(1), lines.get(1).endsWith(" second"));
+	}
+	
+	private static byte[] readClassFile(Class<?> type) throws IOException
+	{
+		try(InputStream in = type.getResourceAsStream("/" + type.getName().replace('.', '/') + ".class")) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while((read = in.read(buffer)) != -1)
+				out.write(buffer, 0, read);
+			return out.toByteArray();
+		}
+	}
+	
+	private static Instrumentation createInstrumentation()
+	{
+		return
+			(Instrumentation)Proxy.newProxyInstance(
+				AgentReportTest.class.getClassLoader(),
+				new Class<?>[] { Instrumentation.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if(method.getReturnType() == boolean.class)
+							return Boolean.TRUE;
+						return null;
+					}
+				}
+			);
+	}
+}
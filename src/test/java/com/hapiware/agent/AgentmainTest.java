@@ -0,0 +1,141 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Test;
+
+
+public class AgentmainTest
+{
+	private static volatile String entryPoint;
+
+
+	@After
+	public void reset()
+	{
+		InstrumentationLevels.reset();
+		entryPoint = null;
+	}
+
+	@Test
+	public void delegateAgentmainIsPreferred() throws Exception
+	{
+		List<List<Class<?>>> batches = new ArrayList<>();
+		Agent.agentmain(createConfiguration(AttachedDelegate.class) + ";" + Agent.OPTION_RETRANSFORM_BATCH_SIZE + "=3", createInstrumentation(batches));
+		assertEquals("agentmain", entryPoint);
+
+		// Already loaded matching classes, except the unmodifiable one, in batches of 3
+		assertEquals(
+			Arrays.asList(
+				Arrays.<Class<?>>asList(ClassFilter.class, ClassLoadEvent.class, ClassLoadListener.class),
+				Arrays.<Class<?>>asList(ClassLoaderStatistics.class)
+			),
+			batches
+		);
+	}
+
+	@Test
+	public void delegatePremainIsCalledWithoutAgentmain() throws Exception
+	{
+		List<List<Class<?>>> batches = new ArrayList<>();
+		Agent.agentmain(createConfiguration(PremainDelegate.class), createInstrumentation(batches));
+		assertEquals("premain", entryPoint);
+		assertEquals(1, batches.size());
+		assertEquals(4, batches.get(0).size());
+	}
+
+	private static String createConfiguration(Class<?> delegate) throws Exception
+	{
+		File config = File.createTempFile("agent-attach", ".xml");
+		config.deleteOnExit();
+		Files.write(
+			config.toPath(),
+			(
+				"<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n"
+					+ "<agent>\n"
+					+ "	<delegate>" + delegate.getName() + "</delegate>\n"
+					+ "	<classpath>\n"
+					+ "		<entry>.</entry>\n"
+					+ "	</classpath>\n"
+					+ "	<filter>\n"
+					+ "		<include>^com/hapiware/agent/Class.+</include>\n"
+					+ "	</filter>\n"
+					+ "</agent>\n"
+			).getBytes(StandardCharsets.UTF_8)
+		);
+		return config.getPath();
+	}
+
+	private static Instrumentation createInstrumentation(final List<List<Class<?>>> batches)
+	{
+		return
+			(Instrumentation)Proxy.newProxyInstance(
+				AgentmainTest.class.getClassLoader(),
+				new Class<?>[] { Instrumentation.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						switch(method.getName()) {
+							case "getAllLoadedClasses":
+								return
+									new Class<?>[] {
+										String.class,
+										ClassFilter.class,
+										ClassLoadEvent.class,
+										ClassLoadNotifier.class,
+										ClassLoadListener.class,
+										ClassLoaderStatistics.class
+									};
+							case "isModifiableClass":
+								return args[0] != ClassLoadNotifier.class;
+							case "retransformClasses":
+								batches.add(Arrays.asList((Class<?>[])args[0]));
+								return null;
+							case "getObjectSize":
+								return 0L;
+							default:
+								if(method.getReturnType() == boolean.class)
+									return Boolean.TRUE;
+								return null;
+						}
+					}
+				}
+			);
+	}
+
+
+	public static class AttachedDelegate
+	{
+		public static void premain(Pattern[] includePatterns, Pattern[] excludePatterns, Object config, Instrumentation instrumentation)
+		{
+			entryPoint = "premain";
+		}
+
+		public static void agentmain(Pattern[] includePatterns, Pattern[] excludePatterns, Object config, Instrumentation instrumentation)
+		{
+			entryPoint = "agentmain";
+		}
+	}
+
+
+	public static class PremainDelegate
+	{
+		public static void premain(Pattern[] includePatterns, Pattern[] excludePatterns, Object config, Instrumentation instrumentation)
+		{
+			entryPoint = "premain";
+		}
+	}
+}
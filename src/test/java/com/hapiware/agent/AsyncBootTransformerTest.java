@@ -0,0 +1,229 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.ProtectionDomain;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class AsyncBootTransformerTest
+{
+	private static final byte[] CLASS_DATA = new byte[] { 1 };
+	private static final byte[] TRANSFORMED_CLASS_DATA = new byte[] { 2 };
+
+	private static final CountDownLatch release = new CountDownLatch(1);
+
+	private TransformerDispatcher dispatcher;
+
+
+	@Before
+	public void setup()
+	{
+		dispatcher = new TransformerDispatcher(createInstrumentation(new CopyOnWriteArrayList<Class<?>>(), null), false, true);
+	}
+
+	@After
+	public void reset()
+	{
+		InstrumentationLevels.reset();
+	}
+
+	@Test
+	public void classesLoadedBeforeReadinessArePending() throws Exception
+	{
+		AsyncBootTransformer transformer = new AsyncBootTransformer(dispatcher, 0);
+		assertNull(transformer.transform(null, "com/hapiware/Test", null, null, CLASS_DATA));
+		// Redefinitions are handled by the JVM once the delegate transformers are registered
+		assertNull(transformer.transform(null, "com/hapiware/Redefined", String.class, null, CLASS_DATA));
+		assertEquals(1, transformer.getReadiness().getCount());
+
+		addDelegateTransformer();
+		assertEquals(new HashSet<String>(Arrays.asList("com/hapiware/Test")), transformer.ready());
+		assertEquals(0, transformer.getReadiness().getCount());
+
+		// Readiness barrier open : dispatched to the delegate
+		assertArrayEquals(TRANSFORMED_CLASS_DATA, transformer.transform(null, "com/hapiware/Other", null, null, CLASS_DATA));
+		assertTrue(transformer.ready().isEmpty());
+	}
+
+	@Test
+	public void classLoadingThreadIsHeldUntilReadiness() throws Exception
+	{
+		final AsyncBootTransformer transformer = new AsyncBootTransformer(dispatcher, TimeUnit.SECONDS.toMillis(30));
+		final AtomicReference<Set<String>> pending = new AtomicReference<>();
+		Thread boot =
+			new Thread(
+				new Runnable() {
+					@Override
+					public void run() {
+						try {
+							Thread.sleep(100);
+						}
+						catch(InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+						addDelegateTransformer();
+						pending.set(transformer.ready());
+					}
+				}
+			);
+		boot.start();
+
+		// Held, then handed over to the delegate : nothing left to retransform
+		assertArrayEquals(TRANSFORMED_CLASS_DATA, transformer.transform(null, "com/hapiware/Test", null, null, CLASS_DATA));
+		boot.join();
+		assertTrue(pending.get().isEmpty());
+	}
+
+	@Test
+	public void waitIsBounded() throws Exception
+	{
+		AsyncBootTransformer transformer = new AsyncBootTransformer(dispatcher, 50);
+		long start = System.nanoTime();
+		assertNull(transformer.transform(null, "com/hapiware/Test", null, null, CLASS_DATA));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+
+		// Too late : retransformed once ready
+		assertEquals(new HashSet<String>(Arrays.asList("com/hapiware/Test")), transformer.ready());
+	}
+
+	@Test
+	public void pendingClassesAreRetransformedOnceBooted() throws Exception
+	{
+		File config = File.createTempFile("agent-async", ".xml");
+		config.deleteOnExit();
+		Files.write(
+			config.toPath(),
+			(
+				"<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n"
+					+ "<agent>\n"
+					+ "	<delegate>" + BlockingDelegate.class.getName() + "</delegate>\n"
+					+ "	<classpath>\n"
+					+ "		<entry>.</entry>\n"
+					+ "	</classpath>\n"
+					+ "	<filter>\n"
+					+ "		<include>^com/hapiware/agent/Class.+</include>\n"
+					+ "	</filter>\n"
+					+ "</agent>\n"
+			).getBytes(StandardCharsets.UTF_8)
+		);
+		List<Class<?>> retransformed = new CopyOnWriteArrayList<>();
+		CountDownLatch retransformation = new CountDownLatch(1);
+		List<ClassFileTransformer> registered = new CopyOnWriteArrayList<>();
+		Instrumentation instrumentation = createInstrumentation(retransformed, retransformation, registered);
+
+		Agent.premain(config.getPath() + ";" + Agent.OPTION_BOOT_ASYNC + "=true", instrumentation);
+		AsyncBootTransformer transformer = (AsyncBootTransformer)registered.get(0);
+		assertFalse(Agent.isReady());
+		assertFalse(Agent.awaitReady(10, TimeUnit.MILLISECONDS));
+
+		// Loaded while the delegate premain is running
+		assertNull(transformer.transform(null, "com/hapiware/agent/ClassFilter", null, null, CLASS_DATA));
+		assertNull(transformer.transform(null, "com/hapiware/agent/ClassLoadEvent", null, null, CLASS_DATA));
+		assertNull(transformer.transform(null, "java/lang/String", null, null, CLASS_DATA));
+
+		release.countDown();
+		assertTrue(Agent.awaitReady(30, TimeUnit.SECONDS));
+		assertTrue(Agent.isReady());
+		assertTrue(retransformation.await(30, TimeUnit.SECONDS));
+
+		// Only the pending classes matching the delegate filter
+		assertEquals(Arrays.<Class<?>>asList(ClassFilter.class, ClassLoadEvent.class), retransformed);
+		assertArrayEquals(TRANSFORMED_CLASS_DATA, transformer.transform(null, "com/hapiware/agent/ClassFilter", ClassFilter.class, null, CLASS_DATA));
+	}
+
+	private void addDelegateTransformer()
+	{
+		dispatcher.addDelegate("Delegate").getProxy().addTransformer(new TransformedClassFileTransformer());
+	}
+
+	private static Instrumentation createInstrumentation(List<Class<?>> retransformed, CountDownLatch retransformation)
+	{
+		return createInstrumentation(retransformed, retransformation, new CopyOnWriteArrayList<ClassFileTransformer>());
+	}
+
+	private static Instrumentation createInstrumentation(
+			final List<Class<?>> retransformed,
+			final CountDownLatch retransformation,
+			final List<ClassFileTransformer> registered
+		)
+	{
+		return
+			(Instrumentation)Proxy.newProxyInstance(
+				AsyncBootTransformerTest.class.getClassLoader(),
+				new Class<?>[] { Instrumentation.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						switch(method.getName()) {
+							case "addTransformer":
+								registered.add((ClassFileTransformer)args[0]);
+								return null;
+							case "getAllLoadedClasses":
+								return new Class<?>[] { String.class, ClassFilter.class, ClassLoadEvent.class, ClassLoadNotifier.class };
+							case "retransformClasses":
+								retransformed.addAll(Arrays.asList((Class<?>[])args[0]));
+								if(retransformation != null)
+									retransformation.countDown();
+								return null;
+							case "getObjectSize":
+								return 0L;
+							default:
+								if(method.getReturnType() == boolean.class)
+									return Boolean.TRUE;
+								return null;
+						}
+					}
+				}
+			);
+	}
+
+
+	private static class TransformedClassFileTransformer
+		implements
+			ClassFileTransformer
+	{
+		@Override
+		public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+				ProtectionDomain protectionDomain, byte[] classfileBuffer)
+		{
+			return TRANSFORMED_CLASS_DATA;
+		}
+	}
+
+
+	public static class BlockingDelegate
+	{
+		public static void premain(Pattern[] includePatterns, Pattern[] excludePatterns, Object config, Instrumentation instrumentation)
+			throws InterruptedException
+		{
+			// Agent boot in progress until released
+			release.await(30, TimeUnit.SECONDS);
+			instrumentation.addTransformer(new TransformedClassFileTransformer(), true);
+		}
+	}
+}
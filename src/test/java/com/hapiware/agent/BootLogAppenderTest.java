@@ -0,0 +1,37 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.junit.Test;
+
+
+public class BootLogAppenderTest
+{
+	@Test
+	public void messagesKeepTheirOrder() throws Exception
+	{
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		BootLogAppender appender = new BootLogAppender(2, new PrintStream(output, true, "UTF-8"));
+		
+		// Overflows the ring buffer
+		StringBuilder expected = new StringBuilder();
+		for(int i = 0; i < 100; i++) {
+			appender.append("message " + i);
+			expected.append("message ").append(i).append(System.lineSeparator());
+		}
+		appender.flush();
+		assertEquals(expected.toString(), output.toString("UTF-8"));
+	}
+	
+	@Test
+	public void format()
+	{
+		assertEquals("a 1 b 2 c", BootLogger.format("a {} b {} c", 1, 2, null, 2));
+		assertEquals("a 1 b {}", BootLogger.format("a {} b {}", 1, null, null, 1));
+		assertEquals("a null", BootLogger.format("a {}", null, null, null, 1));
+		assertEquals("no placeholder", BootLogger.format("no placeholder", "x", null, null, 1));
+	}
+}
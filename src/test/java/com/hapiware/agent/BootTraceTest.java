@@ -0,0 +1,98 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.hapiware.agent.BootTraceReader.Record;
+
+
+public class BootTraceTest
+	extends
+		TestBase
+{
+	private static final String PROPERTY = "compiled.test.home";
+	
+	
+	@After
+	public void close()
+	{
+		BootTrace.close();
+		System.clearProperty(PROPERTY);
+	}
+	
+	@Test
+	public void recordsAreReadBack() throws Exception
+	{
+		File file = openTrace(null);
+		
+		System.setProperty(PROPERTY, "does-not-exist");
+		Map<String, String> agentParams = new HashMap<>();
+		agentParams.put(Agent.AGENT_CONFIGURATION_PATH, BASEDIR + "agent-config-compiled.xml");
+		Agent.readConfiguration(agentParams);
+		BootTrace.phase("configuration", 1000);
+		BootLogger.error("Boot failure", new IllegalStateException("test"));
+		
+		// Read while still mapped, as after a crash
+		BootTraceReader reader = BootTraceReader.read(file);
+		assertFalse(reader.isOverflow());
+		List<Record> records = reader.getRecords();
+		
+		Record variable = find(records, "VARIABLE", PROPERTY);
+		assertEquals("system property", variable.getValue(1));
+		// Values are not recorded : they can be secrets
+		assertNull(variable.getValue(2));
+		assertEquals("does-not-exist", find(records, "CLASSPATH_REJECTED", "does-not-exist").getValue(0));
+		assertEquals(1000, find(records, "PHASE", "configuration").getValue());
+		assertEquals("java.lang.IllegalStateException: test", find(records, "ERROR", "Boot failure").getValue(1));
+		if(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"))
+			assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath())));
+	}
+	
+	@Test
+	public void overflow() throws Exception
+	{
+		File file = openTrace("128");
+		for(int i = 0; i < 10; i++)
+			BootTrace.warning("Warning " + i);
+		
+		BootTraceReader reader = BootTraceReader.read(file);
+		assertTrue(reader.isOverflow());
+		assertEquals(3, reader.getRecords().size());
+		assertEquals("Warning 2", reader.getRecords().get(2).getValue(0));
+	}
+	
+	private static File openTrace(String size) throws Exception
+	{
+		File directory = Files.createTempDirectory("boot-trace").toFile();
+		directory.deleteOnExit();
+		Map<String, String> agentParams = new HashMap<>();
+		agentParams.put(Agent.OPTION_BOOT_TRACE, directory.getPath());
+		if(size != null)
+			agentParams.put(Agent.OPTION_BOOT_TRACE_SIZE, size);
+		BootTrace.open(agentParams);
+		File file = BootTrace.getFile();
+		file.deleteOnExit();
+		return file;
+	}
+	
+	private static Record find(List<Record> records, String type, String firstValue)
+	{
+		for(Record record : records)
+			if(record.getType().equals(type) && firstValue.equals(record.getValue(0)))
+				return record;
+		throw new AssertionError(type + " record " + firstValue + " not found in " + records);
+	}
+}
@@ -0,0 +1,78 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+import com.hapiware.agent.Agent.ConfigElements;
+
+
+public class ClassFilterTest
+	extends
+		TestBase
+{
+	@Before
+	public void setup() throws ParserConfigurationException
+	{
+		super.setup();
+		
+		// /agent/filter/include
+		Element item = configDoc.createElement("include");
+		item.appendChild(configDoc.createTextNode("^com/hapiware/.+"));
+		instrumentedClass.appendChild(item);
+
+		// /agent/filter/exclude
+		item = configDoc.createElement("exclude");
+		item.appendChild(configDoc.createTextNode("^com/hapiware/.+/Excluded"));
+		instrumentedClass.appendChild(item);
+	}
+	
+	@Test
+	public void matches()
+	{
+		ClassFilter filter = readClassFilter();
+		assertTrue(filter.matches("com/hapiware/agent/Agent"));
+		assertFalse(filter.matches("com/hapiware/agent/Excluded"));
+		assertTrue(filter.matches("com/hapiware/agent/Excluded$1"));
+		assertFalse(filter.matches("com/mysoft/Agent"));
+		assertFalse(filter.matches(null));
+	}
+	
+	@Test
+	public void defaultIncludesEverything()
+	{
+		instrumentedClass.getParentNode().removeChild(instrumentedClass);
+		ClassFilter filter = readClassFilter();
+		assertTrue(filter.matches("com/mysoft/Agent"));
+		assertTrue(filter.matches("java/util/List"));
+	}
+	
+	@Test
+	public void unchangedPatternsAreReused()
+	{
+		ClassFilter filter = readClassFilter();
+		ClassFilter reloaded = readClassFilter();
+		assertTrue(filter.hasSamePatterns(reloaded));
+		assertSame(filter.getIncludePatterns().get(0), reloaded.getIncludePatterns().get(0));
+		
+		instrumentedClass.getLastChild().setTextContent("^com/hapiware/.+/Other");
+		reloaded = readClassFilter();
+		assertFalse(filter.hasSamePatterns(reloaded));
+		assertSame(filter.getIncludePatterns().get(0), reloaded.getIncludePatterns().get(0));
+	}
+	
+	private ClassFilter readClassFilter()
+	{
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString(), new HashMap<String, String>());
+		return configElements.getClassFilter();
+	}
+}
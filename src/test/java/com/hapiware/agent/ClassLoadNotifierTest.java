@@ -0,0 +1,176 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+
+public class ClassLoadNotifierTest
+{
+	@Test
+	public void matchingClassLoadsAreDeliveredInBatches() throws Exception
+	{
+		final List<String> loaded = Collections.synchronizedList(new ArrayList<String>());
+		final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+		List<ClassFileTransformer> registered = new ArrayList<>();
+		TransformerDispatcher dispatcher = new TransformerDispatcher(createInstrumentation(registered), false, true);
+		AgentInstrumentation agentInstrumentation = dispatcher.addDelegate("observer");
+		ClassLoadNotifier notifier = agentInstrumentation.getNotifier();
+		agentInstrumentation.setClassFilter(
+			new ClassFilter(
+				Arrays.asList(Pattern.compile("^com/mycompany/.+")),
+				Arrays.asList(Pattern.compile(".+Test"))
+			)
+		);
+		
+		// Not subscribed : nothing queued
+		dispatcher.dispatch(null, "com/mycompany/Early", null, null, new byte[0]);
+		
+		ClassLoadListener listener =
+			new ClassLoadListener() {
+				@Override
+				public void classesLoaded(List<ClassLoadEvent> events)
+				{
+					threads.add(Thread.currentThread());
+					for(ClassLoadEvent event : events)
+						loaded.add(event.getClassName());
+				}
+			};
+		notifier.subscribe(listener);
+		
+		dispatcher.dispatch(null, "com/mycompany/Foo", null, null, new byte[0]);
+		dispatcher.dispatch(null, "com/mycompany/FooTest", null, null, new byte[0]);
+		dispatcher.dispatch(null, "org/other/Bar", null, null, new byte[0]);
+		// Redefinitions are not class loads
+		dispatcher.dispatch(null, "com/mycompany/Baz", String.class, null, new byte[0]);
+		for(int i = 0; i < ClassLoadNotifier.BATCH_SIZE; i++)
+			dispatcher.dispatch(null, "com/mycompany/Gen" + i, null, null, new byte[0]);
+		
+		long deadline = System.currentTimeMillis() + 5000;
+		while(loaded.size() < ClassLoadNotifier.BATCH_SIZE + 1 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		
+		assertEquals(ClassLoadNotifier.BATCH_SIZE + 1, loaded.size());
+		assertEquals("com.mycompany.Foo", loaded.get(0));
+		assertEquals("com.mycompany.Gen0", loaded.get(1));
+		assertTrue(threads.size() >= 2);
+		for(Thread thread : threads)
+			assertTrue(thread != Thread.currentThread());
+		
+		assertTrue(notifier.unsubscribe(listener));
+		dispatcher.dispatch(null, "com/mycompany/Late", null, null, new byte[0]);
+		assertEquals(0, ClassLoadNotifier.deliverAll());
+	}
+	
+	@Test
+	public void onlyMatchingClassLoadsAreQueued() throws Exception
+	{
+		TransformerDispatcher dispatcher = new TransformerDispatcher(createInstrumentation(new ArrayList<ClassFileTransformer>()), false, true);
+		AgentInstrumentation agentInstrumentation = dispatcher.addDelegate("capped");
+		agentInstrumentation.setClassFilter(
+			new ClassFilter(
+				Arrays.asList(Pattern.compile("^com/mycompany/.+")),
+				Collections.<Pattern>emptyList()
+			)
+		);
+		final List<String> loaded = Collections.synchronizedList(new ArrayList<String>());
+		agentInstrumentation.getNotifier().subscribe(
+			new ClassLoadListener() {
+				@Override
+				public void classesLoaded(List<ClassLoadEvent> events)
+				{
+					for(ClassLoadEvent event : events)
+						loaded.add(event.getClassName());
+				}
+			}
+		);
+		
+		AtomicLong dropped = Agent.getMetrics().counter(MetricsRegistry.NOTIFICATIONS_DROPPED);
+		long droppedBefore = dropped.get();
+		// The non matching class loads do not take the queue capacity
+		for(int i = 0; i <= ClassLoadNotifier.MAX_PENDING; i++)
+			dispatcher.dispatch(null, "org/other/Gen" + i, null, null, new byte[0]);
+		dispatcher.dispatch(null, "com/mycompany/Foo", null, null, new byte[0]);
+		
+		long deadline = System.currentTimeMillis() + 5000;
+		while(loaded.isEmpty() && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(Collections.singletonList("com.mycompany.Foo"), loaded);
+		assertEquals(droppedBefore, dropped.get());
+	}
+	
+	@Test
+	public void failingListenersDoNotStopTheDelivery() throws Exception
+	{
+		TransformerDispatcher dispatcher = new TransformerDispatcher(createInstrumentation(new ArrayList<ClassFileTransformer>()), false, true);
+		AgentInstrumentation agentInstrumentation = dispatcher.addDelegate("failing");
+		agentInstrumentation.setClassFilter(
+			new ClassFilter(
+				Arrays.asList(Pattern.compile("^com/mycompany/.+")),
+				Collections.<Pattern>emptyList()
+			)
+		);
+		ClassLoadNotifier notifier = agentInstrumentation.getNotifier();
+		notifier.subscribe(
+			new ClassLoadListener() {
+				@Override
+				public void classesLoaded(List<ClassLoadEvent> events)
+				{
+					throw new AssertionError("Listener failure");
+				}
+			}
+		);
+		final List<String> loaded = Collections.synchronizedList(new ArrayList<String>());
+		notifier.subscribe(
+			new ClassLoadListener() {
+				@Override
+				public void classesLoaded(List<ClassLoadEvent> events)
+				{
+					for(ClassLoadEvent event : events)
+						loaded.add(event.getClassName());
+				}
+			}
+		);
+		
+		// Delivered by the notification thread, which survives the first failure
+		for(String className : new String[] { "com/mycompany/First", "com/mycompany/Second" }) {
+			dispatcher.dispatch(null, className, null, null, new byte[0]);
+			long deadline = System.currentTimeMillis() + 5000;
+			while(!loaded.contains(className.replace('/', '.')) && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+		}
+		assertEquals(Arrays.asList("com.mycompany.First", "com.mycompany.Second"), loaded);
+	}
+	
+	private static Instrumentation createInstrumentation(final List<ClassFileTransformer> registered)
+	{
+		return
+			(Instrumentation)Proxy.newProxyInstance(
+				ClassLoadNotifierTest.class.getClassLoader(),
+				new Class<?>[] { Instrumentation.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if("addTransformer".equals(method.getName()))
+							registered.add((ClassFileTransformer)args[0]);
+						if(method.getReturnType() == boolean.class)
+							return Boolean.TRUE;
+						return null;
+					}
+				}
+			);
+	}
+}
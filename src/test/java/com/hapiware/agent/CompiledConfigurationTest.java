@@ -0,0 +1,112 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+import com.hapiware.agent.Agent.ConfigElements;
+
+
+public class CompiledConfigurationTest
+	extends
+		TestBase
+{
+	private static final String PROPERTY = "compiled.test.home";
+	
+	
+	@After
+	public void clearProperty()
+	{
+		System.clearProperty(PROPERTY);
+	}
+	
+	@Test
+	public void lateBoundVariables() throws Exception
+	{
+		File compiled = compile(BASEDIR + "agent-config-compiled.xml");
+		CompiledConfiguration configuration = CompiledConfiguration.read(compiled.toPath());
+		assertEquals(1, configuration.getLateBoundVariables().size());
+		assertTrue(configuration.getLateBoundVariables().containsKey("home"));
+		
+		// Resolved at load time
+		File home = Files.createTempDirectory("compiled<&>").toFile();
+		home.deleteOnExit();
+		System.setProperty(PROPERTY, home.getPath());
+		ConfigElements configElements = readConfiguration(compiled).get(0);
+		assertEquals("com.hapiware.asm.AgentDelegate", configElements.getDelegateAgentName());
+		assertEquals(home.toURI().toURL(), configElements.getClasspaths()[0]);
+		assertEquals("^com/hapiware/.+", configElements.getIncludePatterns()[0].toString());
+		assertEquals("^com/hapiware/.+Test", configElements.getExcludePatterns()[0].toString());
+		assertEquals("Home is " + home.getPath(), Agent.unmarshall(this.getClass(), configElements));
+	}
+	
+	@Test
+	public void lateBoundDefaultValue() throws Exception
+	{
+		File compiled = compile(BASEDIR + "agent-config-compiled.xml");
+		ConfigElements configElements = readConfiguration(compiled).get(0);
+		assertEquals(new File(".").toURI().toURL(), configElements.getClasspaths()[0]);
+		assertEquals("Home is .", Agent.unmarshall(this.getClass(), configElements));
+		assertEquals(".", System.getProperty(PROPERTY));
+	}
+	
+	@Test
+	public void sameAsXmlConfiguration() throws Exception
+	{
+		List<ConfigElements> delegates = readConfiguration(compile(BASEDIR + "agent-config-multiple.xml"));
+		assertEquals(2, delegates.size());
+		
+		ConfigElements first = delegates.get(0);
+		assertEquals("com.hapiware.asm.AgentDelegate", first.getDelegateAgentName());
+		assertEquals("^com/asm/.+", first.getIncludePatterns()[0].toString());
+		@SuppressWarnings("unchecked")
+		List<String> list = (List<String>)Agent.unmarshall(null, first);
+		assertEquals("One", list.get(0));
+		
+		ConfigElements second = delegates.get(1);
+		assertEquals("com.hapiware.asm.OtherAgentDelegate", second.getDelegateAgentName());
+		assertEquals(2, second.getIncludePatterns().length);
+		assertEquals("^com/hapiware/.+/CreateCalculationForm", second.getExcludePatterns()[0].toString());
+		assertEquals("Shared", Agent.unmarshall(null, second));
+	}
+	
+	@Test(expected=Agent.ConfigurationError.class)
+	public void invalidPatternFailsAtCompileTime() throws Exception
+	{
+		setup();
+		Element include = configDoc.createElement("include");
+		include.appendChild(configDoc.createTextNode("^com/[hapiware/.+"));
+		instrumentedClass.appendChild(include);
+		AgentConfigCompiler.compile(createTemporaryConfigDocumentOnDisc(configDoc));
+	}
+	
+	
+	public static Object unmarshall(Element configElement)
+	{
+		return configElement.getElementsByTagName("message").item(0).getTextContent();
+	}
+	
+	private static File compile(String source) throws Exception
+	{
+		File target = File.createTempFile("agent-unit-test", CompiledConfiguration.FILE_EXTENSION);
+		target.deleteOnExit();
+		AgentConfigCompiler.compile(new File(source), target);
+		return target;
+	}
+	
+	private static List<ConfigElements> readConfiguration(File compiled)
+	{
+		Map<String, String> agentParams = new HashMap<>();
+		agentParams.put(Agent.AGENT_CONFIGURATION_PATH, compiled.getPath());
+		return Agent.readConfiguration(agentParams);
+	}
+}
@@ -0,0 +1,113 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.hapiware.agent.Agent.ConfigElements;
+
+
+public class ConfigurationFragmentTest
+	extends
+		TestBase
+{
+	private static final String FILENAME = BASEDIR + "agent-config-import.xml";
+	
+	
+	@Test
+	public void importedVariablesAndFilters() throws Exception
+	{
+		Map<String, String> agentParams = new HashMap<>();
+		agentParams.put(Agent.AGENT_CONFIGURATION_PATH, FILENAME);
+		agentParams.put(Agent.OPTION_FRAGMENT_CACHE, "false");
+		List<ConfigElements> delegates = Agent.readConfiguration(agentParams);
+		
+		ConfigElements first = delegates.get(0);
+		assertEquals(2, first.getIncludePatterns().length);
+		assertEquals("^com/mycompany/.+", first.getIncludePatterns()[0].toString());
+		assertEquals("^com/asm/.+", first.getIncludePatterns()[1].toString());
+		assertEquals("^com/mycompany/generated/.+", first.getExcludePatterns()[0].toString());
+		
+		// Imported includes go before the excludes
+		ConfigElements second = delegates.get(1);
+		assertEquals(2, second.getIncludePatterns().length);
+		assertEquals("^com/mycompany/.+", second.getIncludePatterns()[1].toString());
+		assertEquals(2, second.getExcludePatterns().length);
+		assertEquals("^com/mycompany/generated/.+", second.getExcludePatterns()[1].toString());
+		assertEquals(new File(".").toURI().toURL(), second.getClasspaths()[0]);
+		assertEquals("mycompany", Agent.unmarshall(null, second));
+	}
+	
+	@Test
+	public void fragmentIsParsedOncePerJvmAndCachedOnDisk() throws Exception
+	{
+		File cacheDirectory = Files.createTempDirectory("fragments").toFile();
+		cacheDirectory.deleteOnExit();
+		
+		// Content not yet loaded by this JVM
+		File fragmentFile = new File(cacheDirectory, "fragment.xml");
+		fragmentFile.deleteOnExit();
+		Files.write(
+			fragmentFile.toPath(),
+			("<fragment><variable name=\"id\">" + System.nanoTime() + "</variable><filter><include>.+</include></filter></fragment>").getBytes("UTF-8")
+		);
+		ConfigurationFragment fragment = ConfigurationFragment.load(fragmentFile, cacheDirectory);
+		assertSame(fragment, ConfigurationFragment.load(fragmentFile, cacheDirectory));
+		assertEquals(1, fragment.getVariableNames().size());
+		assertEquals(1, fragment.getIncludes().size());
+		
+		// Same content, other file
+		File copy = new File(cacheDirectory, "copy.xml");
+		copy.deleteOnExit();
+		Files.copy(fragmentFile.toPath(), copy.toPath());
+		assertSame(fragment, ConfigurationFragment.load(copy, cacheDirectory));
+		
+		File cacheFile =
+			new File(
+				cacheDirectory,
+				ConfigurationFragment.hash(Files.readAllBytes(fragmentFile.toPath())) + ConfigurationFragment.CACHE_FILE_EXTENSION
+			);
+		cacheFile.deleteOnExit();
+		assertTrue(cacheFile.isFile());
+	}
+	
+	@Test
+	public void cacheDirectoryMustBeOwnerOnly() throws Exception
+	{
+		Assume.assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+		File parent = Files.createTempDirectory("fragments").toFile();
+		parent.deleteOnExit();
+		
+		// Created owner only
+		File cacheDirectory = new File(parent, "cache");
+		cacheDirectory.deleteOnExit();
+		Map<String, String> agentParams = new HashMap<>();
+		agentParams.put(Agent.OPTION_FRAGMENT_CACHE, cacheDirectory.getPath());
+		assertEquals(cacheDirectory, ConfigurationFragment.getCacheDirectory(agentParams));
+		assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(cacheDirectory.toPath())));
+		
+		// Planted files could be written by the others
+		Files.setPosixFilePermissions(cacheDirectory.toPath(), PosixFilePermissions.fromString("rwxrwxrwx"));
+		assertFalse(ConfigurationFragment.isTrusted(cacheDirectory));
+		assertNull(ConfigurationFragment.getCacheDirectory(agentParams));
+	}
+	
+	@Test(expected=Agent.ConfigurationError.class)
+	public void missingFragment()
+	{
+		ConfigurationFragment.load(new File(BASEDIR + "fragments/missing.xml"), null);
+	}
+}
@@ -0,0 +1,132 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import com.hapiware.agent.Agent.ConfigElements;
+
+
+public class ConfigurationProfileTest
+	extends
+		TestBase
+{
+	private static final String FILENAME = BASEDIR + "agent-config-profile.xml";
+	
+	
+	@Test
+	public void noProfile() throws Exception
+	{
+		ConfigElements configElements = readConfiguration(null);
+		assertEquals(1, configElements.getIncludePatterns().length);
+		assertEquals("^com/hapiware/.+", configElements.getIncludePatterns()[0].toString());
+		
+		// Profile elements of the custom configuration are not profile sections
+		Element custom = Agent.getCustomConfigurationElement(configElements.getConfigurationElement());
+		assertEquals("kept", ((Element)custom.getElementsByTagName("profile").item(0)).getAttribute("name"));
+	}
+	
+	@Test
+	public void selectedProfiles() throws Exception
+	{
+		ConfigElements configElements = readConfiguration("test");
+		assertEquals(2, configElements.getIncludePatterns().length);
+		assertEquals("^org/junit/.+", configElements.getIncludePatterns()[1].toString());
+		
+		configElements = readConfiguration("dev");
+		assertEquals(3, configElements.getIncludePatterns().length);
+		assertEquals("^org/dev/.+", configElements.getIncludePatterns()[2].toString());
+		
+		configElements = readConfiguration("prod");
+		assertEquals(1, configElements.getIncludePatterns().length);
+		assertEquals("^com/mycompany/.+", configElements.getIncludePatterns()[0].toString());
+	}
+	
+	@Test
+	public void selectedProfilesOfParsedDocument() throws Exception
+	{
+		Map<String, String> agentParams = new HashMap<>();
+		agentParams.put(Agent.OPTION_PROFILE, "dev");
+		File file = new File(FILENAME);
+		ConfigElements configElements =
+			Agent.readDOMDocument(
+				DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file),
+				file.getCanonicalPath(),
+				agentParams
+			);
+		assertEquals(3, configElements.getIncludePatterns().length);
+		assertEquals("^org/dev/.+", configElements.getIncludePatterns()[2].toString());
+	}
+	
+	@Test
+	public void lexicalNodesAreKept() throws Exception
+	{
+		File file = File.createTempFile("agent-profile", ".xml");
+		file.deleteOnExit();
+		Files.write(
+			file.toPath(),
+			(
+				"<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n"
+					+ "<agent><configuration><custom>"
+					+ "<!-- note --><script><![CDATA[a < b]]></script><?target data?>"
+					+ "</custom></configuration></agent>\n"
+			).getBytes(StandardCharsets.UTF_8)
+		);
+		Document document = ConfigurationProfile.parse(file, null, null);
+		Node custom = document.getElementsByTagName("custom").item(0);
+		assertEquals(Node.COMMENT_NODE, custom.getChildNodes().item(0).getNodeType());
+		assertEquals(" note ", custom.getChildNodes().item(0).getNodeValue());
+		Node cdata = custom.getChildNodes().item(1).getFirstChild();
+		assertEquals(Node.CDATA_SECTION_NODE, cdata.getNodeType());
+		assertEquals("a < b", cdata.getNodeValue());
+		assertEquals(Node.PROCESSING_INSTRUCTION_NODE, custom.getChildNodes().item(2).getNodeType());
+		assertEquals(3, custom.getChildNodes().getLength());
+	}
+	
+	@Test
+	public void compiledEntryPerProfile() throws Exception
+	{
+		// Every declared profile gets compiled : drop the invalid one
+		File source = File.createTempFile("agent-profile", ".xml");
+		source.deleteOnExit();
+		String content = new String(Files.readAllBytes(new File(FILENAME).toPath()), "UTF-8");
+		Files.write(source.toPath(), content.replaceAll("(?s)<profile name=\"unused\">.*?</profile>", "").getBytes("UTF-8"));
+		
+		File compiled = File.createTempFile("agent-profile", CompiledConfiguration.FILE_EXTENSION);
+		compiled.deleteOnExit();
+		AgentConfigCompiler.compile(source, compiled);
+		CompiledConfiguration configuration = CompiledConfiguration.read(compiled.toPath());
+		assertEquals("[prod, test, dev]", configuration.getProfiles().keySet().toString());
+		
+		Map<String, String> agentParams = new HashMap<>();
+		assertEquals(1, configuration.select(null).toConfigElements(agentParams).get(0).getIncludePatterns().length);
+		assertEquals(
+			"^com/mycompany/.+",
+			configuration.select("prod").toConfigElements(agentParams).get(0).getIncludePatterns()[0].toString()
+		);
+		assertEquals(3, configuration.select("dev").toConfigElements(agentParams).get(0).getIncludePatterns().length);
+		
+		// Undeclared profile : default entry
+		assertEquals(configuration, configuration.select("other"));
+	}
+	
+	private static ConfigElements readConfiguration(String profile)
+	{
+		Map<String, String> agentParams = new HashMap<>();
+		agentParams.put(Agent.AGENT_CONFIGURATION_PATH, FILENAME);
+		if(profile != null)
+			agentParams.put(Agent.OPTION_PROFILE, profile);
+		return Agent.readConfigurationFile(agentParams);
+	}
+}
@@ -0,0 +1,199 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hapiware.agent.Agent.DelegateAgent;
+
+
+public class ConfigurationReloadTest
+{
+	private static volatile Pattern[] reconfiguredIncludePatterns;
+	private static volatile Object reconfiguredConfiguration;
+
+	private File config;
+	private Map<String, String> agentParams;
+	private List<Class<?>> retransformed;
+	private Instrumentation instrumentation;
+
+
+	@Before
+	public void setup() throws Exception
+	{
+		config = File.createTempFile("agent-reload", ".xml");
+		config.deleteOnExit();
+		agentParams = new HashMap<>();
+		agentParams.put(Agent.AGENT_CONFIGURATION_PATH, config.getPath());
+		retransformed = new ArrayList<>();
+		instrumentation = createInstrumentation(retransformed);
+	}
+
+	@After
+	public void reset()
+	{
+		InstrumentationLevels.reset();
+		reconfiguredIncludePatterns = null;
+		reconfiguredConfiguration = null;
+	}
+
+	@Test
+	public void delegateIsReconfigured() throws Exception
+	{
+		List<DelegateAgent> delegates = boot(ReconfigurableDelegate.class, "^com/hapiware/agent/ClassFilter$", "first");
+		retransformed.clear();
+
+		writeConfiguration(ReconfigurableDelegate.class, "^com/hapiware/agent/ClassLoad.+", "second");
+		Agent.reloadConfiguration(agentParams, instrumentation, delegates);
+		assertEquals("second", reconfiguredConfiguration);
+		assertEquals("^com/hapiware/agent/ClassLoad.+", reconfiguredIncludePatterns[0].pattern());
+		assertEquals("^com/hapiware/agent/ClassLoad.+", delegates.get(0).getConfigElements().getIncludePatterns()[0].pattern());
+
+		// Classes whose filter decision changed only
+		assertEquals(Arrays.<Class<?>>asList(ClassFilter.class, ClassLoadEvent.class, ClassLoadNotifier.class), retransformed);
+	}
+
+	@Test
+	public void delegateWithoutReconfigureMethodKeepsItsConfiguration() throws Exception
+	{
+		List<DelegateAgent> delegates = boot(PremainDelegate.class, "^com/hapiware/agent/ClassFilter$", "first");
+		retransformed.clear();
+
+		writeConfiguration(PremainDelegate.class, "^com/hapiware/agent/ClassLoad.+", "second");
+		Agent.reloadConfiguration(agentParams, instrumentation, delegates);
+		assertEquals("^com/hapiware/agent/ClassFilter$", delegates.get(0).getConfigElements().getIncludePatterns()[0].pattern());
+		assertTrue(retransformed.isEmpty());
+	}
+
+	@Test
+	public void replacedDelegateIsNotReconfigured() throws Exception
+	{
+		List<DelegateAgent> delegates = boot(ReconfigurableDelegate.class, "^com/hapiware/agent/ClassFilter$", "first");
+		retransformed.clear();
+
+		writeConfiguration(PremainDelegate.class, "^com/hapiware/agent/ClassLoad.+", "second");
+		Agent.reloadConfiguration(agentParams, instrumentation, delegates);
+		assertNull(reconfiguredConfiguration);
+		assertEquals(ReconfigurableDelegate.class, delegates.get(0).getDelegateAgentClass());
+		assertEquals("^com/hapiware/agent/ClassFilter$", delegates.get(0).getConfigElements().getIncludePatterns()[0].pattern());
+		assertTrue(retransformed.isEmpty());
+	}
+
+	@Test
+	public void onlyTheCurrentPatternsAreKept() throws Exception
+	{
+		writeConfiguration(PremainDelegate.class, "^com/mycompany/reload/.+", "first");
+		Pattern first = Agent.readConfigurationFile(agentParams).getIncludePatterns()[0];
+		// Unchanged pattern : reused
+		assertSame(first, Agent.readConfigurationFile(agentParams).getIncludePatterns()[0]);
+
+		writeConfiguration(PremainDelegate.class, "^com/mycompany/other/.+", "first");
+		assertEquals("^com/mycompany/other/.+", Agent.readConfigurationFile(agentParams).getIncludePatterns()[0].pattern());
+
+		// Dropped by the previous read : compiled again
+		writeConfiguration(PremainDelegate.class, "^com/mycompany/reload/.+", "first");
+		Pattern again = Agent.readConfigurationFile(agentParams).getIncludePatterns()[0];
+		assertEquals(first.pattern(), again.pattern());
+		assertNotSame(first, again);
+	}
+
+	private List<DelegateAgent> boot(Class<?> delegate, String include, String configuration) throws Exception
+	{
+		writeConfiguration(delegate, include, configuration);
+		int booted = Agent.getBootedDelegates().size();
+		Agent.premain(config.getPath(), instrumentation);
+		List<DelegateAgent> delegates = Agent.getBootedDelegates();
+		assertEquals(booted + 1, delegates.size());
+		assertEquals(include, delegates.get(booted).getConfigElements().getIncludePatterns()[0].pattern());
+		return new ArrayList<>(delegates.subList(booted, booted + 1));
+	}
+
+	private void writeConfiguration(Class<?> delegate, String include, String configuration) throws Exception
+	{
+		Files.write(
+			config.toPath(),
+			(
+				"<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n"
+					+ "<agent>\n"
+					+ "	<delegate>" + delegate.getName() + "</delegate>\n"
+					+ "	<classpath>\n"
+					+ "		<entry>.</entry>\n"
+					+ "	</classpath>\n"
+					+ "	<filter>\n"
+					+ "		<include>" + include + "</include>\n"
+					+ "	</filter>\n"
+					+ "	<configuration>" + configuration + "</configuration>\n"
+					+ "</agent>\n"
+			).getBytes(StandardCharsets.UTF_8)
+		);
+	}
+
+	private static Instrumentation createInstrumentation(final List<Class<?>> retransformed)
+	{
+		return
+			(Instrumentation)Proxy.newProxyInstance(
+				ConfigurationReloadTest.class.getClassLoader(),
+				new Class<?>[] { Instrumentation.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						switch(method.getName()) {
+							case "getAllLoadedClasses":
+								return new Class<?>[] { String.class, ClassFilter.class, ClassLoadEvent.class, ClassLoadNotifier.class };
+							case "retransformClasses":
+								retransformed.addAll(Arrays.asList((Class<?>[])args[0]));
+								return null;
+							case "getObjectSize":
+								return 0L;
+							default:
+								if(method.getReturnType() == boolean.class)
+									return Boolean.TRUE;
+								return null;
+						}
+					}
+				}
+			);
+	}
+
+
+	public static class PremainDelegate
+	{
+		public static void premain(Pattern[] includePatterns, Pattern[] excludePatterns, Object config, Instrumentation instrumentation)
+		{
+		}
+	}
+
+
+	public static class ReconfigurableDelegate
+	{
+		public static void premain(Pattern[] includePatterns, Pattern[] excludePatterns, Object config, Instrumentation instrumentation)
+		{
+		}
+
+		public static void reconfigure(Pattern[] includePatterns, Pattern[] excludePatterns, Object config)
+		{
+			reconfiguredIncludePatterns = includePatterns;
+			reconfiguredConfiguration = config;
+		}
+	}
+}
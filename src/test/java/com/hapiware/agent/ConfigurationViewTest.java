@@ -0,0 +1,86 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+import org.junit.Test;
+
+import com.hapiware.agent.Agent.ConfigElements;
+
+
+public class ConfigurationViewTest
+	extends
+		TestBase
+{
+	private static final String FILENAME = BASEDIR + "agent-config-custom.xml";
+	
+	
+	@Test
+	public void viewUnmarshaller() throws Exception
+	{
+		Object configuration = Agent.unmarshall(ViewDelegate.class, readConfiguration());
+		assertTrue(configuration instanceof ConfigurationView);
+		
+		ConfigurationView view = (ConfigurationView)configuration;
+		assertEquals("Hello World!", view.get("message"));
+		assertEquals(Arrays.asList("Hello World!", "Hello Moon!"), view.getAll("message"));
+		assertEquals("2010-03-13", view.get("date"));
+		assertNull(view.get("missing"));
+		assertEquals("default", view.get("missing", "default"));
+		assertEquals(2, view.getPaths().size());
+		
+		XMLStreamReader reader = view.createReader();
+		assertEquals(XMLStreamConstants.START_ELEMENT, reader.nextTag());
+		assertEquals("custom", reader.getLocalName());
+		reader.close();
+	}
+	
+	@Test
+	public void nestedPathsAndAttributes()
+	{
+		ConfigurationView view =
+			new ConfigurationView(
+				"<custom version=\"2\"><rule name=\"a\"><depth>3</depth></rule><rule name=\"b\"><![CDATA[<x>]]></rule></custom>"
+			);
+		assertEquals("2", view.get("@version"));
+		assertEquals(Arrays.asList("a", "b"), view.getAll("rule/@name"));
+		assertEquals("3", view.get("rule/depth"));
+		assertEquals(Arrays.asList("", "<x>"), view.getAll("rule"));
+	}
+	
+	@Test
+	public void configurationCanBeReleased()
+	{
+		ConfigElements configElements = readConfiguration();
+		ConfigElements released = configElements.withoutConfiguration();
+		assertNull(released.getConfigurationElement());
+		assertNull(Agent.unmarshall(ViewDelegate.class, released));
+		assertSame(configElements.getClassFilter(), released.getClassFilter());
+		assertEquals(configElements.getDelegateAgentName(), released.getDelegateAgentName());
+	}
+	
+	
+	private static ConfigElements readConfiguration()
+	{
+		Map<String, String> agentParams = new HashMap<>();
+		agentParams.put(Agent.AGENT_CONFIGURATION_PATH, FILENAME);
+		return Agent.readConfigurationFile(agentParams);
+	}
+	
+	public static class ViewDelegate
+	{
+		public static Object unmarshall(ConfigurationView view)
+		{
+			return view;
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+
+public class ConfigurationWatcherTest
+{
+	@Test
+	public void changesAreDebounced() throws Exception
+	{
+		File directory = Files.createTempDirectory("agent-watcher").toFile();
+		directory.deleteOnExit();
+		File config = new File(directory, "agent.xml");
+		config.deleteOnExit();
+		Files.write(config.toPath(), "<agent/>".getBytes(StandardCharsets.UTF_8));
+		
+		final AtomicInteger reloads = new AtomicInteger();
+		final CountDownLatch reloaded = new CountDownLatch(1);
+		ConfigurationWatcher.start(
+			config,
+			500,
+			new Runnable() {
+				@Override
+				public void run() {
+					reloads.incrementAndGet();
+					reloaded.countDown();
+				}
+			}
+		);
+		// Let the watcher register
+		Thread.sleep(200);
+		
+		// Editor like burst of writes
+		for(int i = 0; i < 3; i++) {
+			Files.write(config.toPath(), ("<agent>" + i + "</agent>").getBytes(StandardCharsets.UTF_8));
+			Thread.sleep(50);
+		}
+		// Other files of the directory are ignored
+		File other = new File(directory, "other.xml");
+		other.deleteOnExit();
+		Files.write(other.toPath(), "<other/>".getBytes(StandardCharsets.UTF_8));
+		
+		assertTrue(reloaded.await(30, TimeUnit.SECONDS));
+		Thread.sleep(1000);
+		assertEquals(1, reloads.get());
+	}
+}
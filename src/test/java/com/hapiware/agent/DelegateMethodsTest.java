@@ -0,0 +1,66 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.lang.instrument.Instrumentation;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+
+public class DelegateMethodsTest
+{
+	@Test
+	public void contextSignatureIsPreferred()
+	{
+		DelegateMethods methods = DelegateMethods.get(ContextDelegate.class);
+		assertEquals(DelegateMethods.CONTEXT_TYPE, methods.getPremain().type());
+		assertEquals(DelegateMethods.CONTEXT_TYPE, methods.getReconfigure().type());
+		assertNull(methods.getAgentmain());
+		assertSame(methods, DelegateMethods.get(ContextDelegate.class));
+	}
+
+	@Test
+	public void legacySignature() throws Throwable
+	{
+		DelegateMethods methods = DelegateMethods.get(LegacyDelegate.class);
+		assertEquals(DelegateMethods.LEGACY_TYPE, methods.getPremain().type());
+		assertEquals(DelegateMethods.RECONFIGURE_TYPE, methods.getReconfigure().type());
+
+		// Specific return type adapted
+		assertEquals(DelegateMethods.UNMARSHALL_TYPE, methods.getUnmarshall().type());
+		assertEquals("unmarshalled", (Object)methods.getUnmarshall().invokeExact((Element)null));
+	}
+
+	@Test
+	public void instanceMethodsAreIgnored()
+	{
+		DelegateMethods methods = DelegateMethods.get(InstanceDelegate.class);
+		assertNull(methods.getPremain());
+		assertNull(methods.getUnmarshall());
+	}
+
+
+	public static class ContextDelegate
+	{
+		public static void premain(AgentContext context) {}
+		public static void premain(Pattern[] includes, Pattern[] excludes, Object config, Instrumentation instrumentation) {}
+		public static void reconfigure(AgentContext context) {}
+	}
+
+	public static class LegacyDelegate
+	{
+		public static void premain(Pattern[] includes, Pattern[] excludes, Object config, Instrumentation instrumentation) {}
+		public static void reconfigure(Pattern[] includes, Pattern[] excludes, Object config) {}
+		public static String unmarshall(Element configElement) { return "unmarshalled"; }
+	}
+
+	public static class InstanceDelegate
+	{
+		public void premain(AgentContext context) {}
+		public Object unmarshall(Element configElement) { return null; }
+	}
+}
@@ -0,0 +1,131 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.hapiware.agent.Agent.ConfigElements;
+import com.hapiware.agent.Agent.DelegateAgent;
+
+
+public class InstrumentationLevelsTest
+	extends
+		TestBase
+{
+	private static final String FILENAME = BASEDIR + "agent-config-level.xml";
+	
+	
+	@After
+	public void reset()
+	{
+		InstrumentationLevels.reset();
+	}
+	
+	@Test
+	public void levelSections() throws Exception
+	{
+		ConfigElements configElements = readConfiguration(null, null);
+		assertEquals(1, configElements.getIncludePatterns().length);
+		assertEquals(0, configElements.getExcludePatterns().length);
+		
+		configElements = readConfiguration(null, "full");
+		assertEquals(2, configElements.getIncludePatterns().length);
+		assertEquals("^com/hapiware/.+", configElements.getIncludePatterns()[1].toString());
+		assertEquals("full configuration", Agent.getStringConfiguration(configElements.getConfigurationElement()));
+		
+		configElements = readConfiguration(null, "off");
+		assertEquals(".*", configElements.getExcludePatterns()[0].toString());
+		
+		configElements = readConfiguration("test", "full");
+		assertEquals(3, configElements.getIncludePatterns().length);
+	}
+	
+	@Test
+	public void compiledEntryPerLevel() throws Exception
+	{
+		File compiled = File.createTempFile("agent-level", CompiledConfiguration.FILE_EXTENSION);
+		compiled.deleteOnExit();
+		AgentConfigCompiler.compile(new File(FILENAME), compiled);
+		CompiledConfiguration configuration = CompiledConfiguration.read(compiled.toPath());
+		assertEquals("[test]", configuration.getProfileNames().toString());
+		assertEquals("[light, full, off]", configuration.getLevels().toString());
+		
+		Map<String, String> agentParams = new HashMap<>();
+		assertEquals(2, configuration.select(null, "full").toConfigElements(agentParams).get(0).getIncludePatterns().length);
+		assertEquals(3, configuration.select("test", "full").toConfigElements(agentParams).get(0).getIncludePatterns().length);
+		
+		// Undeclared level : profile entry
+		assertEquals(configuration.select("test"), configuration.select("test", "other"));
+	}
+	
+	@Test
+	public void switchLevel() throws Exception
+	{
+		Map<String, String> agentParams = new HashMap<>();
+		agentParams.put(Agent.AGENT_CONFIGURATION_PATH, FILENAME);
+		agentParams.put(Agent.OPTION_LEVEL, "light");
+		InstrumentationLevels.register(agentParams, retransformingInstrumentation(), Collections.<DelegateAgent>emptyList());
+		assertEquals("light", InstrumentationLevels.getActiveLevel());
+		assertEquals("[light, full, off]", InstrumentationLevels.getLevels().toString());
+		
+		InstrumentationLevels.switchTo("full");
+		assertEquals("full", InstrumentationLevels.getLevel(agentParams));
+		assertEquals(2, Agent.readConfigurationFile(agentParams).getIncludePatterns().length);
+		
+		InstrumentationLevels.switchTo("");
+		assertNull(InstrumentationLevels.getActiveLevel());
+		assertEquals(1, Agent.readConfigurationFile(agentParams).getIncludePatterns().length);
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void undeclaredLevel()
+	{
+		Map<String, String> agentParams = new HashMap<>();
+		agentParams.put(Agent.AGENT_CONFIGURATION_PATH, FILENAME);
+		InstrumentationLevels.register(agentParams, retransformingInstrumentation(), Collections.<DelegateAgent>emptyList());
+		InstrumentationLevels.switchTo("other");
+	}
+	
+	private static Instrumentation retransformingInstrumentation()
+	{
+		return
+			(Instrumentation)Proxy.newProxyInstance(
+				Instrumentation.class.getClassLoader(),
+				new Class<?>[] { Instrumentation.class },
+				new InvocationHandler()
+				{
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args)
+					{
+						if(method.getName().equals("isRetransformClassesSupported"))
+							return true;
+						if(method.getName().equals("getAllLoadedClasses"))
+							return new Class<?>[0];
+						return null;
+					}
+				}
+			);
+	}
+	
+	private static ConfigElements readConfiguration(String profile, String level)
+	{
+		Map<String, String> agentParams = new HashMap<>();
+		agentParams.put(Agent.AGENT_CONFIGURATION_PATH, FILENAME);
+		if(profile != null)
+			agentParams.put(Agent.OPTION_PROFILE, profile);
+		if(level != null)
+			agentParams.put(Agent.OPTION_LEVEL, level);
+		return Agent.readConfigurationFile(agentParams);
+	}
+}
@@ -0,0 +1,119 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.ProtectionDomain;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class LazyBootTransformerTest
+{
+	private static final byte[] CLASS_DATA = new byte[] { 1 };
+	private static final byte[] TRANSFORMED_CLASS_DATA = new byte[] { 2 };
+
+	private TransformerDispatcher dispatcher;
+	private AtomicInteger boots;
+	private LazyBootTransformer transformer;
+
+
+	@Before
+	public void setup()
+	{
+		dispatcher = new TransformerDispatcher(createInstrumentation(), false, true);
+		boots = new AtomicInteger();
+		ClassFilter filter =
+			new ClassFilter(
+				Arrays.asList(Pattern.compile("^com/hapiware/.+")),
+				Collections.<Pattern>emptyList()
+			);
+		transformer =
+			new LazyBootTransformer(
+				dispatcher,
+				Arrays.asList(filter),
+				new Runnable() {
+					@Override
+					public void run() {
+						boots.incrementAndGet();
+						dispatcher.addDelegate("Delegate").getProxy().addTransformer(
+							new ClassFileTransformer() {
+								@Override
+								public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+										ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+									return TRANSFORMED_CLASS_DATA;
+								}
+							}
+						);
+					}
+				}
+			);
+	}
+
+	@Test
+	public void bootOnFirstMatchingClass() throws Exception
+	{
+		assertNull(transformer.transform(null, "java/util/List", null, null, CLASS_DATA));
+		assertFalse(transformer.isBooted());
+		assertEquals(0, boots.get());
+
+		// The class triggering the boot is handed over to the delegate
+		assertArrayEquals(TRANSFORMED_CLASS_DATA, transformer.transform(null, "com/hapiware/Test", null, null, CLASS_DATA));
+		assertTrue(transformer.isBooted());
+
+		assertArrayEquals(TRANSFORMED_CLASS_DATA, transformer.transform(null, "java/util/List", null, null, CLASS_DATA));
+		assertArrayEquals(TRANSFORMED_CLASS_DATA, transformer.transform(null, "com/hapiware/Other", null, null, CLASS_DATA));
+		assertEquals(1, boots.get());
+	}
+
+	@Test
+	public void failedBootIsNotRetried() throws Exception
+	{
+		transformer =
+			new LazyBootTransformer(
+				dispatcher,
+				Arrays.asList(new ClassFilter(Arrays.asList(Pattern.compile(".+")), Collections.<Pattern>emptyList())),
+				new Runnable() {
+					@Override
+					public void run() {
+						boots.incrementAndGet();
+						throw new Agent.ConfigurationError("Boot failure");
+					}
+				}
+			);
+		assertNull(transformer.transform(null, "com/hapiware/Test", null, null, CLASS_DATA));
+		assertNull(transformer.transform(null, "com/hapiware/Test2", null, null, CLASS_DATA));
+		assertFalse(transformer.isBooted());
+		assertEquals(1, boots.get());
+	}
+
+	private static Instrumentation createInstrumentation()
+	{
+		return
+			(Instrumentation)Proxy.newProxyInstance(
+				LazyBootTransformerTest.class.getClassLoader(),
+				new Class<?>[] { Instrumentation.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if(method.getReturnType() == boolean.class)
+							return Boolean.TRUE;
+						return null;
+					}
+				}
+			);
+	}
+}
@@ -0,0 +1,84 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Test;
+
+
+public class MetricsEndpointTest
+{
+	@After
+	public void stop()
+	{
+		MetricsEndpoint.stop();
+		TransformLatencies.disable();
+	}
+	
+	@Test
+	public void metricsAreServed() throws Exception
+	{
+		Agent.getMetrics().counter("com.mycompany.delegate.calls").addAndGet(3);
+		InetSocketAddress address = MetricsEndpoint.start("127.0.0.1", 0);
+		assertNotNull(address);
+		
+		HttpURLConnection connection =
+			(HttpURLConnection)new URL("http://127.0.0.1:" + address.getPort() + MetricsEndpoint.PATH).openConnection();
+		assertEquals(200, connection.getResponseCode());
+		assertEquals(MetricsEndpoint.CONTENT_TYPE, connection.getContentType());
+		String body = read(connection.getInputStream());
+		
+		assertTrue(body, body.contains("# TYPE jeyzer_agent_ready gauge\n"));
+		assertTrue(body, body.contains("com_mycompany_delegate_calls_total 3\n"));
+		assertTrue(body, body.contains("# HELP jeyzer_agent_filter_seen_total Classes examined by the delegate filters.\n"));
+		assertTrue(body, body.contains("# TYPE jeyzer_agent_filter_seen_total counter\n"));
+		assertTrue(body, body.contains("# HELP com_mycompany_delegate_calls_total Delegate counter com.mycompany.delegate.calls.\n"));
+	}
+	
+	@Test
+	public void latenciesAreRendered() throws Exception
+	{
+		TransformLatencies.enable(Collections.singletonMap(Agent.OPTION_LATENCY, "true"));
+		TransformLatencies.get().record("com/my\"company/Foo", 2000000);
+		TransformLatencies.get().record("com/my\"company/Bar", 4000000);
+		
+		StringWriter out = new StringWriter();
+		MetricsEndpoint.render(out);
+		String body = out.toString();
+		assertTrue(body, body.contains("# TYPE jeyzer_agent_transform_latency_seconds summary\n"));
+		assertTrue(body, body.contains("jeyzer_agent_transform_latency_seconds{package=\"com.my\\\"company\",quantile=\"1\"} 0.004\n"));
+		assertTrue(body, body.contains("jeyzer_agent_transform_latency_seconds_sum{package=\"com.my\\\"company\"} 0.006\n"));
+		assertTrue(body, body.contains("jeyzer_agent_transform_latency_seconds_count{package=\"com.my\\\"company\"} 2\n"));
+	}
+	
+	@Test
+	public void metricNames()
+	{
+		assertEquals("jeyzer_agent_filter_seen", MetricsEndpoint.toMetricName("jeyzer.agent.filter.seen"));
+		assertEquals("_xx_hits", MetricsEndpoint.toMetricName("2xx-hits"));
+		assertEquals("a\\\\b\\\"c\\n", MetricsEndpoint.escape("a\\b\"c\n"));
+	}
+	
+	private static String read(InputStream in) throws Exception
+	{
+		try(InputStream input = in) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int length;
+			while((length = input.read(buffer)) != -1)
+				bytes.write(buffer, 0, length);
+			return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+
+
+public class MetricsSegmentTest
+{
+	@After
+	public void close()
+	{
+		MetricsSegment.close();
+	}
+	
+	@Test
+	public void countersAreReadBack() throws Exception
+	{
+		File directory = Files.createTempDirectory("metrics-segment").toFile();
+		directory.deleteOnExit();
+		Map<String, String> agentParams = new HashMap<>();
+		agentParams.put(Agent.OPTION_METRICS_SEGMENT, directory.getPath());
+		agentParams.put(Agent.OPTION_METRICS_SEGMENT_PERIOD, "3600000");
+		MetricsSegment.open(agentParams);
+		File file = MetricsSegment.getFile();
+		assertNotNull(file);
+		assertEquals(MetricsSegment.getProcessId() + MetricsSegment.FILE_EXTENSION, file.getName());
+		
+		Agent.getMetrics().counter("com.mycompany.segment.calls").set(5);
+		MetricsSegment.publishNow();
+		MetricsSegmentReader reader = MetricsSegmentReader.read(file);
+		assertEquals(MetricsSegment.getProcessId(), reader.getPid());
+		assertTrue(reader.getUpdateTime() > 0);
+		assertFalse(reader.isFull());
+		assertEquals(Long.valueOf(5), reader.getValues().get("com.mycompany.segment.calls"));
+		
+		// Plain update of the existing slot
+		Agent.getMetrics().counter("com.mycompany.segment.calls").set(7);
+		MetricsSegment.publishNow();
+		List<MetricsSegmentReader> segments = MetricsSegmentReader.readAll(directory);
+		assertEquals(1, segments.size());
+		assertEquals(Long.valueOf(7), segments.get(0).getValues().get("com.mycompany.segment.calls"));
+	}
+	
+	@Test
+	public void longNamesDoNotCollide() throws Exception
+	{
+		File directory = Files.createTempDirectory("metrics-segment").toFile();
+		directory.deleteOnExit();
+		Map<String, String> agentParams = new HashMap<>();
+		agentParams.put(Agent.OPTION_METRICS_SEGMENT, directory.getPath());
+		agentParams.put(Agent.OPTION_METRICS_SEGMENT_PERIOD, "3600000");
+		MetricsSegment.open(agentParams);
+		
+		// Same first 55 bytes
+		String first = "com.mycompany.segment.delegate com.mycompany.agent.FirstAgentDelegate";
+		String second = "com.mycompany.segment.delegate com.mycompany.agent.SecondAgentDelegate";
+		Agent.getMetrics().counter(first).set(1);
+		Agent.getMetrics().counter(second).set(2);
+		MetricsSegment.publishNow();
+		
+		Map<String, Long> values = MetricsSegmentReader.read(MetricsSegment.getFile()).getValues();
+		String firstSlot = MetricsSegment.getSlotName(first);
+		String secondSlot = MetricsSegment.getSlotName(second);
+		assertFalse(firstSlot.equals(secondSlot));
+		assertTrue(firstSlot.getBytes("UTF-8").length <= MetricsSegment.MAX_NAME_LENGTH);
+		assertTrue(firstSlot.startsWith("com.mycompany.segment.delegate com.mycompany"));
+		assertEquals(Long.valueOf(1), values.get(firstSlot));
+		assertEquals(Long.valueOf(2), values.get(secondSlot));
+		
+		// Short names are kept as is
+		assertEquals("com.mycompany.segment.calls", MetricsSegment.getSlotName("com.mycompany.segment.calls"));
+	}
+	
+	@Test
+	public void disabledByDefault()
+	{
+		MetricsSegment.open(new HashMap<String, String>());
+		assertNull(MetricsSegment.getFile());
+	}
+}
@@ -0,0 +1,67 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.hapiware.agent.Agent.ConfigElements;
+
+
+public class MultipleDelegatesTest
+	extends
+		TestBase
+{
+	private static final String FILENAME = BASEDIR + "agent-config-multiple.xml";
+	
+	
+	@Test
+	public void readFromFile() throws Exception
+	{
+		Map<String, String> agentParams = new HashMap<>();
+		agentParams.put(Agent.AGENT_CONFIGURATION_PATH, FILENAME);
+		List<ConfigElements> delegates = Agent.readConfiguration(agentParams);
+		assertEquals(2, delegates.size());
+		
+		ConfigElements first = delegates.get(0);
+		assertEquals("com.hapiware.asm.AgentDelegate", first.getDelegateAgentName());
+		assertEquals(new File(".").toURI().toURL(), first.getClasspaths()[0]);
+		assertEquals(1, first.getIncludePatterns().length);
+		assertEquals("^com/asm/.+", first.getIncludePatterns()[0].toString());
+		assertEquals(0, first.getExcludePatterns().length);
+		@SuppressWarnings("unchecked")
+		List<String> list = (List<String>)Agent.unmarshall(null, first);
+		assertEquals("One", list.get(0));
+		
+		// Defaults to the /agent elements
+		ConfigElements second = delegates.get(1);
+		assertEquals("com.hapiware.asm.OtherAgentDelegate", second.getDelegateAgentName());
+		assertEquals(new File(".").toURI().toURL(), second.getClasspaths()[0]);
+		assertEquals(2, second.getIncludePatterns().length);
+		assertEquals("^com/hapiware/.+/CreateCalculationForm", second.getExcludePatterns()[0].toString());
+		assertEquals("Shared", Agent.unmarshall(null, second));
+	}
+	
+	@Test
+	public void firstDelegateIsTheLegacyOne()
+	{
+		Map<String, String> agentParams = new HashMap<>();
+		agentParams.put(Agent.AGENT_CONFIGURATION_PATH, FILENAME);
+		assertEquals(
+			"com.hapiware.asm.AgentDelegate",
+			Agent.readConfigurationFile(agentParams).getDelegateAgentName()
+		);
+	}
+	
+	@Test(expected=Agent.ConfigurationError.class)
+	public void delegateWithoutClasspath() throws Exception
+	{
+		setup();
+		agent.removeChild(classpath);
+		Agent.readDelegates(configDoc, this.getClass().toString(), new HashMap<String, String>());
+	}
+}
@@ -0,0 +1,123 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.hapiware.agent.Agent.ConfigElements;
+import com.hapiware.agent.Agent.ConfigurationError;
+
+
+public class OverheadBudgetTest
+	extends
+		TestBase
+{
+	private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+	
+	
+	@Test
+	public void delegateBudgetOverridesAgentOne() throws Exception
+	{
+		checkBudgets(readConfiguration(BASEDIR + "agent-config-multiple.xml"));
+	}
+	
+	@Test
+	public void budgetIsCompiled() throws Exception
+	{
+		File compiled = File.createTempFile("agent-unit-test", CompiledConfiguration.FILE_EXTENSION);
+		compiled.deleteOnExit();
+		AgentConfigCompiler.compile(new File(BASEDIR + "agent-config-multiple.xml"), compiled);
+		checkBudgets(readConfiguration(compiled.getPath()));
+	}
+	
+	@Test
+	public void parse()
+	{
+		assertNull(OverheadBudget.parse(Collections.<String>emptyList()));
+		assertNull(OverheadBudget.parse(OverheadBudget.toAttributes("", null, "5s")));
+		OverheadBudget budget = OverheadBudget.parse(OverheadBudget.toAttributes("1m", "250", null));
+		assertEquals(60000 * MS, budget.getTotalNanos());
+		assertEquals(250 * MS, budget.getClassNanos());
+		assertEquals(60000 * MS, budget.getWindowNanos());
+	}
+	
+	@Test(expected = ConfigurationError.class)
+	public void invalidDuration()
+	{
+		OverheadBudget.parse(OverheadBudget.toAttributes("2 seconds", null, null));
+	}
+	
+	@Test
+	public void slowClassDegradesItsPackage()
+	{
+		OverheadBudgetGuard guard = new OverheadBudgetGuard("test");
+		guard.setBudget(new OverheadBudget(0, 10, 60000));
+		guard.record("com/mycompany/Fast", 5 * MS);
+		assertFalse(guard.isDegraded("com/mycompany/Fast"));
+		
+		guard.record("com/mycompany/Slow", 20 * MS);
+		assertTrue(guard.isDegraded("com/mycompany/Fast"));
+		assertFalse(guard.isDegraded("com/mycompany/util/Fast"));
+		assertFalse(guard.isDegraded("com/mycompanyother/Fast"));
+		assertEquals(Arrays.asList("com.mycompany"), guard.getDegradedPackages());
+		
+		guard.restore();
+		assertFalse(guard.isDegraded("com/mycompany/Fast"));
+	}
+	
+	@Test
+	public void totalDegradesTheTopPackage()
+	{
+		OverheadBudgetGuard guard = new OverheadBudgetGuard("test");
+		guard.setBudget(new OverheadBudget(100, 0, 60000));
+		guard.record("a/A1", 30 * MS);
+		guard.record("b/B1", 20 * MS);
+		guard.record("a/A2", 40 * MS);
+		assertTrue(guard.getDegradedPackages().isEmpty());
+		
+		guard.record("b/B2", 20 * MS);
+		assertEquals(Arrays.asList("a"), guard.getDegradedPackages());
+		
+		// Package a time is no longer accounted
+		guard.record("b/B3", 50 * MS);
+		assertEquals(Arrays.asList("a"), guard.getDegradedPackages());
+		guard.record("b/B4", 20 * MS);
+		assertEquals(Arrays.asList("a", "b"), guard.getDegradedPackages());
+		
+		// Reload
+		guard.setBudget(null);
+		guard.record("a/A3", 1000 * MS);
+		assertTrue(guard.getDegradedPackages().isEmpty());
+	}
+	
+	private static void checkBudgets(List<ConfigElements> delegates)
+	{
+		OverheadBudget delegateBudget = delegates.get(0).getOverheadBudget();
+		assertEquals(0, delegateBudget.getTotalNanos());
+		assertEquals(100 * MS, delegateBudget.getClassNanos());
+		assertEquals(60000 * MS, delegateBudget.getWindowNanos());
+		
+		OverheadBudget agentBudget = delegates.get(1).getOverheadBudget();
+		assertEquals(2000 * MS, agentBudget.getTotalNanos());
+		assertEquals(0, agentBudget.getClassNanos());
+		assertEquals(10000 * MS, agentBudget.getWindowNanos());
+	}
+	
+	private static List<ConfigElements> readConfiguration(String path)
+	{
+		Map<String, String> agentParams = new HashMap<>();
+		agentParams.put(Agent.AGENT_CONFIGURATION_PATH, path);
+		return Agent.readConfiguration(agentParams);
+	}
+}
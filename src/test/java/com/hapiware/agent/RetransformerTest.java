@@ -0,0 +1,65 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+
+public class RetransformerTest
+{
+	@Test
+	public void reclassifiedClasses()
+	{
+		Retransformer retransformer = new Retransformer(createInstrumentation(), 10, 0);
+		ClassFilter previous = createFilter("^com/hapiware/agent/ClassFilter$", "^com/hapiware/agent/ClassLoad.+");
+		ClassFilter current = createFilter("^com/hapiware/agent/ClassLoad.+", null);
+		// Unchanged decision for the other delegate
+		ClassFilter other = createFilter("^java/lang/.+", null);
+		
+		// ClassLoadNotifier is not modifiable, String keeps its decision
+		assertEquals(
+			Arrays.<Class<?>>asList(ClassFilter.class, ClassLoadEvent.class),
+			retransformer.getReclassifiedClasses(Arrays.asList(previous, other), Arrays.asList(current, other))
+		);
+		assertEquals(
+			Collections.<Class<?>>emptyList(),
+			retransformer.getReclassifiedClasses(Arrays.asList(previous), Arrays.asList(previous))
+		);
+	}
+	
+	private static ClassFilter createFilter(String include, String exclude)
+	{
+		return
+			new ClassFilter(
+				Arrays.asList(Pattern.compile(include)),
+				exclude != null ? Arrays.asList(Pattern.compile(exclude)) : Collections.<Pattern>emptyList()
+			);
+	}
+	
+	private static Instrumentation createInstrumentation()
+	{
+		return
+			(Instrumentation)Proxy.newProxyInstance(
+				RetransformerTest.class.getClassLoader(),
+				new Class<?>[] { Instrumentation.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if(method.getName().equals("getAllLoadedClasses"))
+							return new Class<?>[] { String.class, ClassFilter.class, ClassLoadEvent.class, ClassLoadNotifier.class };
+						if(method.getName().equals("isModifiableClass"))
+							return args[0] != ClassLoadNotifier.class;
+						return null;
+					}
+				}
+			);
+	}
+}
@@ -0,0 +1,136 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+
+public class TransformLatenciesTest
+{
+	@Test
+	public void bucketsCoverTheirValues()
+	{
+		long previous = -1;
+		for(int i = 0; i < LatencyHistogram.BUCKET_COUNT - 1; i++) {
+			long upper = LatencyHistogram.bucketUpperBound(i);
+			assertEquals(i, LatencyHistogram.bucketIndex(previous + 1));
+			assertEquals(i, LatencyHistogram.bucketIndex(upper));
+			// Relative error bound of the log-linear buckets
+			assertTrue(upper - previous <= Math.max(1, (previous + 1) / LatencyHistogram.SUB_BUCKETS));
+			previous = upper;
+		}
+		assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.bucketIndex(Long.MAX_VALUE));
+	}
+	
+	@Test
+	public void percentiles()
+	{
+		LatencyHistogram histogram = new LatencyHistogram();
+		for(int i = 1; i <= 1000; i++)
+			histogram.record(i * 1000L);
+		
+		LatencySnapshot snapshot = histogram.snapshot();
+		assertEquals(1000, snapshot.getCount());
+		assertEquals(500500000L, snapshot.getTotalNanos());
+		assertEquals(1000000L, snapshot.getMaxNanos());
+		assertBetween(500000L, snapshot.getP50Nanos());
+		assertBetween(990000L, snapshot.getP99Nanos());
+		
+		histogram.reset();
+		assertEquals(0, histogram.snapshot().getCount());
+		assertEquals(0, histogram.snapshot().getP99Nanos());
+	}
+	
+	@Test
+	public void latenciesAreGroupedByPackage()
+	{
+		TransformLatencies latencies = new TransformLatencies(10);
+		latencies.record("com/mycompany/Foo", 100);
+		latencies.record("com/mycompany/Bar", 300);
+		latencies.record("com/mycompany/util/Baz", 200);
+		latencies.record("Main", 50);
+		
+		assertSame(latencies.histogram("com/mycompany/Foo"), latencies.histogram("com/mycompany/Other"));
+		Map<String, LatencySnapshot> snapshots = latencies.snapshot();
+		assertEquals(3, snapshots.size());
+		assertEquals(2, snapshots.get("com.mycompany").getCount());
+		assertEquals(300, snapshots.get("com.mycompany").getMaxNanos());
+		assertEquals(1, snapshots.get("com.mycompany.util").getCount());
+		assertEquals(1, snapshots.get(TransformLatencies.DEFAULT_PACKAGE).getCount());
+	}
+	
+	@Test
+	public void trackedPackagesAreCapped()
+	{
+		TransformLatencies latencies = new TransformLatencies(2);
+		for(int i = 0; i < 5; i++)
+			latencies.record("p" + i + "/Foo", 10);
+		latencies.record(null, 10);
+		
+		Map<String, LatencySnapshot> snapshots = latencies.snapshot();
+		assertEquals(3, snapshots.size());
+		assertEquals(4, snapshots.get(TransformLatencies.OTHER_PACKAGES).getCount());
+		assertEquals(1, snapshots.get("p0").getCount());
+		assertEquals(1, snapshots.get("p1").getCount());
+	}
+	
+	@Test
+	public void untrackedPackagesAreRecordedLockFreeOnceCapped() throws Exception
+	{
+		final TransformLatencies latencies = new TransformLatencies(1);
+		latencies.record("p0/Foo", 10);
+		
+		final CountDownLatch locked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		Thread holder =
+			new Thread() {
+				@Override
+				public void run()
+				{
+					synchronized(latencies) {
+						locked.countDown();
+						try {
+							release.await();
+						}
+						catch(InterruptedException e) {
+							// Test end
+						}
+					}
+				}
+			};
+		holder.start();
+		locked.await();
+		try {
+			Thread recorder =
+				new Thread() {
+					@Override
+					public void run()
+					{
+						for(int i = 1; i < 100; i++)
+							latencies.record("p" + i + "/Foo", 10);
+					}
+				};
+			recorder.start();
+			recorder.join(5000);
+			assertFalse(recorder.isAlive());
+		}
+		finally {
+			release.countDown();
+			holder.join();
+		}
+		assertEquals(99, latencies.snapshot().get(TransformLatencies.OTHER_PACKAGES).getCount());
+		assertEquals(1, latencies.snapshot().get("p0").getCount());
+	}
+	
+	private static void assertBetween(long expected, long actual)
+	{
+		assertTrue(actual + " < " + expected, actual >= expected);
+		assertTrue(actual + " > " + expected + " + 12.5%", actual <= expected + expected / LatencyHistogram.SUB_BUCKETS);
+	}
+}
@@ -0,0 +1,93 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.hapiware.agent.Agent.ConfigElements;
+import com.hapiware.agent.Agent.ConfigurationError;
+
+
+public class TransformSamplerTest
+	extends
+		TestBase
+{
+	@Test
+	public void samplingIsInherited()
+	{
+		Map<String, String> agentParams = new HashMap<>();
+		agentParams.put(Agent.AGENT_CONFIGURATION_PATH, BASEDIR + "agent-config-multiple.xml");
+		List<ConfigElements> delegates = Agent.readConfiguration(agentParams);
+		for(ConfigElements configElements : delegates) {
+			assertEquals(0.1, configElements.getSampler().getFraction(), 0);
+			assertEquals(50, configElements.getSampler().getRate());
+		}
+	}
+	
+	@Test
+	public void parse()
+	{
+		assertNull(TransformSampler.parse(TransformSampler.toAttributes(null, " ")));
+		assertNull(TransformSampler.parse(TransformSampler.toAttributes("100%", null)));
+		assertEquals(0.25, TransformSampler.parse(TransformSampler.toAttributes("0.25", null)).getFraction(), 0);
+		assertEquals(1, TransformSampler.parse(TransformSampler.toAttributes(null, "10")).getFraction(), 0);
+	}
+	
+	@Test(expected = ConfigurationError.class)
+	public void invalidFraction()
+	{
+		TransformSampler.parse(TransformSampler.toAttributes("150%", null));
+	}
+	
+	@Test(expected = ConfigurationError.class)
+	public void invalidRate()
+	{
+		TransformSampler.parse(TransformSampler.toAttributes(null, "-1"));
+	}
+	
+	@Test
+	public void fractionIsStable()
+	{
+		// Same value on any JVM : the selection must not change across restarts
+		assertEquals(0xD1BB6266, TransformSampler.hash("com/mycompany/Foo"));
+		
+		TransformSampler sampler = new TransformSampler(0.2, 0);
+		TransformSampler other = new TransformSampler(0.2, 0);
+		int sampled = 0;
+		for(int i = 0; i < 10000; i++) {
+			String className = "com/mycompany/generated/Class" + i;
+			boolean selected = sampler.isSampled(className, false);
+			assertEquals(selected, other.isSampled(className, false));
+			assertEquals(selected, sampler.isSampled(className, true));
+			if(selected)
+				sampled++;
+		}
+		assertTrue(String.valueOf(sampled), sampled > 1800 && sampled < 2200);
+		
+		// Hidden classes are always sampled
+		assertTrue(sampler.isSampled(null, false));
+		assertFalse(new TransformSampler(0, 0).isSampled("com/mycompany/Foo", false));
+	}
+	
+	@Test
+	public void rateLimit()
+	{
+		TransformSampler sampler = new TransformSampler(1, 5);
+		int sampled = 0;
+		for(int i = 0; i < 20; i++)
+			if(sampler.isSampled("com/mycompany/Class" + i, false))
+				sampled++;
+		// 10 at most if the second changed in between
+		assertTrue(String.valueOf(sampled), sampled == 5 || sampled == 10);
+		
+		// Retransformations are not rate limited
+		assertTrue(sampler.isSampled("com/mycompany/Class19", true));
+	}
+}
@@ -0,0 +1,65 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertSame;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+
+public class TransformerChainTest
+{
+	private static final byte[] CLASS_DATA = new byte[] { 1 };
+	private static final byte[] TRANSFORMED_CLASS_DATA = new byte[] { 2 };
+	
+	
+	@Test
+	public void moduleAwareTransformerIsCalledWithTheModule() throws Exception
+	{
+		final AtomicReference<Module> called = new AtomicReference<>();
+		TransformerChain chain = new TransformerChain();
+		chain.add(
+			new ClassFileTransformer() {
+				@Override
+				public byte[] transform(Module module, ClassLoader loader, String className, Class<?> classBeingRedefined,
+						ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+					called.set(module);
+					return TRANSFORMED_CLASS_DATA;
+				}
+			}
+		);
+		Module module = TransformerChainTest.class.getModule();
+		assertArrayEquals(TRANSFORMED_CLASS_DATA, chain.transform(module, null, "com/hapiware/Test", null, null, CLASS_DATA));
+		assertSame(module, called.get());
+	}
+	
+	@Test
+	public void failingTransformerIsSkipped() throws Exception
+	{
+		TransformerChain chain = new TransformerChain();
+		chain.add(
+			new ClassFileTransformer() {
+				@Override
+				public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+						ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+					throw new IllegalStateException("Transformer failure");
+				}
+			}
+		);
+		chain.add(
+			new ClassFileTransformer() {
+				@Override
+				public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+						ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+					return TRANSFORMED_CLASS_DATA;
+				}
+			}
+		);
+		assertArrayEquals(TRANSFORMED_CLASS_DATA, chain.transform(null, "com/hapiware/Test", null, null, CLASS_DATA));
+		// Legacy transformers get the class through the default module aware method
+		assertArrayEquals(TRANSFORMED_CLASS_DATA, chain.transform(Object.class.getModule(), null, "com/hapiware/Test", null, null, CLASS_DATA));
+	}
+}
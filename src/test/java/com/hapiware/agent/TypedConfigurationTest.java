@@ -0,0 +1,111 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.hapiware.agent.Agent.ConfigElements;
+import com.hapiware.agent.TypedConfiguration.Type;
+
+
+public class TypedConfigurationTest
+	extends
+		TestBase
+{
+	private static final String FILENAME = BASEDIR + "agent-config-typed.xml";
+	
+	
+	@Test
+	public void readFromFile()
+	{
+		Map<String, String> agentParams = new HashMap<>();
+		agentParams.put(Agent.AGENT_CONFIGURATION_PATH, FILENAME);
+		checkConfiguration(Agent.unmarshall(null, Agent.readConfigurationFile(agentParams)));
+	}
+	
+	@Test
+	public void readFromCompiledFile() throws Exception
+	{
+		File compiled = File.createTempFile("agent-unit-test", CompiledConfiguration.FILE_EXTENSION);
+		compiled.deleteOnExit();
+		AgentConfigCompiler.compile(new File(FILENAME), compiled);
+		
+		Map<String, String> agentParams = new HashMap<>();
+		agentParams.put(Agent.AGENT_CONFIGURATION_PATH, compiled.getPath());
+		ConfigElements configElements = Agent.readConfigurationFile(agentParams);
+		checkConfiguration(Agent.unmarshall(null, configElements));
+	}
+	
+	@Test
+	public void durationsAndSizes()
+	{
+		assertEquals(250L, TypedConfiguration.parse("d", "250", Type.DURATION));
+		assertEquals(250L, TypedConfiguration.parse("d", "250ms", Type.DURATION));
+		assertEquals(30000L, TypedConfiguration.parse("d", "30s", Type.DURATION));
+		assertEquals(3600000L, TypedConfiguration.parse("d", "1h", Type.DURATION));
+		assertEquals(86400000L, TypedConfiguration.parse("d", "1d", Type.DURATION));
+		assertEquals(512L, TypedConfiguration.parse("s", "512b", Type.SIZE));
+		assertEquals(10L << 20, TypedConfiguration.parse("s", "10M", Type.SIZE));
+		assertEquals(1L << 30, TypedConfiguration.parse("s", "1gb", Type.SIZE));
+	}
+	
+	@Test
+	public void lastItemWins()
+	{
+		TypedConfiguration configuration =
+			new TypedConfiguration(
+				Arrays.asList("a", "b", "a"),
+				Arrays.asList(Type.INT, Type.STRING, Type.LONG),
+				Arrays.asList("1", "x", "2")
+			);
+		assertEquals(2, configuration.size());
+		assertEquals(Type.LONG, configuration.getType("a"));
+		assertEquals(2L, configuration.getLong("a", 0));
+		Iterator<String> keys = configuration.keySet().iterator();
+		assertEquals("a", keys.next());
+		assertEquals("b", keys.next());
+	}
+	
+	
+	private static void checkConfiguration(Object configuration)
+	{
+		assertTrue(configuration instanceof TypedConfiguration);
+		TypedConfiguration typed = (TypedConfiguration)configuration;
+		assertEquals(7, typed.size());
+		assertEquals(12, typed.getInt("max-depth", 0));
+		assertEquals(12, typed.getInt("max-depth", 0));
+		assertEquals(12L, typed.getLong("max-depth", 0));
+		assertEquals(5000000000L, typed.getLong("offset", 0));
+		assertTrue(typed.getBoolean("enabled", false));
+		assertEquals(120000L, typed.getDuration("period", 0));
+		assertEquals(65536L, typed.getSize("buffer", 0));
+		assertEquals("plain", typed.get("name"));
+		assertEquals(Type.STRING, typed.getType("name"));
+		assertEquals("12", typed.get("max-depth"));
+		assertFalse(typed.containsKey("missing"));
+		assertEquals(7, typed.getInt("missing", 7));
+		
+		try {
+			typed.getInt("broken", 0);
+			throw new AssertionError("Unparseable value accepted");
+		}
+		catch(IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			typed.getBoolean("max-depth", false);
+			throw new AssertionError("Type mismatch accepted");
+		}
+		catch(IllegalArgumentException e) {
+			// expected
+		}
+	}
+}